@@ -9,12 +9,13 @@ import simpledb.Aggregator.Op;
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private TupleDesc td = null;
     private DbIterator child = null;
     private DbIterator it = null;
+    private transient RowsToBatch results = null;
     private Aggregator agg = null;
     private Aggregator.Op aop = null;
     private String gFieldName = null;
@@ -179,25 +180,53 @@ public class Aggregate extends Operator {
      * aggregate. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-	// Actually perform the aggregation
-	if (it == null) {
+	aggregate();
+	if (it.hasNext())
+	    return it.next();
+	return null;
+    }
+
+    /**
+     * Returns the result tuples of the aggregate a batch at a time.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException,
+	    DbException {
+	aggregate();
+	if (results == null)
+	    results = new RowsToBatch(it);
+	return results.nextBatch();
+    }
+
+    /**
+     * Actually perform the aggregation, the first time it is needed. A child
+     * that produces batches is read a batch at a time.
+     */
+    private void aggregate() throws TransactionAbortedException, DbException {
+	if (it != null)
+	    return;
+	if (child instanceof BatchIterator) {
+	    TupleBatch batch;
+	    while ((batch = ((BatchIterator) child).nextBatch()) != null)
+		agg.mergeBatchIntoGroup(batch);
+	} else {
 	    while (child.hasNext()) {
 		Tuple t = child.next();
 		agg.mergeTupleIntoGroup(t);
 	    }
-
-	    it = agg.iterator();
-	    it.open();
 	}
 
-	if (it.hasNext())
-	    return it.next();
-	return null;
+	it = agg.iterator();
+	it.open();
+	results = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-	close();
-	open();
+	// read the results again, keeping the groups: closing drops them
+	super.close();
+	super.open();
+	if (it != null)
+	    it.rewind();
+	results = null;
     }
 
     /**
@@ -221,6 +250,11 @@ public class Aggregate extends Operator {
 	if (it != null) {
 	    it.close();
 	}
+	// drop the groups, and any files they were spilled to; opening again
+	// aggregates the child from the start
+	it = null;
+	results = null;
+	agg.close();
     }
 
     @Override
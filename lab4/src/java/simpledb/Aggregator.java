@@ -8,6 +8,8 @@ import java.io.Serializable;
  */
 public interface Aggregator extends Serializable {
     static final int NO_GROUPING = -1;
+    /** The default number of groups an aggregator holds in memory */
+    static final int MEMORY_GROUPS = 20000;
 
     /**
      * SUM_COUNT and SC_AVG will
@@ -76,10 +78,25 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into the aggregate, as
+     * mergeTupleIntoGroup does for each of them.
+     *
+     * @param batch the rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
      */
     public DbIterator iterator();
+
+    /**
+     * Release what the aggregator holds, such as the files of the groups it
+     * spilled to disk, and forget the groups merged so far, so that its
+     * input can be merged again from the start.
+     */
+    public void close();
     
 }
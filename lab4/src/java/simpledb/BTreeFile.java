@@ -2,7 +2,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.Predicate.Op;
 
@@ -27,6 +29,26 @@ public class BTreeFile implements DbFile {
 	private final int tableid;
 	private int keyField;
 
+	/**
+	 * Incremented whenever a transaction gets write access to an internal
+	 * page or the root pointer page, before it changes them, and after a bulk
+	 * load. Optimistic descents that see it unchanged, and none of whose
+	 * pages were write-locked when they read them, read a consistent path.
+	 */
+	private final AtomicLong structureVersion = new AtomicLong();
+
+	/**
+	 * The number of optimistic descents findLeafPage() tries before it falls
+	 * back to locking the internal pages
+	 */
+	static final int OPTIMISTIC_ATTEMPTS = 3;
+
+	/** A bound on the depth of a tree, to give up on descents gone astray */
+	private static final int MAX_DEPTH = 64;
+
+	/** Decoded copies of the internal pages near the root */
+	private final BTreeNodeCache nodeCache = new BTreeNodeCache();
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -178,6 +200,642 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/** Default fill factor of the pages written by bulkLoad() */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	/**
+	 * Bulk load this empty B+ tree from the specified tuples, packing pages
+	 * to DEFAULT_FILL_FACTOR.
+	 * 
+	 * @see #bulkLoad(DbFileIterator, double, int)
+	 */
+	public void bulkLoad(DbFileIterator tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		bulkLoad(tuples, DEFAULT_FILL_FACTOR, ExternalSort.DEFAULT_RUN_TUPLES);
+	}
+
+	/**
+	 * Bulk load this empty B+ tree from the specified tuples, which need not
+	 * be sorted. The tuples are sorted on the key field with an ExternalSort,
+	 * then the tree is built bottom-up: since the number of tuples is known,
+	 * the shape of every level is fixed in advance, and each page is written
+	 * exactly once, with its parent and sibling pointers already set, in a
+	 * single sequential pass over the file (root pointer, leaves, then each
+	 * internal level up to the root).
+	 * 
+	 * The load goes straight to disk and is not logged, so it should be run
+	 * before the file is used by any transaction.
+	 * 
+	 * @param tuples
+	 *            - the tuples to load
+	 * @param fillFactor
+	 *            - the fraction of each page to fill, between 0.5 and 1;
+	 *            lower values leave room for later inserts without splits
+	 * @param runTuples
+	 *            - the number of tuples to sort in memory at a time
+	 * @throws DbException
+	 *             if the file already holds pages
+	 */
+	public void bulkLoad(DbFileIterator tuples, double fillFactor, int runTuples)
+			throws DbException, IOException, TransactionAbortedException {
+		if (fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		if (numPages() > 0) {
+			throw new DbException("can only bulk load an empty BTreeFile");
+		}
+
+		ExternalSort sorter = new ExternalSort(td, new BTreeFileEncoder.TupleComparator(keyField), runTuples);
+		try {
+			sorter.addAll(tuples);
+			if (sorter.size() > Integer.MAX_VALUE) {
+				throw new DbException("too many tuples to bulk load");
+			}
+			if (sorter.size() > 0) {
+				ArrayList<int[]> levels = layout((int) sorter.size(), fillFactor,
+						compactKeys() ? sorter.iterator() : null);
+				BTreePageId root = writeSorted(sorter.iterator(), levels, 1);
+				RandomAccessFile rf = new RandomAccessFile(f, "rw");
+				try {
+					rf.write(BTreeFileEncoder.convertToRootPtrPage(root.pageNumber(), root.pgcateg(), 0));
+					rf.getChannel().force(true);
+				} finally {
+					rf.close();
+				}
+			}
+		} finally {
+			sorter.close();
+		}
+
+		// drop any cached copy of the empty root pointer page
+		Database.getBufferPool().discardPage(BTreeRootPtrPage.getId(tableid));
+		structureVersion.incrementAndGet();
+	}
+
+	/**
+	 * Divide total items among as few pages as possible holding about
+	 * target items each, without leaving any page with fewer than min items
+	 * (unless there is only one page).
+	 * 
+	 * @return the number of items on each page
+	 */
+	private static int[] distribute(int total, int target, int min) {
+		int pages = (total + target - 1) / target;
+		while (pages > 1 && total / pages < min) {
+			pages--;
+		}
+		int[] sizes = new int[pages];
+		for (int i = 0; i < pages; i++) {
+			sizes[i] = total / pages + (i < total % pages ? 1 : 0);
+		}
+		return sizes;
+	}
+
+	/**
+	 * Divide items of the specified sizes, in order, among as few pages as
+	 * possible holding about target bytes each, without leaving any page
+	 * with fewer than min bytes or two items (unless there is only one page).
+	 * 
+	 * @return the number of items on each page
+	 */
+	private static int[] distributeBytes(int[] sizes, int target, int min) {
+		long total = 0;
+		for (int size : sizes) {
+			total += size;
+		}
+		int pages = (int) ((total + target - 1) / target);
+		while (pages > 1 && (total / pages < min || sizes.length / pages < 2)) {
+			pages--;
+		}
+		// each page takes the items that start within its share of the bytes
+		int[] counts = new int[pages];
+		long start = 0;
+		for (int size : sizes) {
+			counts[(int) Math.min(pages - 1, start * pages / total)]++;
+			start += size;
+		}
+		return counts;
+	}
+
+	/**
+	 * @return true if the internal pages of this tree are compact, with
+	 *         variable-length keys
+	 * @see BTreeInternalPage
+	 */
+	private boolean compactKeys() {
+		return td.getFieldType(keyField) == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return the key separating each leaf of a layout from the one before
+	 *         it (null for the first leaf), as writeSorted() pushes them up,
+	 *         from the tuples in key order
+	 */
+	private Field[] leafSeparators(Iterator<Tuple> sorted, int[] leaves) {
+		Field[] separators = new Field[leaves.length];
+		Field last = null;
+		for (int i = 0; i < leaves.length; i++) {
+			for (int j = 0; j < leaves[i]; j++) {
+				Field key = sorted.next().getField(keyField);
+				if (j == 0 && i > 0) {
+					separators[i] = separator(last, key);
+				}
+				last = key;
+			}
+		}
+		return separators;
+	}
+
+	/**
+	 * Lay out the B+ tree for count tuples with pages filled to fillFactor:
+	 * levels.get(0)[i] is the number of tuples on leaf i, and levels.get(k)[i]
+	 * the number of children of page i on internal level k.
+	 * <p>
+	 * How many entries fit on a compact internal page depends on their keys,
+	 * so the internal levels of a tree with compact pages are packed by the
+	 * bytes of the separators between the leaves, read from sorted, the
+	 * tuples in key order. sorted may be null for other trees.
+	 */
+	private ArrayList<int[]> layout(int count, double fillFactor, Iterator<Tuple> sorted) throws IOException {
+		int leafCap = new BTreeLeafPage(new BTreePageId(tableid, 0, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), keyField).getMaxTuples();
+		int maxEntries = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+				BTreeInternalPage.createEmptyPageData(), keyField).getMaxEntries();
+
+		ArrayList<int[]> levels = new ArrayList<int[]>();
+		levels.add(distribute(count, Math.max(1, (int) (leafCap * fillFactor)), (leafCap + 1) / 2));
+		if (compactKeys()) {
+			// leave room for the error in estimating a page's bytes from
+			// its entries': the first key of a page is not front coded
+			int capacity = BTreeInternalPage.compactCapacity();
+			int slack = 2 * BTreeInternalPage.MAX_COMPACT_ENTRY_SIZE;
+			int target = (int) ((capacity - slack) * fillFactor);
+			Field[] keys = leafSeparators(sorted, levels.get(0));
+			while (keys.length > 1) {
+				int[] sizes = new int[keys.length];
+				sizes[0] = BTreeInternalPage.INDEX_SIZE;
+				for (int c = 1; c < keys.length; c++) {
+					sizes[c] = BTreeInternalPage.entrySize(keys[c - 1], keys[c]);
+				}
+				int[] pages = distributeBytes(sizes, target, capacity / 2 + slack);
+				// a page is separated from the one before it by the key of
+				// its first child
+				Field[] pageKeys = new Field[pages.length];
+				int child = 0;
+				for (int i = 0; i < pages.length; i++) {
+					pageKeys[i] = keys[child];
+					child += pages[i];
+				}
+				levels.add(pages);
+				keys = pageKeys;
+			}
+			return levels;
+		}
+		while (levels.get(levels.size() - 1).length > 1) {
+			int children = levels.get(levels.size() - 1).length;
+			levels.add(distribute(children, Math.max(2, (int) ((maxEntries + 1) * fillFactor)),
+					maxEntries / 2 + 1));
+		}
+		return levels;
+	}
+
+	/**
+	 * @return the number of pages in a layout, not counting the root pointer
+	 *         page
+	 */
+	private static int layoutPages(ArrayList<int[]> levels) {
+		int pages = 0;
+		for (int[] level : levels) {
+			pages += level.length;
+		}
+		return pages;
+	}
+
+	/**
+	 * Write the B+ tree laid out by levels for tuples sorted on the key
+	 * field, in consecutive pages starting with page number first, straight
+	 * to disk. The root pointer page is left to the caller.
+	 * 
+	 * @return the id of the root page written
+	 */
+	private BTreePageId writeSorted(Iterator<Tuple> sorted, ArrayList<int[]> levels, int first)
+			throws DbException, IOException {
+		// pages are numbered level by level, starting with the leaves
+		int[] firstPageNo = new int[levels.size() + 1];
+		firstPageNo[0] = first;
+		for (int k = 0; k < levels.size(); k++) {
+			firstPageNo[k + 1] = firstPageNo[k] + levels.get(k).length;
+		}
+		int root = firstPageNo[levels.size()] - 1;
+		int rootCategory = (levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+
+		Type[] typeAr = new Type[td.numFields()];
+		for (int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		Type keyType = typeAr[keyField];
+
+		// lowKeys[i] separates page i of the level just written from the
+		// page before it (for page 0, it is the smallest key under it)
+		Field[] lowKeys = new Field[levels.get(0).length];
+		Field lastKey = null;
+
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (first - 1) * BufferPool.getPageSize());
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Channels.newOutputStream(rf.getChannel()), 1 << 16));
+		try {
+			int[] leaves = levels.get(0);
+			int[] parents = parentIndexes(levels, 0);
+			for (int i = 0; i < leaves.length; i++) {
+				ArrayList<Tuple> pageTuples = new ArrayList<Tuple>(leaves[i]);
+				for (int j = 0; j < leaves[i]; j++) {
+					pageTuples.add(sorted.next());
+				}
+				Field firstKey = pageTuples.get(0).getField(keyField);
+				lowKeys[i] = (i == 0 ? firstKey : separator(lastKey, firstKey));
+				lastKey = pageTuples.get(pageTuples.size() - 1).getField(keyField);
+
+				BTreePageId pid = new BTreePageId(tableid, firstPageNo[0] + i, BTreePageId.LEAF);
+				BTreeLeafPage page = new BTreeLeafPage(pid, BTreeFileEncoder.convertToLeafPage(pageTuples,
+						BufferPool.getPageSize(), typeAr.length, typeAr, keyField), keyField);
+				page.setParentId(parentId(levels, firstPageNo, 0, parents, i));
+				page.setLeftSiblingId(i == 0 ? null : new BTreePageId(tableid, pid.pageNumber() - 1, BTreePageId.LEAF));
+				page.setRightSiblingId(i == leaves.length - 1 ? null
+						: new BTreePageId(tableid, pid.pageNumber() + 1, BTreePageId.LEAF));
+				out.write(page.getPageData());
+			}
+
+			for (int k = 1; k < levels.size(); k++) {
+				int[] sizes = levels.get(k);
+				int childCategory = (k == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+				parents = parentIndexes(levels, k);
+				Field[] pageLowKeys = new Field[sizes.length];
+				int child = 0;
+				for (int i = 0; i < sizes.length; i++) {
+					pageLowKeys[i] = lowKeys[child];
+					ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>(sizes[i] - 1);
+					for (int c = child + 1; c < child + sizes[i]; c++) {
+						entries.add(new BTreeEntry(lowKeys[c],
+								new BTreePageId(tableid, firstPageNo[k - 1] + c - 1, childCategory),
+								new BTreePageId(tableid, firstPageNo[k - 1] + c, childCategory)));
+					}
+					child += sizes[i];
+
+					BTreePageId pid = new BTreePageId(tableid, firstPageNo[k] + i, BTreePageId.INTERNAL);
+					BTreeInternalPage page = new BTreeInternalPage(pid, BTreeFileEncoder.convertToInternalPage(
+							entries, BufferPool.getPageSize(), keyType, childCategory), keyField);
+					page.setParentId(parentId(levels, firstPageNo, k, parents, i));
+					out.write(page.getPageData());
+				}
+				lowKeys = pageLowKeys;
+			}
+			out.flush();
+			rf.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		return new BTreePageId(tableid, root, rootCategory);
+	}
+
+	/**
+	 * @return for each page on level k, the index of its parent on level k+1
+	 *         (null if level k is the root level)
+	 */
+	private static int[] parentIndexes(ArrayList<int[]> levels, int k) {
+		if (k + 1 >= levels.size()) {
+			return null;
+		}
+		int[] parents = new int[levels.get(k).length];
+		int child = 0;
+		int[] sizes = levels.get(k + 1);
+		for (int p = 0; p < sizes.length; p++) {
+			for (int c = 0; c < sizes[p]; c++) {
+				parents[child++] = p;
+			}
+		}
+		return parents;
+	}
+
+	private BTreePageId parentId(ArrayList<int[]> levels, int[] firstPageNo, int k, int[] parents, int i) {
+		if (parents == null) {
+			return BTreeRootPtrPage.getId(tableid);
+		}
+		return new BTreePageId(tableid, firstPageNo[k + 1] + parents[i], BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Rebuild this B+ tree online, packing pages to DEFAULT_FILL_FACTOR.
+	 * 
+	 * @see #rebuild(double)
+	 */
+	public boolean rebuild() throws DbException, IOException, TransactionAbortedException {
+		return rebuild(DEFAULT_FILL_FACTOR);
+	}
+
+	/**
+	 * Rebuild this B+ tree online, to undo the fragmentation left by
+	 * deletes: the leaves are compacted, the internal levels rebuilt and the
+	 * file truncated, to the shape and size that a bulk load of the same
+	 * tuples would give. Readers carry on throughout; writers wait.
+	 * <p>
+	 * Each pass of the rebuild is a transaction of its own that holds the
+	 * root pointer page write-locked, which keeps writers out since they all
+	 * read it first, but leaves it unchanged until the end, so optimistic
+	 * descents still read it. The first pass read-locks the tree, writes a
+	 * shadow copy of it bottom-up past the end of the file, as bulkLoad()
+	 * does, and switches the root pointer to the copy. The second pass
+	 * write-locks the pages of the original tree, which waits for the
+	 * readers still on them, writes a second copy over them at the front of
+	 * the file, and switches to it. The last pass write-locks the pages of
+	 * the first copy and truncates the file after the second.
+	 * <p>
+	 * The copies go straight to disk and are forced before the switch, which
+	 * is logged like any other change, so a crash leaves one tree or the
+	 * other in place. Like any transaction, a pass may be aborted by a
+	 * deadlock, in which case it leaves the tree as it found it and the
+	 * TransactionAbortedException is passed on; any pages it leaves unused
+	 * are reclaimed by the next rebuild.
+	 * 
+	 * @param fillFactor
+	 *            - the fraction of each page to fill, between 0.5 and 1
+	 * @return false if the tree is empty or would not get any smaller, in
+	 *         which case it is left alone
+	 */
+	public boolean rebuild(double fillFactor) throws DbException, IOException, TransactionAbortedException {
+		if (fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		if (f.length() == 0) {
+			return false;
+		}
+		BufferPool bp = Database.getBufferPool();
+
+		// first pass: copy the tree past the end of the file
+		ArrayList<BTreePageId> original = new ArrayList<BTreePageId>();
+		int region = -1;
+		boolean smaller = false;
+		boolean done = false;
+		Transaction t = new Transaction();
+		t.start();
+		try {
+			BTreeRootPtrPage rootPtr = lockRootPtrForRebuild(t.getId());
+			ArrayList<BTreePageId> leaves = new ArrayList<BTreePageId>();
+			int count = lockTree(t.getId(), rootPtr, original, leaves);
+			ArrayList<int[]> levels = layout(count, fillFactor,
+					compactKeys() ? leafTuples(t.getId(), leaves) : null);
+			smaller = count > 0 && layoutPages(levels) < numPages();
+			if (smaller) {
+				region = numPages();
+				BTreePageId root = writeSorted(leafTuples(t.getId(), leaves), levels, region + 1);
+				discardPages(region + 1, numPages());
+				switchRoot(t.getId(), rootPtr, root);
+			}
+			done = true;
+		} finally {
+			finishRebuildPass(t, done, region);
+		}
+		if (!smaller) {
+			return false;
+		}
+
+		// second pass: copy it back over the original tree
+		ArrayList<BTreePageId> copy = new ArrayList<BTreePageId>();
+		int size = -1;
+		int end = -1;
+		done = false;
+		t = new Transaction();
+		t.start();
+		try {
+			BTreeRootPtrPage rootPtr = lockRootPtrForRebuild(t.getId());
+			ArrayList<BTreePageId> leaves = new ArrayList<BTreePageId>();
+			int count = lockTree(t.getId(), rootPtr, copy, leaves);
+			for (BTreePageId pid : original) {
+				bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+			}
+			discardPages(1, region);
+			ArrayList<int[]> levels = layout(count, fillFactor,
+					compactKeys() ? leafTuples(t.getId(), leaves) : null);
+			if (count > 0 && layoutPages(levels) <= region) {
+				BTreePageId root = writeSorted(leafTuples(t.getId(), leaves), levels, 1);
+				discardPages(1, region);
+				switchRoot(t.getId(), rootPtr, root);
+				size = layoutPages(levels);
+			} else {
+				// the tree grew too much between the passes to fit, so keep
+				// the first copy and free the pages of the original
+				freePages(t.getId(), 1, region);
+			}
+			end = numPages();
+			done = true;
+		} finally {
+			finishRebuildPass(t, done, -1);
+		}
+		if (size == -1) {
+			return true;
+		}
+
+		// last pass: truncate the file after the second copy, once the
+		// readers still on the first copy are done
+		done = false;
+		t = new Transaction();
+		t.start();
+		try {
+			lockRootPtrForRebuild(t.getId());
+			for (BTreePageId pid : copy) {
+				bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+			}
+			discardPages(size + 1, end);
+			if (numPages() == end) {
+				// optimistic descents that read the first copy must retry
+				// rather than read its leaves once they are gone
+				structureVersion.incrementAndGet();
+				truncate(size);
+			} else {
+				// pages were added between the passes; free the others
+				freePages(t.getId(), size + 1, end);
+			}
+			done = true;
+		} finally {
+			finishRebuildPass(t, done, -1);
+		}
+		return true;
+	}
+
+	/**
+	 * Truncate the file to the specified number of pages.
+	 */
+	private void truncate(int pages) throws IOException {
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		try {
+			rf.setLength(BTreeRootPtrPage.getPageSize() + (long) pages * BufferPool.getPageSize());
+		} finally {
+			rf.close();
+		}
+	}
+
+	/**
+	 * Commit a pass of rebuild() if it got to the end, or else abort it. An
+	 * aborted pass truncates the file back to keepPages pages first, unless
+	 * keepPages is -1, to drop the pages it wrote past the end, which is safe
+	 * while it still keeps writers out.
+	 */
+	private void finishRebuildPass(Transaction t, boolean done, int keepPages) throws IOException {
+		rebuilding = false;
+		if (done) {
+			t.commit();
+			return;
+		}
+		if (keepPages != -1 && numPages() > keepPages) {
+			truncate(keepPages);
+		}
+		t.abort();
+	}
+
+	/**
+	 * Set while a pass of rebuild() holds the root pointer page write-locked
+	 * without having changed it, so that optimistic descents may still read
+	 * it.
+	 */
+	private volatile boolean rebuilding = false;
+
+	/**
+	 * Write-lock the root pointer page for a pass of rebuild(), which keeps
+	 * writers out, and let optimistic descents read it meanwhile.
+	 */
+	private BTreeRootPtrPage lockRootPtrForRebuild(TransactionId tid)
+			throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		rebuilding = true;
+		return rootPtr;
+	}
+
+	/**
+	 * Read-lock every page of the tree, and its header pages.
+	 * 
+	 * @param pages
+	 *            - filled with the ids of all the pages locked
+	 * @param leaves
+	 *            - filled with the ids of the leaves, in key order
+	 * @return the number of tuples in the tree
+	 */
+	private int lockTree(TransactionId tid, BTreeRootPtrPage rootPtr, List<BTreePageId> pages,
+			List<BTreePageId> leaves) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		int count = 0;
+		// breadth first, so the leaves come last and in order
+		LinkedList<BTreePageId> queue = new LinkedList<BTreePageId>();
+		if (rootPtr.getRootId() != null) {
+			queue.add(rootPtr.getRootId());
+		}
+		while (!queue.isEmpty()) {
+			BTreePageId pid = queue.removeFirst();
+			Page page = bp.getPage(tid, pid, Permissions.READ_ONLY);
+			pages.add(pid);
+			if (pid.pgcateg() == BTreePageId.LEAF) {
+				leaves.add(pid);
+				count += ((BTreeLeafPage) page).getNumTuples();
+			} else {
+				Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
+				BTreeEntry e = null;
+				while (it.hasNext()) {
+					e = it.next();
+					queue.add(e.getLeftChild());
+				}
+				if (e != null) {
+					queue.add(e.getRightChild());
+				}
+			}
+		}
+		BTreePageId headerId = rootPtr.getHeaderId();
+		while (headerId != null) {
+			BTreeHeaderPage header = (BTreeHeaderPage) bp.getPage(tid, headerId, Permissions.READ_ONLY);
+			pages.add(headerId);
+			headerId = header.getNextPageId();
+		}
+		return count;
+	}
+
+	/**
+	 * @return an iterator over the tuples on the specified leaves, in order,
+	 *         which tid must have locked already
+	 */
+	private Iterator<Tuple> leafTuples(final TransactionId tid, final List<BTreePageId> leaves) {
+		return new Iterator<Tuple>() {
+			private int next = 0;
+			private Iterator<Tuple> it = null;
+
+			public boolean hasNext() {
+				while ((it == null || !it.hasNext()) && next < leaves.size()) {
+					try {
+						it = ((BTreeLeafPage) Database.getBufferPool().getPage(tid, leaves.get(next++),
+								Permissions.READ_ONLY)).iterator();
+					} catch (DbException e) {
+						throw new RuntimeException(e);
+					} catch (TransactionAbortedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				return it != null && it.hasNext();
+			}
+
+			public Tuple next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return it.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Point the root pointer page, which tid holds write-locked, at a new
+	 * tree with no free pages. Optimistic descents begun before must retry.
+	 */
+	private void switchRoot(TransactionId tid, BTreeRootPtrPage rootPtr, BTreePageId root) throws DbException {
+		rebuilding = false;
+		structureVersion.incrementAndGet();
+		rootPtr.setRootId(root);
+		rootPtr.setHeaderId(null);
+		Database.getBufferPool().markDirty(tid, rootPtr);
+	}
+
+	/**
+	 * Add the pages numbered from to to (inclusive), which no page of the
+	 * tree points to, to the free pages of the file.
+	 */
+	private void freePages(TransactionId tid, int from, int to)
+			throws DbException, IOException, TransactionAbortedException {
+		rebuilding = false;
+		structureVersion.incrementAndGet();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		for (int i = from; i <= to; i++) {
+			setEmptyPage(tid, dirtypages, i);
+		}
+		for (Page p : dirtypages.values()) {
+			Database.getBufferPool().markDirty(tid, p);
+		}
+	}
+
+	/**
+	 * Drop the pages numbered from to to (inclusive) from the buffer pool, in
+	 * every category, since their contents on disk have changed or are
+	 * about to go away.
+	 */
+	private void discardPages(int from, int to) {
+		BufferPool bp = Database.getBufferPool();
+		for (int i = from; i <= to; i++) {
+			bp.discardPage(new BTreePageId(tableid, i, BTreePageId.LEAF));
+			bp.discardPage(new BTreePageId(tableid, i, BTreePageId.INTERNAL));
+			bp.discardPage(new BTreePageId(tableid, i, BTreePageId.HEADER));
+		}
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree
 	 * corresponding to the left-most page possibly containing the key field f.
@@ -210,15 +868,7 @@ public class BTreeFile implements DbFile {
 		} else if (pid.pgcateg() == BTreePageId.INTERNAL) {
 			BTreeInternalPage internalPage = (BTreeInternalPage) this.getPage(tid, dirtypages, pid,
 					Permissions.READ_ONLY);
-			Iterator<BTreeEntry> iterator = internalPage.iterator();
-			BTreeEntry entry = null;
-			while (iterator.hasNext()) {
-				entry = iterator.next();
-				if (f == null || entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-					return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-				}
-			}
-			return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+			return findLeafPage(tid, dirtypages, internalPage.findChild(f), perm, f);
 		} else {
 			throw new TransactionAbortedException();
 		}
@@ -244,7 +894,189 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm, Field f)
 			throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPageOptimistic(tid, new HashMap<PageId, Page>(), pid, perm, f);
+	}
+
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field
+	 * f, starting from the root pointer page. Like the other variants, this
+	 * locks only the leaf page, and reads the root pointer page and internal
+	 * pages without locks. Used by the BTreeFile iterators.
+	 * 
+	 * @see #findLeafPageOptimistic(TransactionId, HashMap, BTreePageId,
+	 *      Permissions, Field)
+	 * 
+	 * @param tid
+	 *            - the transaction id
+	 * @param perm
+	 *            - the permissions with which to lock the leaf page
+	 * @param f
+	 *            - the field to search for, or null for the left-most leaf
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		return findLeafPageOptimistic(tid, new HashMap<PageId, Page>(), null, perm, f);
+	}
+
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field
+	 * f with optimistic lock coupling: the internal pages on the way, and the
+	 * root pointer page if pid is null, are read without locks, and only the
+	 * leaf page is locked. The descent is valid if no page on it was
+	 * write-locked by another transaction when it was read and the structure
+	 * version of the file is unchanged once the leaf is locked, since a
+	 * transaction that changes an internal page write-locks it and bumps the
+	 * version before the change, and holds the lock until it completes.
+	 * Otherwise the descent is retried, and after OPTIMISTIC_ATTEMPTS tries,
+	 * or at once when a page on the way is write-locked, findLeafPage()
+	 * descends again locking the internal pages as it goes.
+	 * 
+	 * @param tid
+	 *            - the transaction id
+	 * @param dirtypages
+	 *            - the list of dirty pages which should be updated with all new
+	 *            dirty pages
+	 * @param pid
+	 *            - the page to start from, or null for the root page
+	 * @param perm
+	 *            - the permissions with which to lock the leaf page
+	 * @param f
+	 *            - the field to search for, or null for the left-most leaf
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePageId pid, Permissions perm, Field f) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			long version = structureVersion.get();
+			BTreePageId start = pid;
+			BTreePageId readRoot = null;
+			ArrayList<BTreeNodeCache.Node> decoded = new ArrayList<BTreeNodeCache.Node>();
+			BTreePageId leafId;
+			try {
+				if (start == null) {
+					start = nodeCache.getRootId(version);
+					if (start == null) {
+						start = readRootUnlocked(tid, dirtypages);
+						if (start == null)
+							break;
+						if (!bp.holdsLock(tid, BTreeRootPtrPage.getId(tableid)))
+							readRoot = start;
+					}
+				}
+				leafId = descendUnlocked(tid, dirtypages, start, f, version, decoded);
+			} catch (RuntimeException e) {
+				// a page changed while we read it
+				continue;
+			}
+			if (leafId == null)
+				break;
+
+			boolean held = bp.holdsLock(tid, leafId);
+			Page leaf;
+			try {
+				leaf = getPage(tid, dirtypages, leafId, perm);
+			} catch (RuntimeException e) {
+				// the leaf may be past the end of a file that a rebuild has
+				// since truncated, which it bumps the version for first
+				if (structureVersion.get() == version)
+					throw e;
+				leaf = null;
+			}
+			if (structureVersion.get() == version && leaf instanceof BTreeLeafPage) {
+				nodeCache.put(version, readRoot, decoded);
+				return (BTreeLeafPage) leaf;
+			}
+
+			// we have not read the leaf, so the lock can go
+			if (!held) {
+				dirtypages.remove(leafId);
+				bp.releasePage(tid, leafId);
+			}
+		}
+
+		if (pid == null) {
+			try {
+				pid = getRootPtrPage(tid, dirtypages).getRootId();
+			} catch (IOException e) {
+				throw new DbException("could not create the root of " + this.f);
+			}
+		}
+		return findLeafPage(tid, dirtypages, pid, perm, f);
+	}
+
+	/**
+	 * Read the root page id from the root pointer page without locking it.
+	 * 
+	 * @return the root page id, or null if the root pointer page is
+	 *         write-locked by another transaction or the tree has no root
+	 */
+	private BTreePageId readRootUnlocked(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if (this.f.length() == 0 || (bp.isWriteLockedByOther(tid, rootPtrId) && !rebuilding))
+			return null;
+		Page rootPtr = dirtypages.containsKey(rootPtrId) ? dirtypages.get(rootPtrId)
+				: bp.getPageUnlocked(rootPtrId);
+		return ((BTreeRootPtrPage) rootPtr).getRootId();
+	}
+
+	/**
+	 * Descend from page pid to the left-most leaf page possibly containing
+	 * the key field f, reading pages without locks. Pages decoded in the node
+	 * cache at the specified structure version are used instead of the pages
+	 * themselves, and the pages on the top levels that are not are decoded
+	 * and added to the decoded list, for the caller to cache once it has
+	 * validated the descent. Pages that this transaction holds locks on are
+	 * neither used from the cache nor decoded, as they may hold its changes.
+	 * 
+	 * @return the id of the leaf page, or null if a page on the way is
+	 *         write-locked by another transaction
+	 */
+	private BTreePageId descendUnlocked(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			Field f, long version, List<BTreeNodeCache.Node> decoded) throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		for (int depth = 0; depth < MAX_DEPTH; depth++) {
+			if (pid.pgcateg() == BTreePageId.LEAF)
+				return pid;
+			if (pid.pgcateg() != BTreePageId.INTERNAL)
+				throw new IllegalStateException("unexpected page " + pid + " on the way to a leaf");
+
+			BTreeNodeCache.Node node = nodeCache.get(pid, version);
+			if (node != null) {
+				pid = node.childFor(f);
+				continue;
+			}
+
+			BTreeInternalPage page;
+			boolean own = dirtypages.containsKey(pid) || bp.holdsLock(tid, pid);
+			if (dirtypages.containsKey(pid)) {
+				page = (BTreeInternalPage) dirtypages.get(pid);
+			} else if (bp.isWriteLockedByOther(tid, pid)) {
+				return null;
+			} else {
+				page = (BTreeInternalPage) bp.getPageUnlocked(pid);
+			}
+
+			if (depth < BTreeNodeCache.CACHED_LEVELS && !own) {
+				node = new BTreeNodeCache.Node(page);
+				decoded.add(node);
+				pid = node.childFor(f);
+				continue;
+			}
+
+			pid = page.findChild(f);
+		}
+		throw new IllegalStateException("no leaf within " + MAX_DEPTH + " levels");
+	}
+
+	/**
+	 * @return the decoded copy of internal page pid in the node cache, or
+	 *         null if it is not cached at the current structure version
+	 */
+	BTreeNodeCache.Node getCachedNode(BTreePageId pid) {
+		return nodeCache.get(pid, structureVersion.get());
 	}
 
 	/**
@@ -306,7 +1138,8 @@ public class BTreeFile implements DbFile {
 
 		// update parent page
 		Tuple toparent = NewRightPage.iterator().next();
-		Field putparentfield = toparent.getField(keyField);
+		Field putparentfield = separator(OldPage.reverseIterator().next().getField(keyField),
+				toparent.getField(keyField));
 		BTreeInternalPage parentpage = this.getParentWithEmptySlots(tid, dirtypages, OldPage.getParentId(),
 				putparentfield);
 		OldPage.setParentId(parentpage.getId());
@@ -322,7 +1155,7 @@ public class BTreeFile implements DbFile {
 		dirtypages.put(OldPage.getId(), OldPage);
 		dirtypages.put(NewRightPage.getId(), NewRightPage);
 
-		if (field.compare(Op.GREATER_THAN_OR_EQ, toparent.getField(keyField))) {
+		if (field.compare(Op.GREATER_THAN_OR_EQ, putparentfield)) {
 			return NewRightPage;
 		} else
 			return OldPage;
@@ -378,7 +1211,7 @@ public class BTreeFile implements DbFile {
 
 		Iterator<BTreeEntry> intpageit = page.reverseIterator();
 
-		int halfposition = page.getNumEntries() / 2;
+		int halfposition = page.getSplitCount();
 		BTreeEntry toparent = null;
 		// Step 2:Split and modify child page
 		for (int i = 0; i < halfposition; i++) {
@@ -427,6 +1260,38 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Split an internal page whose key updates have used up its reserved
+	 * space.  Only pages with variable-length keys can become overfull.
+	 * 
+	 * @see BTreeInternalPage#isOverfull()
+	 */
+	private void splitIfOverfull(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		if (page.isOverfull()) {
+			splitInternalPage(tid, dirtypages, page, page.iterator().next().getKey());
+		}
+	}
+
+	/**
+	 * Returns the key to separate a left page whose largest key is left from
+	 * a right page whose smallest key is right in their parent: the shortest
+	 * prefix s of right with left < s <= right (suffix truncation).  Only
+	 * string keys are shortened; other keys are returned unchanged.
+	 */
+	static Field separator(Field left, Field right) {
+		if (!(right instanceof StringField))
+			return right;
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		for (int len = 1; len < r.length(); len++) {
+			String s = r.substring(0, len);
+			if (s.compareTo(l) > 0)
+				return new StringField(s, Type.STRING_LEN);
+		}
+		return right;
+	}
+
 	/**
 	 * Method to encapsulate the process of getting a parent page ready to
 	 * accept new entries. This may mean creating a page to become the new root
@@ -579,6 +1444,10 @@ public class BTreeFile implements DbFile {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if (perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				if (pid.pgcateg() == BTreePageId.INTERNAL || pid.pgcateg() == BTreePageId.ROOT_PTR) {
+					// optimistic readers that got past this page must retry
+					structureVersion.incrementAndGet();
+				}
 			}
 			return p;
 		}
@@ -616,7 +1485,8 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPageOptimistic(tid, dirtypages, rootId, Permissions.READ_WRITE,
+				t.getField(keyField));
 		if (leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
 		}
@@ -734,6 +1604,7 @@ public class BTreeFile implements DbFile {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			} else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		} else if (rightSiblingId != null) {
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId,
@@ -745,6 +1616,7 @@ public class BTreeFile implements DbFile {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			} else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 	}
@@ -785,9 +1657,11 @@ public class BTreeFile implements DbFile {
 			page.insertTuple(temptuple);
 		}
 		if (isRightSibling) {
-			entry.setKey(copytuple.next().getField(this.keyField));
+			entry.setKey(separator(page.reverseIterator().next().getField(this.keyField),
+					copytuple.next().getField(this.keyField)));
 		} else {
-			entry.setKey(page.iterator().next().getField(this.keyField));
+			entry.setKey(separator(sibling.reverseIterator().next().getField(this.keyField),
+					page.iterator().next().getField(this.keyField)));
 		}
 
 		parent.updateEntry(entry);
@@ -896,7 +1770,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent, BTreeEntry parentEntry)
 			throws DbException, IOException, TransactionAbortedException {
 
-		int midnum = (page.getNumEntries() + leftSibling.getNumEntries()) / 2;
+		int midnum = page.getNumEntries() + page.getStealCount(leftSibling, true);
 		Iterator<BTreeEntry> reverseIterator = leftSibling.reverseIterator();
 		BTreeEntry tempEntry;
 		while (page.getNumEntries() < midnum) {
@@ -921,6 +1795,8 @@ public class BTreeFile implements DbFile {
 		dirtypages.put(page.getId(), page);
 		dirtypages.put(leftSibling.getId(), leftSibling);
 		dirtypages.put(parent.getId(), parent);
+		splitIfOverfull(tid, dirtypages, parent);
+		splitIfOverfull(tid, dirtypages, page);
 		// some code goes here
 		// Move some of the entries from the left sibling to the page so
 		// that the entries are evenly distributed. Be sure to update
@@ -932,7 +1808,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent, BTreeEntry parentEntry)
 			throws DbException, IOException, TransactionAbortedException {
 
-		int midnum = (page.getNumEntries() + rightSibling.getNumEntries()) / 2;
+		int midnum = page.getNumEntries() + page.getStealCount(rightSibling, false);
 		Iterator<BTreeEntry> iterator = rightSibling.iterator();
 		BTreeEntry tempEntry = null;
 		while (page.getNumEntries() < midnum) {
@@ -961,6 +1837,8 @@ public class BTreeFile implements DbFile {
 		dirtypages.put(page.getId(), page);
 		dirtypages.put(rightSibling.getId(), rightSibling);
 		dirtypages.put(parent.getId(), parent);
+		splitIfOverfull(tid, dirtypages, parent);
+		splitIfOverfull(tid, dirtypages, page);
 
 		// some code goes here
 		// Move some of the entries from the right sibling to the page so
@@ -1079,6 +1957,7 @@ public class BTreeFile implements DbFile {
 
 		this.setEmptyPage(tid, dirtypages, rightPage.getId().pageNumber());
 		this.updateParentPointers(tid, dirtypages, leftPage);
+		splitIfOverfull(tid, dirtypages, leftPage);
 		// some code goes here
 		//
 		// Move all the entries from the right page to the left page, update
@@ -1427,6 +2306,26 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get the tuples whose key field equals any of the specified keys, in key
+	 * order, on behalf of the specified transaction.  This is equivalent to an
+	 * EQUALS indexIterator() per key, but the keys are sorted and the tree is
+	 * walked once: each probe continues from the path to the previous one,
+	 * moving to the next leaf along its sibling pointer or descending again
+	 * only from the lowest internal page whose key range covers the probe.
+	 * For large batches of keys the number of pages read approaches the
+	 * number of distinct leaves holding them.
+	 * 
+	 * @param tid
+	 *            - the transaction id
+	 * @param keys
+	 *            - the keys to look up, in any order and possibly repeated
+	 * @return an iterator for the matching tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, Collection<Field> keys) {
+		return new BTreeMultiSearchIterator(this, tid, keys);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This
 	 * method will acquire a read lock on the affected pages of the file, and
@@ -1449,6 +2348,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BTreeReadAhead readAhead = new BTreeReadAhead();
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1470,11 +2370,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
-				BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
+		readAhead.reset();
 	}
 
 	/**
@@ -1493,7 +2391,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			if (nextp == null) {
 				curp = null;
 			} else {
+				readAhead.next(nextp);
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+				readAhead.reached(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1520,6 +2420,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		readAhead.reset();
 	}
 }
 
@@ -1531,6 +2432,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BTreeReadAhead readAhead;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1550,6 +2452,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.readAhead = new BTreeReadAhead(f.keyField(), ipred);
 	}
 
 	/**
@@ -1557,15 +2460,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * applicable for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
-				BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+			// skip the tuples before the key on the first leaf
+			it = curp.iterator(ipred.getField());
 		} else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
+		readAhead.reset();
 	}
 
 	/**
@@ -1602,7 +2505,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			if (nextp == null) {
 				return null;
 			} else {
+				readAhead.next(nextp);
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+				readAhead.reached(curp);
 				it = curp.iterator();
 			}
 		}
@@ -1624,5 +2529,278 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		readAhead.reset();
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for a batch of equality
+ * searches on a B+ Tree File.  It keeps the path of internal pages from the
+ * root to the current leaf, with the child followed at each, so that the
+ * next key can be found from the lowest page on the path covering it.
+ */
+class BTreeMultiSearchIterator extends AbstractDbFileIterator {
+
+	/**
+	 * An internal page on the current path, the slot of the child followed,
+	 * as BTreeInternalPage.findChildSlot() returns it, and the next used
+	 * slot, whose key bounds the child from above, or -1 if the child is the
+	 * right-most one.
+	 */
+	private static class PathLevel {
+		BTreeInternalPage page;
+		int child;
+		int next;
+
+		PathLevel(BTreeInternalPage page) {
+			this.page = page;
+		}
+
+		void follow(int slot) {
+			child = slot;
+			next = page.nextUsedSlot(slot);
+		}
+
+		BTreePageId childId() {
+			return page.getChildId(child);
+		}
+
+		/** @return the largest key in the subtree of the child followed, or null if unbounded here */
+		Field bound() {
+			return next == -1 ? null : page.getSlotKey(next);
+		}
+
+		/** @return the largest key in the subtree of the next child, or null if unbounded here */
+		Field nextBound() {
+			int after = (next == -1 ? -1 : page.nextUsedSlot(next));
+			return after == -1 ? null : page.getSlotKey(after);
+		}
+	}
+
+	TransactionId tid;
+	BTreeFile f;
+	Field[] keys;
+
+	ArrayList<PathLevel> path = new ArrayList<PathLevel>();
+	BTreeLeafPage curp = null;
+	Iterator<Tuple> it = null;
+	Tuple pending = null;
+	int nextKey;
+	int pagesRead;
+
+	/**
+	 * Constructor for this iterator
+	 * 
+	 * @param f
+	 *            - the BTreeFile containing the tuples
+	 * @param tid
+	 *            - the transaction id
+	 * @param keys
+	 *            - the keys to search for
+	 */
+	public BTreeMultiSearchIterator(BTreeFile f, TransactionId tid, Collection<Field> keys) {
+		this.f = f;
+		this.tid = tid;
+
+		ArrayList<Field> sorted = new ArrayList<Field>(keys);
+		Collections.sort(sorted, new Comparator<Field>() {
+			public int compare(Field a, Field b) {
+				if (a.compare(Op.LESS_THAN, b))
+					return -1;
+				return a.compare(Op.GREATER_THAN, b) ? 1 : 0;
+			}
+		});
+		ArrayList<Field> distinct = new ArrayList<Field>();
+		for (Field k : sorted) {
+			if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).equals(k))
+				distinct.add(k);
+		}
+		this.keys = distinct.toArray(new Field[distinct.size()]);
+	}
+
+	/**
+	 * Open this iterator by descending to the leaf page of the smallest key
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		nextKey = 0;
+		pagesRead = 0;
+		path.clear();
+		curp = null;
+		it = null;
+		pending = null;
+		if (keys.length == 0)
+			return;
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(BTreeRootPtrPage.getId(f.getId()));
+		BTreePageId root = rootPtr.getRootId();
+		if (root == null)
+			return;
+		descend(root, keys[0]);
+	}
+
+	/**
+	 * @return the number of pages this iterator has read since it was opened
+	 */
+	int getPagesRead() {
+		return pagesRead;
+	}
+
+	private Page getPage(PageId pid) throws DbException, TransactionAbortedException {
+		pagesRead++;
+		return Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Returns the largest key that can be in the subtree of the child followed
+	 * at the specified level of the path, or null if it is unbounded.
+	 */
+	private Field upperBound(int level) {
+		for (int i = level; i >= 0; i--) {
+			Field bound = path.get(i).bound();
+			if (bound != null)
+				return bound;
+		}
+		return null;
+	}
+
+	/**
+	 * Follow the child of the specified path level that key k routes to, as
+	 * findLeafPage() does, or the left-most child if k is null
+	 */
+	private void route(PathLevel l, Field k) {
+		l.follow(l.page.findChildSlot(k));
+	}
+
+	/**
+	 * Descend from page pid, which is the child followed at the end of the
+	 * path, to the left-most leaf page possibly containing key k
+	 */
+	private void descend(BTreePageId pid, Field k) throws DbException, TransactionAbortedException {
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			PathLevel l = new PathLevel((BTreeInternalPage) getPage(pid));
+			route(l, k);
+			path.add(l);
+			pid = l.childId();
+		}
+		curp = (BTreeLeafPage) getPage(pid);
+		it = curp.iterator();
+		pending = null;
+	}
+
+	/**
+	 * Move to the left-most leaf page possibly containing key k, which is
+	 * larger than the keys of the current leaf page, descending from the
+	 * lowest page on the path whose key range covers k
+	 */
+	private void seek(Field k) throws DbException, TransactionAbortedException {
+		int level = path.size() - 1;
+		while (level > 0) {
+			Field bound = upperBound(level - 1);
+			if (bound == null || k.compare(Op.LESS_THAN_OR_EQ, bound))
+				break;
+			level--;
+		}
+		while (path.size() > level + 1)
+			path.remove(path.size() - 1);
+		PathLevel l = path.get(level);
+		route(l, k);
+		descend(l.childId(), k);
+	}
+
+	/**
+	 * Move to the right sibling of the current leaf page, keeping the path to
+	 * it, or set curp to null if there is none
+	 */
+	private void nextLeaf() throws DbException, TransactionAbortedException {
+		BTreePageId nextp = curp.getRightSiblingId();
+		if (nextp == null) {
+			curp = null;
+			it = null;
+			return;
+		}
+
+		// find the lowest level of the path with a child to the right of the
+		// one followed; below it the path continues down the left-most
+		// children
+		int level = path.size() - 1;
+		while (level >= 0 && path.get(level).next == -1)
+			level--;
+		if (level == path.size() - 1) {
+			// a sibling under the same parent: follow the sibling pointer
+			path.get(level).follow(path.get(level).next);
+			curp = (BTreeLeafPage) getPage(nextp);
+			it = curp.iterator();
+		} else {
+			while (path.size() > level + 1)
+				path.remove(path.size() - 1);
+			PathLevel l = path.get(level);
+			l.follow(l.next);
+			descend(l.childId(), null);
+		}
+	}
+
+	/**
+	 * Read the next tuple matching one of the keys, moving sideways to the
+	 * next leaf page when the current one may continue into it, and seeking
+	 * from the path otherwise.
+	 * 
+	 * @return the next matching tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (curp != null && nextKey < keys.length) {
+			Field k = keys[nextKey];
+			Tuple t = pending;
+			pending = null;
+			if (t == null && it.hasNext())
+				t = it.next();
+			if (t == null) {
+				// the leaf page is used up; the tuples equal to k continue
+				// in the next leaf page if k routes to this one, or to the
+				// next under the same parent
+				Field bound = path.isEmpty() ? null : upperBound(path.size() - 1);
+				Field nextBound = path.isEmpty() ? null : path.get(path.size() - 1).nextBound();
+				if (bound == null || k.compare(Op.LESS_THAN_OR_EQ, bound)
+						|| (nextBound != null && k.compare(Op.LESS_THAN_OR_EQ, nextBound)))
+					nextLeaf();
+				else
+					seek(k);
+				continue;
+			}
+
+			Field key = t.getField(f.keyField());
+			if (key.compare(Op.EQUALS, k))
+				return t;
+			if (key.compare(Op.GREATER_THAN, k)) {
+				// no more tuples equal k; the next key may start here
+				pending = t;
+				nextKey++;
+				if (nextKey < keys.length && !path.isEmpty()) {
+					Field bound = upperBound(path.size() - 1);
+					if (bound != null && keys[nextKey].compare(Op.GREATER_THAN, bound))
+						seek(keys[nextKey]);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the first key
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		path.clear();
+		curp = null;
+		it = null;
+		pending = null;
 	}
 }
@@ -624,6 +624,19 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		if (keyType == Type.STRING_TYPE) {
+			// string keys are stored in the compact format
+			Collections.sort(entries, new EntryComparator());
+			ArrayList<Integer> childPtrs = new ArrayList<Integer>();
+			ArrayList<Field> keys = new ArrayList<Field>();
+			childPtrs.add(entries.get(0).getLeftChild().pageNumber());
+			for (BTreeEntry e : entries) {
+				childPtrs.add(e.getRightChild().pageNumber());
+				keys.add(e.getKey());
+			}
+			return BTreeInternalPage.compactPageData(0, childPageCategory, true, childPtrs, keys);
+		}
+
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
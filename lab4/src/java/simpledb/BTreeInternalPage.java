@@ -8,6 +8,26 @@ import simpledb.Predicate.Op;
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Pages of a tree keyed on a string field are stored in a compact,
+ * variable-length format instead of fixed-width slots: the parent pointer,
+ * the child page category, a flag telling whether the first child pointer
+ * is in use, and the number of keys, followed by the child pointers in use
+ * and the keys.  The child page category byte of a compact page has the
+ * COMPACT_FORMAT bit set, so that a string-keyed page written in the
+ * fixed-width format by an older version is recognized and rejected rather
+ * than misread.  Each key is front coded against the key before it, as the
+ * number of leading bytes it shares with that key, the number of remaining
+ * bytes, and those bytes.  Since the separators pushed up by BTreeFile are
+ * suffix truncated, short keys let a page hold many more entries than the
+ * STRING_LEN + 4 bytes of a fixed-width key allow.
+ * <p>
+ * The fullness of a compact page is reported in units of the largest
+ * possible entry: getMaxEntries() and getNumEmptySlots() count how many
+ * worst-case entries fit, so the splitting and merging rules of BTreeFile
+ * apply unchanged.  A reserve of free space absorbs key updates that make
+ * entries longer; BTreeFile splits a page whose updates use up the reserve
+ * (see {@link #isOverfull}).
  *
  * @see BTreeFile
  * @see BufferPool
@@ -18,9 +38,22 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	private final boolean compact; // variable-length string keys
 	
 	private int childCategory; // either leaf or internal
 
+	/** Set in the child page category byte of a compact page */
+	static final int COMPACT_FORMAT = 0x80;
+
+	/** Bytes of a compact page before its child pointers */
+	private static final int COMPACT_HEADER_SIZE = INDEX_SIZE + 1 + 1 + 2;
+
+	/** Largest number of bytes one entry can take on a compact page */
+	static final int MAX_COMPACT_ENTRY_SIZE = INDEX_SIZE + 2 + Type.STRING_LEN;
+
+	/** Bytes kept free on a compact page for key updates between splits */
+	private static final int COMPACT_RESERVE = 2 * MAX_COMPACT_ENTRY_SIZE;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -37,7 +70,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (getMaxEntries() - getNumEmptySlots() >= getMaxEntries() / 2);
 		}
 	}
 	
@@ -67,9 +100,26 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.compact = td.getFieldType(key) == Type.STRING_TYPE;
+		this.numSlots = compact ? (BufferPool.getPageSize() - COMPACT_HEADER_SIZE) / (INDEX_SIZE + 2)
+				: getMaxEntries() + 1;
+		header = new byte[getHeaderSize()];
+		keys = new Field[numSlots];
+		children = new int[numSlots];
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		if (compact) {
+			if ((data[INDEX_SIZE] & COMPACT_FORMAT) == 0 && !isEmpty(data)) {
+				throw new IOException("internal page " + id.pageNumber() + " of table " + id.getTableId()
+						+ " has string keys in the fixed-width format of an older version;"
+						+ " rebuild the index from its table");
+			}
+			readCompact(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		// Read the parent pointer
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
@@ -81,14 +131,12 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = (int) dis.readByte();
 
-		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
+		// read the header slots of this page
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
-		keys = new Field[numSlots];
 		try{
-			// allocate and read the keys of this page
+			// read the keys of this page
 			// start from 1 because the first key slot is not used
 			// since a node with m keys has m+1 pointers
 			keys[0] = null;
@@ -98,9 +146,8 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
-			// allocate and read the child pointers of this page
+			// read the child pointers of this page
 			for (int i=0; i<children.length; i++)
 				children[i] = readNextChild(dis,i);
 		}catch(NoSuchElementException e){
@@ -113,8 +160,14 @@ public class BTreeInternalPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * For a compact page, this is the number of entries of the largest
+	 * possible size that fit.
  	 */
 	public int getMaxEntries() {        
+		if (compact) {
+			return (BufferPool.getPageSize() - COMPACT_HEADER_SIZE - INDEX_SIZE - COMPACT_RESERVE)
+					/ MAX_COMPACT_ENTRY_SIZE;
+		}
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -129,9 +182,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
-		int hb = (slotsPerPage / 8);
-		if (hb * 8 < slotsPerPage) hb++;
+		int hb = (numSlots / 8);
+		if (hb * 8 < numSlots) hb++;
 
 		return hb;
 	}
@@ -161,6 +213,220 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/** Return true if the page data is all zeros, as a new page's is */
+	private static boolean isEmpty(byte[] data) {
+		for (byte b : data) {
+			if (b != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the entries of a compact page.
+	 */
+	private void readCompact(DataInputStream dis) throws IOException {
+		parent = dis.readInt();
+		childCategory = dis.readUnsignedByte() & ~COMPACT_FORMAT;
+		boolean firstChild = dis.readByte() != 0;
+		int n = dis.readShort();
+
+		for (int i = (firstChild ? 0 : 1); i <= n; i++) {
+			children[i] = dis.readInt();
+			markSlotUsed(i, true);
+		}
+
+		byte[] prev = new byte[0];
+		for (int i=1; i<=n; i++) {
+			int shared = dis.readUnsignedByte();
+			byte[] b = new byte[shared + dis.readUnsignedByte()];
+			System.arraycopy(prev, 0, b, 0, shared);
+			dis.readFully(b, shared, b.length - shared);
+			keys[i] = new StringField(new String(b), Type.STRING_LEN);
+			prev = b;
+		}
+	}
+
+	/**
+	 * Generates the bytes of a compact page with the specified contents.
+	 * 
+	 * @param parent - the page number of the parent
+	 * @param childCategory - the category of the child pages
+	 * @param firstChild - whether childPtrs starts with the left child of the
+	 *        first entry
+	 * @param childPtrs - the page numbers of the children, in order
+	 * @param keys - the keys of the entries, in order
+	 * @throws IllegalStateException if the entries do not fit on a page
+	 */
+	static byte[] compactPageData(int parent, int childCategory, boolean firstChild,
+			List<Integer> childPtrs, List<Field> keys) throws IOException {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		dos.writeInt(parent);
+		dos.writeByte((byte) (childCategory | COMPACT_FORMAT));
+		dos.writeByte(firstChild ? 1 : 0);
+		dos.writeShort(keys.size());
+		for (int child : childPtrs)
+			dos.writeInt(child);
+
+		byte[] prev = new byte[0];
+		for (Field key : keys) {
+			byte[] b = keyBytes(key);
+			int shared = sharedPrefix(prev, b);
+			dos.writeByte(shared);
+			dos.writeByte(b.length - shared);
+			dos.write(b, shared, b.length - shared);
+			prev = b;
+		}
+
+		if (dos.size() > len)
+			throw new IllegalStateException("compact internal page overflow: " + dos.size() + " bytes");
+		dos.write(new byte[len - dos.size()]);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * The bytes of a string key as StringField.serialize() writes them
+	 */
+	private static byte[] keyBytes(Field key) {
+		String s = ((StringField) key).getValue();
+		if (s.length() > Type.STRING_LEN)
+			s = s.substring(0, Type.STRING_LEN);
+		byte[] b = new byte[s.length()];
+		for (int i=0; i<b.length; i++)
+			b[i] = (byte) s.charAt(i);
+		return b;
+	}
+
+	private static int sharedPrefix(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < n && a[i] == b[i])
+			i++;
+		return i;
+	}
+
+	/**
+	 * Returns the number of bytes each slot of this compact page takes when
+	 * serialized: its child pointer, plus its front coded key for slots
+	 * other than 0.  Empty slots take no bytes.
+	 */
+	private int[] getSlotBytes() {
+		int[] sizes = new int[numSlots];
+		byte[] prev = new byte[0];
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			sizes[i] = INDEX_SIZE;
+			if (i > 0) {
+				byte[] b = keyBytes(keys[i]);
+				sizes[i] += 2 + b.length - sharedPrefix(prev, b);
+				prev = b;
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * Returns the number of bytes this compact page takes when serialized.
+	 */
+	private int getUsedBytes() {
+		int used = COMPACT_HEADER_SIZE;
+		for (int size : getSlotBytes())
+			used += size;
+		return used;
+	}
+
+	/**
+	 * Returns true if key updates have used up the space this page keeps in
+	 * reserve, so that it must be split before it is updated again.  Pages
+	 * with fixed-width keys are never overfull.
+	 */
+	public boolean isOverfull() {
+		return compact && getUsedBytes() > BufferPool.getPageSize() - COMPACT_RESERVE;
+	}
+
+	/**
+	 * Returns the number of entries to move from the end of this page to a
+	 * new right sibling when splitting it: half of the entries, or for a
+	 * compact page enough entries to hold about half of its bytes.
+	 */
+	public int getSplitCount() {
+		int n = getNumEntries();
+		if (!compact || n < 3)
+			return n / 2;
+
+		int[] sizes = getSlotBytes();
+		int total = getUsedBytes() - COMPACT_HEADER_SIZE;
+		int moved = 0, count = 0;
+		for (int i=numSlots-1; i>0 && 2 * moved < total; i--) {
+			if (isSlotUsed(i)) {
+				moved += sizes[i];
+				count++;
+			}
+		}
+		return Math.max(1, Math.min(count, n - 2));
+	}
+
+	/**
+	 * Returns the number of entries to move from a sibling into this page
+	 * to even them out: half the difference in entries, or for compact
+	 * pages the number that evens out their bytes.
+	 * 
+	 * @param sibling - the sibling to move entries from
+	 * @param fromLeft - true if the sibling is the left sibling, whose last
+	 *        entries move, false if its first entries move
+	 */
+	public int getStealCount(BTreeInternalPage sibling, boolean fromLeft) {
+		int n = getNumEntries();
+		int sn = sibling.getNumEntries();
+		if (!compact)
+			return (n + sn) / 2 - n;
+
+		int mine = getUsedBytes();
+		int theirs = sibling.getUsedBytes();
+		int[] sizes = sibling.getSlotBytes();
+		int count = 0;
+		int i = fromLeft ? sibling.numSlots - 1 : 1;
+		while (mine < theirs && count < sn - 1) {
+			if (sibling.isSlotUsed(i)) {
+				mine += sizes[i];
+				theirs -= sizes[i];
+				count++;
+			}
+			i += fromLeft ? -1 : 1;
+		}
+		return count;
+	}
+
+	/**
+	 * The number of bytes a compact page has for its entries, outside the
+	 * reserve and the bytes before its child pointers
+	 */
+	static int compactCapacity() {
+		return BufferPool.getPageSize() - COMPACT_HEADER_SIZE - COMPACT_RESERVE;
+	}
+
+	/**
+	 * An upper bound on the number of bytes an entry with the specified key
+	 * takes on a compact page
+	 */
+	static int entrySize(Field key) {
+		return INDEX_SIZE + 2 + keyBytes(key).length;
+	}
+
+	/**
+	 * The number of bytes an entry with the specified key takes on a
+	 * compact page after an entry with key prev, or first if prev is null
+	 */
+	static int entrySize(Field prev, Field key) {
+		byte[] b = keyBytes(key);
+		return INDEX_SIZE + 2 + b.length - (prev == null ? 0 : sharedPrefix(keyBytes(prev), b));
+	}
+
 	/**
 	 * Read keys from the source file.
 	 */
@@ -232,6 +498,24 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		if (compact) {
+			ArrayList<Integer> childPtrs = new ArrayList<Integer>();
+			ArrayList<Field> pageKeys = new ArrayList<Field>();
+			for (int i=0; i<numSlots; i++) {
+				if (isSlotUsed(i)) {
+					childPtrs.add(children[i]);
+					if (i > 0)
+						pageKeys.add(keys[i]);
+				}
+			}
+			try {
+				return compactPageData(parent, childCategory, isSlotUsed(0), childPtrs, pageKeys);
+			} catch (IOException e) {
+				// this really shouldn't happen
+				throw new RuntimeException(e);
+			}
+		}
+
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -429,8 +713,13 @@ public class BTreeInternalPage extends BTreePage {
 				break;
 			}	
 		}
+		Field oldKey = keys[rid.tupleno()];
 		children[rid.tupleno()] = e.getRightChild().pageNumber(); 
 		keys[rid.tupleno()] = e.getKey();
+		if (compact && getUsedBytes() > BufferPool.getPageSize()) {
+			keys[rid.tupleno()] = oldKey;
+			throw new DbException("updated key does not fit on page " + pid.pageNumber());
+		}
 	}
 
 	/**
@@ -456,8 +745,11 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if (compact && getUsedBytes() + entrySize(e.getKey()) > BufferPool.getPageSize())
+			throw new DbException("called insertEntry on page with no room for the entry.");
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().pageNumber();
 			children[1] = e.getRightChild().pageNumber();
 			keys[1] = e.getKey();
@@ -562,21 +854,39 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
-	}
-	
-	/**
-	 * Returns the number of empty slots on this page.
-	 */
-	public int getNumEmptySlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
 		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
+			if(isSlotUsed(i))
 				cnt++;
 		return cnt;
 	}
+	
+	/**
+	 * Returns the number of empty slots on this page.  For a compact page,
+	 * this is the number of entries of the largest possible size that fit in
+	 * its free space outside the reserve; only an empty page has
+	 * getMaxEntries() empty slots.
+	 */
+	public int getNumEmptySlots() {
+		int n = getNumEntries();
+		if (!compact)
+			return numSlots - 1 - n;
+		if (n == 0)
+			return getMaxEntries();
+
+		int free = BufferPool.getPageSize() - COMPACT_RESERVE - getUsedBytes();
+		int empty = Math.max(0, free) / MAX_COMPACT_ENTRY_SIZE;
+		return Math.min(empty, Math.min(getMaxEntries() - 1, numSlots - 1 - n));
+	}
+
+	/**
+	 * Returns the number of slots on this page, including the unused key slot 0
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
@@ -601,6 +911,49 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Find the child to descend to for the left-most leaf possibly containing
+	 * the key f: the left child of the first entry whose key is greater than
+	 * or equal to f, or the right child of the last entry if there is none.
+	 * The entries are searched by binary search.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page, or null if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		return getChildId(findChildSlot(f));
+	}
+
+	/**
+	 * Find the slot of the child that findChild() descends to: the slot of
+	 * the last entry whose key is less than f, whose right child it is, or 0
+	 * for the left child of the first entry.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the slot of the child, for getChildId()
+	 */
+	int findChildSlot(Field f) {
+		int slot = f == null ? -1 : findLastSlotBefore(1, numSlots, f, false);
+		return slot == -1 ? 0 : slot;
+	}
+
+	/**
+	 * @return the first used slot after slot i, whose key bounds the child
+	 *         in slot i from above, or -1 if there is none
+	 */
+	int nextUsedSlot(int i) {
+		for (int j = i + 1; j < numSlots; j++) {
+			if (isSlotUsed(j))
+				return j;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the key in slot i, which must be used.
+	 */
+	protected Field getSlotKey(int i) {
+		return keys[i];
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -743,7 +1096,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -310,12 +310,16 @@ public class BTreeLeafPage extends BTreePage {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
-		// find the first empty slot 
+		// find the first empty slot, skipping full header bytes
 		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
+		for (int b=0; b<header.length && emptySlot == -1; b++) {
+			if (header[b] == (byte) 0xFF)
+				continue;
+			for (int i=b*8; i<Math.min(numSlots, b*8 + 8); i++) {
+				if (!isSlotUsed(i)) {
+					emptySlot = i;
+					break;
+				}
 			}
 		}
 
@@ -323,16 +327,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int lessOrEqKey = findLastSlotBefore(0, numSlots, t.getField(keyField), true);
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -483,6 +478,24 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page whose key is greater
+	 * than or equal to key, in order, found by binary search (calling remove
+	 * on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field key) {
+		BTreeLeafPageIterator it = new BTreeLeafPageIterator(this);
+		it.curTuple = findLastSlotBefore(0, numSlots, key, false) + 1;
+		return it;
+	}
+
+	/**
+	 * Returns the key of the tuple in slot i, which must be used.
+	 */
+	protected Field getSlotKey(int i) {
+		return tuples[i].getField(keyField);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * BTreeNodeCache keeps decoded copies of the internal pages near the root of
+ * a B+ tree, so that descents through them need neither the buffer pool nor
+ * the lock manager, and search the keys of each page by binary search rather
+ * than walking BTreeEntry objects. Int keys are kept in an int array and
+ * compared as primitives.
+ * <p>
+ * The cache belongs to one BTreeFile and is tied to its structure version:
+ * nodes are only returned for the version they were decoded at, so any
+ * split, merge or steal that changes an internal page or the root pointer
+ * invalidates all of them at once. They are also tied to the buffer pool
+ * they were read through, and dropped with it when it is reset. Nodes must
+ * only be added after a descent that read them has been validated against
+ * that version, and never for pages that the reading transaction itself
+ * holds locks on, since those may hold changes that are rolled back if it
+ * aborts. Cached nodes are not subject to buffer pool eviction.
+ *
+ * @see BTreeFile#findLeafPage(TransactionId, Permissions, Field)
+ */
+class BTreeNodeCache {
+
+	/** The number of levels below the root, root included, that are cached */
+	static final int CACHED_LEVELS = 3;
+
+	/** The largest number of internal pages kept decoded */
+	static final int MAX_NODES = 1024;
+
+	/**
+	 * A decoded internal page: its keys in order, and the page numbers of its
+	 * children, one more than the keys.
+	 */
+	static class Node {
+		private final BTreePageId pid;
+		private final int[] intKeys;
+		private final Field[] keys;
+		private final int[] children;
+		private final int tableid;
+		private final int childCategory;
+
+		/**
+		 * Decode the specified internal page, which must hold at least one
+		 * entry
+		 */
+		Node(BTreeInternalPage page) {
+			pid = page.getId();
+			tableid = pid.getTableId();
+			int n = page.getNumEntries();
+			Field[] fields = new Field[n];
+			children = new int[n + 1];
+			Iterator<BTreeEntry> it = page.iterator();
+			int i = 0;
+			BTreeEntry e = null;
+			while (it.hasNext() && i < n) {
+				e = it.next();
+				fields[i] = e.getKey();
+				children[i] = e.getLeftChild().pageNumber();
+				i++;
+			}
+			if (e == null || i != n)
+				throw new IllegalStateException("internal page " + pid + " changed while decoded");
+			children[n] = e.getRightChild().pageNumber();
+			childCategory = e.getLeftChild().pgcateg();
+
+			if (fields[0].getType() == Type.INT_TYPE) {
+				intKeys = new int[n];
+				for (i = 0; i < n; i++)
+					intKeys[i] = ((IntField) fields[i]).getValue();
+				keys = null;
+			} else {
+				intKeys = null;
+				keys = fields;
+			}
+		}
+
+		BTreePageId getId() {
+			return pid;
+		}
+
+		/**
+		 * @return the child to descend to for the left-most leaf possibly
+		 *         containing the key f: the left child of the first entry
+		 *         whose key is at least f, or the right child of the last
+		 *         entry if there is none
+		 */
+		BTreePageId childFor(Field f) {
+			int lo = 0;
+			int hi = children.length - 1;
+			if (f == null) {
+				hi = 0;
+			} else if (intKeys != null) {
+				int k = ((IntField) f).getValue();
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (intKeys[mid] < k)
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+			} else {
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (keys[mid].compare(Predicate.Op.LESS_THAN, f))
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+			}
+			return new BTreePageId(tableid, children[lo], childCategory);
+		}
+	}
+
+	/** The nodes decoded at one structure version through one buffer pool */
+	private static class Snapshot {
+		final long version;
+		final BufferPool pool;
+		final ConcurrentHashMap<BTreePageId, Node> nodes = new ConcurrentHashMap<BTreePageId, Node>();
+		volatile BTreePageId rootId;
+
+		Snapshot(long version, BufferPool pool) {
+			this.version = version;
+			this.pool = pool;
+		}
+
+		boolean isCurrent(long version) {
+			return this.version == version && pool == Database.getBufferPool();
+		}
+	}
+
+	private volatile Snapshot current = new Snapshot(-1, null);
+
+	/**
+	 * @return the cached root page id at the specified structure version, or
+	 *         null if it is not cached
+	 */
+	BTreePageId getRootId(long version) {
+		Snapshot s = current;
+		return s.isCurrent(version) ? s.rootId : null;
+	}
+
+	/**
+	 * @return the decoded page pid at the specified structure version, or
+	 *         null if it is not cached
+	 */
+	Node get(BTreePageId pid, long version) {
+		Snapshot s = current;
+		return s.isCurrent(version) ? s.nodes.get(pid) : null;
+	}
+
+	/**
+	 * Add the root page id and the nodes read by a descent that was
+	 * validated at the specified structure version. Anything cached at an
+	 * older version or through an older buffer pool is dropped.
+	 *
+	 * @param rootId - the root page id read, or null if the descent did not
+	 *            read the root pointer
+	 * @param nodes - the decoded pages
+	 */
+	void put(long version, BTreePageId rootId, List<Node> nodes) {
+		Snapshot s = current;
+		if (!s.isCurrent(version)) {
+			synchronized (this) {
+				s = current;
+				if (s.version > version)
+					return;
+				if (!s.isCurrent(version)) {
+					s = new Snapshot(version, Database.getBufferPool());
+					current = s;
+				}
+			}
+		}
+		if (rootId != null)
+			s.rootId = rootId;
+		for (Node n : nodes) {
+			if (s.nodes.size() >= MAX_NODES)
+				break;
+			s.nodes.put(n.getId(), n);
+		}
+	}
+}
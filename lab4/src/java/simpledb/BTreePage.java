@@ -141,5 +141,51 @@ public abstract class BTreePage implements Page {
 	 */
 	public abstract boolean isSlotUsed(int i);
 
+	/**
+	 * Returns the key stored in slot i, which must be used.
+	 */
+	protected abstract Field getSlotKey(int i);
+
+	/**
+	 * Find the last used slot in [from, to) whose key is less than key, or
+	 * less than or equal to it if orEqual is set, by binary search over the
+	 * slots. The keys of the used slots must be in order; empty slots in
+	 * between are skipped. Int keys are compared as primitives.
+	 *
+	 * @return the slot found, or -1 if there is none
+	 */
+	protected int findLastSlotBefore(int from, int to, Field key, boolean orEqual) {
+		boolean ints = key instanceof IntField;
+		int k = ints ? ((IntField) key).getValue() : 0;
+		int found = -1;
+		int lo = from;
+		int hi = to - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			// the first used slot at or after mid
+			int m = mid;
+			while (m <= hi && !isSlotUsed(m))
+				m++;
+			if (m > hi) {
+				hi = mid - 1;
+				continue;
+			}
+			boolean before;
+			if (ints) {
+				int c = ((IntField) getSlotKey(m)).getValue();
+				before = orEqual ? c <= k : c < k;
+			} else {
+				before = getSlotKey(m).compare(orEqual ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN, key);
+			}
+			if (before) {
+				found = m;
+				lo = m + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
 }
 
@@ -0,0 +1,167 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeReadAhead loads the leaf pages ahead of a scan along the leaf level of
+ * a B+ tree into the buffer pool in the background, so that the scan finds
+ * them there when it follows the right sibling pointers.
+ * <p>
+ * Read-ahead starts once a scan moves to its second leaf, so point lookups
+ * never trigger it. It then keeps a window of leaves requested beyond the
+ * current one, and requests another window when the scan is halfway
+ * through the last. The window starts small and doubles each time the scan
+ * reaches a leaf that read-ahead has not loaded yet, up to a quarter of the
+ * buffer pool, so it grows until loading keeps up with the scan. A scan
+ * with an upper bound on the key stops reading ahead at the first leaf
+ * holding a key past the bound, which is the last leaf the scan reads.
+ * <p>
+ * All scans share one background thread. It follows the sibling pointers of
+ * the pages it loads, so it needs no locks; the scan still locks each page
+ * when it reads it.
+ *
+ * @see BufferPool#prefetchPage(PageId)
+ */
+class BTreeReadAhead {
+
+	/** The number of leaves requested when a scan reaches its second leaf */
+	static final int INITIAL_PAGES = 4;
+
+	/** The largest number of leaves requested at once */
+	static final int MAX_PAGES = 64;
+
+	private static final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "BTree read-ahead");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final int keyField;
+	private final Op boundOp;
+	private final Field bound;
+
+	private int window = 0;
+	private int ahead = 0;
+
+	/** Changed by reset(), to cancel the requests made before */
+	private volatile int generation = 0;
+
+	/**
+	 * Read ahead for a scan of all the leaves
+	 */
+	BTreeReadAhead() {
+		this(0, null);
+	}
+
+	/**
+	 * Read ahead for a scan of the tuples matching the specified predicate
+	 *
+	 * @param keyField - the key field of the tree
+	 * @param ipred - the predicate, or null to read up to the last leaf
+	 */
+	BTreeReadAhead(int keyField, IndexPredicate ipred) {
+		this.keyField = keyField;
+		if (ipred != null && ipred.getOp() == Op.LESS_THAN) {
+			boundOp = Op.LESS_THAN;
+			bound = ipred.getField();
+		} else if (ipred != null && (ipred.getOp() == Op.LESS_THAN_OR_EQ || ipred.getOp() == Op.EQUALS)) {
+			boundOp = Op.LESS_THAN_OR_EQ;
+			bound = ipred.getField();
+		} else {
+			boundOp = null;
+			bound = null;
+		}
+	}
+
+	/**
+	 * @return the number of leaves requested at a time, 0 before the scan
+	 *         reached its second leaf
+	 */
+	int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Start over, as for a new scan, and drop the requests not yet carried
+	 * out
+	 */
+	void reset() {
+		window = 0;
+		ahead = 0;
+		generation++;
+	}
+
+	/**
+	 * Note that the scan is about to follow the right sibling pointer to the
+	 * specified page. Call this before reading the page.
+	 */
+	void next(BTreePageId pid) {
+		BufferPool bp = Database.getBufferPool();
+		int max = Math.max(1, Math.min(MAX_PAGES, bp.getNumPages() / 4));
+		if (window == 0)
+			window = INITIAL_PAGES;
+		else if (!bp.isCached(pid))
+			window *= 2;
+		window = Math.min(window, max);
+		if (ahead > 0)
+			ahead--;
+	}
+
+	/**
+	 * Note that the scan has read the specified leaf page, reached through
+	 * a right sibling pointer, and request the leaves after it if the last
+	 * request is half used up.
+	 */
+	void reached(BTreeLeafPage page) {
+		if (window == 0 || ahead > window / 2 || pastBound(page))
+			return;
+		final BTreePageId first = page.getRightSiblingId();
+		if (first == null)
+			return;
+		final int count = window;
+		final int gen = generation;
+		final BufferPool bp = Database.getBufferPool();
+		ahead = count;
+		loader.execute(new Runnable() {
+			public void run() {
+				load(bp, first, count, gen);
+			}
+		});
+	}
+
+	/**
+	 * Return true if the page holds a key past the upper bound of the scan,
+	 * so that the scan ends on it
+	 */
+	private boolean pastBound(BTreeLeafPage page) {
+		if (bound == null)
+			return false;
+		Iterator<Tuple> it = page.reverseIterator();
+		return it.hasNext() && !it.next().getField(keyField).compare(boundOp, bound);
+	}
+
+	/**
+	 * Load up to count leaf pages starting at pid, following their right
+	 * sibling pointers. Stops early when the buffer pool has no room, at the
+	 * upper bound of the scan, or when the scan is reset.
+	 */
+	private void load(BufferPool bp, BTreePageId pid, int count, int gen) {
+		try {
+			for (int i = 0; i < count && pid != null && gen == generation; i++) {
+				Page p = bp.prefetchPage(pid);
+				if (!(p instanceof BTreeLeafPage) || pastBound((BTreeLeafPage) p))
+					return;
+				pid = ((BTreeLeafPage) p).getRightSiblingId();
+			}
+		} catch (RuntimeException e) {
+			// read-ahead is only a hint; the scan will read the page itself
+		}
+	}
+}
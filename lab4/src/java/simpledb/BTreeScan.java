@@ -17,6 +17,8 @@ public class BTreeScan implements DbIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int tableid;
+	private int sortField;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -60,6 +62,36 @@ public class BTreeScan implements DbIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the index predicate this scan matches, or null if it returns
+	 *         all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * @return the id of the table this operator scans
+	 */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * @return the transaction this scan reads on behalf of
+	 */
+	public TransactionId getTransactionId() {
+		return this.tid;
+	}
+
+	/**
+	 * @return the field the tuples are returned in ascending order of: the
+	 *         key field of the B+ tree, or -1 if the table is not one
+	 */
+	public int getSortField() {
+		return this.sortField;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -75,7 +107,10 @@ public class BTreeScan implements DbIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
+		DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+		this.sortField = (f instanceof BTreeFile ? ((BTreeFile) f).keyField() : -1);
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
@@ -0,0 +1,23 @@
+package simpledb;
+
+/**
+ * BatchIterator is implemented by operators that can also produce their
+ * output a batch of rows at a time, as an alternative to hasNext() and
+ * next(), which saves a call through every operator of a plan for each row
+ * and lets filters and aggregates loop over columns of values.
+ * <p>
+ * After open(), or rewind(), a caller reads an operator either through
+ * nextBatch() or through next(), not both. {@link RowsToBatch} lets an
+ * operator read a child that only produces rows through nextBatch(), and
+ * {@link BatchToRows} lets a row operator read a BatchIterator's batches.
+ */
+public interface BatchIterator extends DbIterator {
+  /**
+   * Returns the next batch of rows of the iterator, which has at least one
+   * row selected and may be reused by the next call.
+   *
+   * @return the next batch, or null if there are no more rows.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchToRows returns the selected rows of the batches of a BatchIterator
+ * as tuples, so that a row operator above it has its children produce
+ * batches.
+ */
+public class BatchToRows extends Operator {
+	private static final long serialVersionUID = 1L;
+
+	private DbIterator child;
+	private transient BatchIterator batches;
+	private transient TupleBatch batch;
+	private transient int pos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param child
+	 *            the iterator whose batches to read; if it is not a
+	 *            BatchIterator, its tuples are returned as they are
+	 */
+	public BatchToRows(DbIterator child) {
+		this.child = child;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return child.getTupleDesc();
+	}
+
+	public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+		child.open();
+		batches = RowsToBatch.of(child);
+		batch = null;
+		super.open();
+	}
+
+	public void close() {
+		super.close();
+		child.close();
+		batch = null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		child.rewind();
+		batch = null;
+	}
+
+	protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+		if (!(child instanceof BatchIterator))
+			return child.hasNext() ? child.next() : null;
+		if (batch == null || pos == batch.numSelected()) {
+			batch = batches.nextBatch();
+			pos = 0;
+			if (batch == null)
+				return null;
+		}
+		return batch.getTuple(batch.selected(pos++));
+	}
+
+	@Override
+	public DbIterator[] getChildren() {
+		return new DbIterator[] { this.child };
+	}
+
+	@Override
+	public void setChildren(DbIterator[] children) {
+		this.child = children[0];
+	}
+}
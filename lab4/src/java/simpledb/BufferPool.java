@@ -2,16 +2,21 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from disk.
@@ -21,6 +26,13 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking; when a transaction fetches a
  * page, BufferPool checks that the transaction has the appropriate locks to
  * read/write the page.
+ * <p>
+ * By default the pool is NO-STEAL/FORCE: dirty pages are never evicted, and
+ * a transaction's pages are written to disk when it commits. In
+ * STEAL/NO-FORCE mode (see {@link #setStealNoForce}) dirty pages may be
+ * evicted once their before and after images are in the log, and commit only
+ * writes the after images of the transaction's pages to the log; the pages
+ * themselves reach disk later, on eviction or from the background writer.
  * 
  * @Threadsafe, all fields are final
  */
@@ -40,6 +52,43 @@ public class BufferPool {
 	private int numPages;
 	private ConcurrentHashMap<PageId, Page> pages;
 
+	/**
+	 * Dirty page table: for each page that may differ from its image on
+	 * disk, the log offset at which it first became dirty. Entries are only
+	 * added while holding the log file's lock, so that a checkpoint sees a
+	 * consistent snapshot.
+	 */
+	private final ConcurrentHashMap<PageId, Long> dirtyPages;
+
+	/**
+	 * Pages whose current image was logged by the given transaction as it
+	 * committed (see {@link #logPages}), and which have not been written
+	 * since.
+	 */
+	private final ConcurrentHashMap<PageId, TransactionId> loggedBy;
+
+	private volatile boolean stealNoForce = Boolean.getBoolean("simpledb.StealNoForce");
+
+	/**
+	 * Pages loaded by {@link #prefetchPage} that no transaction has asked
+	 * for yet. Read-ahead never evicts them to make room for more.
+	 */
+	private final Set<PageId> prefetched;
+
+	/**
+	 * Pages being read from disk by {@link #loadPage}, so that each is read
+	 * once however many threads ask for it meanwhile.
+	 */
+	private final ConcurrentHashMap<PageId, CompletableFuture<Page>> loading;
+
+	/** Pages queued for the background writer. */
+	private final LinkedBlockingQueue<PageId> flushQueue;
+	private Thread pageWriter;
+	/** The transaction the background writer holds its page locks as */
+	private final TransactionId pageWriterTid = new TransactionId();
+	/** Milliseconds the background writer waits after a failed write */
+	private static final long WRITE_RETRY_WAIT = 100;
+
 	/**
 	 * Creates a BufferPool that caches up to numPages pages.
 	 *
@@ -50,6 +99,11 @@ public class BufferPool {
 		// some code goes here
 		this.numPages = numPages;
 		pages = new ConcurrentHashMap<PageId, Page>();
+		dirtyPages = new ConcurrentHashMap<PageId, Long>();
+		loggedBy = new ConcurrentHashMap<PageId, TransactionId>();
+		prefetched = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+		loading = new ConcurrentHashMap<PageId, CompletableFuture<Page>>();
+		flushQueue = new LinkedBlockingQueue<PageId>();
 		this.lm = new LockManager();
 
 	}
@@ -68,6 +122,21 @@ public class BufferPool {
 		BufferPool.pageSize = PAGE_SIZE;
 	}
 
+	/**
+	 * Switch between NO-STEAL/FORCE (the default) and STEAL/NO-FORCE buffer
+	 * management. The default can also be set with the system property
+	 * simpledb.StealNoForce. Change this only while no transactions are
+	 * running.
+	 */
+	public void setStealNoForce(boolean stealNoForce) {
+		this.stealNoForce = stealNoForce;
+	}
+
+	/** Return true if the pool runs in STEAL/NO-FORCE mode */
+	public boolean isStealNoForce() {
+		return stealNoForce;
+	}
+
 	/**
 	 * Retrieve the specified page with the associated permissions. Will acquire
 	 * a lock and may block if that lock is held by another transaction.
@@ -101,18 +170,131 @@ public class BufferPool {
 			             throw new TransactionAbortedException();
 			         }
 		// some code goes here
-		if (this.pages.containsKey(pid)) {
-			return this.pages.get(pid);
-		} else {
-			if (this.pages.size() >= this.numPages) {
-				this.evictPage();
+		prefetched.remove(pid);
+		return loadPage(pid, false);
+	}
+
+	/**
+	 * Load the specified page into the buffer pool ahead of a request for it,
+	 * without locking it, and return it; or return null if it could not be
+	 * loaded. Read-ahead never evicts dirty pages or pages it loaded that
+	 * have not been used yet, and skips pages that are write-locked, since
+	 * their image on disk may be about to change.
+	 */
+	Page prefetchPage(PageId pid) {
+		Page p = pages.get(pid);
+		if (p != null)
+			return p;
+		if (lm.isWriteLocked(pid))
+			return null;
+		try {
+			return loadPage(pid, true);
+		} catch (DbException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Retrieve the specified page without locking it, for optimistic readers
+	 * that validate what they read by other means. The page is fetched as by
+	 * getPage() if it is not in the buffer pool.
+	 * 
+	 * @see BTreeFile#findLeafPage(TransactionId, Permissions, Field)
+	 */
+	Page getPageUnlocked(PageId pid) throws DbException {
+		prefetched.remove(pid);
+		return loadPage(pid, false);
+	}
+
+	/**
+	 * Return the specified page from the buffer pool, reading it from disk
+	 * if it is not there. The read runs outside the pool's lock, which is
+	 * only held to make room for the page and add it; a page requested while
+	 * another thread is reading it is waited for rather than read again.
+	 *
+	 * @param prefetch
+	 *            true to make room only as read-ahead may (see
+	 *            {@link #evictCleanPage}), returning null if there is none
+	 */
+	private Page loadPage(PageId pid, boolean prefetch) throws DbException {
+		while (true) {
+			Page p = pages.get(pid);
+			if (p != null)
+				return p;
+			CompletableFuture<Page> load = new CompletableFuture<Page>();
+			CompletableFuture<Page> running = loading.putIfAbsent(pid, load);
+			if (running != null) {
+				p = awaitLoad(running);
+				// null if read-ahead had no room for it; then read it here
+				if (p != null || prefetch)
+					return p;
+				continue;
 			}
-			Page newPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-			this.pages.put(pid, newPage);
-			return newPage;
+			try {
+				p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+				synchronized (this) {
+					Page cached = pages.get(pid);
+					if (cached != null) {
+						p = cached;
+					} else if (pages.size() >= numPages && prefetch && !evictCleanPage()) {
+						p = null;
+					} else {
+						if (pages.size() >= numPages && !prefetch)
+							evictPage();
+						pages.put(pid, p);
+						if (prefetch)
+							prefetched.add(pid);
+					}
+				}
+			} catch (DbException | RuntimeException e) {
+				loading.remove(pid, load);
+				load.completeExceptionally(e);
+				throw e;
+			}
+			// stop tracking the load before waking its waiters, so that
+			// they find the page in the pool or start a load of their own
+			loading.remove(pid, load);
+			load.complete(p);
+			return p;
+		}
+	}
+
+	/** @return the page a load by another thread added to the pool, or null */
+	private static Page awaitLoad(Future<Page> load) throws DbException {
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException("interrupted while reading page");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new DbException("could not read page: " + e.getCause());
 		}
 	}
 
+	/**
+	 * Return true if a transaction other than tid holds a write lock on the
+	 * specified page
+	 */
+	boolean isWriteLockedByOther(TransactionId tid, PageId pid) {
+		return lm.isWriteLockedByOther(tid, pid);
+	}
+
+	/**
+	 * Return true if the specified page is in the buffer pool
+	 */
+	boolean isCached(PageId pid) {
+		return pages.containsKey(pid);
+	}
+
+	/**
+	 * @return the maximum number of pages in this buffer pool
+	 */
+	int getNumPages() {
+		return numPages;
+	}
+
 	/**
 	 * Releases the lock on a page. Calling this is very risky, and may result
 	 * in wrong behavior. Think hard about who needs to call this and why, and
@@ -159,14 +341,18 @@ public class BufferPool {
 	 */
 	public void transactionComplete(TransactionId tid, boolean commit) throws IOException {
 		// some code goes here
-		lm.releaseAllLocks(tid, commit);
-		        
-		        Set<PageId> pageIds = lm.pagesLockedByTid(tid);
-		        if (pageIds == null) return;
-		        for (PageId p : pageIds) {
-		          if (pages.containsKey(p))
-		            pages.get(p).setBeforeImage();
-		        }
+		// take the pool's lock before the lock manager's, as flushPages()
+		// does, since committing flushes pages while holding the latter
+		synchronized (this) {
+			lm.releaseAllLocks(tid, commit);
+
+			Set<PageId> pageIds = lm.pagesLockedByTid(tid);
+			if (pageIds == null) return;
+			for (PageId p : pageIds) {
+				if (pages.containsKey(p))
+					pages.get(p).setBeforeImage();
+			}
+		}
 	}
 
 	/**
@@ -178,7 +364,8 @@ public class BufferPool {
 	 * Marks any pages that were dirtied by the operation as dirty by calling
 	 * their markDirty bit, and adds versions of any pages that have been
 	 * dirtied to the cache (replacing any existing versions of those pages) so
-	 * that future requests see up-to-date pages.
+	 * that future requests see up-to-date pages. Entries for the tuple are
+	 * added to any secondary indexes on the table.
 	 *
 	 * @param tid
 	 *            the transaction adding the tuple
@@ -200,6 +387,7 @@ public class BufferPool {
 		synchronized (this) {
 			for (Page p : dirtypages) {
 				p.markDirty(true, tid);
+				noteDirty(p.getId());
 
 				// System.out.println("ADDING TUPLE TO PAGE " +
 				// p.getId().pageno() + " WITH HASH CODE " +
@@ -219,6 +407,12 @@ public class BufferPool {
 				}
 			}
 		}
+
+		// keep the table's secondary indexes up to date, under the same
+		// transaction
+		for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+			index.insert(tid, t);
+		}
 	}
 
 	/**
@@ -229,7 +423,8 @@ public class BufferPool {
 	 * Marks any pages that were dirtied by the operation as dirty by calling
 	 * their markDirty bit, and adds versions of any pages that have been
 	 * dirtied to the cache (replacing any existing versions of those pages) so
-	 * that future requests see up-to-date pages.
+	 * that future requests see up-to-date pages. The tuple's entries are
+	 * removed from any secondary indexes on the table.
 	 *
 	 * @param tid
 	 *            the transaction deleting the tuple.
@@ -237,12 +432,15 @@ public class BufferPool {
 	 *            the tuple to delete
 	 */
 	public void deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
-		DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+		RecordId rid = t.getRecordId();
+		int tableId = rid.getPageId().getTableId();
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
 		ArrayList<Page> dirtypages = file.deleteTuple(tid, t);
 
 		synchronized (this) {
 			for (Page p : dirtypages) {
 				p.markDirty(true, tid);
+				noteDirty(p.getId());
 
 				// if page in pool already, done.
 				if (pages.get(p.getId()) != null) {
@@ -258,6 +456,10 @@ public class BufferPool {
 				}
 			}
 		}
+
+		for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+			index.delete(tid, t, rid);
+		}
 	}
 
 	/**
@@ -286,6 +488,103 @@ public class BufferPool {
 		if (p != null) {
 			pages.remove(pid);
 		}
+		prefetched.remove(pid);
+		dirtyPages.remove(pid);
+		loggedBy.remove(pid);
+	}
+
+	/**
+	 * Mark a page that the specified transaction changed in place, holding a
+	 * write lock on it, as dirtied by that transaction, as insertTuple() and
+	 * deleteTuple() do for the pages they return.
+	 * 
+	 * @see BTreeFile#rebuild(double)
+	 */
+	synchronized void markDirty(TransactionId tid, Page p) throws DbException {
+		p.markDirty(true, tid);
+		noteDirty(p.getId());
+		if (pages.get(p.getId()) == null && pages.size() >= numPages)
+			evictPage();
+		pages.put(p.getId(), p);
+	}
+
+	/**
+	 * Record that the specified page is dirty, remembering the current end
+	 * of the log as its recovery offset if it was clean.
+	 */
+	private void noteDirty(PageId pid) {
+		LogFile log = Database.getLogFile();
+		synchronized (log) {
+			if (!dirtyPages.containsKey(pid))
+				dirtyPages.put(pid, log.getCurrentOffset());
+		}
+	}
+
+	/**
+	 * Return a snapshot of the dirty page table, mapping each dirty page to
+	 * the log offset at which it became dirty. Called by the log file while
+	 * writing a checkpoint.
+	 */
+	public Map<PageId, Long> getDirtyPageTable() {
+		return new HashMap<PageId, Long>(dirtyPages);
+	}
+
+	/**
+	 * Queue the specified pages to be written out by a background thread,
+	 * one page at a time, so that a checkpoint never stalls the buffer pool
+	 * while they are flushed. The writer read-locks each page while it is
+	 * written. Pages that are clean by the time they are reached, or that
+	 * are write-locked by a running transaction, are skipped; pages that
+	 * cannot be written are reported and queued again.
+	 */
+	public void flushPagesInBackground(Collection<PageId> pids) {
+		flushQueue.addAll(pids);
+		synchronized (flushQueue) {
+			if (pageWriter == null) {
+				pageWriter = new Thread("BufferPool page writer") {
+					public void run() {
+						writePagesInBackground();
+					}
+				};
+				pageWriter.setDaemon(true);
+				pageWriter.start();
+			}
+		}
+	}
+
+	private void writePagesInBackground() {
+		while (true) {
+			PageId pid;
+			try {
+				pid = flushQueue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			// hold a read lock on the page while it is written, so that no
+			// transaction can write-lock it and change it meanwhile; skip it
+			// if one already has
+			if (!lm.tryAcquireLock(pageWriterTid, pid, Permissions.READ_ONLY))
+				continue;
+			boolean written = false;
+			try {
+				flushPage(pid);
+				written = true;
+			} catch (IOException e) {
+				System.err.println("BufferPool page writer: could not write " + pid + ": " + e);
+			} finally {
+				lm.releaseLock(pageWriterTid, pid);
+			}
+			if (!written) {
+				// the page is still dirty and in the dirty page table, so
+				// recovery still covers it; try it again after a pause
+				flushQueue.add(pid);
+				try {
+					Thread.sleep(WRITE_RETRY_WAIT);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
 	}
 
 	/**
@@ -300,9 +599,44 @@ public class BufferPool {
 		if (p == null)
 			return; // not in buffer pool -- doesn't need to be flushed
 
+		// write ahead: the page's images must be in the log before the
+		// page itself reaches disk
+		TransactionId dirtier = p.isDirty();
+		if (dirtier == null) {
+			dirtyPages.remove(pid);
+			return;
+		}
+		if (!dirtier.equals(loggedBy.get(pid))) {
+			Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
+		}
+		Database.getLogFile().force();
+
 		DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
 		file.writePage(p);
 		p.markDirty(false, null);
+		dirtyPages.remove(pid);
+		loggedBy.remove(pid);
+	}
+
+	/**
+	 * Write the after images of all pages dirtied by the specified
+	 * transaction to the log, without writing the pages themselves. The
+	 * records are buffered by the log and go out together. Used in NO-FORCE
+	 * mode to make a transaction durable ahead of its COMMIT record; the log
+	 * is forced when that record is written.
+	 */
+	public synchronized void logPages(TransactionId tid) throws IOException {
+		Set<PageId> pageIds = lm.pagesLockedByTid(tid);
+		if (pageIds == null)
+			return;
+
+		for (PageId pid : new ArrayList<PageId>(pageIds)) {
+			Page p = pages.get(pid);
+			if (p == null || !tid.equals(p.isDirty()) || tid.equals(loggedBy.get(pid)))
+				continue;
+			Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+			loggedBy.put(pid, tid);
+		}
 	}
 
 	/**
@@ -311,6 +645,11 @@ public class BufferPool {
 	public synchronized void flushPages(TransactionId tid) throws IOException {
 		Set<PageId> pageId = lm.pagesLockedByTid(tid);
 		        if (pageId == null) return;
+
+		        // log all the page images first, so that they reach the log
+		        // in one write and one force, then write the pages
+		        logPages(tid);
+		        Database.getLogFile().force();
 		
 		        for (PageId p : pageId) {
 		            //System.out.println("FLUSHING PAGE " + p.pageno());
@@ -318,6 +657,22 @@ public class BufferPool {
 		       }
 	}
 
+	/**
+	 * Make room for a page loaded by read-ahead by removing a clean page that
+	 * read-ahead did not load itself.
+	 * 
+	 * @return false if there is no such page
+	 */
+	private synchronized boolean evictCleanPage() {
+		for (PageId pid : pages.keySet()) {
+			if (!prefetched.contains(pid) && pages.get(pid).isDirty() == null) {
+				pages.remove(pid);
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Discards a page from the buffer pool. Flushes the page to disk to ensure
 	 * dirty pages are updated on disk.
@@ -341,6 +696,20 @@ public class BufferPool {
 						break;
 					}
 				}
+				if (!gotNew && stealNoForce) {
+					// prefer committed pages, whose images are already
+					// logged, over pages with uncommitted updates
+					for (PageId pg : pages.keySet()) {
+						if (loggedBy.containsKey(pg)
+								&& loggedBy.get(pg).equals(pages.get(pg).isDirty())) {
+							pid = pg;
+							break;
+						}
+					}
+					// STEAL: flushPage logs the page before writing it, so
+					// rollback and recovery can undo it
+					gotNew = true;
+				}
 				if (!gotNew) {
 					throw new DbException(
 							"All buffer pool slots contain dirty pages;  COMMIT or ROLLBACK to continue.");
@@ -356,6 +725,7 @@ public class BufferPool {
 			throw new DbException("could not evict page");
 		}
 		pages.remove(pid);
+		prefetched.remove(pid);
 	}
 
 
@@ -459,6 +829,16 @@ public class BufferPool {
             return true;
         }
 
+        /**
+         * Acquire a lock on the specified page only if it can be granted
+         * at once.
+         *
+         * @return true if the lock was acquired
+         */
+        public boolean tryAcquireLock(TransactionId tid, PageId pid, Permissions perm) {
+            return lock(tid, pid, perm);
+        }
+
         /**
          * Release all locks corresponding to TransactionId tid.
          */
@@ -472,7 +852,14 @@ public class BufferPool {
 
                 PageId pid = i.next();
                 //System.out.println("RELEASING LOCK ON PAGE " + pid.pageno());
-                if (commit) {
+                if (commit && stealNoForce) {
+                    // NO-FORCE: the after image is already in the log, so
+                    // leave the page dirty for eviction or the background
+                    // writer
+                    Page p = pages.get(pid);
+                    if (p != null)
+                        p.setBeforeImage(); // next abort should only roll back to here
+                } else if (commit) {
                     // if we commit, then we flush the page to disk
                     try {
                         // System.out.println("bp flushing page " + pid.pageno());
@@ -487,6 +874,23 @@ public class BufferPool {
                     } catch (IOException e) {
                         throw new RuntimeException("failed during commit: " + e);
                     }
+                } else if (stealNoForce && (_page2perm.get(pid)).equals(Permissions.READ_WRITE)) {
+                    // disk may be behind the last committed image under
+                    // NO-FORCE, so restore the page from its before image
+                    // instead. Pages the transaction stole were already
+                    // restored on disk and discarded by LogFile.rollback().
+                    Page p = pages.get(pid);
+                    if (p != null && tid.equals(p.isDirty())) {
+                        Page before = p.getBeforeImage();
+                        TransactionId committer = loggedBy.get(pid);
+                        if (committer != null) {
+                            // the committed image still has to be written
+                            before.markDirty(true, committer);
+                        } else {
+                            dirtyPages.remove(pid);
+                        }
+                        pages.put(pid, before);
+                    }
                 } else if ((_page2perm.get(pid)).equals(Permissions.READ_WRITE)) {
                     // if we abort, then we restore the page from disk iff we had a
                     //   write lock.
@@ -494,12 +898,26 @@ public class BufferPool {
                     // better have done rollback first if we are allowing dirty pages to go to disk
                     Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
                     pages.put(pid, p);
+                    dirtyPages.remove(pid);
                 }
 
                 releaseLock(tid, pid);
             }
         }
 
+        /** Return true if some transaction holds a write lock on the specified page */
+        public synchronized boolean isWriteLocked(PageId pid) {
+            return _page2perm.get(pid) == Permissions.READ_WRITE;
+        }
+
+        /** Return true if a transaction other than tid holds a write lock on the specified page */
+        public synchronized boolean isWriteLockedByOther(TransactionId tid, PageId pid) {
+            if (_page2perm.get(pid) != Permissions.READ_WRITE)
+                return false;
+            Set<TransactionId> tset = _page2tids.get(pid);
+            return tset == null || !tset.contains(tid);
+        }
+
         public synchronized Set<PageId> pagesLockedByTid(TransactionId tid) {
             return _tid2pages.get(tid);
         }
@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -26,6 +27,7 @@ public class Catalog {
 	private ConcurrentHashMap<Integer,table> idtables;
 	private ConcurrentHashMap<String,table> nametables;
 	private ConcurrentHashMap<Integer,TupleDesc> idTupleDescs;
+	private ConcurrentHashMap<Integer,List<SecondaryIndex>> idindexes;
 
 	public class table
 	{
@@ -77,6 +79,7 @@ public class Catalog {
     	idtables=new ConcurrentHashMap<Integer,table>();   //id to table
     	nametables=new ConcurrentHashMap<String,table>();  //name to table
     	idTupleDescs=new ConcurrentHashMap<Integer,TupleDesc>();  //id to tupledesc
+    	idindexes=new ConcurrentHashMap<Integer,List<SecondaryIndex>>();  //id to secondary indexes
     
     }
 
@@ -207,10 +210,75 @@ public class Catalog {
     	idtables.clear();
     	nametables.clear();
     	idTupleDescs.clear();
+    	idindexes.clear();
+    }
+
+    /**
+     * Register a secondary index on a table; from now on BufferPool keeps it
+     * up to date as tuples are inserted into and deleted from the table.
+     * The index's own BTreeFile must already be in the catalog.
+     */
+    public void addIndex(SecondaryIndex index) {
+        List<SecondaryIndex> indexes = idindexes.get(index.getTableId());
+        if (indexes == null) {
+            idindexes.putIfAbsent(index.getTableId(), new CopyOnWriteArrayList<SecondaryIndex>());
+            indexes = idindexes.get(index.getTableId());
+        }
+        indexes.add(index);
+    }
+
+    /**
+     * Unregister a secondary index, if it is registered; BufferPool stops
+     * maintaining it.
+     */
+    public void removeIndex(SecondaryIndex index) {
+        List<SecondaryIndex> indexes = idindexes.get(index.getTableId());
+        if (indexes != null)
+            indexes.remove(index);
+    }
+
+    /**
+     * Remove a table from the catalog, if it is there.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public void removeTable(int tableid) {
+        table temp = idtables.remove(tableid);
+        if (temp == null)
+            return;
+        nametables.remove(temp.getname(), temp);
+        idTupleDescs.remove(tableid);
+        idindexes.remove(tableid);
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table, which may be an
+     * empty list.
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = idindexes.get(tableid);
+        if (indexes == null)
+            return Collections.emptyList();
+        return indexes;
+    }
+
+    /**
+     * Returns the secondary index on the specified field of a table, or
+     * null if there is none.
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (index.getField() == field)
+                return index;
+        }
+        return null;
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the form name (field type [pk], ...) [hash]; tables
+     * marked hash are stored in a HashFile on their primary key, and the
+     * others in a HeapFile.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -251,7 +319,21 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String storage = line.substring(line.indexOf(")") + 1).trim();
+                DbFile tabHf;
+                if (storage.toLowerCase().equals("hash")) {
+                    if (primaryKey.equals("")) {
+                        System.out.println("Hash table " + name + " needs a primary key");
+                        System.exit(0);
+                    }
+                    tabHf = new HashFile(new File(baseFolder+"/"+name + ".dat"), t.fieldNameToIndex(primaryKey), t);
+                } else if (storage.equals("")) {
+                    tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                } else {
+                    System.out.println("Unknown storage " + storage);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
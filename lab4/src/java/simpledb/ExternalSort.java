@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples that may not fit in memory.
+ * Tuples are collected into runs of at most runTuples tuples; each full run
+ * is sorted and written to a temporary file, and iterator() merges the runs
+ * with a priority queue.  If everything fits in one run no file is written.
+ * <p>
+ * Tuples are written to the run files as their serialized fields, so the
+ * sorted tuples have no RecordId.
+ */
+public class ExternalSort {
+
+    /** Default number of tuples sorted in memory per run */
+    public static final int DEFAULT_RUN_TUPLES = 100000;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int runTuples;
+
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    private final ArrayList<File> runs = new ArrayList<File>();
+    private final ArrayList<Integer> runSizes = new ArrayList<Integer>();
+    private long size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param td the TupleDesc of the tuples to sort
+     * @param comparator the sort order
+     * @param runTuples the number of tuples to sort in memory at a time
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int runTuples) {
+        if (runTuples < 1)
+            throw new IllegalArgumentException("runs must hold at least one tuple");
+        this.td = td;
+        this.comparator = comparator;
+        this.runTuples = runTuples;
+    }
+
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator) {
+        this(td, comparator, DEFAULT_RUN_TUPLES);
+    }
+
+    /** Add a tuple to the sort; must be called before iterator(). */
+    public void add(Tuple t) throws IOException {
+        buffer.add(t);
+        size++;
+        if (buffer.size() >= runTuples)
+            spill();
+    }
+
+    /** Add every tuple returned by the specified iterator to the sort. */
+    public void addAll(DbFileIterator it)
+            throws IOException, DbException, TransactionAbortedException {
+        it.open();
+        while (it.hasNext())
+            add(it.next());
+        it.close();
+    }
+
+    /** @return the number of tuples added */
+    public long size() {
+        return size;
+    }
+
+    /** @return the number of runs written to disk so far */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer, comparator);
+        File run = File.createTempFile("sortrun", ".dat");
+        run.deleteOnExit();
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+        for (Tuple t : buffer) {
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(dos);
+        }
+        dos.close();
+        runs.add(run);
+        runSizes.add(buffer.size());
+        buffer.clear();
+    }
+
+    /**
+     * Return the tuples added so far in sorted order.  IO errors while
+     * reading the runs surface as RuntimeExceptions.
+     */
+    public Iterator<Tuple> iterator() throws IOException {
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, comparator);
+            return buffer.iterator();
+        }
+        if (!buffer.isEmpty())
+            spill();
+
+        final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size(),
+                new Comparator<RunReader>() {
+                    public int compare(RunReader a, RunReader b) {
+                        return comparator.compare(a.head, b.head);
+                    }
+                });
+        for (int i = 0; i < runs.size(); i++) {
+            RunReader r = new RunReader(runs.get(i), runSizes.get(i));
+            if (r.advance())
+                queue.add(r);
+        }
+
+        return new Iterator<Tuple>() {
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            public Tuple next() {
+                if (queue.isEmpty())
+                    throw new NoSuchElementException();
+                RunReader r = queue.poll();
+                Tuple t = r.head;
+                try {
+                    if (r.advance())
+                        queue.add(r);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Delete the run files. */
+    public void close() {
+        for (File run : runs)
+            run.delete();
+        runs.clear();
+        runSizes.clear();
+        buffer = new ArrayList<Tuple>();
+    }
+
+    /** Reads back one sorted run, a tuple at a time */
+    private class RunReader {
+        final DataInputStream dis;
+        int remaining;
+        Tuple head;
+
+        RunReader(File run, int count) throws IOException {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+            remaining = count;
+        }
+
+        /** Read the next tuple into head; returns false at the end of the run */
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                dis.close();
+                return false;
+            }
+            remaining--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(dis));
+            } catch (ParseException e) {
+                throw new IOException("corrupt sort run", e);
+            }
+            head = t;
+            return true;
+        }
+    }
+}
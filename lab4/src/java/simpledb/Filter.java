@@ -5,11 +5,12 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private Predicate pred;
     private DbIterator child;
+    private transient BatchIterator batches;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -36,6 +37,7 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
+        batches = RowsToBatch.of(child);
         super.open();
     }
 
@@ -67,6 +69,24 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Reads batches from the child operator, narrowing the selection of each
+     * to the rows that pass the predicate, and returns the next with any row
+     * left.
+     *
+     * @return The next batch with rows that pass the filter, or null if there
+     *         are no more rows
+     * @see TupleBatch#filter
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch;
+        while ((batch = batches.nextBatch()) != null) {
+            if (batch.filter(pred) > 0)
+                return batch;
+        }
+        return null;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
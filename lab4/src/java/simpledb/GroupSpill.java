@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * GroupSpill holds the partial aggregates of an aggregator that has more
+ * groups than fit in memory. A partial aggregate is a tuple of the group-by
+ * value followed by the running state of the group, such as its count. The
+ * tuples are written to PARTITIONS SpillFiles on a hash of the group-by
+ * value, so the partial aggregates of a group, spilled at different times,
+ * all end up in the same partition.
+ * <p>
+ * The partitions are then merged one at a time: the partial aggregates of a
+ * partition are combined by group in memory, column by column, with the
+ * operators given to the constructor. A partition that still has more groups
+ * than the memory budget is split again on other bits of the hash.
+ * <p>
+ * The Aggregator interface declares no checked exceptions, so IO errors
+ * surface as RuntimeExceptions, as they do when a SpillFile is read.
+ */
+class GroupSpill {
+
+    /** Turns the combined partial aggregate of a group into its result. */
+    interface Finisher {
+        Tuple finish(Tuple partial);
+    }
+
+    /** The number of partitions of the partial aggregates */
+    static final int PARTITIONS = 16;
+    // the deepest split; partitions this deep are merged however many groups they have
+    private static final int MAX_LEVEL = 4;
+
+    private final TupleDesc td;
+    private final Aggregator.Op[] combine;
+    private final int memoryGroups;
+    private final int level;
+    private final SpillFile[] files;
+    // the partitions split again by iterators over this one, until they are read
+    private final ArrayList<GroupSpill> splits = new ArrayList<GroupSpill>();
+
+    /**
+     * Constructor.
+     *
+     * @param td the TupleDesc of the partial aggregates, the group-by value
+     *   first
+     * @param combine how each column after the group-by value is combined:
+     *   MIN, MAX or SUM
+     * @param memoryGroups the number of groups to combine in memory at a time
+     */
+    GroupSpill(TupleDesc td, Aggregator.Op[] combine, int memoryGroups) {
+        this(td, combine, memoryGroups, 0);
+    }
+
+    private GroupSpill(TupleDesc td, Aggregator.Op[] combine, int memoryGroups, int level) {
+        this.td = td;
+        this.combine = combine;
+        this.memoryGroups = memoryGroups;
+        this.level = level;
+        files = new SpillFile[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++)
+            files[i] = new SpillFile(td);
+    }
+
+    /** @return the partition of a group, from the bits of its hash for this level */
+    private int partitionOf(Field group) {
+        int h = group.hashCode() * 0x9E3779B9;
+        return (h >>> (28 - 4 * level)) % PARTITIONS;
+    }
+
+    /** Write the partial aggregate of a group to its partition. */
+    void add(Tuple partial) {
+        try {
+            files[partitionOf(partial.getField(0))].add(partial);
+        } catch (IOException e) {
+            throw new RuntimeException("could not write aggregate partitions", e);
+        }
+    }
+
+    /** Fold the state of a partial aggregate into that of another of its group. */
+    private void combine(Tuple into, Tuple partial) {
+        for (int i = 1; i < td.numFields(); i++) {
+            int a = ((IntField) into.getField(i)).getValue();
+            int b = ((IntField) partial.getField(i)).getValue();
+            switch (combine[i - 1]) {
+            case MIN:
+                a = Math.min(a, b);
+                break;
+            case MAX:
+                a = Math.max(a, b);
+                break;
+            default:
+                a += b;
+                break;
+            }
+            into.setField(i, new IntField(a));
+        }
+    }
+
+    /**
+     * @return one combined partial aggregate per group, read a partition at
+     *   a time
+     */
+    Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            int partition = -1;
+            Iterator<Tuple> current = Collections.<Tuple>emptyIterator();
+            // the partition being read, if it was split again
+            GroupSpill split = null;
+
+            public boolean hasNext() {
+                while (!current.hasNext() && partition + 1 < PARTITIONS)
+                    current = merge(++partition);
+                if (!current.hasNext())
+                    dropSplit();
+                return current.hasNext();
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private void dropSplit() {
+                if (split != null) {
+                    split.delete();
+                    splits.remove(split);
+                }
+                split = null;
+            }
+
+            /** @return the partial aggregates of a partition, combined by group */
+            private Iterator<Tuple> merge(int p) {
+                dropSplit();
+                Iterator<Tuple> it;
+                try {
+                    it = files[p].iterator();
+                } catch (IOException e) {
+                    throw new RuntimeException("could not read aggregate partitions", e);
+                }
+                HashMap<Field, Tuple> groups = new HashMap<Field, Tuple>();
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    if (split != null) {
+                        split.add(t);
+                        continue;
+                    }
+                    Tuple group = groups.get(t.getField(0));
+                    if (group == null)
+                        groups.put(t.getField(0), t);
+                    else
+                        combine(group, t);
+                    if (groups.size() > memoryGroups && level < MAX_LEVEL) {
+                        // too many groups for memory: partition them again
+                        split = new GroupSpill(td, combine, memoryGroups, level + 1);
+                        splits.add(split);
+                        for (Tuple g : groups.values())
+                            split.add(g);
+                        groups = null;
+                    }
+                }
+                return split != null ? split.iterator() : groups.values().iterator();
+            }
+        };
+    }
+
+    /**
+     * @return a DbIterator over the results of the groups, turned from their
+     *   combined partial aggregates by finisher
+     */
+    DbIterator results(final TupleDesc resultTd, final Finisher finisher) {
+        return new DbIterator() {
+            private static final long serialVersionUID = 1L;
+            transient private Iterator<Tuple> it = null;
+
+            public void open() {
+                it = iterator();
+            }
+
+            public boolean hasNext() {
+                if (it == null)
+                    throw new IllegalStateException("iterator not open");
+                return it.hasNext();
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return finisher.finish(it.next());
+            }
+
+            public void rewind() {
+                close();
+                open();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return resultTd;
+            }
+
+            public void close() {
+                it = null;
+            }
+        };
+    }
+
+    /** Delete the files of every partition, and of those split again. */
+    void delete() {
+        for (SpillFile f : files)
+            f.delete();
+        for (GroupSpill split : splits)
+            split.delete();
+        splits.clear();
+    }
+}
@@ -0,0 +1,325 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Each instance of HashBucketPage stores one page of a bucket of a HashFile:
+ * either the bucket's primary page or one of the overflow pages chained
+ * after it. It implements the Page interface that is used by BufferPool.
+ *
+ * @see HashFile
+ * @see BufferPool
+ *
+ */
+public class HashBucketPage implements Page {
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	final HashPageId pid;
+	final TupleDesc td;
+	final byte header[];
+	final Tuple tuples[];
+	final int numSlots;
+
+	private int nextPage; // next page of the bucket, or 0
+
+	byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk. The
+	 * format is the page number of the next page of the bucket, or 0 if this
+	 * is the last, followed by header bytes indicating the slots of the page
+	 * that are in use and the tuple slots, as in a HeapPage. The number of
+	 * tuples is equal to:
+	 * <p>
+	 * floor((BufferPool.getPageSize()*8 - 4*8) / (tuple size * 8 + 1))
+	 * <p>
+	 * An all-zero page is an empty last page.
+	 *
+	 * @see HeapPage#HeapPage
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		nextPage = dis.readInt();
+
+		// allocate and read the header slots of this page
+		header = new byte[getHeaderSize()];
+		for (int i = 0; i < header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try {
+			// allocate and read the actual records of this page
+			for (int i = 0; i < tuples.length; i++)
+				tuples[i] = readNextTuple(dis, i);
+		} catch (NoSuchElementException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples this page can hold.
+	 */
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		return (BufferPool.getPageSize() * 8 - INDEX_SIZE * 8) / bitsPerTupleIncludingHeader;
+	}
+
+	/**
+	 * Computes the number of bytes in the header of this page
+	 */
+	private int getHeaderSize() {
+		return (numSlots + 7) / 8;
+	}
+
+	/** Return a view of this page before it was modified -- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			// should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Suck up tuples from the source file.
+	 */
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		// if associated bit is not set, read forward to the next tuple, and
+		// return null.
+		if (!isSlotUsed(slotId)) {
+			for (int i = 0; i < td.getSize(); i++) {
+				try {
+					dis.readByte();
+				} catch (IOException e) {
+					throw new NoSuchElementException("error reading empty tuple");
+				}
+			}
+			return null;
+		}
+
+		// read fields in the tuple
+		Tuple t = new Tuple(td);
+		RecordId rid = new RecordId(pid, slotId);
+		t.setRecordId(rid);
+		try {
+			for (int j = 0; j < td.numFields(); j++) {
+				Field f = td.getFieldType(j).parse(dis);
+				t.setField(j, f);
+			}
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page. Used to
+	 * serialize this page to disk.
+	 * <p>
+	 * The invariant here is that it should be possible to pass the byte array
+	 * generated by getPageData to the HashBucketPage constructor and have it
+	 * produce an identical HashBucketPage object.
+	 *
+	 * @see #HashBucketPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		try {
+			dos.writeInt(nextPage);
+			dos.write(header);
+
+			for (int i = 0; i < tuples.length; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j = 0; j < td.numFields(); j++)
+					tuples[i].getField(j).serialize(dos);
+			}
+
+			// padding
+			dos.write(new byte[len - (INDEX_SIZE + header.length + td.getSize() * tuples.length)]);
+			dos.flush();
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage, the last of its bucket.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; // all 0
+	}
+
+	/** @return the page number of the next page of the bucket, or 0 */
+	public int getNextPage() {
+		return nextPage;
+	}
+
+	/** Set the page number of the next page of the bucket, or 0 */
+	public void setNextPage(int pgNo) {
+		nextPage = pgNo;
+	}
+
+	/**
+	 * Delete the specified tuple from the page.
+	 *
+	 * @throws DbException
+	 *             if this tuple is not on this page, or tuple slot is already
+	 *             empty.
+	 * @param t
+	 *            The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !pid.equals(rid.getPageId()))
+			throw new DbException("tried to delete tuple on invalid page or table");
+		if (!isSlotUsed(rid.tupleno()))
+			throw new DbException("tried to delete null tuple.");
+		markSlotUsed(rid.tupleno(), false);
+		tuples[rid.tupleno()] = null;
+	}
+
+	/**
+	 * Adds the specified tuple to the page; the tuple is updated to reflect
+	 * that it is now stored on this page.
+	 *
+	 * @throws DbException
+	 *             if the page is full (no empty slots) or tupledesc is
+	 *             mismatch.
+	 * @param t
+	 *            The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addTuple");
+
+		int slot = -1;
+		for (int i = 0; i < header.length && slot == -1; i++) {
+			if (header[i] != (byte) 0xFF) {
+				for (int j = i * 8; j < (i + 1) * 8 && j < numSlots; j++) {
+					if (!isSlotUsed(j)) {
+						slot = j;
+						break;
+					}
+				}
+			}
+		}
+		if (slot == -1)
+			throw new DbException("called addTuple on page with no empty slots.");
+
+		markSlotUsed(slot, true);
+		RecordId rid = new RecordId(pid, slot);
+		t.setRecordId(rid);
+		tuples[slot] = t;
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction that did
+	 * the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty)
+			this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null
+	 * if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int empty = 0;
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i))
+				empty++;
+		}
+		return empty;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return (header[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	/**
+	 * Abstraction to fill or clear a slot on this page.
+	 */
+	private void markSlotUsed(int i, boolean value) {
+		if (value)
+			header[i / 8] |= 1 << (i % 8);
+		else
+			header[i / 8] &= ~(1 << (i % 8));
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this
+	 *         iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		ArrayList<Tuple> temp = new ArrayList<Tuple>();
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i))
+				temp.add(tuples[i]);
+		}
+		return Collections.unmodifiableList(temp).iterator();
+	}
+
+}
@@ -1,18 +1,32 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin builds a hash table over the outer relation and probes it
+ * with each tuple of the inner. If the outer relation holds more than the
+ * memory budget of tuples, it is a hybrid hash join: both relations are
+ * split into PARTITIONS partitions on a hash of the join field, the tuples
+ * of one partition are kept in memory while the rest are written to
+ * SpillFiles, and the spilled partitions are then joined one at a time. Each
+ * child is read once. A spilled outer partition that still does not fit in
+ * memory is loaded a budget at a time, its inner partition read once for
+ * each load.
+ * <p>
+ * The outer tuples in memory are kept in a JoinHashTable, which holds INT
+ * join fields without boxing them.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate pred;
     private DbIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
     transient private Tuple t2 = null;
+    private final int memoryTuples;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -26,9 +40,28 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor with a memory budget.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memoryTuples
+     *            The number of outer tuples to hold in memory at a time
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryTuples) {
+        if (memoryTuples < 1)
+            throw new IllegalArgumentException("the join must hold at least one tuple");
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryTuples = memoryTuples;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -50,32 +83,196 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+    // the outer tuples in memory, by join field
+    transient private JoinHashTable map = null;
+
+    /** The default number of outer tuples held in memory */
     public final static int MAP_SIZE = 20000;
+    /** The number of partitions of each relation once the outer overflows memory */
+    public final static int PARTITIONS = 16;
+
+    // the partitions of each relation, or null while the outer fits in memory
+    transient private SpillFile[] buildFiles = null, probeFiles = null;
+    // the partition kept in map while child2 is read, or -1 if none fits
+    transient private int memPartition;
+    // true while child2 is read; afterwards the spilled partitions are joined
+    transient private boolean probing;
+    // the spilled partition being joined, and where it is being read
+    transient private int partition;
+    transient private Iterator<Tuple> buildIt = null, probeIt = null;
+
+    /** @return the partition of a tuple with the specified join field */
+    private static int partitionOf(Field key) {
+        return partitionOf(key.hashCode());
+    }
+
+    /** @return the partition of a tuple with an INT join field of value key */
+    private static int partitionOf(int key) {
+        int h = key * 0x9E3779B9;
+        return (h >>> 16) % PARTITIONS;
+    }
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    /**
+     * Read child1 into map, partitioning it once it overflows memory.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        try {
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                if (buildFiles != null) {
+                    int p = partitionOf(t.getField(pred.getField1()));
+                    if (p != memPartition) {
+                        buildFiles[p].add(t);
+                        continue;
+                    }
+                }
+                map.add(t);
+                if (map.size() > memoryTuples)
+                    spillMemory();
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write join partitions: " + e.getMessage());
+        }
+        // with no outer tuples there is nothing for child2 to join with
+        probing = (buildFiles != null || !map.isEmpty());
+        partition = -1;
+    }
+
+    /**
+     * Move the tuples in map to the files of their partitions: the first
+     * time, all but those of partition 0, which stays in memory while it
+     * fits, and after that all of them.
+     */
+    private void spillMemory() throws IOException {
+        if (buildFiles == null) {
+            buildFiles = new SpillFile[PARTITIONS];
+            probeFiles = new SpillFile[PARTITIONS];
+            for (int i = 0; i < PARTITIONS; i++) {
+                buildFiles[i] = new SpillFile(child1.getTupleDesc());
+                probeFiles[i] = new SpillFile(child2.getTupleDesc());
+            }
+            memPartition = 0;
+        } else {
+            memPartition = -1;
+        }
+        ArrayList<ArrayList<Tuple>> old = new ArrayList<ArrayList<Tuple>>(map.lists());
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+        for (ArrayList<Tuple> list : old) {
+            for (Tuple t : list) {
+                int p = partitionOf(t.getField(pred.getField1()));
+                if (p == memPartition)
+                    map.add(t);
+                else
+                    buildFiles[p].add(t);
+            }
+        }
+        if (map.size() > memoryTuples)
+            spillMemory();
+    }
+
+    /**
+     * Write a tuple of child2 to its partition's file, unless its partition
+     * is the one in memory.
+     *
+     * @return true if the tuple was written
+     */
+    private boolean spillProbe(Tuple t) throws DbException {
+        if (probeFiles == null)
+            return false;
+        int p = partitionOf(t.getField(pred.getField2()));
+        if (p == memPartition)
+            return false;
+        try {
+            probeFiles[p].add(t);
+        } catch (IOException e) {
+            throw new DbException("could not write join partitions: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next tuple of child2 to look up in map: while child2 is
+     * read, those of the partition in memory, and after that those of the
+     * spilled partitions, with the outer tuples of their partition in map.
+     *
+     * @return the next tuple, or null if every one has been looked up
+     */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (probing) {
+            while (child2.hasNext()) {
+                Tuple t = child2.next();
+                if (!spillProbe(t))
+                    return t;
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            probing = false;
         }
-        return cnt > 0;
+        return nextSpilledProbe();
+    }
 
+    /**
+     * @return the next tuple of the spilled partitions of child2, or null if
+     *         there are no more
+     */
+    private Tuple nextSpilledProbe() throws DbException {
+        if (buildFiles == null) {
+            map.clear();
+            return null;
+        }
+        try {
+            while (probeIt == null || !probeIt.hasNext()) {
+                if (buildIt == null || !buildIt.hasNext()) {
+                    // the partition is done: move on to the next that has
+                    // tuples on both sides
+                    do {
+                        partition++;
+                    } while (partition < PARTITIONS
+                            && (partition == memPartition || buildFiles[partition].size() == 0
+                                    || probeFiles[partition].size() == 0));
+                    if (partition >= PARTITIONS) {
+                        map.clear();
+                        return null;
+                    }
+                    buildIt = buildFiles[partition].iterator();
+                }
+                // load as much of the outer partition as fits, and read the
+                // inner partition against it
+                map.clear();
+                while (buildIt.hasNext() && map.size() < memoryTuples)
+                    map.add(buildIt.next());
+                probeIt = probeFiles[partition].iterator();
+            }
+        } catch (IOException e) {
+            throw new DbException("could not read join partitions: " + e.getMessage());
+        }
+        return probeIt.next();
+    }
+
+    /** Drop the hash table and the partitions */
+    private void reset() {
+        if (map != null)
+            map.clear();
+        if (buildFiles != null) {
+            for (int i = 0; i < PARTITIONS; i++) {
+                buildFiles[i].delete();
+                probeFiles[i].delete();
+            }
+        }
+        buildFiles = probeFiles = null;
+        buildIt = probeIt = null;
+        listIt = null;
+        t2 = null;
+        probe = null;
+        matches = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        probes = RowsToBatch.of(child2);
+        map = new JoinHashTable(child1.getTupleDesc(), pred.getField1());
+        reset();
+        build();
         super.open();
     }
 
@@ -83,15 +280,14 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        reset();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        reset();
+        build();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -115,8 +311,7 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
-
+        Tuple t1 = listIt.next();
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
@@ -131,32 +326,89 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
+        while (listIt == null || !listIt.hasNext()) {
+            t2 = nextProbe();
+            if (t2 == null)
+                return null;
             // if match, create a combined tuple and fill it with the values
             // from both tuples
             ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
+            listIt = (l == null ? null : l.iterator());
         }
+        return processList();
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
+    transient private BatchIterator probes;
+    transient private TupleBatch probe = null, out = null;
+    transient private int probePos, probeRow;
+    transient private ArrayList<Tuple> matches = null;
+    transient private int matchPos;
 
-        return null;
+    /**
+     * Returns the next batch of tuples generated by the join. While child2 is
+     * read it is read a batch at a time, each of its selected rows looked up
+     * in map as fetchNext does for each tuple; the spilled partitions are
+     * then read a tuple at a time.
+     *
+     * @return The next batch of matching tuples, or null if there are no more
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (out == null)
+            out = new TupleBatch(comboTD);
+        boolean intProbes = map.isIntKeyed()
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+        int td1n = child1.getTupleDesc().numFields();
+        int td2n = child2.getTupleDesc().numFields();
+        int rows = 0;
+        while (rows < out.capacity()) {
+            if (matches != null && matchPos < matches.size()) {
+                // set fields in the combined row
+                Tuple left = matches.get(matchPos++);
+                for (int i = 0; i < td1n; i++)
+                    out.setField(i, rows, left.getField(i));
+                for (int i = 0; i < td2n; i++)
+                    out.setField(td1n + i, rows, t2 != null ? t2.getField(i) : probe.getField(i, probeRow));
+                rows++;
+                continue;
+            }
+            matches = null;
+            if (!probing) {
+                t2 = nextSpilledProbe();
+                if (t2 == null)
+                    break;
+                matches = map.get(t2.getField(pred.getField2()));
+                matchPos = 0;
+                continue;
+            }
+            if (probe != null && probePos < probe.numSelected()) {
+                probeRow = probe.selected(probePos++);
+                if (intProbes) {
+                    // look up INT keys without making Fields of them
+                    int key = probe.getInt(pred.getField2(), probeRow);
+                    if (probeFiles != null && partitionOf(key) != memPartition) {
+                        spillProbe(probe.getTuple(probeRow));
+                        continue;
+                    }
+                    matches = map.get(key);
+                } else {
+                    Field key = probe.getField(pred.getField2(), probeRow);
+                    if (probeFiles != null && partitionOf(key) != memPartition) {
+                        spillProbe(probe.getTuple(probeRow));
+                        continue;
+                    }
+                    matches = map.get(key);
+                }
+                t2 = null;
+                matchPos = 0;
+                continue;
+            }
+            probe = probes.nextBatch();
+            probePos = 0;
+            if (probe == null)
+                probing = false; // child2 is done
+        }
+        out.setSize(rows);
+        return rows > 0 ? out : null;
     }
 
     @Override
@@ -0,0 +1,463 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashFile is an implementation of a DbFile that stores its tuples in the
+ * buckets of a linear hash table on one key field, so that the tuples with a
+ * given key are found by reading the one bucket the key hashes to, however
+ * large the file grows. It answers equality index predicates that way; other
+ * predicates fall back to a scan of the whole file.
+ * <p>
+ * Page 0 is a HashMetaPage holding the state of the hash table; every other
+ * page is a HashBucketPage, the primary page of a bucket or an overflow page
+ * chained after one. When an insert finds its bucket full it chains an
+ * overflow page to it, and splits the bucket at the split pointer in two,
+ * so the number of buckets grows one at a time with the number of tuples.
+ * Pages past the end of the file read as empty bucket pages, so pages are
+ * only written once they hold tuples.
+ * <p>
+ * Lookups and inserts read-lock the meta page, and only write-lock it to add
+ * an overflow page and split, which keeps splits from moving tuples under
+ * transactions that have read them.
+ *
+ * @see HashMetaPage
+ * @see HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+	/** The number of buckets of an empty HashFile */
+	public static final int DEFAULT_BUCKETS = 4;
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+	private final int initialBuckets;
+
+	/**
+	 * Constructs a hash file backed by the specified file, starting with
+	 * DEFAULT_BUCKETS buckets if it is empty.
+	 *
+	 * @param f
+	 *            - the file that stores the on-disk backing store for this
+	 *            hash file.
+	 * @param key
+	 *            - the field the tuples are hashed on
+	 * @param td
+	 *            - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this(f, key, td, DEFAULT_BUCKETS);
+	}
+
+	/**
+	 * Constructs a hash file backed by the specified file.
+	 *
+	 * @param initialBuckets
+	 *            - the number of buckets to start with if the file is empty
+	 */
+	public HashFile(File f, int key, TupleDesc td, int initialBuckets) {
+		if (initialBuckets < 1)
+			throw new IllegalArgumentException("a hash file needs at least one bucket");
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+		this.initialBuckets = initialBuckets;
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile, the hash code of the
+	 * absolute path of its file, as for HeapFile and BTreeFile.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field the tuples are hashed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Returns the number of pages written to disk, the meta page included.
+	 */
+	public int numPages() {
+		// we only ever write full pages
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/** Returns the id of the meta page */
+	HashPageId metaPageId() {
+		return new HashPageId(tableid, 0, HashPageId.META);
+	}
+
+	/** Returns the id of the specified bucket page */
+	private HashPageId bucketPageId(int pgNo) {
+		return new HashPageId(tableid, pgNo, HashPageId.BUCKET);
+	}
+
+	/**
+	 * Read a page from the file on disk. Pages past the end of the file,
+	 * including the meta page of an empty file, read as empty pages.
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		byte pageBuf[] = null;
+		try {
+			RandomAccessFile rf = new RandomAccessFile(f, "r");
+			try {
+				long offset = (long) id.pageNumber() * BufferPool.getPageSize();
+				if (offset < rf.length()) {
+					pageBuf = new byte[BufferPool.getPageSize()];
+					rf.seek(offset);
+					rf.readFully(pageBuf);
+				}
+			} finally {
+				rf.close();
+			}
+		} catch (FileNotFoundException e) {
+			// not written yet: an empty file
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		Debug.log(1, "HashFile.readPage: read page %d", id.pageNumber());
+		try {
+			if (id.pgcateg() == HashPageId.META)
+				return new HashMetaPage(id, pageBuf != null ? pageBuf : HashMetaPage.createEmptyPageData(initialBuckets));
+			return new HashBucketPage(id, pageBuf != null ? pageBuf : HashBucketPage.createEmptyPageData());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk at its page number; writing past the end of the
+	 * file extends it, and the pages skipped read as empty.
+	 */
+	public void writePage(Page page) throws IOException {
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		try {
+			rf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+			rf.write(page.getPageData());
+		} finally {
+			rf.close();
+		}
+	}
+
+	/**
+	 * Returns the non-negative hash value of a key. The bits of the field's
+	 * hash code are mixed, since IntField hashes to its value and keys often
+	 * share their low bits.
+	 */
+	static int hash(Field key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & 0x7fffffff;
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page. First
+	 * the method checks the local cache ("dirtypages"), and if it can't find
+	 * the requested page there, it fetches it from the buffer pool. It also
+	 * adds pages to the dirtypages cache if they are fetched with read-write
+	 * permission, since presumably they will soon be dirtied by this
+	 * transaction.
+	 *
+	 * @see BTreeFile#getPage(TransactionId, HashMap, BTreePageId, Permissions)
+	 */
+	Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if (dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		} else {
+			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			if (perm == Permissions.READ_WRITE) {
+				dirtypages.put(pid, p);
+			}
+			return p;
+		}
+	}
+
+	/**
+	 * Insert a tuple into the bucket its key hashes to. If every page of the
+	 * bucket is full, an overflow page is chained to it and the bucket at the
+	 * split pointer is split.
+	 *
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!td.equals(t.getTupleDesc()))
+			throw new DbException("type mismatch, in insertTuple");
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+
+		HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, metaPageId(), Permissions.READ_ONLY);
+		int bucket = meta.bucketFor(hash(t.getField(keyField)));
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages,
+				bucketPageId(meta.bucketPage(bucket)), Permissions.READ_WRITE);
+		while (page.getNumEmptySlots() == 0 && page.getNextPage() != 0) {
+			page = (HashBucketPage) getPage(tid, dirtypages, bucketPageId(page.getNextPage()),
+					Permissions.READ_WRITE);
+		}
+
+		if (page.getNumEmptySlots() > 0) {
+			page.insertTuple(t);
+		} else {
+			meta = (HashMetaPage) getPage(tid, dirtypages, metaPageId(), Permissions.READ_WRITE);
+			HashBucketPage overflow = allocatePage(tid, dirtypages, meta);
+			page.setNextPage(overflow.getId().pageNumber());
+			overflow.insertTuple(t);
+			splitBucket(tid, dirtypages, meta);
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	/**
+	 * Get an empty page to chain to a bucket: the first free overflow page,
+	 * or else a new page at the end of the file.
+	 */
+	private HashBucketPage allocatePage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta)
+			throws DbException, TransactionAbortedException {
+		int pgNo = meta.getFreeHead();
+		if (pgNo == 0) {
+			return (HashBucketPage) getPage(tid, dirtypages, bucketPageId(meta.allocatePage()),
+					Permissions.READ_WRITE);
+		}
+		HashBucketPage p = (HashBucketPage) getPage(tid, dirtypages, bucketPageId(pgNo), Permissions.READ_WRITE);
+		meta.setFreeHead(p.getNextPage());
+		p.setNextPage(0);
+		return p;
+	}
+
+	/**
+	 * Split the bucket at the split pointer: add the bucket that shares its
+	 * keys at the next level, and move the tuples that hash to the new bucket
+	 * there. The old bucket keeps as many of its pages as it still needs;
+	 * the others are freed.
+	 */
+	private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta)
+			throws DbException, TransactionAbortedException {
+		int bucket = meta.getSplitBucket();
+		int pgNo = meta.bucketPage(bucket);
+		HashBucketPage target = (HashBucketPage) getPage(tid, dirtypages, bucketPageId(meta.addBucket()),
+				Permissions.READ_WRITE);
+
+		ArrayList<HashBucketPage> chain = new ArrayList<HashBucketPage>();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		while (pgNo != 0) {
+			HashBucketPage p = (HashBucketPage) getPage(tid, dirtypages, bucketPageId(pgNo), Permissions.READ_WRITE);
+			chain.add(p);
+			Iterator<Tuple> it = p.iterator();
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				p.deleteTuple(t);
+				tuples.add(t);
+			}
+			pgNo = p.getNextPage();
+		}
+
+		int kept = 0;
+		for (Tuple t : tuples) {
+			if (meta.bucketFor(hash(t.getField(keyField))) == bucket) {
+				if (chain.get(kept).getNumEmptySlots() == 0)
+					kept++;
+				chain.get(kept).insertTuple(t);
+			} else {
+				if (target.getNumEmptySlots() == 0) {
+					HashBucketPage overflow = allocatePage(tid, dirtypages, meta);
+					target.setNextPage(overflow.getId().pageNumber());
+					target = overflow;
+				}
+				target.insertTuple(t);
+			}
+		}
+
+		chain.get(kept).setNextPage(0);
+		for (int i = kept + 1; i < chain.size(); i++) {
+			chain.get(i).setNextPage(meta.getFreeHead());
+			meta.setFreeHead(chain.get(i).getId().pageNumber());
+		}
+	}
+
+	/**
+	 * Delete a tuple from the page its RecordId names.
+	 *
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !(rid.getPageId() instanceof HashPageId) || rid.getPageId().getTableId() != tableid
+				|| ((HashPageId) rid.getPageId()).pgcateg() != HashPageId.BUCKET)
+			throw new DbException("tuple is not in this hash file");
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+
+		// keep splits from moving tuples until this transaction is done
+		getPage(tid, dirtypages, metaPageId(), Permissions.READ_ONLY);
+		HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, (HashPageId) rid.getPageId(),
+				Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	/**
+	 * Returns an iterator over all the tuples in the file, page by page.
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid, null);
+	}
+
+	/**
+	 * Returns an iterator over the tuples whose key satisfies the specified
+	 * predicate. An EQUALS predicate only reads the pages of the bucket the
+	 * key hashes to; any other one reads the whole file, since hashing does
+	 * not keep keys in order.
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if (ipred.getOp() == Predicate.Op.EQUALS)
+			return new HashLookupIterator(this, tid, ipred.getField());
+		return new HashFileIterator(this, tid, ipred);
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for a scan of a HashFile,
+ * optionally of the tuples whose key matches a predicate
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	private final HashFile f;
+	private final TransactionId tid;
+	private final IndexPredicate ipred;
+
+	private Iterator<Tuple> it = null;
+	private int pgNo;
+	private int numPages;
+
+	HashFileIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by reading the number of pages from the meta page,
+	 * whose lock keeps splits from moving tuples during the scan
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		HashMetaPage meta = (HashMetaPage) Database.getBufferPool().getPage(tid, f.metaPageId(),
+				Permissions.READ_ONLY);
+		numPages = meta.getNumPages();
+		pgNo = 1;
+		it = null;
+	}
+
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			while (it != null && it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField()))
+					return t;
+			}
+			if (pgNo >= numPages)
+				return null;
+			HashBucketPage p = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					new HashPageId(f.getId(), pgNo++, HashPageId.BUCKET), Permissions.READ_ONLY);
+			it = p.iterator();
+		}
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it = null;
+		numPages = 0;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a
+ * HashFile with a given key, read from the pages of the key's bucket
+ */
+class HashLookupIterator extends AbstractDbFileIterator {
+
+	private final HashFile f;
+	private final TransactionId tid;
+	private final Field key;
+
+	private Iterator<Tuple> it = null;
+	private int nextPage;
+
+	HashLookupIterator(HashFile f, TransactionId tid, Field key) {
+		this.f = f;
+		this.tid = tid;
+		this.key = key;
+	}
+
+	/**
+	 * Open this iterator by finding the primary page of the key's bucket
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		HashMetaPage meta = (HashMetaPage) Database.getBufferPool().getPage(tid, f.metaPageId(),
+				Permissions.READ_ONLY);
+		nextPage = meta.bucketPage(meta.bucketFor(HashFile.hash(key)));
+		it = null;
+	}
+
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			while (it != null && it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(f.keyField()).equals(key))
+					return t;
+			}
+			if (nextPage == 0)
+				return null;
+			HashBucketPage p = (HashBucketPage) Database.getBufferPool().getPage(tid,
+					new HashPageId(f.getId(), nextPage, HashPageId.BUCKET), Permissions.READ_ONLY);
+			nextPage = p.getNextPage();
+			it = p.iterator();
+		}
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it = null;
+		nextPage = 0;
+	}
+}
@@ -0,0 +1,246 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashMetaPage is the first page of a HashFile. It holds the state of the
+ * linear hashing scheme: the number of buckets the file started with, the
+ * current level and split pointer, the number of pages allocated, the head
+ * of the list of free overflow pages, and where the primary pages of each
+ * level's buckets start.
+ * <p>
+ * The primary pages of the buckets added at one level are allocated
+ * together, as a region of consecutive pages reserved when the first of
+ * them is split off, so the page of any bucket can be computed from the
+ * start of its region without a directory. Overflow pages are allocated
+ * after the regions reserved so far.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashMetaPage implements Page {
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	/** The largest number of levels, each of which doubles the buckets */
+	final static int MAX_LEVELS = 32;
+
+	private final HashPageId pid;
+
+	private int initialBuckets;
+	private int level;
+	private int split;
+	private int numPages;
+	private int freeHead;
+	private final int[] regionStart = new int[MAX_LEVELS + 1];
+
+	byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashMetaPage from a set of bytes of data read from disk. The
+	 * format is the number of initial buckets, the level, the split pointer,
+	 * the number of pages allocated, the first free overflow page or 0, then
+	 * the first page of each level's region of primary pages, all as ints.
+	 */
+	public HashMetaPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		initialBuckets = dis.readInt();
+		level = dis.readInt();
+		split = dis.readInt();
+		numPages = dis.readInt();
+		freeHead = dis.readInt();
+		for (int i = 0; i < regionStart.length; i++)
+			regionStart[i] = dis.readInt();
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to the meta page
+	 * of an empty HashFile with the specified number of buckets, whose
+	 * primary pages follow the meta page.
+	 */
+	public static byte[] createEmptyPageData(int initialBuckets) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(initialBuckets);
+			dos.writeInt(0);
+			dos.writeInt(0);
+			dos.writeInt(1 + initialBuckets);
+			dos.writeInt(0);
+			dos.writeInt(1);
+			dos.write(new byte[BufferPool.getPageSize() - 6 * 4]);
+			dos.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/** Return a view of this page before it was modified -- used by recovery */
+	public HashMetaPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new HashMetaPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			// should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page, which
+	 * the constructor reads back into an identical page.
+	 */
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(initialBuckets);
+			dos.writeInt(level);
+			dos.writeInt(split);
+			dos.writeInt(numPages);
+			dos.writeInt(freeHead);
+			for (int i = 0; i < regionStart.length; i++)
+				dos.writeInt(regionStart[i]);
+			dos.write(new byte[BufferPool.getPageSize() - (5 + regionStart.length) * 4]);
+			dos.flush();
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction that did
+	 * the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty)
+			this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null
+	 * if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/** @return the number of buckets, not counting those split off so far at this level */
+	private int levelBuckets() {
+		return initialBuckets << level;
+	}
+
+	/** @return the number of buckets */
+	public int getNumBuckets() {
+		return levelBuckets() + split;
+	}
+
+	/**
+	 * @return the bucket a key with the specified hash value belongs in
+	 */
+	public int bucketFor(int hash) {
+		int b = hash % levelBuckets();
+		if (b < split)
+			b = hash % (levelBuckets() << 1);
+		return b;
+	}
+
+	/**
+	 * @return the page number of the primary page of the specified bucket
+	 */
+	public int bucketPage(int bucket) {
+		if (bucket < initialBuckets)
+			return regionStart[0] + bucket;
+		int region = 1;
+		while ((initialBuckets << region) <= bucket)
+			region++;
+		return regionStart[region] + bucket - (initialBuckets << (region - 1));
+	}
+
+	/**
+	 * @return the bucket split next, whose tuples are shared with the new
+	 *         bucket getSplitBucket() + the number of buckets at this level
+	 */
+	public int getSplitBucket() {
+		return split;
+	}
+
+	/**
+	 * Add the bucket split off the split bucket: reserve the primary pages
+	 * of the next level when the first of them is needed, and move the split
+	 * pointer on, to the next level once every bucket of this one is split.
+	 *
+	 * @return the page number of the new bucket's primary page
+	 * @throws DbException if the file has grown to the largest number of
+	 *             levels
+	 */
+	public int addBucket() throws DbException {
+		if (level + 1 >= MAX_LEVELS)
+			throw new DbException("hash file has too many buckets");
+		if (split == 0) {
+			regionStart[level + 1] = numPages;
+			numPages += levelBuckets();
+		}
+		int page = regionStart[level + 1] + split;
+		split++;
+		if (split == levelBuckets()) {
+			level++;
+			split = 0;
+		}
+		return page;
+	}
+
+	/** @return the number of pages allocated, the meta page included */
+	public int getNumPages() {
+		return numPages;
+	}
+
+	/**
+	 * Allocate a page at the end of the file
+	 *
+	 * @return its page number
+	 */
+	public int allocatePage() {
+		return numPages++;
+	}
+
+	/** @return the first page of the list of free overflow pages, or 0 */
+	public int getFreeHead() {
+		return freeHead;
+	}
+
+	/** Set the first page of the list of free overflow pages, or 0 */
+	public void setFreeHead(int pgNo) {
+		freeHead = pgNo;
+	}
+}
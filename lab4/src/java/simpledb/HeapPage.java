@@ -369,6 +369,13 @@ public class HeapPage implements Page {
 		            header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * @return the tuple in the specified slot, or null if the slot is empty
+	 */
+	public Tuple getTuple(int i) {
+		return isSlotUsed(i) ? tuples[i] : null;
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this
 	 *         iterator throws an UnsupportedOperationException) (note that this
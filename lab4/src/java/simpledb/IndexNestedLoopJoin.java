@@ -0,0 +1,231 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins an outer relation with a table stored in a
+ * BTreeFile keyed on the inner join field, probing the tree for the outer
+ * tuples' keys instead of scanning the inner relation.
+ * <p>
+ * The inner child must be a BTreeScan of the table, possibly under Filters;
+ * it is never read itself.  Outer tuples are read in blocks, and the distinct
+ * keys of each block are looked up in one walk of the tree with
+ * {@link BTreeFile#indexIterator(TransactionId, Collection)}, so only the
+ * leaves holding matching keys are read.  The probed tuples must still pass
+ * the Filters' predicates and the BTreeScan's own IndexPredicate, if any.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+    private final int probeTuples;
+
+    /** The number of outer tuples whose keys are looked up together */
+    public static final int DEFAULT_PROBE_TUPLES = 1024;
+
+    // the inner table and the predicates its probed tuples must satisfy
+    transient private BTreeFile file = null;
+    transient private TransactionId tid = null;
+    transient private ArrayList<Predicate> residual = null;
+
+    // the current block of outer tuples and the inner tuples matching each
+    // of its keys
+    transient private ArrayList<Tuple> block = null;
+    transient private HashMap<Field, ArrayList<Tuple>> matches = null;
+    transient private int blockPos = 0;
+    transient private Tuple t1 = null;
+    transient private ArrayList<Tuple> t1Matches = null;
+    transient private int matchPos = 0;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The right(inner) relation to join: a BTreeScan keyed on the
+     *            join field, possibly under Filters
+     * @throws IllegalArgumentException
+     *             if the inner relation cannot be probed on the join field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_PROBE_TUPLES);
+    }
+
+    IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int probeTuples) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("an index join's predicate must be EQUALS");
+        if (!canProbe(child2, p.getField2()))
+            throw new IllegalArgumentException("the inner relation is not a B+ tree keyed on field "
+                    + p.getField2());
+        if (child1.getTupleDesc().getFieldType(p.getField1())
+                != child2.getTupleDesc().getFieldType(p.getField2()))
+            throw new IllegalArgumentException("join fields of different types");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.probeTuples = probeTuples;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /** @return the BTreeScan under the Filters of an iterator, or null */
+    private static BTreeScan probedScan(DbIterator inner) {
+        while (inner instanceof Filter)
+            inner = ((Filter) inner).getChildren()[0];
+        return inner instanceof BTreeScan ? (BTreeScan) inner : null;
+    }
+
+    /**
+     * @return true if the specified iterator is a BTreeScan, possibly under
+     *         Filters, of a B+ tree keyed on the specified field
+     */
+    public static boolean canProbe(DbIterator inner, int field) {
+        BTreeScan scan = probedScan(inner);
+        return scan != null && field >= 0 && scan.getSortField() == field;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        BTreeScan scan = probedScan(child2);
+        if (scan == null)
+            throw new DbException("the inner relation of an index join is not a B+ tree");
+        file = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        tid = scan.getTransactionId();
+        residual = new ArrayList<Predicate>();
+        for (DbIterator it = child2; it instanceof Filter; it = ((Filter) it).getChildren()[0])
+            residual.add(((Filter) it).getPredicate());
+        IndexPredicate ipred = scan.getIndexPredicate();
+        if (ipred != null)
+            residual.add(new Predicate(file.keyField(), ipred.getOp(), ipred.getField()));
+
+        child1.open();
+        block = new ArrayList<Tuple>();
+        startOuter();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        block = null;
+        matches = null;
+        t1 = null;
+        t1Matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        startOuter();
+    }
+
+    private void startOuter() {
+        block.clear();
+        blockPos = 0;
+        matches = null;
+        t1 = null;
+        t1Matches = null;
+    }
+
+    /**
+     * Read the next block of outer tuples and look up the inner tuples
+     * matching their keys.
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean nextBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        blockPos = 0;
+        ArrayList<Field> keys = new ArrayList<Field>();
+        while (block.size() < probeTuples && child1.hasNext()) {
+            Tuple t = child1.next();
+            block.add(t);
+            keys.add(t.getField(pred.getField1()));
+        }
+        if (block.isEmpty())
+            return false;
+
+        matches = new HashMap<Field, ArrayList<Tuple>>();
+        DbFileIterator it = file.indexIterator(tid, keys);
+        it.open();
+        try {
+            probed: while (it.hasNext()) {
+                Tuple t2 = it.next();
+                for (Predicate p : residual) {
+                    if (!p.filter(t2))
+                        continue probed;
+                }
+                Field key = t2.getField(file.keyField());
+                ArrayList<Tuple> l = matches.get(key);
+                if (l == null) {
+                    l = new ArrayList<Tuple>();
+                    matches.put(key, l);
+                }
+                l.add(t2);
+            }
+        } finally {
+            it.close();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of each outer tuple, in the order they
+     * are read, with each inner tuple whose key equals its join field.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (t1Matches == null || matchPos == t1Matches.size()) {
+            if (blockPos == block.size() && !nextBlock())
+                return null;
+            t1 = block.get(blockPos++);
+            t1Matches = matches.get(t1.getField(pred.getField1()));
+            matchPos = 0;
+        }
+        Tuple t2 = t1Matches.get(matchPos++);
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan is an operator which reads the fields a secondary index
+ * covers, the indexed field and the fields it includes, for the tuples of a
+ * heap table that match an index predicate.  It reads the index entries
+ * only, never the table's pages, so it replaces a SecondaryIndexScan or a
+ * SeqScan when a query uses no other fields of the table.
+ *
+ * @see SecondaryIndex#lookupCovered
+ */
+public class IndexOnlyScan implements DbIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private TransactionId tid;
+	private TupleDesc myTd;
+	private SecondaryIndex index;
+	private IndexPredicate ipred;
+	private transient DbFileIterator it;
+	private String tablename;
+	private String alias;
+
+	/**
+	 * Creates a scan over the covered fields of the tuples of the index's
+	 * table that satisfy the predicate, as a part of the specified
+	 * transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the secondary index to read
+	 * @param tableAlias
+	 *            the alias of the table; the returned tupleDesc has fields
+	 *            with name tableAlias.fieldName, as with SeqScan, for the
+	 *            indexed field followed by the included ones
+	 * @param ipred
+	 *            The predicate on the indexed field to match, or null to
+	 *            read the whole index
+	 */
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(index.getTableId());
+		this.it = index.lookupCovered(tid, ipred);
+
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		int[] fields = index.getCoveredFields();
+		String[] newNames = new String[fields.length];
+		Type[] newTypes = new Type[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(fields[i]);
+			newTypes[i] = td.getFieldType(fields[i]);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * @return the name of the table the operator scans
+	 */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	/**
+	 * @return the index predicate this scan matches, or null if it reads
+	 *         the whole index
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one DbIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.next();
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+		close();
+		open();
+	}
+}
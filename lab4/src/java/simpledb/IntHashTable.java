@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * IntHashTable numbers distinct int keys 0, 1, 2, ... in the order they are
+ * added, so that operators keyed on INT fields can keep their per-key state
+ * in arrays or lists indexed by that number without boxing the keys.
+ * <p>
+ * It is an open addressing table with linear probing: each slot holds a key
+ * and its number plus one, 0 marking an empty slot, in two int arrays that
+ * are doubled once they are half full.
+ */
+public class IntHashTable {
+
+    private int[] slotKeys;
+    private int[] slotIds;
+    private int mask;
+    // the keys in the order they were added
+    private int[] keys;
+    private int size = 0;
+
+    /** Constructor for a table that grows as keys are added. */
+    public IntHashTable() {
+        this(16);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param expected the number of keys to make room for
+     */
+    public IntHashTable(int expected) {
+        int capacity = 16;
+        while (capacity < 2 * expected)
+            capacity <<= 1;
+        slotKeys = new int[capacity];
+        slotIds = new int[capacity];
+        mask = capacity - 1;
+        keys = new int[Math.max(8, expected)];
+    }
+
+    /** @return the first slot to look for a key in */
+    private int slotOf(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return the number of the specified key, or -1 if it has not been
+     *         added
+     */
+    public int find(int key) {
+        for (int s = slotOf(key);; s = (s + 1) & mask) {
+            int id = slotIds[s];
+            if (id == 0)
+                return -1;
+            if (slotKeys[s] == key)
+                return id - 1;
+        }
+    }
+
+    /**
+     * Add a key if it is not in the table yet.
+     *
+     * @return the number of the key: size() - 1 if it was just added
+     */
+    public int add(int key) {
+        int s = slotOf(key);
+        for (;; s = (s + 1) & mask) {
+            int id = slotIds[s];
+            if (id == 0)
+                break;
+            if (slotKeys[s] == key)
+                return id - 1;
+        }
+        if (size == keys.length)
+            keys = Arrays.copyOf(keys, 2 * size);
+        keys[size] = key;
+        slotKeys[s] = key;
+        slotIds[s] = ++size;
+        if (2 * size > slotKeys.length)
+            grow();
+        return size - 1;
+    }
+
+    private void grow() {
+        int capacity = 2 * slotKeys.length;
+        slotKeys = new int[capacity];
+        slotIds = new int[capacity];
+        mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int s = slotOf(keys[id]);
+            while (slotIds[s] != 0)
+                s = (s + 1) & mask;
+            slotKeys[s] = keys[id];
+            slotIds[s] = id + 1;
+        }
+    }
+
+    /** @return the number of keys in the table */
+    public int size() {
+        return size;
+    }
+
+    /** @return the key with the specified number */
+    public int key(int id) {
+        if (id < 0 || id >= size)
+            throw new IndexOutOfBoundsException("no key " + id);
+        return keys[id];
+    }
+
+    /** Remove every key, keeping the space allocated. */
+    public void clear() {
+        Arrays.fill(slotIds, 0);
+        size = 0;
+    }
+}
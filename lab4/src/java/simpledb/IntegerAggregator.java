@@ -4,6 +4,10 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Once there are more groups than the memory budget, the partial aggregates
+ * of the groups in memory (their min, max, sum, count and sumCount) are
+ * spilled to a GroupSpill, and the results are merged from its partitions.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -15,6 +19,13 @@ public class IntegerAggregator implements Aggregator {
     private int afield;
     // a map of groupVal -> AggregateFields
     private HashMap<String, AggregateFields> groups;
+    // for an INT group-by field, the groups numbered by their values instead
+    private IntHashTable intGroupIds = null;
+    private ArrayList<AggregateFields> intGroups = null;
+    // the number of groups held in memory before they are spilled
+    private final int memoryGroups;
+    // the partial aggregates of the groups spilled, or null if none were
+    transient private GroupSpill spill = null;
 
     /**
      * Aggregate constructor
@@ -32,11 +43,47 @@ public class IntegerAggregator implements Aggregator {
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield, gbfieldtype, afield, what, MEMORY_GROUPS);
+    }
+
+    /**
+     * Aggregate constructor with a memory budget
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field (e.g., Type.INT_TYPE), or null
+     *            if there is no grouping
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param what
+     *            the aggregation operator
+     * @param memoryGroups
+     *            the number of groups to hold in memory
+     */
+    public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what,
+            int memoryGroups) {
+        if (memoryGroups < 1)
+            throw new IllegalArgumentException("the aggregate must hold at least one group");
+        this.memoryGroups = memoryGroups;
         this.what = what;
         this.gbfield = gbfield;
         this.afield = afield;
         this.gbfieldtype = gbfieldtype;
         this.groups = new HashMap<String, AggregateFields>();
+        if (gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE) {
+            intGroupIds = new IntHashTable();
+            intGroups = new ArrayList<AggregateFields>();
+        }
+    }
+
+    /** @return the group of an INT group-by value, added if it is new */
+    private AggregateFields intGroup(int groupVal) {
+        int id = intGroupIds.add(groupVal);
+        if (id == intGroups.size())
+            intGroups.add(new AggregateFields(null));
+        return intGroups.get(id);
     }
 
     /**
@@ -47,13 +94,20 @@ public class IntegerAggregator implements Aggregator {
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        String groupVal = "";
-        if (gbfield != NO_GROUPING) {
-            groupVal = tup.getField(gbfield).toString();
+        AggregateFields agg;
+        if (intGroupIds != null) {
+            agg = intGroup(((IntField) tup.getField(gbfield)).getValue());
+        } else {
+            String groupVal = "";
+            if (gbfield != NO_GROUPING) {
+                groupVal = tup.getField(gbfield).toString();
+            }
+            agg = groups.get(groupVal);
+            if (agg == null) {
+                agg = new AggregateFields(groupVal);
+                groups.put(groupVal, agg);
+            }
         }
-        AggregateFields agg = groups.get(groupVal);
-        if (agg == null)
-            agg = new AggregateFields(groupVal);
 
         int x = ((IntField) tup.getField(afield)).getValue();
 
@@ -63,8 +117,122 @@ public class IntegerAggregator implements Aggregator {
         agg.max = (x > agg.max ? x : agg.max);
         if (what==Op.SC_AVG)
             agg.sumCount+=((IntField) tup.getField(afield+1)).getValue();
+        if (numGroups() > memoryGroups)
+            spillGroups();
+    }
+
+    /** @return the number of groups in memory */
+    private int numGroups() {
+        return groups.size() + (intGroups != null ? intGroups.size() : 0);
+    }
 
-        groups.put(groupVal, agg);
+    /** @return the TupleDesc of the partial aggregates of the groups */
+    private TupleDesc partialDesc() {
+        return new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE, Type.INT_TYPE,
+                Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE });
+    }
+
+    /** @return the partial aggregate of a group */
+    private Tuple partial(Field group, AggregateFields agg) {
+        Tuple t = new Tuple(partialDesc());
+        t.setField(0, group);
+        t.setField(1, new IntField(agg.min));
+        t.setField(2, new IntField(agg.max));
+        t.setField(3, new IntField(agg.sum));
+        t.setField(4, new IntField(agg.count));
+        t.setField(5, new IntField(agg.sumCount));
+        return t;
+    }
+
+    /** @return the state of a group read back from its partial aggregate */
+    private AggregateFields fromPartial(Tuple t) {
+        AggregateFields agg = new AggregateFields(null);
+        agg.min = ((IntField) t.getField(1)).getValue();
+        agg.max = ((IntField) t.getField(2)).getValue();
+        agg.sum = ((IntField) t.getField(3)).getValue();
+        agg.count = ((IntField) t.getField(4)).getValue();
+        agg.sumCount = ((IntField) t.getField(5)).getValue();
+        return agg;
+    }
+
+    /**
+     * Write the partial aggregates of the groups in memory to the spill,
+     * leaving no group in memory.
+     */
+    private void spillGroups() {
+        if (spill == null)
+            spill = new GroupSpill(partialDesc(),
+                    new Op[] { Op.MIN, Op.MAX, Op.SUM, Op.SUM, Op.SUM }, memoryGroups);
+        if (intGroupIds != null) {
+            for (int id = 0; id < intGroupIds.size(); id++)
+                spill.add(partial(new IntField(intGroupIds.key(id)), intGroups.get(id)));
+            intGroupIds.clear();
+            intGroups.clear();
+        }
+        for (AggregateFields agg : groups.values())
+            spill.add(partial(new StringField(agg.groupVal, Type.STRING_LEN), agg));
+        groups.clear();
+    }
+
+    /**
+     * Merge the selected rows of a batch into the aggregate. Without grouping
+     * the aggregate column is folded into one group in a single loop.
+     *
+     * @param batch
+     *            the rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int n = batch.numSelected();
+        int[] col = batch.getIntColumn(afield);
+        int[] counts = (what == Op.SC_AVG ? batch.getIntColumn(afield + 1) : null);
+
+        if (gbfield == NO_GROUPING) {
+            AggregateFields agg = groups.get("");
+            if (agg == null)
+                agg = new AggregateFields("");
+            int min = agg.min, max = agg.max, sum = agg.sum, sumCount = agg.sumCount;
+            for (int i = 0; i < n; i++) {
+                int r = batch.selected(i);
+                int x = col[r];
+                sum += x;
+                min = (x < min ? x : min);
+                max = (x > max ? x : max);
+                if (counts != null)
+                    sumCount += counts[r];
+            }
+            agg.count += n;
+            agg.sum = sum;
+            agg.min = min;
+            agg.max = max;
+            agg.sumCount = sumCount;
+            groups.put("", agg);
+            return;
+        }
+
+        for (int i = 0; i < n; i++) {
+            int r = batch.selected(i);
+            AggregateFields agg;
+            if (intGroupIds != null) {
+                agg = intGroup(batch.getInt(gbfield, r));
+            } else {
+                String groupVal = batch.getField(gbfield, r).toString();
+                agg = groups.get(groupVal);
+                if (agg == null) {
+                    agg = new AggregateFields(groupVal);
+                    groups.put(groupVal, agg);
+                }
+            }
+
+            int x = col[r];
+            agg.count++;
+            agg.sum += x;
+            agg.min = (x < agg.min ? x : agg.min);
+            agg.max = (x > agg.max ? x : agg.max);
+            if (counts != null)
+                agg.sumCount += counts[r];
+            if (numGroups() > memoryGroups)
+                spillGroups();
+        }
     }
 
     /**
@@ -93,43 +261,28 @@ public class IntegerAggregator implements Aggregator {
         	td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE });
         }
 
+        if (spill != null) {
+            // merge the groups in memory with those spilled
+            spillGroups();
+            final TupleDesc resultTd = td;
+            final int resultField = aggField;
+            return spill.results(td, new GroupSpill.Finisher() {
+                public Tuple finish(Tuple partial) {
+                    return summary(resultTd, resultField, partial.getField(0), fromPartial(partial));
+                }
+            });
+        }
+
         // iterate over groups and create summary tuples
+        if (intGroupIds != null) {
+            for (int id = 0; id < intGroupIds.size(); id++)
+                result.add(summary(td, aggField, new IntField(intGroupIds.key(id)), intGroups.get(id)));
+        }
         for (String groupVal : groups.keySet()) {
-            AggregateFields agg = groups.get(groupVal);
-            Tuple tup = new Tuple(td);
-
-            if (gbfield != NO_GROUPING) {
-                if (gbfieldtype == Type.INT_TYPE)
-                    tup.setField(0, new IntField(new Integer(groupVal)));
-                else
-                    tup.setField(0, new StringField(groupVal, Type.STRING_LEN));
-            }
-            switch (what) {
-            case MIN:
-                tup.setField(aggField, new IntField(agg.min));
-                break;
-            case MAX:
-                tup.setField(aggField, new IntField(agg.max));
-                break;
-            case SUM:
-                tup.setField(aggField, new IntField(agg.sum));
-                break;
-            case COUNT:
-                tup.setField(aggField, new IntField(agg.count));
-                break;
-            case AVG:
-                tup.setField(aggField, new IntField(agg.sum / agg.count));
-                break;
-            case SUM_COUNT:
-        	tup.setField(aggField, new IntField(agg.sum));
-        	tup.setField(aggField+1, new IntField(agg.count));
-        	break;
-            case SC_AVG:
-        	tup.setField(aggField, new IntField(agg.sum / agg.sumCount));
-        	break;
-            }
-
-            result.add(tup);
+            Field group = null;
+            if (gbfield != NO_GROUPING)
+                group = new StringField(groupVal, Type.STRING_LEN);
+            result.add(summary(td, aggField, group, groups.get(groupVal)));
         }
 
         DbIterator retVal = null;
@@ -137,6 +290,52 @@ public class IntegerAggregator implements Aggregator {
         return retVal;
     }
 
+    public void close() {
+        if (spill != null)
+            spill.delete();
+        spill = null;
+        groups.clear();
+        if (intGroupIds != null) {
+            intGroupIds.clear();
+            intGroups.clear();
+        }
+    }
+
+    /**
+     * @return the summary tuple of a group: its group-by value, unless group
+     *         is null, and its aggregate value
+     */
+    private Tuple summary(TupleDesc td, int aggField, Field group, AggregateFields agg) {
+        Tuple tup = new Tuple(td);
+        if (group != null)
+            tup.setField(0, group);
+        switch (what) {
+        case MIN:
+            tup.setField(aggField, new IntField(agg.min));
+            break;
+        case MAX:
+            tup.setField(aggField, new IntField(agg.max));
+            break;
+        case SUM:
+            tup.setField(aggField, new IntField(agg.sum));
+            break;
+        case COUNT:
+            tup.setField(aggField, new IntField(agg.count));
+            break;
+        case AVG:
+            tup.setField(aggField, new IntField(agg.sum / agg.count));
+            break;
+        case SUM_COUNT:
+	    tup.setField(aggField, new IntField(agg.sum));
+	    tup.setField(aggField+1, new IntField(agg.count));
+	    break;
+        case SC_AVG:
+	    tup.setField(aggField, new IntField(agg.sum / agg.sumCount));
+	    break;
+        }
+        return tup;
+    }
+
     /**
      * A helper struct to store accumulated aggregate values.
      */
@@ -4,6 +4,10 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested loops join: it reads as many outer tuples as fit in a
+ * memory budget of pages, packed as a HeapFile would pack them, and scans the
+ * inner relation once for each such block rather than once per outer tuple.
  */
 public class Join extends Operator {
 
@@ -11,7 +15,18 @@ public class Join extends Operator {
     private JoinPredicate pred;
     private DbIterator child1, child2;
     private TupleDesc comboTD;
-    private Tuple t1 = null;
+    private final int blockTuples;
+
+    /** The number of pages of outer tuples a join holds by default */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
+    // the current block of outer tuples, the inner tuple being joined with
+    // it and the next outer tuple of the block to compare it with
+    transient private ArrayList<Tuple> block = null;
+    transient private Tuple t2 = null;
+    transient private int blockPos = 0;
+    // false until the inner relation must be rewound for the next block
+    transient private boolean innerRead = false;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -25,10 +40,45 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor for a join that holds the specified number of pages of
+     * outer tuples in memory
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockPages
+     *            The number of pages of outer tuples to join with each scan of
+     *            the inner relation
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockPages) {
+        if (blockPages < 1)
+            throw new IllegalArgumentException("a join needs at least one page of memory");
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        blockTuples = blockTuples(child1.getTupleDesc(), blockPages);
+    }
+
+    /**
+     * @return the number of tuples of the specified TupleDesc that fit in the
+     *         specified number of pages, as HeapPage lays them out
+     */
+    public static int blockTuples(TupleDesc td, int pages) {
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        return Math.max(1, perPage) * pages;
+    }
+
+    /** @return the number of outer tuples joined with each scan of the inner */
+    public int getBlockTuples() {
+        return blockTuples;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -65,6 +115,9 @@ public class Join extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
+        block = new ArrayList<Tuple>();
+        t2 = null;
+        innerRead = false;
         super.open();
     }
 
@@ -72,11 +125,34 @@ public class Join extends Operator {
         super.close();
         child2.close();
         child1.close();
+        block = null;
+        t2 = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        block.clear();
+        t2 = null;
+        innerRead = false;
+    }
+
+    /**
+     * Read the next block of outer tuples, rewinding the inner relation if it
+     * has been read for the previous block.
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean nextBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < blockTuples && child1.hasNext())
+            block.add(child1.next());
+        if (block.isEmpty())
+            return false;
+        if (innerRead)
+            child2.rewind();
+        innerRead = true;
+        return true;
     }
 
     /**
@@ -85,6 +161,10 @@ public class Join extends Operator {
      * satisfies the join predicate. There are many possible implementations;
      * the simplest is a nested loops join.
      * <p>
+     * This one joins each inner tuple with every outer tuple of the current
+     * block in turn, so the tuples come in order of the outer relation only
+     * from one block to the next.
+     * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
      * relation. Therefore, if an equality predicate is used there will be two
@@ -98,16 +178,10 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // loop around child1
-        while (t1 != null || child1.hasNext()) {
-            if (t1 == null) {
-                assert child1.hasNext();
-                t1 = child1.next();
-            }
-
-            // loop around child2
-            while (child2.hasNext()) {
-                Tuple t2 = child2.next();
+        while (true) {
+            // compare the current inner tuple with the rest of the block
+            while (t2 != null && blockPos < block.size()) {
+                Tuple t1 = block.get(blockPos++);
 
                 // if match, create a combined tuple and fill it with the values
                 // from both tuples
@@ -126,12 +200,16 @@ public class Join extends Operator {
                 return t;
             }
 
-            // child2 is done: advance child1
-            t1 = null;
-            child2.rewind();
+            // advance child2, or when it is done, read the next block of child1
+            if (!block.isEmpty() && child2.hasNext()) {
+                t2 = child2.next();
+                blockPos = 0;
+            } else {
+                t2 = null;
+                if (!nextBlock())
+                    return null;
+            }
         }
-
-        return null;
     }
 
     @Override
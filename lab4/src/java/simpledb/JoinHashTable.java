@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * JoinHashTable holds the build tuples of a hash join by the value of their
+ * join field. INT join fields are numbered by an IntHashTable, so neither
+ * adding tuples nor looking up an int key allocates anything per tuple;
+ * other fields are kept in a HashMap.
+ */
+class JoinHashTable {
+
+    private final int field;
+    private final IntHashTable intKeys;
+    // the tuples of each key numbered by intKeys
+    private final ArrayList<ArrayList<Tuple>> intLists;
+    private final HashMap<Field, ArrayList<Tuple>> map;
+    private int size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param td the TupleDesc of the tuples to hold
+     * @param field the join field of the tuples
+     */
+    JoinHashTable(TupleDesc td, int field) {
+        this.field = field;
+        if (td.getFieldType(field) == Type.INT_TYPE) {
+            intKeys = new IntHashTable();
+            intLists = new ArrayList<ArrayList<Tuple>>();
+            map = null;
+        } else {
+            intKeys = null;
+            intLists = null;
+            map = new HashMap<Field, ArrayList<Tuple>>();
+        }
+    }
+
+    /** @return true if the table is keyed on an INT field */
+    boolean isIntKeyed() {
+        return intKeys != null;
+    }
+
+    /** Add a tuple under the value of its join field */
+    void add(Tuple t) {
+        ArrayList<Tuple> list;
+        if (intKeys != null) {
+            int id = intKeys.add(((IntField) t.getField(field)).getValue());
+            if (id == intLists.size())
+                intLists.add(new ArrayList<Tuple>());
+            list = intLists.get(id);
+        } else {
+            Field key = t.getField(field);
+            list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<Tuple>();
+                map.put(key, list);
+            }
+        }
+        list.add(t);
+        size++;
+    }
+
+    /** @return the tuples whose join field equals key, or null if none */
+    ArrayList<Tuple> get(Field key) {
+        if (intKeys == null)
+            return map.get(key);
+        return key instanceof IntField ? get(((IntField) key).getValue()) : null;
+    }
+
+    /** @return the tuples whose INT join field equals key, or null if none */
+    ArrayList<Tuple> get(int key) {
+        if (intKeys == null)
+            return map.get(new IntField(key));
+        int id = intKeys.find(key);
+        return id < 0 ? null : intLists.get(id);
+    }
+
+    /** @return the lists of tuples of each key */
+    Collection<ArrayList<Tuple>> lists() {
+        return intKeys != null ? intLists : map.values();
+    }
+
+    /** @return the number of tuples added */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Remove every tuple */
+    void clear() {
+        if (intKeys != null) {
+            intKeys.clear();
+            intLists.clear();
+        } else {
+            map.clear();
+        }
+        size = 0;
+    }
+}
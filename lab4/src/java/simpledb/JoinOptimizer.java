@@ -68,17 +68,24 @@ public class JoinOptimizer {
 		JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
 		j = new Join(p, plan1, plan2);
-		if (lj.p == Predicate.Op.EQUALS) {
+		if (lj.probeIndex && IndexNestedLoopJoin.canProbe(plan2, t2id)) {
+			j = new IndexNestedLoopJoin(p, plan1, plan2);
+		} else if (lj.p == Predicate.Op.EQUALS && ParallelHashEquiJoin.getParallelism() > 1) {
+			j = new ParallelHashEquiJoin(p, plan1, plan2);
+		} else if (lj.p == Predicate.Op.EQUALS) {
 
 			try {
 				// dynamically load HashEquiJoin -- if it doesn't exist, just
 				// fall back on regular join
 				Class<?> c = Class.forName("simpledb.HashEquiJoin");
-				java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
+				java.lang.reflect.Constructor<?> ct = c.getConstructor(JoinPredicate.class,
+						DbIterator.class, DbIterator.class);
 				j = (DbIterator) ct.newInstance(new Object[] { p, plan1, plan2 });
 			} catch (Exception e) {
 				j = new Join(p, plan1, plan2);
 			}
+		} else if (isMergeJoinable(lj.p)) {
+			j = new SortMergeJoin(p, plan1, plan2);
 		} else {
 			j = new Join(p, plan1, plan2);
 		}
@@ -115,6 +122,21 @@ public class JoinOptimizer {
 	 *         cost2
 	 */
 	public double estimateJoinCost(LogicalJoinNode j, int card1, int card2, double cost1, double cost2) {
+		return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+	}
+
+	/**
+	 * Estimate the cost of a join, as {@link #estimateJoinCost}.
+	 * 
+	 * @param innerIsTable
+	 *            true if the inner side of the join is the table j.t2Alias
+	 *            itself, so that a B+ tree keyed on its join field can be
+	 *            probed, rather than a join including it
+	 */
+	private double estimateJoinCost(LogicalJoinNode j, int card1, int card2, double cost1, double cost2,
+			boolean innerIsTable) {
+		if (innerIsTable && prefersIndexJoin(j, card1, card2, cost1, cost2))
+			return estimateIndexJoinCost(probedIndex(j), card1, card2, cost1, cost2);
 		if (j instanceof LogicalSubplanJoinNode) {
 			// A LogicalSubplanJoinNode represents a subquery.
 			// You do not need to implement proper support for these for Lab 5.
@@ -124,10 +146,113 @@ public class JoinOptimizer {
 			// HINT: You may need to use the variable "j" if you implemented
 			// a join algorithm that's more complicated than a basic
 			// nested-loops join.
-			return cost1 + card1 * cost2 + card1 * card2;
+			if (isMergeJoinable(j.p)) {
+				// a SortMergeJoin reads each side once, sorts both and
+				// compares about once per tuple it produces, of which
+				// estimateTableJoinCardinality expects 0.3 * card1 * card2
+				double matches = 0.3 * card1 * card2;
+				return cost1 + cost2 + sortCost(card1) + sortCost(card2) + matches;
+			}
+			// a block nested loops Join scans the inner side once for each
+			// block of outer tuples, rounded up to at most one scan more
+			double scans = 1 + (double) card1 / outerBlockTuples(j);
+			double comparisons = (double) card1 * card2;
+			// a parallel hash join shares them among its threads
+			if (j.p == Predicate.Op.EQUALS)
+				comparisons /= ParallelHashEquiJoin.getParallelism();
+			return cost1 + scans * cost2 + comparisons;
+		}
+	}
+
+	/**
+	 * @return the B+ tree an IndexNestedLoopJoin for the specified node could
+	 *         probe: the file of table j.t2Alias, if it is keyed on j's join
+	 *         field and j is an equi-join, or null
+	 */
+	private BTreeFile probedIndex(LogicalJoinNode j) {
+		if (j.p != Predicate.Op.EQUALS || j.t2Alias == null || p == null)
+			return null;
+		Integer tableId = p.getTableId(j.t2Alias);
+		if (tableId == null)
+			return null;
+		try {
+			DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+			if (!(f instanceof BTreeFile))
+				return null;
+			int field = f.getTupleDesc().fieldNameToIndex(j.f2PureName);
+			return ((BTreeFile) f).keyField() == field ? (BTreeFile) f : null;
+		} catch (NoSuchElementException e) {
+			return null;
 		}
 	}
 
+	/**
+	 * @return true if the specified node, with the table j.t2Alias as its
+	 *         inner side, is cheaper as an IndexNestedLoopJoin than as any
+	 *         other join
+	 */
+	private boolean prefersIndexJoin(LogicalJoinNode j, int card1, int card2, double cost1, double cost2) {
+		BTreeFile f = probedIndex(j);
+		return f != null && estimateIndexJoinCost(f, card1, card2, cost1, cost2) < estimateJoinCost(j, card1,
+				card2, cost1, cost2, false);
+	}
+
+	/**
+	 * Estimate the cost of an IndexNestedLoopJoin probing the specified B+
+	 * tree. The outer side is read once. Each block of outer tuples walks the
+	 * tree once, reading about PROBE_PAGES pages per outer tuple but no more
+	 * than the whole tree, and compares each outer key on the way down and
+	 * each inner tuple the walk returns, about one per outer tuple as the
+	 * tree is keyed on the join field.
+	 */
+	private static double estimateIndexJoinCost(BTreeFile f, int card1, int card2, double cost1, double cost2) {
+		double blocks = 1 + (double) card1 / IndexNestedLoopJoin.DEFAULT_PROBE_TUPLES;
+		double costPerPage = cost2 / Math.max(1, f.numPages());
+		double io = Math.min(blocks * cost2, card1 * PROBE_PAGES * costPerPage);
+		return cost1 + io + card1 + Math.min(card1, card2);
+	}
+
+	/** The number of pages read to look up one key in a B+ tree, its root cached */
+	private static final int PROBE_PAGES = 2;
+
+	/**
+	 * @return the number of outer tuples a Join for the specified node holds
+	 *         in memory, counting them as tuples of the outer table
+	 */
+	private int outerBlockTuples(LogicalJoinNode j) {
+		Integer tableId = (p == null ? null : p.getTableId(j.t1Alias));
+		TupleDesc td;
+		try {
+			td = (tableId == null ? null : Database.getCatalog().getTupleDesc(tableId));
+		} catch (NoSuchElementException e) {
+			td = null;
+		}
+		if (td == null)
+			td = new TupleDesc(new Type[] { Type.INT_TYPE });
+		return Join.blockTuples(td, Join.DEFAULT_BLOCK_PAGES);
+	}
+
+	/**
+	 * @return true if joins on the specified operator are instantiated as a
+	 *         SortMergeJoin
+	 */
+	static boolean isMergeJoinable(Predicate.Op op) {
+		switch (op) {
+		case LESS_THAN:
+		case LESS_THAN_OR_EQ:
+		case GREATER_THAN:
+		case GREATER_THAN_OR_EQ:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/** @return the number of comparisons to sort the specified number of tuples */
+	private static double sortCost(int card) {
+		return card < 2 ? card : card * (Math.log(card) / Math.log(2));
+	}
+
 	/**
 	 * Estimate the cardinality of a join. The cardinality of a join is the
 	 * number of tuples produced by the join.
@@ -247,6 +372,8 @@ public class JoinOptimizer {
 		// Not necessary for labs 1--3
 
 		int numjoins = this.joins.size();
+		if (numjoins == 0)
+			return new Vector<LogicalJoinNode>();
 		PlanCache pc = new PlanCache();
 		Vector<LogicalJoinNode> res;
 		for (int i = 0; i <=numjoins; i++) {
@@ -389,11 +516,16 @@ public class JoinOptimizer {
 			}
 		}
 
+		// an index on a side can only be probed if it is not yet joined
+		boolean t1IsTable = !doesJoin(prevBest, table1Alias);
+		boolean t2IsTable = !doesJoin(prevBest, table2Alias);
+
 		// case where prevbest is left
-		double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+		double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t2IsTable);
+		boolean probeIndex = t2IsTable && prefersIndexJoin(j, t1card, t2card, t1cost, t2cost);
 
 		LogicalJoinNode j2 = j.swapInnerOuter();
-		double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+		double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t1IsTable);
 		if (cost2 < cost1) {
 			boolean tmp;
 			j = j2;
@@ -401,9 +533,17 @@ public class JoinOptimizer {
 			tmp = rightPkey;
 			rightPkey = leftPkey;
 			leftPkey = tmp;
+			probeIndex = t1IsTable && prefersIndexJoin(j2, t2card, t1card, t2cost, t1cost);
 		}
 		if (cost1 >= bestCostSoFar)
 			return null;
+		if (probeIndex) {
+			// a copy, as the same node may be planned without the index
+			// for other subsets of the joins
+			LogicalJoinNode probe = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName, j.p);
+			probe.probeIndex = true;
+			j = probe;
+		}
 
 		CostCard cc = new CostCard();
 
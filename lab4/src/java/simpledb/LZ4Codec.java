@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZ4Codec is a small pure-Java compressor producing the LZ4 block format.
+ * It is used by LogFile to shrink the page images in UPDATE records; pages
+ * with many empty slots are mostly runs of zero bytes and compress very
+ * well.
+ * <p>
+ * A block is a series of sequences.  Each sequence is a token byte (high
+ * nibble: literal count, low nibble: match length - 4), optional extra
+ * literal-count bytes, the literals, a two byte little-endian match offset
+ * and optional extra match-length bytes.  The last sequence holds only
+ * literals.  Counts of 15 or more spill into following bytes, each adding
+ * up to 255.
+ */
+public class LZ4Codec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5; // the block must end with literals
+    private static final int MATCH_FIND_LIMIT = 12; // no match may start after length - 12
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+
+    /**
+     * Compress the specified bytes.
+     *
+     * @return the compressed block; may be longer than the input if the
+     *         input does not compress
+     */
+    public static byte[] compress(byte[] src) {
+        int n = src.length;
+        byte[] dst = new byte[n + n / 255 + 16];
+        int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+
+        while (ip < n - MATCH_FIND_LIMIT) {
+            int seq = readInt(src, ip);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < n - LAST_LITERALS && src[ref + matchLen] == src[ip + matchLen])
+                matchLen++;
+
+            op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLen);
+            ip += matchLen;
+            anchor = ip;
+        }
+
+        // last literals
+        int literals = n - anchor;
+        op = writeLength(dst, op, literals, 4);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+
+        return Arrays.copyOf(dst, op);
+    }
+
+    /**
+     * Decompress a block produced by compress().
+     *
+     * @param rawLength the length of the original data
+     * @throws IOException if the block is corrupt
+     */
+    public static byte[] decompress(byte[] src, int rawLength) throws IOException {
+        byte[] dst = new byte[rawLength];
+        int ip = 0;
+        int op = 0;
+
+        try {
+            while (true) {
+                int token = src[ip++] & 0xff;
+
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+
+                if (ip == src.length)
+                    break; // the last sequence has no match
+
+                int offset = (src[ip++] & 0xff) | ((src[ip++] & 0xff) << 8);
+                int matchLen = token & 0xf;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+
+                int ref = op - offset;
+                if (ref < 0 || offset == 0)
+                    throw new IOException("corrupt compressed block");
+                // the match may overlap the bytes it produces, so copy forwards
+                for (int i = 0; i < matchLen; i++)
+                    dst[op++] = dst[ref++];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt compressed block");
+        }
+
+        if (op != rawLength)
+            throw new IOException("compressed block has the wrong length");
+        return dst;
+    }
+
+    private static int writeSequence(byte[] dst, int op, byte[] src, int anchor,
+                                     int literals, int offset, int matchLen) {
+        int token = op;
+        op = writeLength(dst, op, literals, 4);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+
+        int ml = matchLen - MIN_MATCH;
+        if (ml >= 15) {
+            dst[token] |= 15;
+            op = writeExtra(dst, op, ml - 15);
+        } else {
+            dst[token] |= ml;
+        }
+        return op;
+    }
+
+    /** Write a token with the specified count in the nibble at shift, plus
+        any extra count bytes. */
+    private static int writeLength(byte[] dst, int op, int count, int shift) {
+        if (count >= 15) {
+            dst[op++] = (byte) (15 << shift);
+            return writeExtra(dst, op, count - 15);
+        }
+        dst[op++] = (byte) (count << shift);
+        return op;
+    }
+
+    private static int writeExtra(byte[] dst, int op, int rest) {
+        while (rest >= 255) {
+            dst[op++] = (byte) 255;
+            rest -= 255;
+        }
+        dst[op++] = (byte) rest;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8)
+            | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
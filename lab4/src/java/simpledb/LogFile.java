@@ -39,10 +39,15 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is a sequence of fixed-size segment files next to a small
+control file (see LogSegments).  Log offsets are logical positions in
+the concatenation of the segments, and never change once written.
 
-<li> All additional data in the log consists of log records.  Log
+<li> The control file holds the offset of the last written checkpoint,
+or -1 if there are no checkpoints, followed by the offset of the oldest
+record still in the log.
+
+<li> All data in the segments consists of log records.  Log
 records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
@@ -54,12 +59,14 @@ the position in the log file where the record began.
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> ABORT, COMMIT, and BEGIN records contain a long integer wall
+clock time, in milliseconds, at which they were written
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogInspector for an example of decoding them without
+a catalog.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
@@ -67,14 +74,26 @@ of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
+<li> Following the active transactions, a CHECKPOINT record holds the
+dirty page table of the buffer pool: an integer count of dirty pages,
+and for each page its serialized page id (see LogFile.writePageId())
+followed by a long integer recovery offset -- the log offset at or
+before which the first unflushed change to that page is described.
+
 </ul>
 
+<p> Checkpoints are fuzzy: writing one does not flush the buffer pool
+or stall writers.  Recovery replays committed updates starting at the
+smallest recovery offset in the last checkpoint's dirty page table, and
+the buffer pool writes the checkpointed dirty pages out in the
+background so that later checkpoints can advance that offset.
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private LogSegments raf;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -87,12 +106,23 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    static final int SEGMENT_SIZE = LogSegments.DEFAULT_SEGMENT_SIZE;
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // records are appended here and written to the log in one go when the
+    // log is forced or the buffer fills up //protected by this
+    static final int LOG_BUFFER_SIZE = 1 << 16;
+    private final ByteArrayOutputStream logBuffer = new ByteArrayOutputStream(LOG_BUFFER_SIZE);
+    private final DataOutputStream out = new DataOutputStream(logBuffer);
+
+    // whether UPDATE records compress their page images with LZ4Codec
+    private volatile boolean compressPages = Boolean.getBoolean("simpledb.LogCompression");
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -106,7 +136,7 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        raf = new LogSegments(f, SEGMENT_SIZE);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,10 +157,8 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
+            logBuffer.reset();
+            raf.reset();
             currentOffset = raf.getFilePointer();
         }
     }
@@ -138,7 +166,26 @@ public class LogFile {
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** Turn compression of the page images in UPDATE records on or off.
+        Off by default; the default can also be set with the system
+        property simpledb.LogCompression.  Logs may mix compressed and
+        uncompressed images. */
+    public void setCompressPages(boolean compressPages) {
+        this.compressPages = compressPages;
+    }
+
+    /** Return the offset at which the next log record will be written.
+        Used by the buffer pool as the recovery offset of a page that is
+        about to become dirty: any record describing the change will be
+        appended at or after this point.
+    */
+    public synchronized long getCurrentOffset() {
+        if (currentOffset == -1)
+            return 0; // log not started; first record goes here
+        return currentOffset;
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -158,10 +205,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(System.currentTimeMillis());
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -178,10 +225,10 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        out.writeInt(COMMIT_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(System.currentTimeMillis());
+        endRecord();
         force();
         tidToFirstLogRecord.remove(tid.getId());
     }
@@ -197,7 +244,7 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -207,20 +254,18 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        endRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
 
         //page data is:
         // page class name
@@ -231,45 +276,39 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        writePageId(raf, pid);
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
         byte[] pageData = p.getPageData();
+        if (compressPages) {
+            byte[] packed = LZ4Codec.compress(pageData);
+            if (packed.length < pageData.length) {
+                // a negative length marks a compressed image; the
+                // uncompressed length follows it
+                raf.writeInt(-packed.length);
+                raf.writeInt(pageData.length);
+                raf.write(packed);
+                return;
+            }
+        }
         raf.writeInt(pageData.length);
         raf.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
         String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        pid = readPageId(raf);
 
         try {
-            Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
             Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            byte[] pageData = readPageBytes(raf);
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
@@ -295,6 +334,117 @@ public class LogFile {
 
     }
 
+    /** Read the data of a page image, following its class name and page
+        id, decompressing it if need be. */
+    static byte[] readPageBytes(DataInput raf) throws IOException {
+        int pageSize = raf.readInt();
+        if (pageSize < 0) {
+            int rawSize = raf.readInt();
+            byte[] packed = new byte[-pageSize];
+            raf.readFully(packed);
+            return LZ4Codec.decompress(packed, rawSize);
+        }
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData);
+        return pageData;
+    }
+
+    /** Skip the data of a page image, following its class name and page
+        id.
+        @return the number of bytes the data takes up in the log */
+    static int skipPageBytes(DataInput raf) throws IOException {
+        int pageSize = raf.readInt();
+        if (pageSize < 0) {
+            raf.readInt();
+            pageSize = -pageSize;
+            skipFully(raf, pageSize);
+            return 2 * INT_SIZE + pageSize;
+        }
+        skipFully(raf, pageSize);
+        return INT_SIZE + pageSize;
+    }
+
+    private static void skipFully(DataInput raf, int n) throws IOException {
+        if (raf.skipBytes(n) != n)
+            throw new EOFException();
+    }
+
+    /** Write a page id as its class name followed by the integers
+        returned by PageId.serialize(). */
+    static void writePageId(DataOutput raf, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+
+        raf.writeUTF(pid.getClass().getName());
+        raf.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            raf.writeInt(pageInfo[i]);
+        }
+    }
+
+    static PageId readPageId(DataInput raf) throws IOException {
+        String idClassName = raf.readUTF();
+        int numIdArgs = raf.readInt();
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = new Integer(raf.readInt());
+        }
+
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException e){
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    /** Write the body of a CHECKPOINT record: the active transaction
+        table followed by the dirty page table. */
+    void writeCheckpoint(DataOutput raf, Map<Long,Long> xactions,
+                         Map<PageId,Long> dirtyPages) throws IOException {
+        raf.writeInt(xactions.size());
+        for (Map.Entry<Long,Long> e : xactions.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            raf.writeLong(e.getKey());
+            raf.writeLong(e.getValue());
+        }
+
+        raf.writeInt(dirtyPages.size());
+        for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+            writePageId(raf, e.getKey());
+            raf.writeLong(e.getValue());
+        }
+    }
+
+    /** Read the body of a CHECKPOINT record written by writeCheckpoint()
+        into the supplied tables. */
+    static void readCheckpoint(DataInput raf, Map<Long,Long> xactions,
+                        Map<PageId,Long> dirtyPages) throws IOException {
+        int numXactions = raf.readInt();
+        while (numXactions-- > 0) {
+            long xid = raf.readLong();
+            long xoffset = raf.readLong();
+            xactions.put(xid, xoffset);
+        }
+
+        int numDirty = raf.readInt();
+        while (numDirty-- > 0) {
+            PageId pid = readPageId(raf);
+            long recOffset = raf.readLong();
+            dirtyPages.put(pid, recOffset);
+        }
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -307,150 +457,130 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(System.currentTimeMillis());
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+
+        The checkpoint does not flush the buffer pool.  It records the
+        active transactions and the buffer pool's dirty page table, then
+        asks the buffer pool to write the checkpointed pages out in the
+        background.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        Map<PageId,Long> dirtyPages;
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            long startCpOffset;
+
+            // the buffer pool only adds to its dirty page table while
+            // holding our lock, so any page dirtied after this snapshot
+            // has a recovery offset past this checkpoint record
+            dirtyPages = Database.getBufferPool().getDirtyPageTable();
+
+            startCpOffset = currentOffset;
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions and dirty pages
+            writeCheckpoint(out, tidToFirstLogRecord, dirtyPages);
+
+            endRecord();
+            force();
+
+            //once the CP is durable, make sure the CP location in the
+            // control file is updated
+            raf.setCheckpoint(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        Database.getBufferPool().flushPagesInBackground(dirtyPages.keySet());
+
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Log offsets never move, so this only drops the
+        segment files that lie wholly before the oldest record the last
+        checkpoint still needs; nothing is copied. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        flushLogBuffer();
+        long cpLoc = raf.getCheckpoint();
+
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        raf.seek(cpLoc);
+        int cpType = raf.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = raf.readLong();
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        HashMap<Long,Long> xactions = new HashMap<Long,Long>();
+        HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+        readCheckpoint(raf, xactions, dirtyPages);
+        raf.seek(currentOffset);
+
+        // the log must still hold the first record of every active
+        // transaction (for undo) and every update to a page that may
+        // not yet be on disk (for redo)
+        for (Long firstLogRecord : xactions.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        for (Long recOffset : dirtyPages.values()) {
+            if (recOffset < minLogRecord) {
+                minLogRecord = recOffset;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord + "; LENGTH " + raf.length());
+        raf.truncateBefore(minLogRecord);
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** Advance raf past the body of a record of the specified type,
+        leaving it positioned at the record's trailing start offset. */
+    void skipRecordBody(DataInput raf, int type) throws IOException {
+        switch (type) {
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            raf.readLong();
+            break;
+        case UPDATE_RECORD:
+            for (int i = 0; i < 2; i++) {
+                raf.readUTF();
+                readPageId(raf);
+                skipPageBytes(raf);
+            }
+            break;
+        case CHECKPOINT_RECORD:
+            readCheckpoint(raf, new HashMap<Long,Long>(), new HashMap<PageId,Long>());
+            break;
+        }
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** Write the specified page image straight to its file, and drop any
+        cached copy so that the next reader sees the restored image. */
+    void installPage(Page p) throws IOException {
+        PageId pid = p.getId();
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+        Database.getBufferPool().discardPage(pid);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -466,7 +596,33 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null) {
+                    throw new NoSuchElementException("no log records for transaction " + tid.getId());
+                }
+
+                ArrayList<Long> updates = new ArrayList<Long>();
+                flushLogBuffer();
+                raf.seek(firstRecord);
+                while (raf.getFilePointer() < currentOffset) {
+                    long start = raf.getFilePointer();
+                    int type = raf.readInt();
+                    long recordTid = raf.readLong();
+                    if (type == UPDATE_RECORD && recordTid == tid.getId()) {
+                        updates.add(start);
+                    }
+                    skipRecordBody(raf, type);
+                    raf.readLong();
+                }
+
+                // restore before images newest first, so that each page
+                // ends up as it was before tid first wrote it
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    raf.seek(updates.get(i) + INT_SIZE + LONG_SIZE);
+                    installPage(readPageData(raf));
+                }
+
+                raf.seek(currentOffset);
             }
         }
     }
@@ -488,23 +644,149 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        Updates are redone from the smallest recovery offset in the last
+        checkpoint's dirty page table (or the checkpoint itself, if that
+        is earlier); updates of transactions that never completed are then
+        undone, newest first, and an ABORT record is logged for each.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-               
+
+                long cpLoc = raf.getCheckpoint();
+
+                HashMap<Long,Long> xactions = new HashMap<Long,Long>();
+                HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+                long redoStart = raf.getFirstRecord();
+                long scanStart = raf.getFirstRecord();
+
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    raf.seek(cpLoc);
+                    if (raf.readInt() != CHECKPOINT_RECORD) {
+                        throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                    }
+                    raf.readLong();
+                    readCheckpoint(raf, xactions, dirtyPages);
+
+                    redoStart = cpLoc;
+                    for (Long recOffset : dirtyPages.values()) {
+                        redoStart = Math.min(redoStart, recOffset);
+                    }
+                    scanStart = redoStart;
+                    for (Long firstLogRecord : xactions.values()) {
+                        scanStart = Math.min(scanStart, firstLogRecord);
+                    }
+                }
+
+                // analysis: find every update and the fate of every
+                // transaction that was live at or after the checkpoint
+                HashSet<Long> losers = new HashSet<Long>(xactions.keySet());
+                HashSet<Long> aborted = new HashSet<Long>();
+                ArrayList<Long> updates = new ArrayList<Long>();
+                ArrayList<Long> updateTids = new ArrayList<Long>();
+                long end = scanStart;
+
+                raf.seek(scanStart);
+                while (true) {
+                    try {
+                        long start = raf.getFilePointer();
+                        int type = raf.readInt();
+                        long recordTid = raf.readLong();
+
+                        switch (type) {
+                        case BEGIN_RECORD:
+                            losers.add(recordTid);
+                            break;
+                        case COMMIT_RECORD:
+                            losers.remove(recordTid);
+                            break;
+                        case ABORT_RECORD:
+                            losers.remove(recordTid);
+                            aborted.add(recordTid);
+                            break;
+                        case UPDATE_RECORD:
+                            updates.add(start);
+                            updateTids.add(recordTid);
+                            break;
+                        }
+                        skipRecordBody(raf, type);
+                        raf.readLong();
+                        end = raf.getFilePointer();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                }
+                // drop a partially written record at the tail, if any
+                raf.setLength(end);
+
+                // redo: reinstall after images of everything but losers
+                // and rolled back transactions, in log order
+                for (int i = 0; i < updates.size(); i++) {
+                    long tid = updateTids.get(i);
+                    if (updates.get(i) < redoStart || losers.contains(tid) || aborted.contains(tid))
+                        continue;
+                    raf.seek(updates.get(i) + INT_SIZE + LONG_SIZE);
+                    readPageData(raf);
+                    installPage(readPageData(raf));
+                }
+
+                // undo: reinstall before images of losers, newest first
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    if (!losers.contains(updateTids.get(i)))
+                        continue;
+                    raf.seek(updates.get(i) + INT_SIZE + LONG_SIZE);
+                    installPage(readPageData(raf));
+                }
+
+                raf.seek(end);
+                currentOffset = end;
+                tidToFirstLogRecord.clear();
+                for (Long tid : losers) {
+                    preAppend();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(System.currentTimeMillis());
+                    endRecord();
+                }
+                force();
             }
          }
     }
 
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        // some code goes here
+    /** Print out a human readable represenation of the log, one line
+        per record, on standard output.
+
+        @see LogInspector
+    */
+    public synchronized void print() throws IOException {
+        flushLogBuffer();
+        new LogInspector(raf).print(System.out);
+        raf.seek(raf.length());
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        flushLogBuffer();
+        raf.force();
+    }
+
+    // finish the record being appended to the log buffer, which started
+    // at currentOffset, and write the buffer out if it has filled up
+    private void endRecord() throws IOException {
+        out.writeLong(currentOffset);
+        currentOffset = raf.length() + logBuffer.size();
+        if (logBuffer.size() >= LOG_BUFFER_SIZE)
+            flushLogBuffer();
+    }
+
+    // append the buffered records to the log in a single write
+    private void flushLogBuffer() throws IOException {
+        if (logBuffer.size() == 0)
+            return;
+        raf.seek(raf.length());
+        raf.write(logBuffer.toByteArray());
+        logBuffer.reset();
     }
 
 }
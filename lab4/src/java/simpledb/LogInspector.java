@@ -0,0 +1,351 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * LogInspector reads a log written by LogFile without going through the
+ * buffer pool, to print it, summarize it or replay it into a fresh data
+ * directory.  It backs LogFile.print() and the "log" command of SimpleDb.
+ * <p>
+ * Records are decoded straight from the log format (see LogFile) and page
+ * images are only read when they are needed, so no catalog is required;
+ * if one is loaded it is used to name tables and table files.
+ * <p>
+ * BEGIN, COMMIT and ABORT records carry the time at which they were
+ * written.  Other records are given the time of the most recent record
+ * before them that has one, so the time range of a table is the span of
+ * the transaction boundaries around its updates.
+ */
+public class LogInspector {
+
+    private final LogSegments log;
+
+    /** One decoded log record */
+    static class Record {
+        long offset;
+        long length;
+        int type;
+        long tid;
+        long time = -1;
+        PageId pid;           // for UPDATE records, the page updated
+        byte[] afterImage;    // for UPDATE records, if asked for
+    }
+
+    /** Record counts, log bytes and offset and time ranges of a group of
+        records */
+    static class Stats {
+        int records;
+        long bytes;
+        long firstOffset = -1;
+        long lastOffset = -1;
+        long firstTime = -1;
+        long lastTime = -1;
+
+        void add(Record r) {
+            records++;
+            bytes += r.length;
+            if (firstOffset == -1)
+                firstOffset = r.offset;
+            lastOffset = r.offset;
+            if (r.time != -1) {
+                if (firstTime == -1)
+                    firstTime = r.time;
+                lastTime = r.time;
+            }
+        }
+
+        String summary() {
+            String s = records + " records, " + bytes + " bytes, offsets "
+                + firstOffset + ".." + lastOffset;
+            if (firstTime != -1)
+                s += ", " + (lastTime - firstTime) + " ms from " + new Date(firstTime);
+            return s;
+        }
+    }
+
+    /** Open the log whose control file is f, for reading. */
+    public LogInspector(File f) throws IOException {
+        this(new LogSegments(f, LogFile.SEGMENT_SIZE));
+    }
+
+    LogInspector(LogSegments log) {
+        this.log = log;
+    }
+
+    public void close() throws IOException {
+        log.close();
+    }
+
+    static String typeName(int type) {
+        switch (type) {
+        case LogFile.ABORT_RECORD:
+            return "ABORT";
+        case LogFile.COMMIT_RECORD:
+            return "COMMIT";
+        case LogFile.UPDATE_RECORD:
+            return "UPDATE";
+        case LogFile.BEGIN_RECORD:
+            return "BEGIN";
+        case LogFile.CHECKPOINT_RECORD:
+            return "CHECKPOINT";
+        default:
+            return "UNKNOWN(" + type + ")";
+        }
+    }
+
+    /**
+     * Decode the record at the current position into r, leaving the log
+     * positioned at the next record.
+     *
+     * @param wantImage whether to read the after image of an UPDATE record
+     * @return false at the end of the log, or at a partially written record
+     */
+    boolean next(Record r, boolean wantImage) throws IOException {
+        r.offset = log.getFilePointer();
+        r.pid = null;
+        r.afterImage = null;
+        try {
+            r.type = log.readInt();
+            r.tid = log.readLong();
+            switch (r.type) {
+            case LogFile.ABORT_RECORD:
+            case LogFile.COMMIT_RECORD:
+            case LogFile.BEGIN_RECORD:
+                r.time = log.readLong();
+                break;
+            case LogFile.UPDATE_RECORD:
+                // before image
+                log.readUTF();
+                r.pid = LogFile.readPageId(log);
+                LogFile.skipPageBytes(log);
+                // after image
+                log.readUTF();
+                LogFile.readPageId(log);
+                if (wantImage)
+                    r.afterImage = LogFile.readPageBytes(log);
+                else
+                    LogFile.skipPageBytes(log);
+                break;
+            case LogFile.CHECKPOINT_RECORD:
+                LogFile.readCheckpoint(log, new HashMap<Long, Long>(),
+                                       new HashMap<PageId, Long>());
+                break;
+            default:
+                throw new IOException("unknown record type " + r.type + " at offset " + r.offset);
+            }
+            if (log.readLong() != r.offset)
+                throw new IOException("bad record trailer at offset " + r.offset);
+        } catch (EOFException e) {
+            log.seek(r.offset);
+            return false;
+        }
+        r.length = log.getFilePointer() - r.offset;
+        return true;
+    }
+
+    private String tableName(int tableid) {
+        try {
+            return Database.getCatalog().getTableName(tableid);
+        } catch (RuntimeException e) {
+            return "table " + tableid;
+        }
+    }
+
+    /** Print every record in the log, one per line. */
+    public void print(PrintStream out) throws IOException {
+        log.seek(log.getFirstRecord());
+        out.println("log from offset " + log.getFirstRecord() + " to " + log.length()
+                    + ", last checkpoint at " + log.getCheckpoint());
+        Record r = new Record();
+        while (next(r, false)) {
+            String line = r.offset + ": " + typeName(r.type);
+            if (r.type != LogFile.CHECKPOINT_RECORD)
+                line += " tid " + r.tid;
+            if (r.pid != null)
+                line += " " + tableName(r.pid.getTableId()) + " page " + r.pid.pageNumber();
+            if (r.type != LogFile.UPDATE_RECORD && r.type != LogFile.CHECKPOINT_RECORD)
+                line += " at " + new Date(r.time);
+            out.println(line + " (" + r.length + " bytes)");
+        }
+        if (log.getFilePointer() < log.length())
+            out.println(log.getFilePointer() + ": partial record of "
+                        + (log.length() - log.getFilePointer()) + " bytes");
+    }
+
+    /**
+     * Print statistics about the log: the number of records and bytes of
+     * each type of record, and the records, bytes and offset and time
+     * ranges of each transaction and each table.
+     */
+    public void printStats(PrintStream out) throws IOException {
+        TreeMap<Integer, Stats> byType = new TreeMap<Integer, Stats>();
+        TreeMap<Long, Stats> byTid = new TreeMap<Long, Stats>();
+        HashMap<Long, String> outcomes = new HashMap<Long, String>();
+        TreeMap<Integer, Stats> byTable = new TreeMap<Integer, Stats>();
+        HashMap<Integer, HashSet<Integer>> tablePages = new HashMap<Integer, HashSet<Integer>>();
+        Stats total = new Stats();
+
+        long started = System.currentTimeMillis();
+        long lastTime = -1;
+        log.seek(log.getFirstRecord());
+        Record r = new Record();
+        while (next(r, false)) {
+            if (r.type == LogFile.UPDATE_RECORD || r.type == LogFile.CHECKPOINT_RECORD)
+                r.time = lastTime;
+            lastTime = r.time;
+
+            total.add(r);
+            stats(byType, r.type).add(r);
+            if (r.type == LogFile.CHECKPOINT_RECORD)
+                continue;
+            stats(byTid, r.tid).add(r);
+            if (r.type == LogFile.COMMIT_RECORD)
+                outcomes.put(r.tid, "committed");
+            else if (r.type == LogFile.ABORT_RECORD)
+                outcomes.put(r.tid, "aborted");
+            if (r.pid != null) {
+                int table = r.pid.getTableId();
+                stats(byTable, table).add(r);
+                HashSet<Integer> pages = tablePages.get(table);
+                if (pages == null) {
+                    pages = new HashSet<Integer>();
+                    tablePages.put(table, pages);
+                }
+                pages.add(r.pid.pageNumber());
+            }
+        }
+        long elapsed = System.currentTimeMillis() - started;
+
+        out.println("log: " + total.summary());
+        if (log.getFilePointer() < log.length())
+            out.println("partial record of " + (log.length() - log.getFilePointer())
+                        + " bytes at offset " + log.getFilePointer());
+        out.println("read in " + elapsed + " ms (" + rate(total.records, elapsed) + " records/s)");
+
+        out.println();
+        out.println("records by type:");
+        for (Map.Entry<Integer, Stats> e : byType.entrySet())
+            out.println("  " + typeName(e.getKey()) + ": " + e.getValue().records
+                        + " records, " + e.getValue().bytes + " bytes");
+
+        out.println();
+        out.println("transactions:");
+        for (Map.Entry<Long, Stats> e : byTid.entrySet()) {
+            String outcome = outcomes.get(e.getKey());
+            out.println("  tid " + e.getKey() + " (" + (outcome == null ? "incomplete" : outcome)
+                        + "): " + e.getValue().summary());
+        }
+
+        out.println();
+        out.println("tables:");
+        for (Map.Entry<Integer, Stats> e : byTable.entrySet())
+            out.println("  " + tableName(e.getKey()) + ": " + tablePages.get(e.getKey()).size()
+                        + " pages, " + e.getValue().summary());
+    }
+
+    private static <K> Stats stats(Map<K, Stats> m, K key) {
+        Stats s = m.get(key);
+        if (s == null) {
+            s = new Stats();
+            m.put(key, s);
+        }
+        return s;
+    }
+
+    private static long rate(long count, long millis) {
+        return count * 1000 / Math.max(1, millis);
+    }
+
+    /** Return the file that pages of the specified table are replayed
+        into: a file of the same name as the table's file, if the table is
+        in the catalog, otherwise one named after the table id. */
+    private File replayFile(File dir, int tableid) {
+        try {
+            DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+            if (f instanceof HeapFile)
+                return new File(dir, ((HeapFile) f).getFile().getName());
+            if (f instanceof BTreeFile)
+                return new File(dir, ((BTreeFile) f).getFile().getName());
+            if (f instanceof HashFile)
+                return new File(dir, ((HashFile) f).getFile().getName());
+        } catch (NoSuchElementException e) {
+            // not in the catalog
+        }
+        return new File(dir, "table" + tableid + ".dat");
+    }
+
+    /** Return the position of a page in its file; see HeapFile,
+        BTreeFile and HashFile.writePage(). */
+    static long pageOffset(PageId pid) {
+        if (pid instanceof BTreePageId) {
+            if (((BTreePageId) pid).pgcateg() == BTreePageId.ROOT_PTR)
+                return 0;
+            return BTreeRootPtrPage.getPageSize()
+                + (long) (pid.pageNumber() - 1) * BufferPool.getPageSize();
+        }
+        return (long) pid.pageNumber() * BufferPool.getPageSize();
+    }
+
+    /**
+     * Replay the log into the specified directory, as recovery would redo
+     * it: the after image of every update made by a transaction that
+     * committed, or that never logged a BEGIN record, is written in log
+     * order to a table file in dir.  Updates of aborted and incomplete
+     * transactions are skipped.  Table files are kept open for the whole
+     * replay, so this runs as fast as the log can be read.
+     *
+     * @return the number of updates replayed
+     */
+    public int replay(File dir, PrintStream out) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+
+        // find the transactions whose updates are redone
+        HashSet<Long> skipped = new HashSet<Long>();
+        log.seek(log.getFirstRecord());
+        Record r = new Record();
+        while (next(r, false)) {
+            if (r.type == LogFile.BEGIN_RECORD || r.type == LogFile.ABORT_RECORD)
+                skipped.add(r.tid);
+            else if (r.type == LogFile.COMMIT_RECORD)
+                skipped.remove(r.tid);
+        }
+
+        HashMap<Integer, RandomAccessFile> files = new HashMap<Integer, RandomAccessFile>();
+        int records = 0;
+        int replayed = 0;
+        long bytes = 0;
+        long started = System.currentTimeMillis();
+        try {
+            log.seek(log.getFirstRecord());
+            while (next(r, true)) {
+                records++;
+                if (r.type != LogFile.UPDATE_RECORD || skipped.contains(r.tid))
+                    continue;
+                int table = r.pid.getTableId();
+                RandomAccessFile f = files.get(table);
+                if (f == null) {
+                    f = new RandomAccessFile(replayFile(dir, table), "rw");
+                    files.put(table, f);
+                }
+                f.seek(pageOffset(r.pid));
+                f.write(r.afterImage);
+                replayed++;
+                bytes += r.afterImage.length;
+            }
+            for (RandomAccessFile f : files.values())
+                f.getChannel().force(true);
+        } finally {
+            for (RandomAccessFile f : files.values())
+                f.close();
+        }
+        long elapsed = System.currentTimeMillis() - started;
+
+        out.println("replayed " + replayed + " of " + records + " records into "
+                    + files.size() + " files in " + dir + " in " + elapsed + " ms: "
+                    + rate(records, elapsed) + " records/s, "
+                    + rate(bytes, elapsed) / 1024 + " KB/s of pages");
+        return replayed;
+    }
+}
@@ -0,0 +1,394 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files,
+ * named &lt;log&gt;.0, &lt;log&gt;.1, ..., together with a small control
+ * file &lt;log&gt; that holds the offset of the last checkpoint and the
+ * offset of the oldest record still in the log.
+ * <p>
+ * Log offsets are logical and only ever grow: offset o lives in segment
+ * o / segmentSize, at position o % segmentSize within that file, and a
+ * record may span two segments.  Because offsets never change, truncating
+ * the log is just a matter of deleting the segment files that lie wholly
+ * before the oldest offset that is still needed; no record is copied.
+ * <p>
+ * Reads and writes happen at a single file pointer through the DataInput
+ * and DataOutput interfaces, in the same way as with a RandomAccessFile.
+ * This class is not thread safe; LogFile serializes access to it.
+ *
+ * @see LogFile
+ */
+class LogSegments implements DataInput, DataOutput {
+
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private final File control;
+    private final long segmentSize;
+
+    // segment number -> open segment file
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    // segments written since the last force()
+    private final HashSet<Long> unforced = new HashSet<Long>();
+
+    private long checkpoint = LogFile.NO_CHECKPOINT_ID;
+    private long firstRecord = 0;
+    private long length = 0;
+    private long pos = 0;
+
+    private final byte[] scratch = new byte[8];
+
+    /**
+     * Open the segmented log whose control file is f, picking up any
+     * segments already on disk.
+     */
+    LogSegments(File f, int segmentSize) throws IOException {
+        this.control = f.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+
+        if (control.length() >= 2 * LogFile.LONG_SIZE) {
+            DataInputStream in = new DataInputStream(new FileInputStream(control));
+            checkpoint = in.readLong();
+            firstRecord = in.readLong();
+            in.close();
+        }
+
+        length = firstRecord;
+        for (Long segno : listSegments()) {
+            segments.put(segno, new RandomAccessFile(segmentFile(segno), "rw"));
+        }
+        if (!segments.isEmpty()) {
+            long last = segments.lastKey();
+            length = Math.max(length, last * segmentSize + segments.get(last).length());
+        }
+    }
+
+    private File segmentFile(long segno) {
+        return new File(control.getPath() + "." + segno);
+    }
+
+    private ArrayList<Long> listSegments() {
+        ArrayList<Long> found = new ArrayList<Long>();
+        final String prefix = control.getName() + ".";
+        File dir = control.getParentFile();
+        String[] names = dir == null ? null : dir.list();
+        if (names == null)
+            return found;
+        for (String name : names) {
+            if (!name.startsWith(prefix))
+                continue;
+            try {
+                found.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        return found;
+    }
+
+    private RandomAccessFile segment(long segno) throws IOException {
+        RandomAccessFile f = segments.get(segno);
+        if (f == null) {
+            f = new RandomAccessFile(segmentFile(segno), "rw");
+            segments.put(segno, f);
+        }
+        return f;
+    }
+
+    private void writeControl() throws IOException {
+        RandomAccessFile f = new RandomAccessFile(control, "rw");
+        f.writeLong(checkpoint);
+        f.writeLong(firstRecord);
+        f.getChannel().force(true);
+        f.close();
+    }
+
+    /** Discard the whole log, leaving an empty log with no checkpoint. */
+    void reset() throws IOException {
+        for (Long segno : segments.keySet()) {
+            segments.get(segno).close();
+            segmentFile(segno).delete();
+        }
+        segments.clear();
+        unforced.clear();
+        for (Long segno : listSegments()) {
+            segmentFile(segno).delete();
+        }
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        firstRecord = 0;
+        length = 0;
+        pos = 0;
+        writeControl();
+    }
+
+    /** @return the offset of the last checkpoint record, or NO_CHECKPOINT_ID */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** Durably record the offset of the last checkpoint record. */
+    void setCheckpoint(long offset) throws IOException {
+        checkpoint = offset;
+        writeControl();
+    }
+
+    /** @return the offset of the oldest record in the log */
+    long getFirstRecord() {
+        return firstRecord;
+    }
+
+    /**
+     * Drop everything before the specified offset, which must be the start
+     * of a record.  Deletes the segments that lie wholly before it.
+     */
+    void truncateBefore(long offset) throws IOException {
+        if (offset <= firstRecord)
+            return;
+        firstRecord = offset;
+        writeControl();
+
+        long keep = offset / segmentSize;
+        while (!segments.isEmpty() && segments.firstKey() < keep) {
+            long segno = segments.firstKey();
+            segments.remove(segno).close();
+            unforced.remove(segno);
+            segmentFile(segno).delete();
+        }
+    }
+
+    /** Cut the log off at the specified offset, dropping what follows. */
+    void setLength(long newLength) throws IOException {
+        long lastKept = newLength / segmentSize;
+        while (!segments.isEmpty() && segments.lastKey() > lastKept) {
+            long segno = segments.lastKey();
+            segments.remove(segno).close();
+            unforced.remove(segno);
+            segmentFile(segno).delete();
+        }
+        RandomAccessFile f = segments.get(lastKept);
+        if (f != null)
+            f.setLength(newLength % segmentSize);
+        length = newLength;
+        if (pos > length)
+            pos = length;
+    }
+
+    long length() {
+        return length;
+    }
+
+    long getFilePointer() {
+        return pos;
+    }
+
+    void seek(long offset) {
+        pos = offset;
+    }
+
+    /** Force every segment written since the last call to disk. */
+    void force() throws IOException {
+        for (Long segno : unforced) {
+            RandomAccessFile f = segments.get(segno);
+            if (f != null)
+                f.getChannel().force(true);
+        }
+        unforced.clear();
+    }
+
+    void close() throws IOException {
+        for (RandomAccessFile f : segments.values()) {
+            f.close();
+        }
+        segments.clear();
+        unforced.clear();
+    }
+
+    // DataInput
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        if (pos < firstRecord || pos + len > length)
+            throw new EOFException();
+        while (len > 0) {
+            long segno = pos / segmentSize;
+            int segOff = (int) (pos % segmentSize);
+            int n = (int) Math.min(len, segmentSize - segOff);
+            RandomAccessFile f = segment(segno);
+            f.seek(segOff);
+            f.readFully(b, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public int skipBytes(int n) throws IOException {
+        int skipped = (int) Math.max(0, Math.min(n, length - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        readFully(scratch, 0, 1);
+        return scratch[0];
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    public short readShort() throws IOException {
+        readFully(scratch, 0, 2);
+        return (short) (((scratch[0] & 0xff) << 8) | (scratch[1] & 0xff));
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    public int readInt() throws IOException {
+        readFully(scratch, 0, 4);
+        return ((scratch[0] & 0xff) << 24) | ((scratch[1] & 0xff) << 16)
+            | ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+    }
+
+    public long readLong() throws IOException {
+        long hi = readInt() & 0xffffffffL;
+        long lo = readInt() & 0xffffffffL;
+        return (hi << 32) | lo;
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Reads a line as RandomAccessFile.readLine does: bytes up to a '\n',
+     * '\r' or "\r\n", or the end of the log, each converted to a char.
+     *
+     * @return the line, without its terminator, or null at the end of the log
+     */
+    public String readLine() throws IOException {
+        if (pos >= length)
+            return null;
+        StringBuilder line = new StringBuilder();
+        while (pos < length) {
+            int c = readUnsignedByte();
+            if (c == '\n')
+                break;
+            if (c == '\r') {
+                if (pos < length && readUnsignedByte() != '\n')
+                    pos--;
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    // DataOutput
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (pos < firstRecord)
+            throw new IOException("write before start of log");
+        while (len > 0) {
+            long segno = pos / segmentSize;
+            int segOff = (int) (pos % segmentSize);
+            int n = (int) Math.min(len, segmentSize - segOff);
+            RandomAccessFile f = segment(segno);
+            f.seek(segOff);
+            f.write(b, off, n);
+            unforced.add(segno);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+        if (pos > length)
+            length = pos;
+    }
+
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    public void write(int b) throws IOException {
+        scratch[0] = (byte) b;
+        write(scratch, 0, 1);
+    }
+
+    public void writeBoolean(boolean v) throws IOException {
+        write(v ? 1 : 0);
+    }
+
+    public void writeByte(int v) throws IOException {
+        write(v);
+    }
+
+    public void writeShort(int v) throws IOException {
+        scratch[0] = (byte) (v >>> 8);
+        scratch[1] = (byte) v;
+        write(scratch, 0, 2);
+    }
+
+    public void writeChar(int v) throws IOException {
+        writeShort(v);
+    }
+
+    public void writeInt(int v) throws IOException {
+        scratch[0] = (byte) (v >>> 24);
+        scratch[1] = (byte) (v >>> 16);
+        scratch[2] = (byte) (v >>> 8);
+        scratch[3] = (byte) v;
+        write(scratch, 0, 4);
+    }
+
+    public void writeLong(long v) throws IOException {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    public void writeFloat(float v) throws IOException {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    public void writeDouble(double v) throws IOException {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    public void writeBytes(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            write(s.charAt(i));
+    }
+
+    public void writeChars(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            writeChar(s.charAt(i));
+    }
+
+    public void writeUTF(String s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(s);
+        write(bytes.toByteArray());
+    }
+}
@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** True if the join should probe a B+ tree on t2 keyed on f2 rather
+     * than read t2, as chosen by the JoinOptimizer */
+    public boolean probeIndex = false;
+
     public LogicalJoinNode() {
     }
 
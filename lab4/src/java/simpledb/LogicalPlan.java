@@ -2,6 +2,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -271,6 +272,155 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Convert the constant of a filter to a field of the specified type */
+    private static Field parseConstant(Type ftyp, String c) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(c).intValue());
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
+    /**
+     * Choose the access path of each table: a scan of the whole table, or
+     * an index scan matching one of the table's filters.  A filter can use
+     * an index if it is an equality or range comparison on the key field of
+     * a BTreeFile or on a field with a secondary index, or an equality
+     * comparison on the key field of a HashFile.  Each candidate is
+     * costed with {@link TableStats#estimateIndexScanCost} using the
+     * filter's selectivity, and replaces the table scan only if it is
+     * cheaper than {@link TableStats#estimateScanCost}; a HashFile lookup is
+     * costed with {@link TableStats#estimateHashLookupCost}.  Without statistics
+     * for the table any usable index is chosen, equality filters first.
+     * Filters are still applied on top of the chosen scan, so this only
+     * changes which tuples are read.
+     * <p>
+     * If a secondary index covers every field of the table the query uses,
+     * it is read with an {@link IndexOnlyScan} instead, costed with
+     * {@link TableStats#estimateIndexOnlyScanCost}, which never reads the
+     * table's pages; with statistics, such an index is also considered
+     * for reading in full when no filter can use it.
+     */
+    private void chooseAccessPaths(TransactionId t, HashMap<String,DbIterator> subplanMap,
+            Map<String,TableStats> baseTableStats, boolean explain) {
+        for (LogicalScanNode table : tables) {
+            DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+            TableStats s = baseTableStats.get(Database.getCatalog().getTableName(table.t));
+            TupleDesc td = subplanMap.get(table.alias).getTupleDesc();
+            double scanCost = s == null ? Double.MAX_VALUE : s.estimateScanCost();
+            double bestCost = scanCost;
+            DbIterator best = null;
+            HashSet<Integer> used = file instanceof BTreeFile ? null : usedFields(table.alias, td);
+
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias)
+                        || lf.p == Predicate.Op.LIKE || lf.p == Predicate.Op.NOT_EQUALS)
+                    continue;
+                int field;
+                try {
+                    field = td.fieldNameToIndex(lf.fieldQuantifiedName);
+                } catch (NoSuchElementException e) {
+                    continue; // reported when the filter is planned
+                }
+                boolean clustered = file instanceof BTreeFile && ((BTreeFile) file).keyField() == field;
+                boolean hashed = file instanceof HashFile && ((HashFile) file).keyField() == field
+                        && lf.p == Predicate.Op.EQUALS;
+                SecondaryIndex index = clustered || hashed ? null : Database.getCatalog().getIndex(table.t, field);
+                if (!clustered && !hashed && index == null)
+                    continue;
+
+                Field f = parseConstant(td.getFieldType(field), lf.c);
+                boolean covering = index != null && used != null && index.covers(used);
+                double cost;
+                if (s != null && hashed)
+                    cost = s.estimateHashLookupCost(s.estimateSelectivity(field, lf.p, f));
+                else if (s != null && covering)
+                    cost = s.estimateIndexOnlyScanCost(s.estimateSelectivity(field, lf.p, f),
+                            index.getFile().numPages());
+                else if (s != null)
+                    cost = s.estimateIndexScanCost(s.estimateSelectivity(field, lf.p, f), clustered);
+                else
+                    cost = (lf.p == Predicate.Op.EQUALS ? 0 : 1) - (covering ? 0.5 : 0);
+                if (cost >= bestCost)
+                    continue;
+
+                bestCost = cost;
+                IndexPredicate ipred = new IndexPredicate(lf.p, f);
+                if (clustered)
+                    best = new BTreeScan(t, table.t, table.alias, ipred);
+                else if (hashed)
+                    best = new HashScan(t, table.t, table.alias, ipred);
+                else if (covering)
+                    best = new IndexOnlyScan(t, index, table.alias, ipred);
+                else
+                    best = new SecondaryIndexScan(t, index, table.alias, ipred);
+            }
+
+            if (s != null && used != null) {
+                for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                    if (!index.covers(used))
+                        continue;
+                    double cost = s.estimateIndexOnlyScanCost(1.0, index.getFile().numPages());
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        best = new IndexOnlyScan(t, index, table.alias, null);
+                    }
+                }
+            }
+
+            if (best != null) {
+                subplanMap.put(table.alias, best);
+                if (explain && s != null)
+                    System.out.println("Index scan of " + table.alias + " costs " + bestCost
+                            + " versus " + scanCost + " for a table scan");
+            }
+        }
+    }
+
+    /**
+     * Returns the indexes in td of the fields of the table with the
+     * specified alias that the query uses anywhere: in filters, joins, the
+     * select list, the aggregate, GROUP BY or ORDER BY.  Returns null if
+     * it uses all of them, through SELECT *, or names a field td does not
+     * have.
+     */
+    private HashSet<Integer> usedFields(String alias, TupleDesc td) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (alias.equals(lj.t1Alias))
+                names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode) && alias.equals(lj.t2Alias))
+                names.add(lj.f2QuantifiedName);
+        }
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            names.add(si.fname);
+        }
+        if (hasAgg) {
+            names.add(aggField);
+            if (groupByField != null)
+                names.add(groupByField);
+        }
+        if (hasOrderBy)
+            names.add(oByField);
+
+        HashSet<Integer> used = new HashSet<Integer>();
+        for (String name : names) {
+            if (!name.startsWith(alias + "."))
+                continue;
+            try {
+                used.add(td.fieldNameToIndex(name));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return used;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -292,9 +442,13 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                if (file instanceof BTreeFile)
+                    ss = new BTreeScan(t, file.getId(), table.alias, null);
+                else
+                    ss = new SeqScan(t, file.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -306,6 +460,8 @@ public class LogicalPlan {
 
         }
 
+        chooseAccessPaths(t, subplanMap, baseTableStats, explain);
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -323,10 +479,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = parseConstant(ftyp, lf.c);
 
             Predicate p = null;
             try {
@@ -338,7 +491,9 @@ public class LogicalPlan {
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // stats index the table's fields, which an index-only scan may not all return
+            int tableField = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias)).fieldNameToIndex(lf.fieldPureName);
+            double sel= s.estimateSelectivity(tableField, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -0,0 +1,318 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ParallelHashEquiJoin is a hash join that builds and probes its hash tables
+ * on several threads. The outer relation is read and split into partitions
+ * on a hash of the join field, and a hash table is built over each partition
+ * in parallel. The inner relation is then read in chunks, which are probed
+ * in parallel while the next ones are read; the joined tuples of each chunk
+ * are returned in the order the chunks were read. The children are only
+ * read from the thread using the join.
+ * <p>
+ * The join runs on a pool of as many threads as its degree of parallelism,
+ * which is given to the constructor or configured with setParallelism() or
+ * the system property simpledb.Parallelism. The hash tables hold the whole
+ * outer relation: if it has more tuples than the memory budget, the join
+ * falls back to a single threaded HashEquiJoin, which partitions both
+ * relations to disk.
+ */
+public class ParallelHashEquiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+    private final int parallelism;
+    private final int memoryTuples;
+
+    private static volatile int defaultParallelism = Math.max(1,
+            Integer.getInteger("simpledb.Parallelism", 1));
+
+    /** The number of inner tuples probed by each task */
+    public static final int CHUNK_TUPLES = 4096;
+    /** The number of partitions of the outer relation per thread */
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    transient private ExecutorService pool = null;
+    // the hash table of each partition of the outer relation
+    transient private ArrayList<JoinHashTable> maps = null;
+    // the join used instead when the outer relation does not fit in memory
+    transient private HashEquiJoin fallback = null;
+    // the chunks of child2 being probed, in the order they were read
+    transient private ArrayDeque<Future<ArrayList<Tuple>>> pending = null;
+    transient private boolean innerDone;
+    transient private Iterator<Tuple> results = null;
+
+    /**
+     * Constructor for a join of the configured degree of parallelism and the
+     * default memory budget of a HashEquiJoin
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public ParallelHashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, getParallelism(), HashEquiJoin.MAP_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param parallelism
+     *            The number of threads to join on
+     * @param memoryTuples
+     *            The number of outer tuples to hold in memory
+     */
+    public ParallelHashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int parallelism, int memoryTuples) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("the join needs at least one thread");
+        if (memoryTuples < 1)
+            throw new IllegalArgumentException("the join must hold at least one tuple");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.parallelism = parallelism;
+        this.memoryTuples = memoryTuples;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return the degree of parallelism of joins that are not given one */
+    public static int getParallelism() {
+        return defaultParallelism;
+    }
+
+    /**
+     * Set the degree of parallelism of joins that are not given one. With
+     * more than one thread, the optimizer plans equi-joins as parallel ones.
+     */
+    public static void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("the join needs at least one thread");
+        defaultParallelism = parallelism;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /** @return the number of threads this join runs on */
+    public int getThreads() {
+        return parallelism;
+    }
+
+    /** @return the partition of a tuple with the specified join field */
+    private int partitionOf(Field key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h >>> 16) % maps.size();
+    }
+
+    /** @return the result of a task, waiting for it to finish */
+    private static <T> T await(Future<T> f) throws DbException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while joining");
+        } catch (ExecutionException e) {
+            throw new DbException("join task failed: " + e.getCause());
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        int partitions = parallelism * PARTITIONS_PER_THREAD;
+        maps = new ArrayList<JoinHashTable>(partitions);
+        final ArrayList<ArrayList<Tuple>> parts = new ArrayList<ArrayList<Tuple>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            maps.add(null);
+            parts.add(new ArrayList<Tuple>());
+        }
+
+        child1.open();
+        int outer = 0;
+        while (child1.hasNext()) {
+            if (outer == memoryTuples) {
+                // too large for memory: join it on disk instead
+                child1.close();
+                maps = null;
+                fallback = new HashEquiJoin(pred, child1, child2, memoryTuples);
+                fallback.open();
+                super.open();
+                return;
+            }
+            Tuple t = child1.next();
+            parts.get(partitionOf(t.getField(pred.getField1()))).add(t);
+            outer++;
+        }
+        child2.open();
+        pool = new ForkJoinPool(parallelism);
+
+        // build the hash table of each partition
+        ArrayList<Callable<JoinHashTable>> builds = new ArrayList<Callable<JoinHashTable>>();
+        for (final ArrayList<Tuple> part : parts) {
+            builds.add(new Callable<JoinHashTable>() {
+                public JoinHashTable call() {
+                    JoinHashTable map = new JoinHashTable(child1.getTupleDesc(), pred.getField1());
+                    for (Tuple t : part)
+                        map.add(t);
+                    return map;
+                }
+            });
+        }
+        List<Future<JoinHashTable>> built;
+        try {
+            built = pool.invokeAll(builds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while joining");
+        }
+        for (int i = 0; i < partitions; i++)
+            maps.set(i, await(built.get(i)));
+
+        pending = new ArrayDeque<Future<ArrayList<Tuple>>>();
+        // with no outer tuples there is nothing for child2 to join with
+        innerDone = (outer == 0);
+        results = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (fallback != null) {
+            fallback.close();
+            fallback = null;
+        } else {
+            child2.close();
+            child1.close();
+        }
+        if (pending != null) {
+            for (Future<ArrayList<Tuple>> f : pending)
+                f.cancel(true);
+        }
+        if (pool != null)
+            pool.shutdownNow();
+        pool = null;
+        maps = null;
+        pending = null;
+        results = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (fallback != null) {
+            fallback.rewind();
+            return;
+        }
+        // the hash tables still hold child1, so only child2 is read again
+        for (Future<ArrayList<Tuple>> f : pending)
+            f.cancel(true);
+        pending.clear();
+        child2.rewind();
+        boolean empty = true;
+        for (JoinHashTable map : maps)
+            empty &= map.isEmpty();
+        innerDone = empty;
+        results = null;
+    }
+
+    /** The joined tuples of a chunk of inner tuples */
+    private class Probe implements Callable<ArrayList<Tuple>> {
+        private final ArrayList<Tuple> chunk;
+
+        Probe(ArrayList<Tuple> chunk) {
+            this.chunk = chunk;
+        }
+
+        public ArrayList<Tuple> call() {
+            ArrayList<Tuple> joined = new ArrayList<Tuple>();
+            int td1n = child1.getTupleDesc().numFields();
+            int td2n = child2.getTupleDesc().numFields();
+            for (Tuple t2 : chunk) {
+                Field key = t2.getField(pred.getField2());
+                ArrayList<Tuple> l = maps.get(partitionOf(key)).get(key);
+                if (l == null)
+                    continue;
+                for (Tuple t1 : l) {
+                    // set fields in combined tuple
+                    Tuple t = new Tuple(comboTD);
+                    for (int i = 0; i < td1n; i++)
+                        t.setField(i, t1.getField(i));
+                    for (int i = 0; i < td2n; i++)
+                        t.setField(td1n + i, t2.getField(i));
+                    joined.add(t);
+                }
+            }
+            return joined;
+        }
+    }
+
+    /**
+     * Read chunks of child2 and start probing them, until twice as many
+     * chunks as threads are being probed or child2 is done.
+     */
+    private void readChunks() throws DbException, TransactionAbortedException {
+        while (!innerDone && pending.size() < 2 * parallelism) {
+            ArrayList<Tuple> chunk = new ArrayList<Tuple>(CHUNK_TUPLES);
+            while (chunk.size() < CHUNK_TUPLES && child2.hasNext())
+                chunk.add(child2.next());
+            if (chunk.size() < CHUNK_TUPLES)
+                innerDone = true;
+            if (!chunk.isEmpty())
+                pending.add(pool.submit(new Probe(chunk)));
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of each inner tuple, in the order they
+     * are read, with each outer tuple whose join field equals its own.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (fallback != null)
+            return fallback.hasNext() ? fallback.next() : null;
+        while (results == null || !results.hasNext()) {
+            readChunks();
+            if (pending.isEmpty())
+                return null;
+            results = await(pending.poll()).iterator();
+        }
+        return results.next();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -492,7 +492,40 @@ public class Parser {
         return curtrans;
     }
 
+    // Zql has no DDL, so CREATE INDEX is recognized before Zql sees it
+    static final java.util.regex.Pattern CREATE_INDEX = java.util.regex.Pattern.compile(
+            "\\s*create\\s+index\\s+(?:\\w+\\s+)?on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)"
+            + "(?:\\s*include\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?\\s*;?\\s*",
+            java.util.regex.Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Handle a "CREATE INDEX [name] ON table (field) [INCLUDE (field, ...)]"
+     * statement by building a secondary index on the field, which stores
+     * copies of the included fields.
+     * @return false if s is not a CREATE INDEX statement
+     */
+    public boolean handleCreateIndexStatement(String s) {
+        java.util.regex.Matcher m = CREATE_INDEX.matcher(s);
+        if (!m.matches())
+            return false;
+        try {
+            String[] included = m.group(3) == null ? new String[0] : m.group(3).split("\\s*,\\s*");
+            SecondaryIndex.create(m.group(1), m.group(2), included);
+            String tableName = m.group(1);
+            TableStats.setTableStats(tableName, new TableStats(
+                    Database.getCatalog().getTableId(tableName), TableStats.IOCOSTPERPAGE));
+            System.out.println("Created index on " + tableName + "." + m.group(2));
+        } catch (NoSuchElementException e) {
+            System.out.println("Invalid CREATE INDEX statement: \n \t" + e.getMessage());
+        } catch (Exception e) {
+            System.out.println("Unable to create index: \n \t" + e.getMessage());
+        }
+        return true;
+    }
+
     public void processNextStatement(String s) {
+        if (handleCreateIndexStatement(s))
+            return;
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
@@ -581,7 +614,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -683,8 +716,9 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    if (!handleCreateIndexStatement(cmd))
+                        processNextStatement(new ByteArrayInputStream(
+                                statementBytes));
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
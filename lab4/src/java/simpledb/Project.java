@@ -5,12 +5,15 @@ import java.util.*;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private transient BatchIterator batches;
+    private transient TupleBatch batch;
+    private transient int[] columns;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -48,6 +51,7 @@ public class Project extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
+        batches = RowsToBatch.of(child);
         super.open();
     }
 
@@ -80,6 +84,26 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Returns the child's next batch with the fields projected out, as a view
+     * sharing the child batch's columns rather than a copy of them.
+     *
+     * @return The next batch, or null if there are no more rows
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch in = batches.nextBatch();
+        if (in == null)
+            return null;
+        if (batch == null) {
+            batch = new TupleBatch(td, in.capacity());
+            columns = new int[outFieldIds.size()];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = outFieldIds.get(i);
+        }
+        batch.shareColumns(in, columns);
+        return batch;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -0,0 +1,68 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * RowsToBatch reads the tuples of a DbIterator into batches, so that a batch
+ * operator can read any child.
+ */
+public class RowsToBatch implements BatchIterator {
+	private static final long serialVersionUID = 1L;
+
+	private final DbIterator child;
+	private transient TupleBatch batch;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param child
+	 *            the iterator whose tuples to read into batches
+	 */
+	public RowsToBatch(DbIterator child) {
+		this.child = child;
+	}
+
+	/**
+	 * @return the specified iterator if it is a BatchIterator, or else a
+	 *         RowsToBatch reading it. Whoever opens the iterator opens the
+	 *         result.
+	 */
+	public static BatchIterator of(DbIterator it) {
+		if (it instanceof BatchIterator)
+			return (BatchIterator) it;
+		return new RowsToBatch(it);
+	}
+
+	public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+		if (batch == null)
+			batch = new TupleBatch(child.getTupleDesc());
+		batch.clear();
+		while (!batch.isFull() && child.hasNext())
+			batch.addTuple(child.next());
+		return batch.size() > 0 ? batch : null;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		child.open();
+	}
+
+	public boolean hasNext() throws DbException, TransactionAbortedException {
+		return child.hasNext();
+	}
+
+	public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+		return child.next();
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		child.rewind();
+	}
+
+	public TupleDesc getTupleDesc() {
+		return child.getTupleDesc();
+	}
+
+	public void close() {
+		child.close();
+	}
+}
@@ -0,0 +1,382 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SecondaryIndex is an index on one field of a HeapFile table.  It is
+ * stored as a BTreeFile keyed on that field whose tuples are index entries
+ * of the form (key, included fields..., page number, tuple number): the key
+ * of a table tuple, copies of any other fields the index includes, and the
+ * two parts of the tuple's RecordId.
+ * <p>
+ * An index covers a query on its table if every field the query uses is
+ * its key or one of its included fields.  IndexOnlyScan then answers the
+ * query from the index entries alone, without fetching the table's pages.
+ * <p>
+ * Indexes are registered with Catalog.addIndex().  BufferPool.insertTuple()
+ * and deleteTuple() then add and remove entries under the same transaction
+ * as the change to the table, so the index pages are locked, logged and
+ * rolled back exactly like the table's own pages.
+ *
+ * @see Catalog#addIndex
+ * @see SecondaryIndexScan
+ * @see IndexOnlyScan
+ */
+public class SecondaryIndex {
+
+    private final int tableid;
+    private final int field;
+    private final int[] included;
+    private final BTreeFile file;
+
+    /**
+     * Constructor.
+     *
+     * @param tableid the id of the indexed table
+     * @param field the index of the indexed field of the table
+     * @param file the BTreeFile holding the index entries, which must be
+     *            in the catalog
+     */
+    public SecondaryIndex(int tableid, int field, BTreeFile file) {
+        this(tableid, field, new int[0], file);
+    }
+
+    /**
+     * Constructor for an index that includes copies of other fields.
+     *
+     * @param tableid the id of the indexed table
+     * @param field the index of the indexed field of the table
+     * @param included the indexes of the other fields of the table stored
+     *            in the entries, in the order they are stored
+     * @param file the BTreeFile holding the index entries, which must be
+     *            in the catalog
+     */
+    public SecondaryIndex(int tableid, int field, int[] included, BTreeFile file) {
+        this.tableid = tableid;
+        this.field = field;
+        this.included = included.clone();
+        this.file = file;
+    }
+
+    /**
+     * Build a secondary index on the specified field of a table, add it to
+     * the catalog and return it.  The index is stored in a file named
+     * after the table and field next to the table's file, and is built
+     * with BTreeFile.bulkLoad() from a scan of the table, and registered
+     * before the scan's locks are released.  If the load fails, neither the
+     * index nor its file is left in the catalog.
+     *
+     * @param includeNames the names of other fields of the table to store
+     *            in the index entries, so that queries using only those
+     *            and the indexed field can be answered from the index
+     * @throws DbException if the table is not a HeapFile, the field
+     *             already has an index, or an included field is the
+     *             indexed field or is named twice
+     */
+    public static SecondaryIndex create(String tableName, String fieldName, String... includeNames)
+            throws DbException, IOException, TransactionAbortedException {
+        Catalog catalog = Database.getCatalog();
+        int tableid = catalog.getTableId(tableName);
+        DbFile table = catalog.getDatabaseFile(tableid);
+        if (!(table instanceof HeapFile))
+            throw new DbException("secondary indexes are only supported on heap files");
+        int field = table.getTupleDesc().fieldNameToIndex(fieldName);
+        if (catalog.getIndex(tableid, field) != null)
+            throw new DbException("field " + fieldName + " of " + tableName + " is already indexed");
+        int[] included = new int[includeNames.length];
+        for (int i = 0; i < included.length; i++) {
+            included[i] = table.getTupleDesc().fieldNameToIndex(includeNames[i]);
+            if (included[i] == field)
+                throw new DbException("field " + fieldName + " cannot be included in its own index");
+            for (int j = 0; j < i; j++) {
+                if (included[j] == included[i])
+                    throw new DbException("field " + includeNames[i] + " is included twice");
+            }
+        }
+
+        File dir = ((HeapFile) table).getFile().getAbsoluteFile().getParentFile();
+        File f = new File(dir, tableName + "_" + fieldName + ".idx");
+        if (f.exists() && !f.delete())
+            throw new IOException("cannot replace " + f);
+
+        BTreeFile bf = new BTreeFile(f, 0, entryDesc(table.getTupleDesc(), field, included));
+        catalog.addTable(bf, tableName + "_" + fieldName + "_idx");
+
+        final SecondaryIndex index = new SecondaryIndex(tableid, field, included, bf);
+        TransactionId tid = new TransactionId();
+        final DbFileIterator tuples = table.iterator(tid);
+        boolean loaded = false;
+        try {
+            bf.bulkLoad(new AbstractDbFileIterator() {
+                public void open() throws DbException, TransactionAbortedException {
+                    tuples.open();
+                }
+
+                public void rewind() throws DbException, TransactionAbortedException {
+                    tuples.rewind();
+                }
+
+                public void close() {
+                    super.close();
+                    tuples.close();
+                }
+
+                protected Tuple readNext() throws DbException, TransactionAbortedException {
+                    if (!tuples.hasNext())
+                        return null;
+                    return index.entry(tuples.next());
+                }
+            });
+            // register the index while the scan's locks still keep the
+            // table from changing, so that every later insert and delete
+            // maintains it
+            catalog.addIndex(index);
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                catalog.removeIndex(index);
+                catalog.removeTable(bf.getId());
+                f.delete();
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the TupleDesc of the entries of an index on the specified
+     * field of a table: the key, then the page and tuple numbers.
+     */
+    public static TupleDesc entryDesc(TupleDesc tableDesc, int field) {
+        return entryDesc(tableDesc, field, new int[0]);
+    }
+
+    /**
+     * Returns the TupleDesc of the entries of an index on the specified
+     * field of a table that includes the specified other fields: the key,
+     * the included fields, then the page and tuple numbers.
+     */
+    public static TupleDesc entryDesc(TupleDesc tableDesc, int field, int[] included) {
+        TupleDesc covered = coveredDesc(tableDesc, field, included);
+        Type[] types = new Type[covered.numFields() + 2];
+        String[] names = new String[types.length];
+        for (int i = 0; i < covered.numFields(); i++) {
+            types[i] = covered.getFieldType(i);
+            names[i] = covered.getFieldName(i);
+        }
+        types[types.length - 2] = Type.INT_TYPE;
+        names[types.length - 2] = "pageno";
+        types[types.length - 1] = Type.INT_TYPE;
+        names[types.length - 1] = "tupleno";
+        return new TupleDesc(types, names);
+    }
+
+    /** Returns the TupleDesc of the key and included fields of a table */
+    private static TupleDesc coveredDesc(TupleDesc tableDesc, int field, int[] included) {
+        Type[] types = new Type[included.length + 1];
+        String[] names = new String[types.length];
+        types[0] = tableDesc.getFieldType(field);
+        names[0] = tableDesc.getFieldName(field);
+        for (int i = 0; i < included.length; i++) {
+            types[i + 1] = tableDesc.getFieldType(included[i]);
+            names[i + 1] = tableDesc.getFieldName(included[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /** @return the id of the indexed table */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the index of the indexed field */
+    public int getField() {
+        return field;
+    }
+
+    /** @return the indexes of the other fields stored in the entries */
+    public int[] getIncluded() {
+        return included.clone();
+    }
+
+    /** @return the BTreeFile holding the index entries */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return the indexes of the table fields an index-only lookup returns,
+     *         in order: the indexed field, then the included ones
+     */
+    public int[] getCoveredFields() {
+        int[] fields = new int[included.length + 1];
+        fields[0] = field;
+        System.arraycopy(included, 0, fields, 1, included.length);
+        return fields;
+    }
+
+    /**
+     * Returns true if the specified fields of the table are all stored in
+     * the index entries, so that a query using only them needs no table
+     * pages.
+     */
+    public boolean covers(Collection<Integer> fields) {
+        for (int f : fields) {
+            boolean found = f == field;
+            for (int i = 0; !found && i < included.length; i++)
+                found = included[i] == f;
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the index entry for a table tuple, which must have a RecordId */
+    Tuple entry(Tuple t) {
+        RecordId rid = t.getRecordId();
+        Tuple e = new Tuple(file.getTupleDesc());
+        e.setField(0, t.getField(field));
+        for (int i = 0; i < included.length; i++)
+            e.setField(i + 1, t.getField(included[i]));
+        e.setField(included.length + 1, new IntField(rid.getPageId().pageNumber()));
+        e.setField(included.length + 2, new IntField(rid.tupleno()));
+        return e;
+    }
+
+    /** Returns the RecordId of the table tuple an index entry points to */
+    RecordId recordId(Tuple entry) {
+        return new RecordId(new HeapPageId(tableid,
+                ((IntField) entry.getField(included.length + 1)).getValue()),
+                ((IntField) entry.getField(included.length + 2)).getValue());
+    }
+
+    /**
+     * Add the entry for a tuple just inserted into the table.
+     */
+    void insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(), entry(t));
+    }
+
+    /**
+     * Remove the entry for a tuple about to be deleted from the table.
+     *
+     * @param rid the RecordId the tuple had in the table
+     */
+    void delete(TransactionId tid, Tuple t, RecordId rid)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFileIterator it = file.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, t.getField(field)));
+        Tuple found = null;
+        it.open();
+        while (it.hasNext()) {
+            Tuple e = it.next();
+            if (recordId(e).equals(rid)) {
+                found = e;
+                break;
+            }
+        }
+        it.close();
+        if (found == null)
+            throw new DbException("no index entry for tuple " + rid + " in " + file.getFile());
+        Database.getBufferPool().deleteTuple(tid, found);
+    }
+
+    /**
+     * Returns an iterator over the table tuples whose indexed field
+     * satisfies the specified predicate, in order of the indexed field.
+     */
+    public DbFileIterator lookup(TransactionId tid, IndexPredicate ipred) {
+        return new SecondaryIndexIterator(this, tid, file.indexIterator(tid, ipred));
+    }
+
+    /**
+     * Returns an iterator over the table tuples whose indexed field equals
+     * any of the specified keys, in order of the indexed field.  The index
+     * is probed with one sorted pass.
+     *
+     * @see BTreeFile#indexIterator(TransactionId, Collection)
+     */
+    public DbFileIterator lookup(TransactionId tid, Collection<Field> keys) {
+        return new SecondaryIndexIterator(this, tid, file.indexIterator(tid, keys));
+    }
+
+    /**
+     * Returns an iterator over the covered fields (see getCoveredFields())
+     * of the table tuples whose indexed field satisfies the specified
+     * predicate, in order of the indexed field.  Only index pages are
+     * read.
+     *
+     * @param ipred the predicate to match, or null to return every entry
+     */
+    public DbFileIterator lookupCovered(TransactionId tid, IndexPredicate ipred) {
+        final DbFileIterator entries = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+        final TupleDesc td = coveredDesc(Database.getCatalog().getTupleDesc(tableid), field, included);
+        return new AbstractDbFileIterator() {
+            public void open() throws DbException, TransactionAbortedException {
+                entries.open();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                entries.rewind();
+            }
+
+            public void close() {
+                super.close();
+                entries.close();
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                if (!entries.hasNext())
+                    return null;
+                Tuple e = entries.next();
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, e.getField(i));
+                return t;
+            }
+        };
+    }
+}
+
+/**
+ * Iterator over the table tuples referenced by a sequence of index entries
+ */
+class SecondaryIndexIterator extends AbstractDbFileIterator {
+
+    private final SecondaryIndex index;
+    private final TransactionId tid;
+    private final DbFileIterator entries;
+
+    SecondaryIndexIterator(SecondaryIndex index, TransactionId tid, DbFileIterator entries) {
+        this.index = index;
+        this.tid = tid;
+        this.entries = entries;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        entries.open();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        entries.rewind();
+    }
+
+    public void close() {
+        super.close();
+        entries.close();
+    }
+
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        while (entries.hasNext()) {
+            RecordId rid = index.recordId(entries.next());
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+                    Permissions.READ_ONLY);
+            Tuple t = p.getTuple(rid.tupleno());
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+}
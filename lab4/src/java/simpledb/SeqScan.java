@@ -7,20 +7,22 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
     private boolean isopen=false;
     private TransactionId tid;
     private int tableid;
-    private HeapFile hpfile;
+    private DbFile hpfile;
     private HeapPage hppage;
     private String tableAlias;
-    private HeapFileIterator SSIterator;
+    private DbFileIterator SSIterator;
     private int currentpgno;
   
     private TupleDesc td;
+    private transient TupleBatch batch;
+    private int batchPage, batchSlot; // where nextBatch() reads from next
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -83,9 +85,10 @@ public class SeqScan implements DbIterator {
     	this.tableAlias=tableAlias;
     	//open();
  
-    	hpfile=(HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+    	hpfile=Database.getCatalog().getDatabaseFile(tableid);
     	
-    	SSIterator=new HeapFileIterator(hpfile,tid);
+    	SSIterator=hpfile.iterator(tid);
+    	updateTupleDesc();
     }
 
     public SeqScan(TransactionId tid, int tableid) throws DbException, TransactionAbortedException {
@@ -98,8 +101,14 @@ public class SeqScan implements DbIterator {
     	//HeapPageId pid=new HeapPageId(tableid,currentpgno);
     	//hppage=(HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
     	
+    	// close() drops the file iterator's file, so make a new one
+    	hpfile=Database.getCatalog().getDatabaseFile(tableid);
+    	SSIterator=hpfile.iterator(tid);
     	SSIterator.open();
     	this.updateTupleDesc();
+    	batch=null;
+    	batchPage=0;
+    	batchSlot=0;
     }
 
    /* public void updatepage() throws TransactionAbortedException, DbException
@@ -196,5 +205,46 @@ public class SeqScan implements DbIterator {
         // some code goes here
     	
     	SSIterator.rewind();
+    	batchPage=0;
+    	batchSlot=0;
+    }
+
+    /**
+     * Reads the next batch of tuples from the slots of the table's pages,
+     * which are locked as next() locks them. Tables that are not
+     * HeapFiles are read through the file's iterator.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+    	if(!isopen)
+    		throw new IllegalStateException("SeqScan not yet open");
+    	if(batch==null)
+    		batch=new TupleBatch(td);
+    	batch.clear();
+    	if(!(hpfile instanceof HeapFile))
+    	{
+    		while(!batch.isFull()&&SSIterator.hasNext())
+    			batch.addTuple(SSIterator.next());
+    		return batch.size()>0?batch:null;
+    	}
+    	HeapFile f=(HeapFile) hpfile;
+    	while(!batch.isFull()&&batchPage<f.numPages())
+    	{
+    		HeapPageId pid=new HeapPageId(tableid,batchPage);
+    		HeapPage p=(HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+    		int slots=p.getNumTuples();
+    		while(batchSlot<slots&&!batch.isFull())
+    		{
+    			Tuple t=p.getTuple(batchSlot);
+    			if(t!=null)
+    				batch.addTuple(t);
+    			batchSlot++;
+    		}
+    		if(batchSlot==slots)
+    		{
+    			batchPage++;
+    			batchSlot=0;
+    		}
+    	}
+    	return batch.size()>0?batch:null;
     }
 }
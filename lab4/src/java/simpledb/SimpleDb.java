@@ -67,6 +67,38 @@ public class SimpleDb {
                it.close();
             }
         }
+        else if (args[0].equals("log")) {
+            // log <log file> [-print] [-catalog <catalog file>] [-replay <directory>]
+            if (args.length < 2) {
+                System.err.println("Usage: log <log file> [-print] [-catalog <catalog file>] [-replay <directory>]");
+                return;
+            }
+            boolean print = false;
+            File replayDir = null;
+            for (int i = 2; i < args.length; i++) {
+                if (args[i].equals("-print")) {
+                    print = true;
+                } else if (args[i].equals("-catalog") && i + 1 < args.length) {
+                    Database.getCatalog().loadSchema(args[++i]);
+                } else if (args[i].equals("-replay") && i + 1 < args.length) {
+                    replayDir = new File(args[++i]);
+                } else {
+                    System.err.println("Unexpected argument to log: " + args[i]);
+                    return;
+                }
+            }
+
+            LogInspector inspector = new LogInspector(new File(args[1]));
+            try {
+                if (print)
+                    inspector.print(System.out);
+                inspector.printStats(System.out);
+                if (replayDir != null)
+                    inspector.replay(replayDir, System.out);
+            } finally {
+                inspector.close();
+            }
+        }
         else if (args[0].equals("parser")) {
             // Strip the first argument and call the parser
             String[] newargs = new String[args.length-1];
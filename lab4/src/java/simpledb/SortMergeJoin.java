@@ -0,0 +1,398 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two relations by reading both in order of their join
+ * fields. A child that is not already ordered on its join field, as a
+ * BTreeScan or an ascending OrderBy is, is sorted with an ExternalSort when
+ * the join is opened; each child is read once, and rewind() merges the
+ * sorted tuples again.
+ * <p>
+ * The join supports the predicates =, &lt;, &lt;=, &gt; and &gt;=, and band
+ * predicates on INT fields, low &lt;= t1.field1 - t2.field2 &lt;= high. For
+ * each outer tuple the inner tuples it joins with are a range of the sorted
+ * inner relation whose ends only move forward, so the merge keeps just that
+ * range. At most as many tuples of the range as a sorted run holds are kept
+ * in memory, and the rest are written to a SpillFile in order and read back
+ * for each outer tuple, so a range that runs to the end or from the start
+ * of the inner relation, as it does for &lt; and &gt;, need not fit in
+ * memory.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+    private final boolean band;
+    private final int low, high;
+    private final int runTuples;
+
+    // the sorted children, or null for a child that is already in order
+    transient private ExternalSort sort1 = null, sort2 = null;
+    transient private Iterator<Tuple> it1 = null, it2 = null;
+    transient private Tuple t1 = null, next2 = null;
+    // the inner tuples the current outer tuple may join with, from start,
+    // and those of them after the first runTuples, in the order read
+    transient private ArrayList<Tuple> window = null;
+    transient private SpillFile overflow = null;
+    transient private int start, pos;
+    // where the overflow is being read for the current outer tuple
+    transient private Iterator<Tuple> spilled = null;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be one of EQUALS, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN and
+     *            GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, false, 0, 0, child1, child2, ExternalSort.DEFAULT_RUN_TUPLES);
+    }
+
+    /**
+     * Constructor for a band join, which joins the tuples whose INT join
+     * fields satisfy low &lt;= t1.field1 - t2.field2 &lt;= high
+     *
+     * @param p
+     *            The fields to join on, whose operator must be EQUALS
+     * @param low
+     *            The smallest difference of the join fields to join
+     * @param high
+     *            The largest difference of the join fields to join
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, int low, int high, DbIterator child1, DbIterator child2) {
+        this(p, true, low, high, child1, child2, ExternalSort.DEFAULT_RUN_TUPLES);
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a band join's predicate must be EQUALS");
+        if (child1.getTupleDesc().getFieldType(p.getField1()) != Type.INT_TYPE
+                || child2.getTupleDesc().getFieldType(p.getField2()) != Type.INT_TYPE)
+            throw new IllegalArgumentException("a band join must be on INT fields");
+        if (low > high)
+            throw new IllegalArgumentException("empty band " + low + ".." + high);
+    }
+
+    SortMergeJoin(JoinPredicate p, boolean band, int low, int high, DbIterator child1,
+            DbIterator child2, int runTuples) {
+        switch (p.getOperator()) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            break;
+        default:
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        }
+        this.pred = p;
+        this.band = band;
+        this.low = low;
+        this.high = high;
+        this.runTuples = runTuples;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /** @return true if this is a band join */
+    public boolean isBand() {
+        return band;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return true if the specified iterator returns its tuples in ascending
+     *         order of the specified field
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof BTreeScan)
+            return ((BTreeScan) it).getSortField() == field;
+        if (it instanceof OrderBy)
+            return ((OrderBy) it).isASC() && ((OrderBy) it).getOrderByField() == field;
+        return false;
+    }
+
+    /**
+     * Sort a child on a field, reading it to the end.
+     */
+    private ExternalSort sort(DbIterator child, int field) throws DbException, TransactionAbortedException {
+        ExternalSort s = new ExternalSort(child.getTupleDesc(),
+                new BTreeFileEncoder.TupleComparator(field), runTuples);
+        try {
+            while (child.hasNext())
+                s.add(child.next());
+        } catch (IOException e) {
+            s.close();
+            throw new DbException("could not sort join input: " + e.getMessage());
+        }
+        return s;
+    }
+
+    /** Start merging the sorted children from the beginning */
+    private void startMerge() throws DbException, TransactionAbortedException {
+        try {
+            it1 = (sort1 == null ? null : sort1.iterator());
+            it2 = (sort2 == null ? null : sort2.iterator());
+        } catch (IOException e) {
+            throw new DbException("could not read sorted join input: " + e.getMessage());
+        }
+        t1 = null;
+        next2 = nextInner();
+        window = new ArrayList<Tuple>();
+        dropOverflow();
+        start = pos = 0;
+    }
+
+    private void dropOverflow() {
+        if (overflow != null)
+            overflow.delete();
+        overflow = null;
+        spilled = null;
+    }
+
+    private Tuple nextOuter() throws DbException, TransactionAbortedException {
+        if (it1 != null)
+            return it1.hasNext() ? it1.next() : null;
+        return child1.hasNext() ? child1.next() : null;
+    }
+
+    private Tuple nextInner() throws DbException, TransactionAbortedException {
+        if (it2 != null)
+            return it2.hasNext() ? it2.next() : null;
+        return child2.hasNext() ? child2.next() : null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        if (!isSortedOn(child1, pred.getField1()))
+            sort1 = sort(child1, pred.getField1());
+        if (!isSortedOn(child2, pred.getField2()))
+            sort2 = sort(child2, pred.getField2());
+        startMerge();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        if (sort1 != null)
+            sort1.close();
+        if (sort2 != null)
+            sort2.close();
+        sort1 = sort2 = null;
+        it1 = it2 = null;
+        t1 = next2 = null;
+        window = null;
+        dropOverflow();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (sort1 == null)
+            child1.rewind();
+        if (sort2 == null)
+            child2.rewind();
+        startMerge();
+    }
+
+    /**
+     * @return true if an inner tuple's join field is below the range the
+     *         outer tuple joins with
+     */
+    private boolean belowRange(Tuple outer, Tuple inner) {
+        Field k = outer.getField(pred.getField1());
+        Field f = inner.getField(pred.getField2());
+        if (band) {
+            int d = ((IntField) k).getValue() - ((IntField) f).getValue();
+            return d > high;
+        }
+        switch (pred.getOperator()) {
+        case EQUALS:
+        case LESS_THAN_OR_EQ:
+            return f.compare(Predicate.Op.LESS_THAN, k);
+        case LESS_THAN:
+            return f.compare(Predicate.Op.LESS_THAN_OR_EQ, k);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if an inner tuple's join field is above the range the
+     *         outer tuple joins with
+     */
+    private boolean aboveRange(Tuple outer, Tuple inner) {
+        Field k = outer.getField(pred.getField1());
+        Field f = inner.getField(pred.getField2());
+        if (band) {
+            int d = ((IntField) k).getValue() - ((IntField) f).getValue();
+            return d < low;
+        }
+        switch (pred.getOperator()) {
+        case EQUALS:
+        case GREATER_THAN_OR_EQ:
+            return f.compare(Predicate.Op.GREATER_THAN, k);
+        case GREATER_THAN:
+            return f.compare(Predicate.Op.GREATER_THAN_OR_EQ, k);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Add an inner tuple to the end of the range, in memory if the range has
+     * not overflowed yet and there is room.
+     */
+    private void addToRange(Tuple t) throws DbException {
+        if (overflow == null && window.size() - start < runTuples) {
+            window.add(t);
+            return;
+        }
+        if (overflow == null)
+            overflow = new SpillFile(child2.getTupleDesc());
+        try {
+            overflow.add(t);
+        } catch (IOException e) {
+            throw new DbException("could not spill join input: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Once every tuple of the range in memory has been dropped, move the
+     * first runTuples tuples of the overflow into memory, and write the rest
+     * to a new overflow.
+     */
+    private void refillRange() throws DbException {
+        SpillFile old = overflow;
+        overflow = null;
+        window.clear();
+        start = 0;
+        try {
+            Iterator<Tuple> it = old.iterator();
+            while (it.hasNext())
+                addToRange(it.next());
+        } catch (IOException e) {
+            throw new DbException("could not read spilled join input: " + e.getMessage());
+        } finally {
+            old.delete();
+        }
+    }
+
+    /**
+     * Move on to the next outer tuple and the range of inner tuples it joins
+     * with: drop the inner tuples below its range, which no later outer tuple
+     * joins with either, and read those up to the end of its range.
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean advanceOuter() throws DbException, TransactionAbortedException {
+        t1 = nextOuter();
+        if (t1 == null)
+            return false;
+        while (true) {
+            while (start < window.size() && belowRange(t1, window.get(start)))
+                window.set(start++, null);
+            if (start < window.size() || overflow == null)
+                break;
+            refillRange();
+        }
+        if (start == window.size()) {
+            window.clear();
+            start = 0;
+        } else if (start > 1024 && start > window.size() / 2) {
+            window = new ArrayList<Tuple>(window.subList(start, window.size()));
+            start = 0;
+        }
+        while (next2 != null && !aboveRange(t1, next2)) {
+            if (!belowRange(t1, next2))
+                addToRange(next2);
+            next2 = nextInner();
+        }
+        pos = start;
+        try {
+            spilled = (overflow == null ? null : overflow.iterator());
+        } catch (IOException e) {
+            throw new DbException("could not read spilled join input: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /** @return the number of inner tuples of the current range held in memory */
+    int rangeTuplesInMemory() {
+        return window == null ? 0 : window.size() - start;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of each outer tuple, in order of its
+     * join field, with each inner tuple in its range.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        Tuple t2;
+        while (true) {
+            if (t1 != null && pos < window.size()) {
+                t2 = window.get(pos++);
+                break;
+            }
+            if (t1 != null && spilled != null && spilled.hasNext()) {
+                t2 = spilled.next();
+                break;
+            }
+            if (!advanceOuter())
+                return null;
+        }
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * SpillFile is a temporary file of tuples that an operator writes when its
+ * input does not fit in memory and reads back, in the order written, as
+ * often as it needs to.  The file is created when the first tuple is added.
+ * <p>
+ * Tuples are written as their serialized fields, as ExternalSort writes its
+ * runs, so the tuples read back have no RecordId.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private File file = null;
+    private DataOutputStream out = null;
+    // the stream of the last iterator, until it is drained or replaced
+    private DataInputStream in = null;
+    private int size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param td the TupleDesc of the tuples of the file
+     */
+    public SpillFile(TupleDesc td) {
+        this.td = td;
+    }
+
+    /** Append a tuple to the file. */
+    public void add(Tuple t) throws IOException {
+        if (out == null) {
+            if (file == null) {
+                file = File.createTempFile("spill", ".dat");
+                file.deleteOnExit();
+            }
+            out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+        }
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        size++;
+    }
+
+    /** @return the number of tuples added */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the tuples added so far, in the order they were added.  IO
+     * errors while reading the file surface as RuntimeExceptions.  Only the
+     * last iterator returned may be read: this closes the file of the one
+     * before, as delete() does.
+     */
+    public Iterator<Tuple> iterator() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        closeInput();
+        final int count = size;
+        final DataInputStream dis = (count == 0 ? null : new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16)));
+        in = dis;
+
+        return new Iterator<Tuple>() {
+            int remaining = count;
+
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            public Tuple next() {
+                if (remaining == 0)
+                    throw new NoSuchElementException();
+                if (in != dis)
+                    throw new IllegalStateException("the spill file was read again or deleted");
+                Tuple t = new Tuple(td);
+                try {
+                    for (int i = 0; i < td.numFields(); i++)
+                        t.setField(i, td.getFieldType(i).parse(dis));
+                    if (--remaining == 0)
+                        closeInput();
+                } catch (ParseException e) {
+                    throw new RuntimeException("corrupt spill file", e);
+                }
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void closeInput() {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore failures closing a file only read from
+            }
+            in = null;
+        }
+    }
+
+    /** Delete the file, leaving it empty. */
+    public void delete() {
+        closeInput();
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Ignore failures closing a file being deleted
+            }
+            out = null;
+        }
+        if (file != null)
+            file.delete();
+        file = null;
+        size = 0;
+    }
+}
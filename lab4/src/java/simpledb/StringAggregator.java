@@ -4,6 +4,10 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
+ * <p>
+ * Once there are more groups than the memory budget, the counts of the
+ * groups in memory are spilled to a GroupSpill, and the results are merged
+ * from its partitions.
  */
 public class StringAggregator implements Aggregator {
 
@@ -14,6 +18,13 @@ public class StringAggregator implements Aggregator {
     private int afield;
     // a map of groupVal -> AggregateFields
     private HashMap<String, AggregateFields> groups;
+    // for an INT group-by field, the groups numbered by their values instead
+    private IntHashTable intGroupIds = null;
+    private ArrayList<AggregateFields> intGroups = null;
+    // the number of groups held in memory before they are spilled
+    private final int memoryGroups;
+    // the counts of the groups spilled, or null if none were
+    transient private GroupSpill spill = null;
 
     /**
      * Aggregate constructor
@@ -25,6 +36,22 @@ public class StringAggregator implements Aggregator {
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield, gbfieldtype, afield, what, MEMORY_GROUPS);
+    }
+
+    /**
+     * Aggregate constructor with a memory budget
+     * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
+     * @param gbfieldtype the type of the group by field (e.g., Type.INT_TYPE), or null if there is no grouping
+     * @param afield the 0-based index of the aggregate field in the tuple
+     * @param what aggregation operator to use -- only supports COUNT
+     * @param memoryGroups the number of groups to hold in memory
+     * @throws IllegalArgumentException if what != COUNT
+     */
+    public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int memoryGroups) {
+        if (memoryGroups < 1)
+            throw new IllegalArgumentException("the aggregate must hold at least one group");
+        this.memoryGroups = memoryGroups;
         this.what = what;
         if (what != Op.COUNT)
             throw new IllegalArgumentException("Invalid operator type " + what);
@@ -32,6 +59,18 @@ public class StringAggregator implements Aggregator {
         this.afield = afield;
         this.gbfieldtype = gbfieldtype;
         this.groups = new HashMap<String, AggregateFields>();
+        if (gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE) {
+            intGroupIds = new IntHashTable();
+            intGroups = new ArrayList<AggregateFields>();
+        }
+    }
+
+    /** @return the group of an INT group-by value, added if it is new */
+    private AggregateFields intGroup(int groupVal) {
+        int id = intGroupIds.add(groupVal);
+        if (id == intGroups.size())
+            intGroups.add(new AggregateFields(null));
+        return intGroups.get(id);
     }
 
     /**
@@ -39,17 +78,90 @@ public class StringAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        String groupVal = "";
-        if (gbfield != NO_GROUPING) {
-            groupVal = tup.getField(gbfield).toString();
+        if (intGroupIds != null) {
+            intGroup(((IntField) tup.getField(gbfield)).getValue()).count++;
+        } else {
+            String groupVal = "";
+            if (gbfield != NO_GROUPING) {
+                groupVal = tup.getField(gbfield).toString();
+            }
+            AggregateFields agg = groups.get(groupVal);
+            if (agg == null)
+                agg = new AggregateFields(groupVal);
+
+            agg.count++;
+
+            groups.put(groupVal, agg);
         }
-        AggregateFields agg = groups.get(groupVal);
-        if (agg == null)
-            agg = new AggregateFields(groupVal);
+        if (numGroups() > memoryGroups)
+            spillGroups();
+    }
+
+    /** @return the number of groups in memory */
+    private int numGroups() {
+        return groups.size() + (intGroups != null ? intGroups.size() : 0);
+    }
 
-        agg.count++;
+    /** @return the TupleDesc of the counts of the groups */
+    private TupleDesc partialDesc() {
+        return new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE });
+    }
+
+    /** @return the count of a group, as a tuple to spill */
+    private Tuple partial(Field group, AggregateFields agg) {
+        Tuple t = new Tuple(partialDesc());
+        t.setField(0, group);
+        t.setField(1, new IntField(agg.count));
+        return t;
+    }
+
+    /**
+     * Write the counts of the groups in memory to the spill, leaving no
+     * group in memory.
+     */
+    private void spillGroups() {
+        if (spill == null)
+            spill = new GroupSpill(partialDesc(), new Op[] { Op.SUM }, memoryGroups);
+        if (intGroupIds != null) {
+            for (int id = 0; id < intGroupIds.size(); id++)
+                spill.add(partial(new IntField(intGroupIds.key(id)), intGroups.get(id)));
+            intGroupIds.clear();
+            intGroups.clear();
+        }
+        for (AggregateFields agg : groups.values())
+            spill.add(partial(new StringField(agg.groupVal, Type.STRING_LEN), agg));
+        groups.clear();
+    }
 
-        groups.put(groupVal, agg);
+    /**
+     * Merge the selected rows of a batch into the aggregate, grouping as
+     * indicated in the constructor
+     * @param batch the rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int n = batch.numSelected();
+        if (gbfield == NO_GROUPING) {
+            AggregateFields agg = groups.get("");
+            if (agg == null)
+                agg = new AggregateFields("");
+            agg.count += n;
+            groups.put("", agg);
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            if (intGroupIds != null) {
+                intGroup(batch.getInt(gbfield, batch.selected(i))).count++;
+            } else {
+                String groupVal = batch.getField(gbfield, batch.selected(i)).toString();
+                AggregateFields agg = groups.get(groupVal);
+                if (agg == null)
+                    agg = new AggregateFields(groupVal);
+                agg.count++;
+                groups.put(groupVal, agg);
+            }
+            if (numGroups() > memoryGroups)
+                spillGroups();
+        }
     }
 
     /**
@@ -72,23 +184,30 @@ public class StringAggregator implements Aggregator {
             td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE });
         }
 
+        if (spill != null) {
+            // merge the groups in memory with those spilled
+            spillGroups();
+            final TupleDesc resultTd = td;
+            final int resultField = aggField;
+            return spill.results(td, new GroupSpill.Finisher() {
+                public Tuple finish(Tuple partial) {
+                    AggregateFields agg = new AggregateFields(null);
+                    agg.count = ((IntField) partial.getField(1)).getValue();
+                    return summary(resultTd, resultField, partial.getField(0), agg);
+                }
+            });
+        }
+
         // iterate over groups and create summary tuples
+        if (intGroupIds != null) {
+            for (int id = 0; id < intGroupIds.size(); id++)
+                result.add(summary(td, aggField, new IntField(intGroupIds.key(id)), intGroups.get(id)));
+        }
         for (String groupVal : groups.keySet()) {
-            AggregateFields agg = groups.get(groupVal);
-            Tuple tup = new Tuple(td);
-
-            if (gbfield != NO_GROUPING) {
-                if (gbfieldtype == Type.INT_TYPE)
-                    tup.setField(0, new IntField(new Integer(groupVal)));
-                else tup.setField(0, new StringField(groupVal, Type.STRING_LEN));
-            }
-
-            switch (what) {
-            case COUNT: tup.setField(aggField, new IntField(agg.count));
-            break;
-            }
-
-            result.add(tup);
+            Field group = null;
+            if (gbfield != NO_GROUPING)
+                group = new StringField(groupVal, Type.STRING_LEN);
+            result.add(summary(td, aggField, group, groups.get(groupVal)));
         }
 
         DbIterator retVal = null;
@@ -96,6 +215,33 @@ public class StringAggregator implements Aggregator {
         return retVal;
     }
 
+    public void close() {
+        if (spill != null)
+            spill.delete();
+        spill = null;
+        groups.clear();
+        if (intGroupIds != null) {
+            intGroupIds.clear();
+            intGroups.clear();
+        }
+    }
+
+    /**
+     * @return the summary tuple of a group: its group-by value, unless group
+     *   is null, and its aggregate value
+     */
+    private Tuple summary(TupleDesc td, int aggField, Field group, AggregateFields agg) {
+        Tuple tup = new Tuple(td);
+        if (group != null)
+            tup.setField(0, group);
+
+        switch (what) {
+        case COUNT: tup.setField(aggField, new IntField(agg.count));
+        break;
+        }
+        return tup;
+    }
+
     /**
      * A helper struct to store accumulated aggregate values.
      */
@@ -168,6 +168,75 @@ public class TableStats {
 
 	}
 
+	/**
+	 * Approximate number of entries per internal page of an index, used to
+	 * estimate the number of pages read descending from the root to a leaf.
+	 */
+	static final int INDEX_FANOUT = 256;
+
+	/**
+	 * Estimates the cost of reading the tuples that satisfy a predicate with
+	 * the specified selectivity through an index, under the same
+	 * assumptions as estimateScanCost().
+	 * 
+	 * A clustered index (a BTreeFile on its key field) stores the matching
+	 * tuples on consecutive leaf pages, so the cost is the descent from the
+	 * root plus that fraction of the table's pages. An unclustered index
+	 * (a SecondaryIndex) also reads that fraction of its own pages, then
+	 * fetches each matching tuple from the table; the number of distinct
+	 * table pages this touches is estimated with Cardenas' formula.
+	 * 
+	 * @param selectivityFactor
+	 *            The selectivity of the predicate the index matches
+	 * @param clustered
+	 *            whether the table is stored in index order
+	 * @return The estimated cost of the index scan.
+	 */
+	public double estimateIndexScanCost(double selectivityFactor, boolean clustered) {
+		double numpages = estimateScanCost() / ioCostPerPage;
+		double descent = Math.max(1, Math.ceil(Math.log(numpages) / Math.log(INDEX_FANOUT)));
+		double leafpages = Math.ceil(selectivityFactor * numpages);
+		if (clustered)
+			return ioCostPerPage * (descent + leafpages);
+
+		double matches = selectivityFactor * NumTuples;
+		double tablepages = numpages * (1 - Math.pow(1 - 1 / numpages, matches));
+		return ioCostPerPage * (descent + leafpages + Math.ceil(tablepages));
+	}
+
+	/**
+	 * Estimates the cost of looking up the tuples with a given key in a
+	 * HashFile on that key, under the same assumptions as estimateScanCost():
+	 * the meta page, then the pages of the key's bucket, which hold about
+	 * that fraction of the table's pages.
+	 * 
+	 * @param selectivityFactor
+	 *            The selectivity of the equality predicate on the key
+	 * @return The estimated cost of the lookup.
+	 */
+	public double estimateHashLookupCost(double selectivityFactor) {
+		double numpages = estimateScanCost() / ioCostPerPage;
+		return ioCostPerPage * (1 + Math.max(1, Math.ceil(selectivityFactor * numpages)));
+	}
+
+	/**
+	 * Estimates the cost of reading the tuples that satisfy a predicate with
+	 * the specified selectivity from the entries of an index that covers
+	 * every field the query uses. Only that fraction of the index's own
+	 * pages is read, after the descent from the root, and no table pages.
+	 * 
+	 * @param selectivityFactor
+	 *            The selectivity of the predicate the index matches, or 1
+	 *            to read the whole index
+	 * @param indexPages
+	 *            the number of pages of the index
+	 * @return The estimated cost of the index-only scan.
+	 */
+	public double estimateIndexOnlyScanCost(double selectivityFactor, int indexPages) {
+		double descent = Math.max(1, Math.ceil(Math.log(indexPages) / Math.log(INDEX_FANOUT)));
+		return ioCostPerPage * (descent + Math.ceil(selectivityFactor * indexPages));
+	}
+
 	/**
 	 * This method returns the number of tuples in the relation, given that a
 	 * predicate with selectivity selectivityFactor is applied.
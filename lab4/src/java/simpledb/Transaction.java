@@ -47,8 +47,12 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //write all the dirty pages for this transaction out, or
+                //under NO-FORCE just their images to the log
+                if (Database.getBufferPool().isStealNoForce())
+                    Database.getBufferPool().logPages(tid);
+                else
+                    Database.getBufferPool().flushPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -0,0 +1,276 @@
+package simpledb;
+
+/**
+ * TupleBatch holds a batch of rows with the same TupleDesc, stored by column:
+ * the values of an INT field in an int array and those of any other field in
+ * an array of Fields. A selection vector lists the rows of the batch that are
+ * still part of the result, so that a filter can drop rows without copying
+ * the columns; when no selection is set every row is selected.
+ * <p>
+ * Batches are passed between {@link BatchIterator}s, which reuse them, so a
+ * batch is only valid until the next call to the iterator that returned it.
+ *
+ * @see BatchIterator
+ */
+public class TupleBatch {
+	/** The number of rows in a batch unless the constructor is told otherwise */
+	public static final int DEFAULT_SIZE = 1024;
+
+	private final TupleDesc td;
+	private final int capacity;
+
+	private int[][] ints; // the INT columns, or null for the other fields
+	private Field[][] fields; // the other columns, or null for INT fields
+	private RecordId[] rids;
+	private int size;
+
+	private int[] sel;
+	private int numSelected;
+	private boolean selecting;
+
+	/**
+	 * Create an empty batch of DEFAULT_SIZE rows
+	 *
+	 * @param td
+	 *            the TupleDesc of the rows of the batch
+	 */
+	public TupleBatch(TupleDesc td) {
+		this(td, DEFAULT_SIZE);
+	}
+
+	/**
+	 * Create an empty batch
+	 *
+	 * @param td
+	 *            the TupleDesc of the rows of the batch
+	 * @param capacity
+	 *            the largest number of rows the batch holds
+	 */
+	public TupleBatch(TupleDesc td, int capacity) {
+		this.td = td;
+		this.capacity = capacity;
+		int n = td.numFields();
+		ints = new int[n][];
+		fields = new Field[n][];
+		for (int i = 0; i < n; i++) {
+			if (td.getFieldType(i) == Type.INT_TYPE)
+				ints[i] = new int[capacity];
+			else
+				fields[i] = new Field[capacity];
+		}
+		rids = new RecordId[capacity];
+		sel = new int[capacity];
+	}
+
+	/** @return the TupleDesc of the rows of this batch */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/** @return the largest number of rows this batch holds */
+	public int capacity() {
+		return capacity;
+	}
+
+	/** @return the number of rows in this batch, selected or not */
+	public int size() {
+		return size;
+	}
+
+	/** @return true if no more rows can be added to this batch */
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+	/** Remove every row from this batch, and the selection */
+	public void clear() {
+		size = 0;
+		selecting = false;
+	}
+
+	/**
+	 * Set the number of rows of this batch, whose values have been set with
+	 * setInt and setField, and select them all
+	 */
+	public void setSize(int size) {
+		this.size = size;
+		selecting = false;
+	}
+
+	/** @return the number of rows selected */
+	public int numSelected() {
+		return selecting ? numSelected : size;
+	}
+
+	/**
+	 * @return the row number of the i-th row selected, where i is less than
+	 *         numSelected()
+	 */
+	public int selected(int i) {
+		return selecting ? sel[i] : i;
+	}
+
+	/**
+	 * Narrow the selection to the rows of this batch that pass the predicate
+	 *
+	 * @return the number of rows still selected
+	 */
+	public int filter(Predicate p) {
+		int field = p.getField();
+		Predicate.Op op = p.getOp();
+		Field operand = p.getOperand();
+		int n = numSelected();
+		int m = 0;
+		if (ints[field] != null && operand instanceof IntField) {
+			// compare the column with the operand in one loop per operator
+			int[] col = ints[field];
+			int v = ((IntField) operand).getValue();
+			switch (op) {
+			case EQUALS:
+			case LIKE:
+				for (int i = 0; i < n; i++) {
+					int r = selected(i);
+					if (col[r] == v)
+						sel[m++] = r;
+				}
+				break;
+			case NOT_EQUALS:
+				for (int i = 0; i < n; i++) {
+					int r = selected(i);
+					if (col[r] != v)
+						sel[m++] = r;
+				}
+				break;
+			case GREATER_THAN:
+				for (int i = 0; i < n; i++) {
+					int r = selected(i);
+					if (col[r] > v)
+						sel[m++] = r;
+				}
+				break;
+			case GREATER_THAN_OR_EQ:
+				for (int i = 0; i < n; i++) {
+					int r = selected(i);
+					if (col[r] >= v)
+						sel[m++] = r;
+				}
+				break;
+			case LESS_THAN:
+				for (int i = 0; i < n; i++) {
+					int r = selected(i);
+					if (col[r] < v)
+						sel[m++] = r;
+				}
+				break;
+			case LESS_THAN_OR_EQ:
+				for (int i = 0; i < n; i++) {
+					int r = selected(i);
+					if (col[r] <= v)
+						sel[m++] = r;
+				}
+				break;
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				int r = selected(i);
+				if (getField(field, r).compare(op, operand))
+					sel[m++] = r;
+			}
+		}
+		// the selected rows only ever move to lower positions of sel, so it
+		// can be rewritten in place
+		numSelected = m;
+		selecting = true;
+		return m;
+	}
+
+	/**
+	 * @return the column of the specified INT field, indexed by row number
+	 */
+	public int[] getIntColumn(int field) {
+		return ints[field];
+	}
+
+	/** @return the value of an INT field of the specified row */
+	public int getInt(int field, int row) {
+		return ints[field][row];
+	}
+
+	/** @return the value of a field of the specified row */
+	public Field getField(int field, int row) {
+		if (ints[field] != null)
+			return new IntField(ints[field][row]);
+		return fields[field][row];
+	}
+
+	/** Set the value of an INT field of the specified row */
+	public void setInt(int field, int row, int value) {
+		ints[field][row] = value;
+	}
+
+	/** Set the value of a field of the specified row */
+	public void setField(int field, int row, Field f) {
+		if (ints[field] != null)
+			ints[field][row] = ((IntField) f).getValue();
+		else
+			fields[field][row] = f;
+	}
+
+	/** @return the RecordId of the specified row, or null */
+	public RecordId getRecordId(int row) {
+		return rids[row];
+	}
+
+	/** Set the RecordId of the specified row */
+	public void setRecordId(int row, RecordId rid) {
+		rids[row] = rid;
+	}
+
+	/**
+	 * Add a row to the end of this batch, which must not be full, with the
+	 * values of a tuple
+	 */
+	public void addTuple(Tuple t) {
+		for (int i = 0; i < ints.length; i++) {
+			if (ints[i] != null)
+				ints[i][size] = ((IntField) t.getField(i)).getValue();
+			else
+				fields[i][size] = t.getField(i);
+		}
+		rids[size] = t.getRecordId();
+		size++;
+	}
+
+	/**
+	 * @return a new Tuple with the values of the specified row
+	 */
+	public Tuple getTuple(int row) {
+		Tuple t = new Tuple(td);
+		for (int i = 0; i < ints.length; i++)
+			t.setField(i, getField(i, row));
+		t.setRecordId(rids[row]);
+		return t;
+	}
+
+	/**
+	 * Make this batch a view of the specified columns of another batch, with
+	 * the same rows and selection, sharing the other batch's arrays. The
+	 * types of this batch's fields must be those of the columns.
+	 *
+	 * @param from
+	 *            the batch whose columns to share
+	 * @param columns
+	 *            the field of from to use for each field of this batch
+	 */
+	public void shareColumns(TupleBatch from, int[] columns) {
+		for (int i = 0; i < columns.length; i++) {
+			ints[i] = from.ints[columns[i]];
+			fields[i] = from.fields[columns[i]];
+		}
+		rids = from.rids;
+		sel = from.sel;
+		size = from.size;
+		numSelected = from.numSelected;
+		selecting = from.selecting;
+	}
+}
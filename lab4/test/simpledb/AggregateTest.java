@@ -3,6 +3,11 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -176,6 +181,53 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /** @return the number of spill files in the temporary directory */
+  private static int spillFiles() {
+    File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith("spill") && name.endsWith(".dat");
+      }
+    });
+    return files == null ? 0 : files.length;
+  }
+
+  /** @return the number of tuples left in an iterator */
+  private static int count(DbIterator it) throws Exception {
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Closing an aggregate that spilled its groups deletes the files they
+   * were spilled to; rewinding it first keeps them, and opening it again
+   * aggregates its child again
+   */
+  @Test public void closeDeletesSpill() throws Exception {
+    int groups = Aggregator.MEMORY_GROUPS + 1000;
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < groups; i++)
+      tuples.add(Utility.getHeapTuple(new int[] { i, 1 }));
+    Aggregate op = new Aggregate(new TupleIterator(Utility.getTupleDesc(2), tuples), 1, 0,
+        Aggregator.Op.SUM);
+    int before = spillFiles();
+    op.open();
+    assertEquals(groups, count(op));
+    assertTrue(spillFiles() > before);
+    op.rewind();
+    assertEquals(groups, count(op));
+    op.close();
+    assertEquals(before, spillFiles());
+
+    op.open();
+    assertEquals(groups, count(op));
+    op.close();
+    assertEquals(before, spillFiles());
+  }
+
   /**
    * JUnit suite target
    */
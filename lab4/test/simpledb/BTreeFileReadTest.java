@@ -201,6 +201,63 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFile.indexIterator() with a batch of keys
+	 */
+	@Test public void multiKeyIndexIterator() throws Exception {
+		// about 600 leaves under two internal pages and a root, with keys
+		// repeated across leaf boundaries
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(10, 60000, 20000,
+				null, tuples, 0);
+
+		Random rand = new Random(35);
+		ArrayList<Field> keys = new ArrayList<Field>();
+		HashSet<Integer> keySet = new HashSet<Integer>();
+		for (int i = 0; i < 12000; i++) {
+			int k = rand.nextInt(21000) - 500;
+			keys.add(new IntField(k));
+			keySet.add(k);
+		}
+		keys.add(new IntField(keys.get(0).hashCode()));
+
+		ArrayList<String> expected = new ArrayList<String>();
+		for (ArrayList<Integer> t : tuples) {
+			if (keySet.contains(t.get(0)))
+				expected.add(t.toString());
+		}
+
+		BTreeMultiSearchIterator it = (BTreeMultiSearchIterator) bigFile.indexIterator(tid, keys);
+		ArrayList<String> actual = new ArrayList<String>();
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass == 0)
+				it.open();
+			else
+				it.rewind();
+			actual.clear();
+			Field prev = null;
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				assertTrue(prev == null || prev.compare(Op.LESS_THAN_OR_EQ, t.getField(0)));
+				prev = t.getField(0);
+				actual.add(BTreeUtility.tupleToList(t).toString());
+			}
+			Collections.sort(expected);
+			Collections.sort(actual);
+			assertEquals(expected, actual);
+
+			// the walk reads each page at most once
+			assertTrue(it.getPagesRead() <= bigFile.numPages() + 1);
+		}
+		it.close();
+
+		// no keys
+		it = (BTreeMultiSearchIterator) bigFile.indexIterator(tid, new ArrayList<Field>());
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
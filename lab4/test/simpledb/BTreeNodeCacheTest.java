@@ -0,0 +1,147 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeNodeCacheTest extends SimpleDbTestBase {
+	private BTreeFile f;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private HashMap<Integer, Integer> counts;
+	private TransactionId tid;
+	private BTreePageId rootId;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<ArrayList<Integer>>();
+		f = TestUtil.createTwoLevelBTreeFile(tuples);
+		Database.resetBufferPool(500);
+		counts = TestUtil.countKeys(tuples);
+		tid = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(BTreeRootPtrPage.getId(f.getId()));
+		rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/** Check that every key of the original tuples is found as often as it was inserted */
+	private void checkLookups() throws Exception {
+		TransactionId t = new TransactionId();
+		for (Map.Entry<Integer, Integer> e : counts.entrySet())
+			assertEquals(e.getValue().intValue(), TestUtil.lookup(f, t, e.getKey()));
+		Database.getBufferPool().transactionComplete(t);
+	}
+
+	/**
+	 * A decoded node sends every key to the same child as the page it was
+	 * decoded from
+	 */
+	@Test
+	public void nodeRoutesLikePage() throws Exception {
+		BTreeInternalPage root = (BTreeInternalPage) f.readPage(rootId);
+		BTreeNodeCache.Node node = new BTreeNodeCache.Node(root);
+		assertEquals(root.iterator().next().getLeftChild(), node.childFor(null));
+		for (int key = -1; key <= BTreeUtility.MAX_RAND_VALUE + 1; key += 97) {
+			BTreePageId expected = null;
+			BTreeEntry last = null;
+			Iterator<BTreeEntry> it = root.iterator();
+			while (expected == null && it.hasNext()) {
+				last = it.next();
+				if (((IntField) last.getKey()).getValue() >= key)
+					expected = last.getLeftChild();
+			}
+			if (expected == null)
+				expected = last.getRightChild();
+			assertEquals(expected, node.childFor(new IntField(key)));
+		}
+	}
+
+	/**
+	 * Once a lookup has cached the root, later lookups descend through it
+	 * without reading it from the buffer pool
+	 */
+	@Test
+	public void lookupUsesCachedRoot() throws Exception {
+		int key = tuples.get(0).get(0);
+		assertNull(f.getCachedNode(rootId));
+		assertEquals(counts.get(key).intValue(), TestUtil.lookup(f, tid, key));
+		assertNotNull(f.getCachedNode(rootId));
+
+		BufferPool bp = Database.getBufferPool();
+		bp.discardPage(rootId);
+		for (int i = 0; i < tuples.size(); i += 1000) {
+			key = tuples.get(i).get(0);
+			assertEquals(counts.get(key).intValue(), TestUtil.lookup(f, tid, key));
+		}
+		assertFalse(bp.isCached(rootId));
+	}
+
+	/**
+	 * Splits invalidate the cached nodes, and lookups afterwards find both
+	 * the old and the new tuples
+	 */
+	@Test
+	public void splitsInvalidate() throws Exception {
+		checkLookups();
+		assertNotNull(f.getCachedNode(rootId));
+
+		TransactionId writer = new TransactionId();
+		Random r = new Random(38);
+		HashMap<Integer, Integer> added = new HashMap<Integer, Integer>();
+		for (int i = 0; i < 2000; i++) {
+			int key = r.nextInt(BTreeUtility.MAX_RAND_VALUE);
+			Database.getBufferPool().insertTuple(writer, f.getId(), BTreeUtility.getBTreeTuple(new int[] { key, i }));
+			Integer c = added.get(key);
+			added.put(key, c == null ? 1 : c + 1);
+		}
+		Database.getBufferPool().transactionComplete(writer);
+		assertNull(f.getCachedNode(rootId));
+
+		for (Map.Entry<Integer, Integer> e : added.entrySet()) {
+			Integer c = counts.get(e.getKey());
+			counts.put(e.getKey(), c == null ? e.getValue() : c + e.getValue());
+		}
+		checkLookups();
+		assertNotNull(f.getCachedNode(rootId));
+	}
+
+	/**
+	 * Lookups by a transaction through pages it has split do not leave its
+	 * uncommitted pages in the cache when it aborts
+	 */
+	@Test
+	public void abortedSplitsNotCached() throws Exception {
+		TransactionId writer = new TransactionId();
+		for (int i = 0; i < 2000; i++) {
+			Database.getBufferPool().insertTuple(writer, f.getId(),
+					BTreeUtility.getBTreeTuple(new int[] { BTreeUtility.MAX_RAND_VALUE / 2, i }));
+		}
+		assertEquals(2000 + (counts.containsKey(BTreeUtility.MAX_RAND_VALUE / 2)
+				? counts.get(BTreeUtility.MAX_RAND_VALUE / 2) : 0), TestUtil.lookup(f, writer, BTreeUtility.MAX_RAND_VALUE / 2));
+		Database.getBufferPool().transactionComplete(writer, false);
+
+		checkLookups();
+		BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), false);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeNodeCacheTest.class);
+	}
+}
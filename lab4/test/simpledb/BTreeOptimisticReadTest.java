@@ -0,0 +1,157 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeOptimisticReadTest extends SimpleDbTestBase {
+	private BTreeFile f;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private TransactionId tid;
+	private BTreePageId rootId;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.resetBufferPool(500);
+		tuples = new ArrayList<ArrayList<Integer>>();
+		f = TestUtil.createTwoLevelBTreeFile(tuples);
+		tid = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(BTreeRootPtrPage.getId(f.getId()));
+		rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A lookup locks its leaf but neither the root pointer nor the internal
+	 * pages
+	 */
+	@Test
+	public void lookupLocksOnlyLeaf() throws Exception {
+		int key = tuples.get(tuples.size() / 2).get(0);
+		assertTrue(TestUtil.lookup(f, tid, key) > 0);
+
+		BufferPool bp = Database.getBufferPool();
+		assertFalse(bp.holdsLock(tid, BTreeRootPtrPage.getId(f.getId())));
+		assertFalse(bp.holdsLock(tid, rootId));
+		BTreeLeafPage leaf = f.findLeafPage(tid, Permissions.READ_ONLY, new IntField(key));
+		assertTrue(bp.holdsLock(tid, leaf.getId()));
+	}
+
+	/**
+	 * A lookup whose path is write-locked by another transaction waits for
+	 * it, as a locking descent would
+	 */
+	@Test
+	public void writeLockedPathWaits() throws Exception {
+		TransactionId writer = new TransactionId();
+		Database.getBufferPool().getPage(writer, rootId, Permissions.READ_WRITE);
+
+		final int key = tuples.get(0).get(0);
+		final int[] found = new int[] { -1 };
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					found[0] = TestUtil.lookup(f, tid, key);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		reader.start();
+		reader.join(500);
+		assertTrue(reader.isAlive());
+
+		Database.getBufferPool().transactionComplete(writer);
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+		assertTrue(found[0] > 0);
+	}
+
+	/**
+	 * Lookups running alongside inserts that split leaves and their parent
+	 * always find the tuples that were there before
+	 */
+	@Test
+	public void lookupsDuringSplits() throws Exception {
+		final HashMap<Integer, Integer> counts = TestUtil.countKeys(tuples);
+		final ArrayList<Integer> keys = new ArrayList<Integer>(counts.keySet());
+		final ArrayList<Exception> errors = new ArrayList<Exception>();
+
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					Random r = new Random(37);
+					for (int i = 0; i < 100; i++) {
+						TransactionId t = new TransactionId();
+						for (int j = 0; j < 100; j++) {
+							// keys outside the existing ones, so the counts
+							// of those stay the same
+							Tuple tup = BTreeUtility.getBTreeTuple(new int[] {
+									-1 - r.nextInt(BTreeUtility.MAX_RAND_VALUE), i });
+							Database.getBufferPool().insertTuple(t, f.getId(), tup);
+						}
+						Database.getBufferPool().transactionComplete(t);
+					}
+				} catch (Exception e) {
+					synchronized (errors) {
+						errors.add(e);
+					}
+				}
+			}
+		};
+
+		ArrayList<Thread> readers = new ArrayList<Thread>();
+		for (int n = 0; n < 4; n++) {
+			final Random r = new Random(n);
+			readers.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 500; i++) {
+							int key = keys.get(r.nextInt(keys.size()));
+							TransactionId t = new TransactionId();
+							int count = TestUtil.lookup(f, t, key);
+							Database.getBufferPool().transactionComplete(t);
+							assertEquals(counts.get(key).intValue(), count);
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(new Exception(e));
+						}
+					}
+				}
+			});
+		}
+
+		writer.start();
+		for (Thread t : readers)
+			t.start();
+		writer.join();
+		for (Thread t : readers)
+			t.join();
+		assertEquals(new ArrayList<Exception>(), errors);
+
+		BTreeChecker.checkRep(f, tid, new HashMap<PageId, Page>(), false);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeOptimisticReadTest.class);
+	}
+}
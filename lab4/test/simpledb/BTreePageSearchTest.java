@@ -0,0 +1,136 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreePageSearchTest extends SimpleDbTestBase {
+	private BTreeFile f;
+	private BTreePageId rootId;
+	private Random r;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// a root internal page over about 60 leaves
+		f = BTreeUtility.createRandomBTreeFile(2, 30000, null, null, 0);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(BTreeRootPtrPage.getId(f.getId()));
+		rootId = rootPtr.getRootId();
+		r = new Random(39);
+	}
+
+	/** Returns the keys on a leaf page, in the order of its slots */
+	private static ArrayList<Integer> keys(Iterator<Tuple> it) {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		while (it.hasNext())
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		return keys;
+	}
+
+	/** Returns the child the entries of an internal page lead to for key f */
+	private static BTreePageId linearChild(BTreeInternalPage page, Field f) {
+		BTreeEntry e = null;
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			e = it.next();
+			if (f == null || e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+				return e.getLeftChild();
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Tuples inserted into a leaf with empty slots scattered among the used
+	 * ones stay in order
+	 */
+	@Test
+	public void leafInsertKeepsOrder() throws Exception {
+		BTreeLeafPage leaf = (BTreeLeafPage) f.readPage(linearChild((BTreeInternalPage) f.readPage(rootId), null));
+		ArrayList<Tuple> victims = new ArrayList<Tuple>();
+		Iterator<Tuple> it = leaf.iterator();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (r.nextInt(3) == 0)
+				victims.add(t);
+		}
+		for (Tuple t : victims)
+			leaf.deleteTuple(t);
+
+		ArrayList<Integer> expected = keys(leaf.iterator());
+		int lo = expected.get(0);
+		int hi = expected.get(expected.size() - 1);
+		while (leaf.getNumEmptySlots() > 0) {
+			int key = lo - 2 + r.nextInt(hi - lo + 5);
+			leaf.insertTuple(BTreeUtility.getBTreeTuple(new int[] { key, 0 }));
+			expected.add(key);
+		}
+		Collections.sort(expected);
+		assertEquals(expected, keys(leaf.iterator()));
+	}
+
+	/**
+	 * An iterator from a key starts at the first tuple whose key is at least
+	 * that key
+	 */
+	@Test
+	public void leafIteratorFromKey() throws Exception {
+		BTreeLeafPage leaf = (BTreeLeafPage) f.readPage(linearChild((BTreeInternalPage) f.readPage(rootId), null));
+		Iterator<Tuple> it = leaf.iterator();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (r.nextInt(4) == 0)
+				leaf.deleteTuple(t);
+		}
+		ArrayList<Integer> all = keys(leaf.iterator());
+		for (int key = all.get(0) - 1; key <= all.get(all.size() - 1) + 1; key++) {
+			ArrayList<Integer> expected = new ArrayList<Integer>();
+			for (int k : all) {
+				if (k >= key)
+					expected.add(k);
+			}
+			assertEquals(expected, keys(leaf.iterator(new IntField(key))));
+		}
+	}
+
+	/**
+	 * The child an internal page finds by binary search is the one its
+	 * entries lead to, also with entries deleted
+	 */
+	@Test
+	public void internalFindChild() throws Exception {
+		BTreeInternalPage root = (BTreeInternalPage) f.readPage(rootId);
+		for (int round = 0; round < 2; round++) {
+			assertEquals(linearChild(root, null), root.findChild(null));
+			for (int key = -1; key <= BTreeUtility.MAX_RAND_VALUE + 1; key += 37) {
+				IntField k = new IntField(key);
+				assertEquals(linearChild(root, k), root.findChild(k));
+			}
+
+			// leave empty slots among the entries
+			ArrayList<BTreeEntry> victims = new ArrayList<BTreeEntry>();
+			Iterator<BTreeEntry> it = root.iterator();
+			while (it.hasNext()) {
+				BTreeEntry e = it.next();
+				if (r.nextInt(3) == 0)
+					victims.add(e);
+			}
+			for (BTreeEntry e : victims)
+				root.deleteKeyAndRightChild(e);
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreePageSearchTest.class);
+	}
+}
@@ -0,0 +1,190 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeReadAheadTest extends SimpleDbTestBase {
+	private BTreeFile f;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.resetBufferPool(200);
+		// about 60 leaves
+		tuples = new ArrayList<ArrayList<Integer>>();
+		f = BTreeUtility.createRandomBTreeFile(2, 30000, null, tuples, 0);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/** Returns the ids of the count leaves after the specified one, read from disk */
+	private ArrayList<BTreePageId> leavesAfter(BTreePageId pid, int count) {
+		ArrayList<BTreePageId> result = new ArrayList<BTreePageId>();
+		BTreeLeafPage p = (BTreeLeafPage) f.readPage(pid);
+		while (result.size() < count && p.getRightSiblingId() != null) {
+			result.add(p.getRightSiblingId());
+			p = (BTreeLeafPage) f.readPage(p.getRightSiblingId());
+		}
+		return result;
+	}
+
+	/**
+	 * A scan that moves to its second leaf loads the leaves after it in the
+	 * background
+	 */
+	@Test
+	public void scanReadsAhead() throws Exception {
+		BTreeFileIterator it = (BTreeFileIterator) f.iterator(tid);
+		it.open();
+		BTreePageId first = it.curp.getId();
+		while (it.curp.getId().equals(first))
+			it.next();
+		assertEquals(BTreeReadAhead.INITIAL_PAGES, it.readAhead.getWindow());
+
+		BufferPool bp = Database.getBufferPool();
+		for (BTreePageId pid : leavesAfter(it.curp.getId(), BTreeReadAhead.INITIAL_PAGES)) {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!bp.isCached(pid) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertTrue(bp.isCached(pid));
+		}
+		it.close();
+	}
+
+	/**
+	 * A point lookup never reads ahead
+	 */
+	@Test
+	public void lookupDoesNotReadAhead() throws Exception {
+		Field key = new IntField(tuples.get(0).get(0));
+		BTreeSearchIterator it = (BTreeSearchIterator) f.indexIterator(tid,
+				new IndexPredicate(Predicate.Op.EQUALS, key));
+		it.open();
+		while (it.hasNext())
+			assertEquals(key, it.next().getField(0));
+		assertEquals(0, it.readAhead.getWindow());
+		it.close();
+	}
+
+	/**
+	 * A scan with an upper bound does not read ahead past the leaf where it
+	 * ends
+	 */
+	@Test
+	public void boundedScanStops() throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for (ArrayList<Integer> t : tuples)
+			keys.add(t.get(0));
+		Collections.sort(keys);
+		Field bound = new IntField(keys.get(keys.size() / 3));
+
+		BTreeSearchIterator it = (BTreeSearchIterator) f.indexIterator(tid,
+				new IndexPredicate(Predicate.Op.LESS_THAN, bound));
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			assertTrue(it.next().getField(0).compare(Predicate.Op.LESS_THAN, bound));
+			count++;
+		}
+		assertEquals(keys.indexOf(((IntField) bound).getValue()), count);
+		assertTrue(it.readAhead.getWindow() > 0);
+
+		Thread.sleep(200);
+		for (BTreePageId pid : leavesAfter(it.curp.getId(), 5))
+			assertFalse(Database.getBufferPool().isCached(pid));
+		it.close();
+	}
+
+	/**
+	 * The window doubles when the scan gets ahead of read-ahead, up to a
+	 * quarter of the buffer pool
+	 */
+	@Test
+	public void windowGrows() throws Exception {
+		BTreeReadAhead ra = new BTreeReadAhead();
+		BTreePageId missing = new BTreePageId(f.getId(), 1000, BTreePageId.LEAF);
+		ra.next(missing);
+		assertEquals(BTreeReadAhead.INITIAL_PAGES, ra.getWindow());
+		ra.next(missing);
+		assertEquals(2 * BTreeReadAhead.INITIAL_PAGES, ra.getWindow());
+
+		// a leaf that was loaded in time keeps the window
+		BTreePageId rootPtr = BTreeRootPtrPage.getId(f.getId());
+		Database.getBufferPool().getPage(tid, rootPtr, Permissions.READ_ONLY);
+		ra.next(rootPtr);
+		assertEquals(2 * BTreeReadAhead.INITIAL_PAGES, ra.getWindow());
+
+		for (int i = 0; i < 10; i++)
+			ra.next(missing);
+		assertEquals(Database.getBufferPool().getNumPages() / 4, ra.getWindow());
+
+		ra.reset();
+		assertEquals(0, ra.getWindow());
+	}
+
+	/**
+	 * Read-ahead does not push out pages it loaded that were not used yet
+	 */
+	@Test
+	public void prefetchKeepsUnusedPages() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(BTreeRootPtrPage.getId(f.getId()));
+		BTreePageId leaf = f.findLeafPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY, null).getId();
+		ArrayList<BTreePageId> next = leavesAfter(leaf, 3);
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool bp = Database.resetBufferPool(2);
+
+		assertNotNull(bp.prefetchPage(next.get(0)));
+		assertNotNull(bp.prefetchPage(next.get(1)));
+		assertNull(bp.prefetchPage(next.get(2)));
+
+		// once used, a page may make room
+		bp.getPage(tid, next.get(0), Permissions.READ_ONLY);
+		assertNotNull(bp.prefetchPage(next.get(2)));
+		assertTrue(bp.isCached(next.get(1)));
+		assertTrue(bp.isCached(next.get(2)));
+	}
+
+	/**
+	 * A scan through a small buffer pool returns every tuple while read-ahead
+	 * competes for the pages
+	 */
+	@Test
+	public void scanWithSmallPool() throws Exception {
+		Database.resetBufferPool(8);
+		ArrayList<String> expected = new ArrayList<String>();
+		for (ArrayList<Integer> t : tuples)
+			expected.add(t.toString());
+		ArrayList<String> actual = new ArrayList<String>();
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			actual.add(BTreeUtility.tupleToList(it.next()).toString());
+		it.close();
+		Collections.sort(expected);
+		Collections.sort(actual);
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeReadAheadTest.class);
+	}
+}
@@ -0,0 +1,195 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeRebuildTest extends SimpleDbTestBase {
+	private BTreeFile f;
+	private HashMap<Integer, Integer> counts;
+	private volatile boolean stop;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		f = TestUtil.createTwoLevelBTreeFile(tuples);
+		Database.resetBufferPool(500);
+		counts = TestUtil.countKeys(tuples);
+	}
+
+	/** Delete every tuple whose key is not a multiple of four, in batches */
+	private void deleteMost() throws Exception {
+		BufferPool bp = Database.getBufferPool();
+		ArrayList<Integer> keys = new ArrayList<Integer>(counts.keySet());
+		TransactionId t = new TransactionId();
+		int deleted = 0;
+		for (int key : keys) {
+			if (key % 4 == 0)
+				continue;
+			// deletes may merge pages and move the other tuples with the key,
+			// so look each one up afresh
+			for (int i = 0; i < counts.get(key); i++) {
+				DbFileIterator it = f.indexIterator(t, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+				it.open();
+				Tuple tup = it.next();
+				it.close();
+				bp.deleteTuple(t, tup);
+				if (++deleted % 500 == 0) {
+					bp.transactionComplete(t);
+					t = new TransactionId();
+				}
+			}
+			counts.remove(key);
+		}
+		bp.transactionComplete(t);
+	}
+
+	/** Check that f is well formed and holds exactly the tuples counted */
+	private void check() throws Exception {
+		TransactionId t = new TransactionId();
+		BTreeChecker.checkRep(f, t, new HashMap<PageId, Page>(), false);
+		int total = 0;
+		for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+			assertEquals(e.getValue().intValue(), TestUtil.lookup(f, t, e.getKey()));
+			total += e.getValue();
+		}
+		DbFileIterator it = f.iterator(t);
+		it.open();
+		int scanned = 0;
+		while (it.hasNext()) {
+			assertTrue(counts.containsKey(((IntField) it.next().getField(0)).getValue()));
+			scanned++;
+		}
+		it.close();
+		assertEquals(total, scanned);
+		Database.getBufferPool().transactionComplete(t);
+	}
+
+	/**
+	 * A tree that deletes have left mostly empty is rebuilt into as many
+	 * pages as a bulk load of its tuples takes, and stays usable
+	 */
+	@Test
+	public void rebuildCompacts() throws Exception {
+		// merged pages are freed but stay in the file
+		int before = f.numPages();
+		deleteMost();
+		assertTrue(f.numPages() >= before);
+
+		assertTrue(f.rebuild());
+		check();
+
+		TransactionId t = new TransactionId();
+		BTreeFile loaded = BTreeUtility.createEmptyBTreeFile(
+				f.getFile().getAbsolutePath() + ".loaded", 2, 0);
+		loaded.bulkLoad(f.iterator(t));
+		Database.getBufferPool().transactionComplete(t);
+		assertEquals(loaded.numPages(), f.numPages());
+		assertTrue(f.numPages() < before / 2);
+
+		// inserts that split the compacted pages still work
+		t = new TransactionId();
+		Random r = new Random(40);
+		for (int i = 0; i < 2000; i++) {
+			int key = r.nextInt(BTreeUtility.MAX_RAND_VALUE / 4) * 4;
+			Database.getBufferPool().insertTuple(t, f.getId(), BTreeUtility.getBTreeTuple(new int[] { key, i }));
+			Integer c = counts.get(key);
+			counts.put(key, c == null ? 1 : c + 1);
+		}
+		Database.getBufferPool().transactionComplete(t);
+		check();
+	}
+
+	/**
+	 * A tree that would not get smaller is left alone
+	 */
+	@Test
+	public void compactTreeUnchanged() throws Exception {
+		int before = f.numPages();
+		assertFalse(f.rebuild(1.0));
+		assertEquals(before, f.numPages());
+		check();
+	}
+
+	/**
+	 * Lookups running alongside a rebuild always find the tuples that are
+	 * there, and a writer waits for it
+	 */
+	@Test
+	public void lookupsDuringRebuild() throws Exception {
+		deleteMost();
+		final ArrayList<Integer> keys = new ArrayList<Integer>(counts.keySet());
+		final ArrayList<Exception> errors = new ArrayList<Exception>();
+
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int n = 0; n < 4; n++) {
+			final Random r = new Random(n);
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						while (!stop) {
+							int key = keys.get(r.nextInt(keys.size()));
+							TransactionId t = new TransactionId();
+							try {
+								int count = TestUtil.lookup(f, t, key);
+								Database.getBufferPool().transactionComplete(t);
+								assertEquals(counts.get(key).intValue(), count);
+							} catch (TransactionAbortedException e) {
+								// lost a deadlock with the rebuild; retry
+								Database.getBufferPool().transactionComplete(t, false);
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(new Exception(e));
+						}
+					}
+				}
+			});
+		}
+		final int writerKey = -4;
+		threads.add(new Thread() {
+			public void run() {
+				try {
+					TransactionId t = new TransactionId();
+					for (int i = 0; i < 100; i++)
+						Database.getBufferPool().insertTuple(t, f.getId(),
+								BTreeUtility.getBTreeTuple(new int[] { writerKey, i }));
+					Database.getBufferPool().transactionComplete(t);
+				} catch (Throwable e) {
+					synchronized (errors) {
+						errors.add(new Exception(e));
+					}
+				}
+			}
+		});
+
+		for (Thread t : threads)
+			t.start();
+		boolean rebuilt = f.rebuild();
+		stop = true;
+		for (Thread t : threads)
+			t.join();
+		assertEquals(new ArrayList<Exception>(), errors);
+		assertTrue(rebuilt);
+
+		counts.put(writerKey, 100);
+		check();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeRebuildTest.class);
+	}
+}
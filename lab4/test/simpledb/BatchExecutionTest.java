@@ -0,0 +1,183 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BatchExecutionTest extends SimpleDbTestBase {
+	private static final int ROWS = 5000;
+	private static final int MAX_VALUE = 200;
+
+	private HeapFile f1, f2;
+	private ArrayList<ArrayList<Integer>> tuples1, tuples2;
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tuples1 = new ArrayList<ArrayList<Integer>>();
+		tuples2 = new ArrayList<ArrayList<Integer>>();
+		f1 = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, tuples1);
+		f2 = SystemTestUtil.createRandomHeapFile(2, ROWS / 10, MAX_VALUE, null, tuples2);
+		tid = new TransactionId();
+	}
+
+	/** @return the tuples of it, opened and read a row at a time, sorted */
+	private static ArrayList<List<Integer>> read(DbIterator it) throws Exception {
+		it.open();
+		ArrayList<List<Integer>> result = TestUtil.rows(it);
+		it.close();
+		return result;
+	}
+
+	/** @return the tuples of it, read a batch at a time, sorted */
+	private static ArrayList<List<Integer>> batches(BatchIterator it) throws Exception {
+		ArrayList<List<Integer>> result = new ArrayList<List<Integer>>();
+		it.open();
+		TupleBatch b;
+		while ((b = it.nextBatch()) != null) {
+			assertTrue(b.numSelected() > 0);
+			assertTrue(b.size() <= b.capacity());
+			for (int i = 0; i < b.numSelected(); i++)
+				result.add(TestUtil.toList(b.getTuple(b.selected(i))));
+		}
+		it.close();
+		TestUtil.sort(result);
+		return result;
+	}
+
+	private Filter filter(int field, Predicate.Op op, int value, DbIterator child) {
+		return new Filter(new Predicate(field, op, new IntField(value)), child);
+	}
+
+	/**
+	 * A batch's selection narrows with each predicate applied
+	 */
+	@Test
+	public void tupleBatchFilter() {
+		TupleBatch b = new TupleBatch(Utility.getTupleDesc(2), 100);
+		for (int i = 0; i < 100; i++)
+			b.addTuple(Utility.getHeapTuple(new int[] { i, i % 7 }));
+		assertTrue(b.isFull());
+		assertEquals(100, b.numSelected());
+		assertEquals(50, b.filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(50))));
+		int expected = 0;
+		for (int i = 50; i < 100; i++) {
+			if (i % 7 != 3)
+				expected++;
+		}
+		assertEquals(expected, b.filter(new Predicate(1, Predicate.Op.NOT_EQUALS, new IntField(3))));
+		int last = -1;
+		for (int i = 0; i < b.numSelected(); i++) {
+			int r = b.selected(i);
+			assertTrue(r > last && r >= 50 && b.getInt(1, r) != 3);
+			assertEquals(r, ((IntField) b.getTuple(r).getField(0)).getValue());
+			last = r;
+		}
+		b.clear();
+		assertEquals(0, b.numSelected());
+	}
+
+	/**
+	 * A scan, filter and projection return the same tuples a batch at a time
+	 * as a row at a time, and so does BatchToRows over them
+	 */
+	@Test
+	public void scanFilterProject() throws Exception {
+		ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(2, 0));
+		Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+		Project p = new Project(fields, types,
+				filter(1, Predicate.Op.LESS_THAN, MAX_VALUE / 3,
+						filter(0, Predicate.Op.GREATER_THAN, MAX_VALUE / 2, new SeqScan(tid, f1.getId(), "t"))));
+		ArrayList<List<Integer>> expected = new ArrayList<List<Integer>>();
+		for (ArrayList<Integer> t : tuples1) {
+			if (t.get(0) > MAX_VALUE / 2 && t.get(1) < MAX_VALUE / 3)
+				expected.add(new ArrayList<Integer>(Arrays.asList(t.get(2), t.get(0))));
+		}
+		TestUtil.sort(expected);
+		assertTrue(expected.size() > 0);
+		assertEquals(expected, read(p));
+		assertEquals(expected, batches(p));
+		assertEquals(expected, read(new BatchToRows(p)));
+
+		ArrayList<List<Integer>> all = new ArrayList<List<Integer>>(tuples1);
+		TestUtil.sort(all);
+		assertEquals(all, batches(new SeqScan(tid, f1.getId(), "t")));
+	}
+
+	/**
+	 * Batch operators read row operators' tuples through RowsToBatch
+	 */
+	@Test
+	public void rowChild() throws Exception {
+		Filter f = filter(0, Predicate.Op.LESS_THAN, 0, new TestUtil.MockScan(-3000, 3000, 2));
+		ArrayList<List<Integer>> result = batches(f);
+		assertEquals(3000, result.size());
+		assertEquals(read(f), result);
+	}
+
+	/**
+	 * Aggregates over batches give the same results as over rows, with and
+	 * without grouping
+	 */
+	@Test
+	public void aggregate() throws Exception {
+		for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.MAX,
+				Aggregator.Op.COUNT, Aggregator.Op.AVG }) {
+			for (int gfield : new int[] { Aggregator.NO_GROUPING, 1 }) {
+				Aggregate batched = new Aggregate(
+						filter(0, Predicate.Op.LESS_THAN_OR_EQ, MAX_VALUE / 2, new SeqScan(tid, f1.getId(), "t")),
+						2, gfield, op);
+				Aggregate rowwise = new Aggregate(
+						filter(0, Predicate.Op.LESS_THAN_OR_EQ, MAX_VALUE / 2,
+								new TupleIterator(Utility.getTupleDesc(3), heapTuples(tuples1))),
+						2, gfield, op);
+				ArrayList<List<Integer>> expected = read(new BatchToRows(rowwise));
+				assertEquals(gfield == Aggregator.NO_GROUPING, expected.size() == 1);
+				assertEquals(expected, read(batched));
+				assertEquals(expected, batches(batched));
+			}
+		}
+	}
+
+	private static ArrayList<Tuple> heapTuples(ArrayList<ArrayList<Integer>> tuples) {
+		ArrayList<Tuple> result = new ArrayList<Tuple>();
+		for (ArrayList<Integer> t : tuples) {
+			int[] values = new int[t.size()];
+			for (int i = 0; i < values.length; i++)
+				values[i] = t.get(i);
+			result.add(Utility.getHeapTuple(values));
+		}
+		return result;
+	}
+
+	/**
+	 * A hash join probed a batch at a time returns the same tuples as one
+	 * probed a row at a time
+	 */
+	@Test
+	public void hashEquiJoin() throws Exception {
+		HashEquiJoin j = new HashEquiJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+				new SeqScan(tid, f1.getId(), "a"),
+				filter(1, Predicate.Op.GREATER_THAN, MAX_VALUE / 4, new SeqScan(tid, f2.getId(), "b")));
+		ArrayList<List<Integer>> expected = read(j);
+		assertTrue(expected.size() > TupleBatch.DEFAULT_SIZE);
+		assertEquals(expected, batches(j));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BatchExecutionTest.class);
+	}
+}
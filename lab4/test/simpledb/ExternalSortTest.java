@@ -0,0 +1,66 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+
+    private ArrayList<Integer> sort(int count, int runTuples, int expectedRuns) throws IOException {
+        TupleDesc td = Utility.getTupleDesc(2);
+        ExternalSort sort = new ExternalSort(td, new BTreeFileEncoder.TupleComparator(0), runTuples);
+        Random r = new Random(count);
+        for (int i = 0; i < count; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(r.nextInt(1000)));
+            t.setField(1, new IntField(i));
+            sort.add(t);
+        }
+        assertEquals(count, sort.size());
+
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        Iterator<Tuple> it = sort.iterator();
+        assertEquals(expectedRuns, sort.numRuns());
+        while (it.hasNext())
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        sort.close();
+        return keys;
+    }
+
+    private void checkSorted(ArrayList<Integer> keys, int count) {
+        assertEquals(count, keys.size());
+        for (int i = 1; i < keys.size(); i++)
+            assertFalse(keys.get(i - 1) > keys.get(i));
+    }
+
+    /**
+     * Unit test for a sort that fits in one in-memory run
+     */
+    @Test public void inMemory() throws IOException {
+        checkSorted(sort(500, 1000, 0), 500);
+    }
+
+    /**
+     * Unit test for a sort that spills several runs and merges them
+     */
+    @Test public void spilled() throws IOException {
+        checkSorted(sort(10500, 1000, 11), 10500);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
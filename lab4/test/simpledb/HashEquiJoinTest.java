@@ -0,0 +1,96 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+	/** @return the tuples of an open join, a batch at a time, sorted */
+	private static ArrayList<List<Integer>> batches(BatchIterator it) throws Exception {
+		ArrayList<List<Integer>> result = new ArrayList<List<Integer>>();
+		TupleBatch b;
+		while ((b = it.nextBatch()) != null) {
+			for (int i = 0; i < b.numSelected(); i++)
+				result.add(TestUtil.toList(b.getTuple(b.selected(i))));
+		}
+		TestUtil.sort(result);
+		return result;
+	}
+
+	/**
+	 * Join outer and inner, holding memoryTuples outer tuples in memory, and
+	 * check the result read both ways, and that each child is read at most
+	 * once
+	 */
+	private void validate(ArrayList<Tuple> outer, ArrayList<Tuple> inner, int memoryTuples) throws Exception {
+		ArrayList<List<Integer>> expected = TestUtil.equiJoin(outer, inner);
+		TestUtil.CountingIterator c1 = new TestUtil.CountingIterator(Utility.getTupleDesc(2), outer);
+		TestUtil.CountingIterator c2 = new TestUtil.CountingIterator(Utility.getTupleDesc(2), inner);
+		HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), c1, c2, memoryTuples);
+		j.open();
+		assertEquals(expected, TestUtil.rows(j));
+		assertEquals(outer.size(), c1.read);
+		// with no outer tuples the inner is not read at all
+		int innerReads = (outer.isEmpty() ? 0 : inner.size());
+		assertEquals(innerReads, c2.read);
+
+		j.rewind();
+		assertEquals(expected, batches(j));
+		assertEquals(2 * outer.size(), c1.read);
+		assertEquals(2 * innerReads, c2.read);
+		j.close();
+	}
+
+	/**
+	 * An outer relation that fits in memory is joined without partitions
+	 */
+	@Test
+	public void inMemory() throws Exception {
+		Random r = new Random(1);
+		validate(TestUtil.tuples(3000, 1000, r), TestUtil.tuples(2000, 1000, r), HashEquiJoin.MAP_SIZE);
+	}
+
+	/**
+	 * An outer relation larger than memory is partitioned, each child still
+	 * read once
+	 */
+	@Test
+	public void partitioned() throws Exception {
+		Random r = new Random(2);
+		validate(TestUtil.tuples(5000, 4000, r), TestUtil.tuples(3000, 4000, r), 1000);
+		validate(TestUtil.tuples(5000, 4000, r), TestUtil.tuples(3000, 4000, r), 100);
+	}
+
+	/**
+	 * Partitions that still do not fit in memory, because many outer tuples
+	 * share a key, are joined a memory load at a time
+	 */
+	@Test
+	public void skewed() throws Exception {
+		Random r = new Random(3);
+		validate(TestUtil.tuples(2000, 5, r), TestUtil.tuples(500, 10, r), 50);
+	}
+
+	/**
+	 * An empty relation on either side joins nothing
+	 */
+	@Test
+	public void emptyInput() throws Exception {
+		Random r = new Random(4);
+		validate(new ArrayList<Tuple>(), TestUtil.tuples(100, 10, r), 10);
+		validate(TestUtil.tuples(100, 10, r), new ArrayList<Tuple>(), 10);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashEquiJoinTest.class);
+	}
+}
@@ -0,0 +1,223 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashFileTest extends SimpleDbTestBase {
+	private static final int MAX_KEY = 5000;
+
+	private HashFile f;
+	private HashMap<Integer, Integer> counts;
+	private Random r;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		File file = File.createTempFile("hash", ".dat");
+		file.delete();
+		file.deleteOnExit();
+		f = new HashFile(file, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(f, "hash" + f.getId());
+		Database.resetBufferPool(1000);
+		counts = new HashMap<Integer, Integer>();
+		r = new Random(42);
+	}
+
+	/** Insert tuples with random keys, in transactions of 1000 */
+	private void insert(int n) throws Exception {
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < n; i++) {
+			int key = r.nextInt(MAX_KEY);
+			Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[] { key, i }));
+			Integer c = counts.get(key);
+			counts.put(key, c == null ? 1 : c + 1);
+			if (i % 1000 == 999) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/** Returns the tuples of f that satisfy the predicate, read in transaction t */
+	private ArrayList<Tuple> lookup(TransactionId t, Predicate.Op op, int key) throws Exception {
+		DbFileIterator it = f.indexIterator(t, new IndexPredicate(op, new IntField(key)));
+		ArrayList<Tuple> result = new ArrayList<Tuple>();
+		it.open();
+		while (it.hasNext())
+			result.add(it.next());
+		it.close();
+		return result;
+	}
+
+	/** Check that lookups of every key, and a scan, find the tuples counted */
+	private void check() throws Exception {
+		TransactionId t = new TransactionId();
+		int total = 0;
+		for (int key = 0; key < MAX_KEY; key++) {
+			Integer c = counts.get(key);
+			ArrayList<Tuple> found = lookup(t, Predicate.Op.EQUALS, key);
+			assertEquals(c == null ? 0 : c.intValue(), found.size());
+			for (Tuple tup : found)
+				assertEquals(key, ((IntField) tup.getField(0)).getValue());
+			total += found.size();
+		}
+		DbFileIterator it = f.iterator(t);
+		it.open();
+		int scanned = 0;
+		while (it.hasNext()) {
+			it.next();
+			scanned++;
+		}
+		it.close();
+		assertEquals(total, scanned);
+		Database.getBufferPool().transactionComplete(t);
+	}
+
+	/** Returns the number of pages in each bucket's chain */
+	private int[] chainLengths() throws Exception {
+		HashMetaPage meta = (HashMetaPage) f.readPage(f.metaPageId());
+		int[] lengths = new int[meta.getNumBuckets()];
+		for (int b = 0; b < lengths.length; b++) {
+			int pgNo = meta.bucketPage(b);
+			while (pgNo != 0) {
+				lengths[b]++;
+				pgNo = ((HashBucketPage) f.readPage(new HashPageId(f.getId(), pgNo, HashPageId.BUCKET)))
+						.getNextPage();
+			}
+		}
+		return lengths;
+	}
+
+	/**
+	 * Page data read back gives the same page
+	 */
+	@Test
+	public void pageData() throws Exception {
+		HashBucketPage p = new HashBucketPage(new HashPageId(f.getId(), 3, HashPageId.BUCKET),
+				HashBucketPage.createEmptyPageData());
+		assertEquals(p.getMaxTuples(), p.getNumEmptySlots());
+		for (int i = 0; i < 10; i++)
+			p.insertTuple(Utility.getHeapTuple(new int[] { i, -i }));
+		p.setNextPage(17);
+		HashBucketPage q = new HashBucketPage(p.getId(), p.getPageData());
+		assertEquals(17, q.getNextPage());
+		assertEquals(p.getMaxTuples() - 10, q.getNumEmptySlots());
+		Iterator<Tuple> it = q.iterator();
+		for (int i = 0; i < 10; i++)
+			assertEquals(-i, ((IntField) it.next().getField(1)).getValue());
+
+		HashMetaPage meta = new HashMetaPage(f.metaPageId(), HashMetaPage.createEmptyPageData(4));
+		for (int i = 0; i < 9; i++)
+			meta.addBucket();
+		HashMetaPage meta2 = new HashMetaPage(meta.getId(), meta.getPageData());
+		assertEquals(13, meta2.getNumBuckets());
+		for (int b = 0; b < 13; b++)
+			assertEquals(meta.bucketPage(b), meta2.bucketPage(b));
+	}
+
+	/**
+	 * The primary pages of the buckets are distinct, and a key's bucket is
+	 * always one of the existing ones
+	 */
+	@Test
+	public void bucketPages() throws Exception {
+		HashMetaPage meta = new HashMetaPage(f.metaPageId(), HashMetaPage.createEmptyPageData(3));
+		HashSet<Integer> pages = new HashSet<Integer>();
+		for (int b = 0; b < meta.getNumBuckets(); b++)
+			assertTrue(pages.add(meta.bucketPage(b)));
+		for (int i = 0; i < 200; i++) {
+			int page = meta.addBucket();
+			assertTrue(pages.add(page));
+			assertEquals(page, meta.bucketPage(meta.getNumBuckets() - 1));
+			assertTrue(page < meta.getNumPages());
+			int h = r.nextInt(Integer.MAX_VALUE);
+			assertTrue(meta.bucketFor(h) < meta.getNumBuckets());
+		}
+		assertFalse(pages.contains(0));
+	}
+
+	/**
+	 * Lookups find every tuple inserted, and the buckets grow with the
+	 * tuples so that a lookup reads about one page
+	 */
+	@Test
+	public void insertAndLookup() throws Exception {
+		insert(30000);
+		check();
+		int[] lengths = chainLengths();
+		assertTrue(lengths.length > 50);
+		int pages = 0;
+		for (int l : lengths)
+			pages += l;
+		assertTrue("average chain " + (double) pages / lengths.length, pages < 1.5 * lengths.length);
+	}
+
+	/**
+	 * Predicates other than EQUALS are answered by a scan
+	 */
+	@Test
+	public void rangePredicate() throws Exception {
+		insert(5000);
+		int expected = 0;
+		for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+			if (e.getKey() > MAX_KEY / 2)
+				expected += e.getValue();
+		}
+		TransactionId t = new TransactionId();
+		assertEquals(expected, lookup(t, Predicate.Op.GREATER_THAN, MAX_KEY / 2).size());
+		Database.getBufferPool().transactionComplete(t);
+	}
+
+	/**
+	 * Deleted tuples are no longer found
+	 */
+	@Test
+	public void delete() throws Exception {
+		insert(10000);
+		TransactionId t = new TransactionId();
+		for (int key = 0; key < MAX_KEY; key += 2) {
+			for (Tuple tup : lookup(t, Predicate.Op.EQUALS, key))
+				Database.getBufferPool().deleteTuple(t, tup);
+			counts.remove(key);
+		}
+		Database.getBufferPool().transactionComplete(t);
+		check();
+	}
+
+	/**
+	 * An aborted transaction's inserts, and the splits they caused, are
+	 * undone, and the file reads back the same from disk
+	 */
+	@Test
+	public void abortAndReread() throws Exception {
+		insert(5000);
+		int buckets = chainLengths().length;
+		TransactionId t = new TransactionId();
+		for (int i = 0; i < 5000; i++)
+			Database.getBufferPool().insertTuple(t, f.getId(), Utility.getHeapTuple(new int[] { i, i }));
+		Database.getBufferPool().transactionComplete(t, false);
+		assertEquals(buckets, chainLengths().length);
+		check();
+
+		Database.resetBufferPool(1000);
+		check();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashFileTest.class);
+	}
+}
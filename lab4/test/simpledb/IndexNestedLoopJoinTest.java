@@ -0,0 +1,194 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+	private static final int ROWS = 50000;
+	private static final int MAX_VALUE = 100000;
+
+	/** Counts the number of readPage operations */
+	private static class InstrumentedBTreeFile extends BTreeFile {
+		int readCount = 0;
+
+		InstrumentedBTreeFile(File f, int keyField, TupleDesc td) {
+			super(f, keyField, td);
+		}
+
+		@Override
+		public Page readPage(PageId pid) throws NoSuchElementException {
+			readCount++;
+			return super.readPage(pid);
+		}
+	}
+
+	private final Random r = new Random(11);
+	private InstrumentedBTreeFile inner;
+	private ArrayList<ArrayList<Integer>> innerTuples;
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		innerTuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile f = BTreeUtility.createRandomBTreeFile(2, ROWS, MAX_VALUE, null, innerTuples, 0);
+		inner = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+		Database.getCatalog().addTable(inner, SystemTestUtil.getUUID());
+		tid = new TransactionId();
+	}
+
+	/** @return outer tuples of two fields, half of their keys in the inner table */
+	private ArrayList<Tuple> outer(int n) {
+		ArrayList<Tuple> result = new ArrayList<Tuple>();
+		for (int i = 0; i < n; i++) {
+			int key = (i % 2 == 0 ? innerTuples.get(r.nextInt(ROWS)).get(0) : r.nextInt(MAX_VALUE));
+			result.add(Utility.getHeapTuple(new int[] { key, i }));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the outer tuples joined with the inner tuples with the same key
+	 *         whose second field is below maxField1
+	 */
+	private ArrayList<List<Integer>> expected(ArrayList<Tuple> outer, int maxField1) {
+		ArrayList<List<Integer>> result = new ArrayList<List<Integer>>();
+		for (Tuple t : outer) {
+			ArrayList<Integer> o = SystemTestUtil.tupleToList(t);
+			for (ArrayList<Integer> i : innerTuples) {
+				if (o.get(0).equals(i.get(0)) && i.get(1) < maxField1) {
+					ArrayList<Integer> row = new ArrayList<Integer>(o);
+					row.addAll(i);
+					result.add(row);
+				}
+			}
+		}
+		TestUtil.sort(result);
+		return result;
+	}
+
+	/**
+	 * Probing the index gives the same tuples as a nested loops join, and
+	 * reads only a few of the tree's pages for a few outer tuples
+	 */
+	@Test
+	public void probe() throws Exception {
+		ArrayList<Tuple> outer = outer(40);
+		ArrayList<List<Integer>> expected = expected(outer, Integer.MAX_VALUE);
+		assertTrue(expected.size() >= 20);
+
+		for (int probeTuples : new int[] { 1, 7, IndexNestedLoopJoin.DEFAULT_PROBE_TUPLES }) {
+			Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+			inner.readCount = 0;
+			IndexNestedLoopJoin j = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+					new TupleIterator(Utility.getTupleDesc(2), outer), new BTreeScan(tid, inner.getId(), "b", null),
+					probeTuples);
+			j.open();
+			assertEquals(expected, TestUtil.rows(j));
+			assertTrue(inner.readCount < inner.numPages() / 2);
+			j.rewind();
+			assertEquals(expected, TestUtil.rows(j));
+			j.close();
+		}
+	}
+
+	/**
+	 * Filters over the inner scan, and its own index predicate, still apply
+	 * to the tuples probed
+	 */
+	@Test
+	public void filteredInner() throws Exception {
+		ArrayList<Tuple> outer = outer(500);
+		DbIterator filtered = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 2)),
+				new BTreeScan(tid, inner.getId(), "b", null));
+		IndexNestedLoopJoin j = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+				new TupleIterator(Utility.getTupleDesc(2), outer), filtered, 64);
+		j.open();
+		assertEquals(expected(outer, MAX_VALUE / 2), TestUtil.rows(j));
+		j.close();
+
+		IndexPredicate ipred = new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 3));
+		j = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+				new TupleIterator(Utility.getTupleDesc(2), outer), new BTreeScan(tid, inner.getId(), "b", ipred));
+		j.open();
+		ArrayList<List<Integer>> expected = new ArrayList<List<Integer>>();
+		for (List<Integer> row : expected(outer, Integer.MAX_VALUE)) {
+			if (row.get(2) < MAX_VALUE / 3)
+				expected.add(row);
+		}
+		assertEquals(expected, TestUtil.rows(j));
+		j.close();
+	}
+
+	/**
+	 * An inner relation that is not a B+ tree keyed on the join field cannot
+	 * be probed
+	 */
+	@Test
+	public void unsupported() throws Exception {
+		DbIterator outer = new TestUtil.MockScan(0, 10, 2);
+		BTreeScan scan = new BTreeScan(tid, inner.getId(), "b", null);
+		assertTrue(IndexNestedLoopJoin.canProbe(scan, 0));
+		assertFalse(IndexNestedLoopJoin.canProbe(scan, 1));
+		assertFalse(IndexNestedLoopJoin.canProbe(new TestUtil.MockScan(0, 10, 2), 0));
+		try {
+			new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1), outer, scan);
+			fail("the B+ tree is not keyed on field 1");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0), outer, scan);
+			fail("an index join must be on EQUALS");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * The optimizer finds an index join on a few outer tuples cheaper than
+	 * reading the inner table, and instantiates the joins it marks to probe
+	 * the index as index joins
+	 */
+	@Test
+	public void optimizer() throws Exception {
+		HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, MAX_VALUE, null,
+				new ArrayList<ArrayList<Integer>>());
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(small.getId(), "a");
+		lp.addScan(inner.getId(), "b");
+		JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+		LogicalJoinNode node = new LogicalJoinNode("a", "b", "a.c0", "b.c0", Predicate.Op.EQUALS);
+		double scanCost = inner.numPages() * 1000.0;
+		assertTrue(jo.estimateJoinCost(node, 10, ROWS, 1000, scanCost) < 1000 + scanCost);
+		assertTrue(jo.estimateJoinCost(node.swapInnerOuter(), ROWS, 10, scanCost, 1000) > scanCost + 1000);
+
+		Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+		DbIterator a = new TupleIterator(new TupleDesc(types, new String[] { "a.c0", "a.c1" }), outer(10));
+		DbIterator b = new BTreeScan(tid, inner.getId(), "b", null);
+		assertTrue(JoinOptimizer.instantiateJoin(node, a, b) instanceof HashEquiJoin);
+		node.probeIndex = true;
+		assertTrue(JoinOptimizer.instantiateJoin(node, a, b) instanceof IndexNestedLoopJoin);
+		// an inner side that is not the B+ tree itself is joined without it
+		DbIterator other = new TupleIterator(new TupleDesc(types, new String[] { "b.c0", "b.c1" }), outer(10));
+		assertTrue(JoinOptimizer.instantiateJoin(node, a, other) instanceof HashEquiJoin);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+	}
+}
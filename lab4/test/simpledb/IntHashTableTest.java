@@ -0,0 +1,75 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+	/**
+	 * Keys are numbered in the order they are first added, across many
+	 * doublings of the table, and found again by their numbers
+	 */
+	@Test
+	public void addAndFind() {
+		Random r = new Random(1);
+		IntHashTable table = new IntHashTable();
+		HashMap<Integer, Integer> ids = new HashMap<Integer, Integer>();
+		for (int i = 0; i < 100000; i++) {
+			// a mix of clustered, negative and arbitrary keys
+			int key = (i % 3 == 0 ? r.nextInt(1000) : i % 3 == 1 ? -r.nextInt(50000) : r.nextInt());
+			Integer id = ids.get(key);
+			if (id == null) {
+				id = ids.size();
+				ids.put(key, id);
+			}
+			assertEquals((int) id, table.add(key));
+		}
+		assertEquals(ids.size(), table.size());
+		for (Map.Entry<Integer, Integer> e : ids.entrySet()) {
+			assertEquals((int) e.getValue(), table.find(e.getKey()));
+			assertEquals((int) e.getKey(), table.key(e.getValue()));
+		}
+		for (int i = 0; i < 1000; i++) {
+			int key = r.nextInt();
+			if (!ids.containsKey(key))
+				assertEquals(-1, table.find(key));
+		}
+	}
+
+	/**
+	 * A cleared table holds no keys and numbers new ones from 0 again
+	 */
+	@Test
+	public void clear() {
+		IntHashTable table = new IntHashTable(4);
+		for (int i = 0; i < 100; i++)
+			table.add(i * 7);
+		table.clear();
+		assertEquals(0, table.size());
+		assertEquals(-1, table.find(0));
+		assertEquals(-1, table.find(7 * 99));
+		assertEquals(0, table.add(42));
+		assertEquals(1, table.add(0));
+		assertEquals(0, table.add(42));
+		assertEquals(2, table.size());
+		try {
+			table.key(2);
+			fail("there is no key 2");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IntHashTableTest.class);
+	}
+}
@@ -1,8 +1,9 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
-import java.util.NoSuchElementException;
+import java.util.*;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -178,6 +179,65 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /** @return the tuples of an aggregate's results, as sorted strings */
+  private static ArrayList<String> results(Aggregator agg) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    DbIterator it = agg.iterator();
+    it.open();
+    while (it.hasNext())
+      rows.add(it.next().toString());
+    it.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * Test that an aggregator with more groups than its memory budget spills
+   * them and gives the same results for every operator, also when more
+   * tuples, and batches, are merged after its results were read
+   */
+  @Test public void spill() throws Exception {
+    Random r = new Random(1);
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < 20000; i++)
+      tuples.add(Utility.getHeapTuple(new int[] { r.nextInt(5000), r.nextInt(2000) - 1000, r.nextInt(5) + 1 }));
+    TupleBatch batch = new TupleBatch(Utility.getTupleDesc(3), 1000);
+    for (int i = 0; i < 1000; i++)
+      batch.addTuple(Utility.getHeapTuple(new int[] { r.nextInt(6000), r.nextInt(2000), 1 }));
+
+    for (Aggregator.Op op : Aggregator.Op.values()) {
+      IntegerAggregator inMemory = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+      IntegerAggregator spilled = new IntegerAggregator(0, Type.INT_TYPE, 1, op, 100);
+      for (Tuple t : tuples.subList(0, 15000)) {
+        inMemory.mergeTupleIntoGroup(t);
+        spilled.mergeTupleIntoGroup(t);
+      }
+      assertEquals(results(inMemory), results(spilled));
+      for (Tuple t : tuples.subList(15000, 20000)) {
+        inMemory.mergeTupleIntoGroup(t);
+        spilled.mergeTupleIntoGroup(t);
+      }
+      inMemory.mergeBatchIntoGroup(batch);
+      spilled.mergeBatchIntoGroup(batch);
+      ArrayList<String> expected = results(inMemory);
+      assertTrue(expected.size() > 5000);
+      assertEquals(expected, results(spilled));
+    }
+
+    // groups on a string field
+    IntegerAggregator inMemory = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator spilled = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.AVG, 10);
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+    for (Tuple t : tuples.subList(0, 2000)) {
+      Tuple s = new Tuple(td);
+      s.setField(0, new StringField("g" + t.getField(0), Type.STRING_LEN));
+      s.setField(1, t.getField(1));
+      inMemory.mergeTupleIntoGroup(s);
+      spilled.mergeTupleIntoGroup(s);
+    }
+    assertEquals(results(inMemory), results(spilled));
+  }
+
   /**
    * JUnit suite target
    */
@@ -3,6 +3,9 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -105,6 +108,63 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * A TupleIterator that counts how often it is rewound
+   */
+  private static class RewindCounter extends TupleIterator {
+    private static final long serialVersionUID = 1L;
+    int rewinds = 0;
+
+    RewindCounter(TupleDesc td, Iterable<Tuple> tuples) {
+      super(td, tuples);
+    }
+
+    public void rewind() {
+      rewinds++;
+      super.rewind();
+    }
+  }
+
+  /**
+   * Unit test for Join.getNext() when the outer relation does not fit in one
+   * block: the inner relation is scanned once per block, not per tuple
+   */
+  @Test public void blockJoin() throws Exception {
+    int blockTuples = Join.blockTuples(Utility.getTupleDesc(width1), 1);
+    int outerTuples = 3 * blockTuples + 7;
+    ArrayList<Tuple> outer = new ArrayList<Tuple>();
+    for (int i = 0; i < outerTuples; i++)
+      outer.add(Utility.getHeapTuple(new int[] { i % 10, i }));
+    ArrayList<Tuple> inner = new ArrayList<Tuple>();
+    for (int i = 0; i < 20; i++)
+      inner.add(Utility.getHeapTuple(i / 2, width2));
+    RewindCounter c2 = new RewindCounter(Utility.getTupleDesc(width2), inner);
+
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Join op = new Join(pred, new TupleIterator(Utility.getTupleDesc(width1), outer), c2, 1);
+    assertEquals(blockTuples, op.getBlockTuples());
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(width1));
+      count++;
+    }
+    // each outer tuple matches two inner tuples
+    assertEquals(2 * outerTuples, count);
+    assertEquals(3, c2.rewinds);
+
+    op.rewind();
+    count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(2 * outerTuples, count);
+    assertEquals(3 + 1 + 3, c2.rewinds);
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,70 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LZ4CodecTest extends SimpleDbTestBase {
+
+    private void roundTrip(byte[] data) throws IOException {
+        byte[] packed = LZ4Codec.compress(data);
+        assertArrayEquals(data, LZ4Codec.decompress(packed, data.length));
+    }
+
+    /**
+     * Unit test for round trips of short, random and repetitive inputs
+     */
+    @Test public void roundTrips() throws IOException {
+        Random r = new Random(339);
+        roundTrip(new byte[0]);
+        roundTrip(new byte[] { 1, 2, 3 });
+
+        byte[] random = new byte[5000];
+        r.nextBytes(random);
+        roundTrip(random);
+
+        byte[] text = new byte[5000];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) "the quick brown fox ".charAt(i % 20);
+        roundTrip(text);
+
+        byte[] mixed = new byte[70000];
+        for (int i = 0; i < mixed.length; i += 7)
+            mixed[i] = (byte) r.nextInt(4);
+        roundTrip(mixed);
+    }
+
+    /**
+     * Unit test for compressing an empty heap page, which is all zeros
+     */
+    @Test public void emptyPage() throws IOException {
+        byte[] empty = HeapPage.createEmptyPageData();
+        byte[] packed = LZ4Codec.compress(empty);
+        assertTrue(packed.length < empty.length / 50);
+        assertArrayEquals(empty, LZ4Codec.decompress(packed, empty.length));
+    }
+
+    /**
+     * Unit test for decompressing a truncated block
+     */
+    @Test(expected=IOException.class) public void corrupt() throws IOException {
+        byte[] packed = LZ4Codec.compress(HeapPage.createEmptyPageData());
+        LZ4Codec.decompress(Arrays.copyOf(packed, packed.length - 3), BufferPool.getPageSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LZ4CodecTest.class);
+    }
+}
@@ -0,0 +1,108 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogInspectorTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+    private Transaction committed;
+    private Transaction aborted;
+
+    private void insertRows(Transaction t, int count) throws Exception {
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < count; i++) {
+            Tuple tup = new Tuple(Utility.getTupleDesc(2));
+            tup.setField(0, new IntField(i));
+            tup.setField(1, new IntField(i));
+            rows.add(tup);
+        }
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), rows), hf.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        file = SystemTestUtil.createRandomHeapFileUnopened(2, 0, 0, null, null);
+        hf = Utility.openHeapFile(2, file);
+
+        committed = new Transaction();
+        committed.start();
+        insertRows(committed, 1000);
+        committed.commit();
+
+        aborted = new Transaction();
+        aborted.start();
+        insertRows(aborted, 10);
+        Database.getBufferPool().flushPages(aborted.getId());
+        aborted.abort();
+    }
+
+    /**
+     * Unit test for LogInspector.printStats(): transactions and tables are
+     * reported with their outcomes
+     */
+    @Test public void stats() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LogInspector inspector = new LogInspector(Database.getLogFile().logFile);
+        inspector.printStats(new PrintStream(bytes));
+        inspector.close();
+
+        String stats = bytes.toString();
+        assertTrue(stats.contains("tid " + committed.getId().getId() + " (committed)"));
+        assertTrue(stats.contains("tid " + aborted.getId().getId() + " (aborted)"));
+        assertTrue(stats.contains(Database.getCatalog().getTableName(hf.getId()) + ": "));
+    }
+
+    /**
+     * Unit test for LogInspector.replay(): only the committed pages are
+     * replayed, and they match the table
+     */
+    @Test public void replay() throws IOException {
+        File dir = Files.createTempDirectory("replay").toFile();
+        LogInspector inspector = new LogInspector(Database.getLogFile().logFile);
+        int replayed = inspector.replay(dir, new PrintStream(new ByteArrayOutputStream()));
+        inspector.close();
+
+        // the table may end in empty pages appended by the aborted
+        // transaction, which were never logged
+        File copy = new File(dir, file.getName());
+        byte[] table = Files.readAllBytes(file.toPath());
+        byte[] replayedTable = Files.readAllBytes(copy.toPath());
+        assertEquals(replayed * BufferPool.getPageSize(), replayedTable.length);
+        assertArrayEquals(Arrays.copyOf(table, replayedTable.length), replayedTable);
+        for (int i = replayedTable.length; i < table.length; i++)
+            assertEquals(0, table[i]);
+
+        copy.delete();
+        dir.delete();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogInspectorTest.class);
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private static final int SEGMENT_SIZE = 64;
+
+    private File control;
+    private LogSegments log;
+
+    @Before public void setUp() throws IOException {
+        control = File.createTempFile("segments", "");
+        control.deleteOnExit();
+        log = new LogSegments(control, SEGMENT_SIZE);
+        log.reset();
+    }
+
+    @After public void tearDown() throws IOException {
+        log.reset();
+        log.close();
+    }
+
+    private File segment(int n) {
+        return new File(control.getPath() + "." + n);
+    }
+
+    /**
+     * Unit test for writes and reads that span segment boundaries
+     */
+    @Test public void spanSegments() throws IOException {
+        String s = "a string that straddles a segment boundary";
+        for (long i = 0; i < 40; i++)
+            log.writeLong(i);
+        log.writeUTF(s);
+
+        assertEquals(40 * 8 + 2 + s.length(), log.length());
+        assertTrue(segment(5).exists());
+
+        log.seek(0);
+        for (long i = 0; i < 40; i++)
+            assertEquals(i, log.readLong());
+        assertEquals(s, log.readUTF());
+    }
+
+    /**
+     * Unit test for LogSegments.truncateBefore(): whole segments are deleted,
+     * and offsets after the truncation point are unchanged
+     */
+    @Test public void truncate() throws IOException {
+        for (long i = 0; i < 40; i++)
+            log.writeLong(i);
+
+        log.truncateBefore(20 * 8);
+        assertFalse(segment(0).exists());
+        assertFalse(segment(1).exists());
+        assertTrue(segment(2).exists());
+        assertEquals(20 * 8, log.getFirstRecord());
+
+        log.seek(20 * 8);
+        assertEquals(20, log.readLong());
+
+        log.seek(0);
+        try {
+            log.readLong();
+            throw new RuntimeException("read before start of log");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for reopening a log: the checkpoint, start and end of the
+     * log survive
+     */
+    @Test public void reopen() throws IOException {
+        for (long i = 0; i < 40; i++)
+            log.writeLong(i);
+        log.setCheckpoint(24 * 8);
+        log.truncateBefore(16 * 8);
+        log.force();
+        log.close();
+
+        log = new LogSegments(control, SEGMENT_SIZE);
+        assertEquals(24 * 8, log.getCheckpoint());
+        assertEquals(16 * 8, log.getFirstRecord());
+        assertEquals(40 * 8, log.length());
+        log.seek(39 * 8);
+        assertEquals(39, log.readLong());
+    }
+
+    /**
+     * Unit test for LogSegments.readLine(): lines end at '\n', '\r' or
+     * "\r\n", may span segments, and the end of the log ends the last one
+     */
+    @Test public void readLine() throws IOException {
+        String longLine = "a line longer than a segment, so it spans the boundary between two";
+        log.writeBytes("first\r\nsecond\rthird\n\n" + longLine + "\nlast");
+
+        log.seek(0);
+        assertEquals("first", log.readLine());
+        assertEquals("second", log.readLine());
+        assertEquals("third", log.readLine());
+        assertEquals("", log.readLine());
+        assertEquals(longLine, log.readLine());
+        assertEquals("last", log.readLine());
+        assertNull(log.readLine());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelHashEquiJoinTest extends SimpleDbTestBase {
+
+	/**
+	 * Join outer and inner on the specified number of threads and check the
+	 * result, also after a rewind, and that each child is read once per pass
+	 */
+	private void validate(ArrayList<Tuple> outer, ArrayList<Tuple> inner, int threads, int memoryTuples)
+			throws Exception {
+		ArrayList<List<Integer>> expected = TestUtil.equiJoin(outer, inner);
+		TestUtil.CountingIterator c1 = new TestUtil.CountingIterator(Utility.getTupleDesc(2), outer);
+		TestUtil.CountingIterator c2 = new TestUtil.CountingIterator(Utility.getTupleDesc(2), inner);
+		ParallelHashEquiJoin j = new ParallelHashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), c1, c2,
+				threads, memoryTuples);
+		j.open();
+		assertEquals(expected, TestUtil.rows(j));
+		int innerReads = (outer.isEmpty() ? 0 : inner.size());
+		assertEquals(innerReads, c2.read);
+
+		j.rewind();
+		assertEquals(expected, TestUtil.rows(j));
+		assertEquals(2 * innerReads, c2.read);
+		j.close();
+	}
+
+	/**
+	 * The join gives the same tuples on any number of threads, across many
+	 * chunks of the inner relation
+	 */
+	@Test
+	public void threads() throws Exception {
+		Random r = new Random(1);
+		ArrayList<Tuple> outer = TestUtil.tuples(20000, 5000, r);
+		ArrayList<Tuple> inner = TestUtil.tuples(5 * ParallelHashEquiJoin.CHUNK_TUPLES + 17, 5000, r);
+		for (int threads : new int[] { 1, 2, 4, 7 })
+			validate(outer, inner, threads, HashEquiJoin.MAP_SIZE);
+	}
+
+	/**
+	 * Joined tuples come in the order of the inner relation
+	 */
+	@Test
+	public void innerOrder() throws Exception {
+		Random r = new Random(2);
+		ArrayList<Tuple> outer = TestUtil.tuples(1000, 100, r);
+		ArrayList<Tuple> inner = TestUtil.tuples(3 * ParallelHashEquiJoin.CHUNK_TUPLES, 100, r);
+		ParallelHashEquiJoin j = new ParallelHashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+				new TupleIterator(Utility.getTupleDesc(2), outer), new TupleIterator(Utility.getTupleDesc(2), inner),
+				4, HashEquiJoin.MAP_SIZE);
+		j.open();
+		int last = -1;
+		while (j.hasNext()) {
+			int seq = ((IntField) j.next().getField(3)).getValue();
+			assertTrue(seq >= last);
+			last = seq;
+		}
+		j.close();
+	}
+
+	/**
+	 * An outer relation larger than memory is joined on disk instead
+	 */
+	@Test
+	public void fallback() throws Exception {
+		Random r = new Random(3);
+		validate(TestUtil.tuples(3000, 2000, r), TestUtil.tuples(2000, 2000, r), 4, 500);
+	}
+
+	/**
+	 * An empty relation on either side joins nothing
+	 */
+	@Test
+	public void emptyInput() throws Exception {
+		Random r = new Random(4);
+		validate(new ArrayList<Tuple>(), TestUtil.tuples(100, 10, r), 2, 10);
+		validate(TestUtil.tuples(100, 10, r), new ArrayList<Tuple>(), 2, 1000);
+	}
+
+	/**
+	 * The optimizer plans equi-joins as parallel ones once a degree of
+	 * parallelism is configured
+	 */
+	@Test
+	public void instantiated() throws Exception {
+		Random r = new Random(5);
+		Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+		DbIterator a = new TupleIterator(new TupleDesc(types, new String[] { "a.k", "a.v" }), TestUtil.tuples(10, 5, r));
+		DbIterator b = new TupleIterator(new TupleDesc(types, new String[] { "b.k", "b.v" }), TestUtil.tuples(10, 5, r));
+		LogicalJoinNode node = new LogicalJoinNode("a", "b", "a.k", "b.k", Predicate.Op.EQUALS);
+		int old = ParallelHashEquiJoin.getParallelism();
+		try {
+			ParallelHashEquiJoin.setParallelism(1);
+			assertTrue(JoinOptimizer.instantiateJoin(node, a, b) instanceof HashEquiJoin);
+			ParallelHashEquiJoin.setParallelism(3);
+			DbIterator j = JoinOptimizer.instantiateJoin(node, a, b);
+			assertTrue(j instanceof ParallelHashEquiJoin);
+			assertEquals(3, ((ParallelHashEquiJoin) j).getThreads());
+		} finally {
+			ParallelHashEquiJoin.setParallelism(old);
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ParallelHashEquiJoinTest.class);
+	}
+}
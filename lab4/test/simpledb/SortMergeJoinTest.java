@@ -0,0 +1,184 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+	private final Random r = new Random(7);
+
+	/**
+	 * @return the pairs of outer and inner tuples whose keys differ by between
+	 *         low and high, or that satisfy op if it is not null
+	 */
+	private static ArrayList<List<Integer>> expected(ArrayList<Tuple> outer, ArrayList<Tuple> inner,
+			Predicate.Op op, int low, int high) {
+		ArrayList<List<Integer>> result = new ArrayList<List<Integer>>();
+		for (Tuple t1 : outer) {
+			for (Tuple t2 : inner) {
+				boolean match;
+				if (op != null) {
+					match = t1.getField(0).compare(op, t2.getField(0));
+				} else {
+					int d = ((IntField) t1.getField(0)).getValue() - ((IntField) t2.getField(0)).getValue();
+					match = low <= d && d <= high;
+				}
+				if (match)
+					result.add(TestUtil.toList(t1, t2));
+			}
+		}
+		TestUtil.sort(result);
+		return result;
+	}
+
+	/**
+	 * Check a join of outer and inner, and that it reads each of them once
+	 * however often it is rewound
+	 */
+	private void validate(ArrayList<Tuple> outer, ArrayList<Tuple> inner, Predicate.Op op, int low, int high,
+			int runTuples) throws Exception {
+		ArrayList<List<Integer>> expected = expected(outer, inner, op, low, high);
+		TestUtil.CountingIterator c1 = new TestUtil.CountingIterator(Utility.getTupleDesc(2), outer);
+		TestUtil.CountingIterator c2 = new TestUtil.CountingIterator(Utility.getTupleDesc(2), inner);
+		JoinPredicate p = new JoinPredicate(0, op == null ? Predicate.Op.EQUALS : op, 0);
+		SortMergeJoin j = new SortMergeJoin(p, op == null, low, high, c1, c2, runTuples);
+		j.open();
+		assertEquals(expected, TestUtil.rows(j));
+		j.rewind();
+		assertEquals(expected, TestUtil.rows(j));
+		j.close();
+		assertEquals(outer.size(), c1.read);
+		assertEquals(inner.size(), c2.read);
+	}
+
+	/**
+	 * Each supported predicate gives the same tuples as a nested loops join
+	 */
+	@Test
+	public void predicates() throws Exception {
+		ArrayList<Tuple> outer = TestUtil.tuples(300, 100, r);
+		ArrayList<Tuple> inner = TestUtil.tuples(200, 100, r);
+		for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+				Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+			validate(outer, inner, op, 0, 0, ExternalSort.DEFAULT_RUN_TUPLES);
+			validate(outer, inner, op, 0, 0, 32);
+		}
+	}
+
+	/**
+	 * Band joins match the tuples whose keys are within the band
+	 */
+	@Test
+	public void band() throws Exception {
+		ArrayList<Tuple> outer = TestUtil.tuples(500, 1000, r);
+		ArrayList<Tuple> inner = TestUtil.tuples(500, 1000, r);
+		validate(outer, inner, null, -3, 5, 50);
+		validate(outer, inner, null, 0, 0, 50);
+		validate(outer, inner, null, 10, 20, ExternalSort.DEFAULT_RUN_TUPLES);
+		validate(outer, inner, null, -20, -10, ExternalSort.DEFAULT_RUN_TUPLES);
+	}
+
+	/**
+	 * Inequality joins, and equality joins on a few keys, whose inner range
+	 * is much larger than a run keep at most a run of it in memory
+	 */
+	@Test
+	public void rangeLargerThanMemory() throws Exception {
+		ArrayList<Tuple> outer = TestUtil.tuples(100, 1000, r);
+		ArrayList<Tuple> inner = TestUtil.tuples(1000, 1000, r);
+		ArrayList<Tuple> skewed = TestUtil.tuples(1000, 3, r);
+		for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+				Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.EQUALS }) {
+			ArrayList<Tuple> in = (op == Predicate.Op.EQUALS ? skewed : inner);
+			ArrayList<Tuple> out = (op == Predicate.Op.EQUALS ? TestUtil.tuples(20, 3, r) : outer);
+			validate(out, in, op, 0, 0, 50);
+
+			SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, op, 0), false, 0, 0,
+					new TupleIterator(Utility.getTupleDesc(2), out), new TupleIterator(Utility.getTupleDesc(2), in), 50);
+			j.open();
+			// stop part way, then read it all after a rewind
+			for (int i = 0; i < 1000 && j.hasNext(); i++) {
+				j.next();
+				assertTrue(j.rangeTuplesInMemory() <= 50);
+			}
+			j.rewind();
+			ArrayList<List<Integer>> rows = new ArrayList<List<Integer>>();
+			while (j.hasNext()) {
+				rows.add(TestUtil.toList(j.next()));
+				assertTrue(j.rangeTuplesInMemory() <= 50);
+			}
+			TestUtil.sort(rows);
+			assertEquals(expected(out, in, op, 0, 0), rows);
+			j.close();
+		}
+	}
+
+	/**
+	 * Predicates that cannot be merged are refused
+	 */
+	@Test
+	public void unsupported() {
+		DbIterator c1 = new TestUtil.MockScan(0, 10, 2);
+		DbIterator c2 = new TestUtil.MockScan(0, 10, 2);
+		try {
+			new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), c1, c2);
+			fail("NOT_EQUALS should be refused");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new SortMergeJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0), 0, 1, c1, c2);
+			fail("a band join must be on EQUALS");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * A child already in order of its join field is not sorted again
+	 */
+	@Test
+	public void sortedChild() throws Exception {
+		ArrayList<Tuple> outer = TestUtil.tuples(400, 50, r);
+		ArrayList<Tuple> inner = TestUtil.tuples(300, 50, r);
+		OrderBy ordered = new OrderBy(0, true, new TupleIterator(Utility.getTupleDesc(2), outer));
+		assertTrue(SortMergeJoin.isSortedOn(ordered, 0));
+		assertFalse(SortMergeJoin.isSortedOn(ordered, 1));
+		assertFalse(SortMergeJoin.isSortedOn(new OrderBy(0, false, ordered), 0));
+
+		SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.GREATER_THAN_OR_EQ, 0), ordered,
+				new TupleIterator(Utility.getTupleDesc(2), inner));
+		j.open();
+		assertEquals(expected(outer, inner, Predicate.Op.GREATER_THAN_OR_EQ, 0, 0), TestUtil.rows(j));
+		j.close();
+	}
+
+	/**
+	 * The optimizer instantiates inequality joins as merge joins
+	 */
+	@Test
+	public void instantiated() throws Exception {
+		Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+		DbIterator a = new TupleIterator(new TupleDesc(types, new String[] { "a.k", "a.v" }), TestUtil.tuples(10, 5, r));
+		DbIterator b = new TupleIterator(new TupleDesc(types, new String[] { "b.k", "b.v" }), TestUtil.tuples(10, 5, r));
+		assertTrue(JoinOptimizer.instantiateJoin(new LogicalJoinNode("a", "b", "a.k", "b.k", Predicate.Op.LESS_THAN),
+				a, b) instanceof SortMergeJoin);
+		assertTrue(JoinOptimizer.instantiateJoin(new LogicalJoinNode("a", "b", "a.k", "b.k", Predicate.Op.EQUALS),
+				a, b) instanceof HashEquiJoin);
+		assertTrue(JoinOptimizer.instantiateJoin(new LogicalJoinNode("a", "b", "a.k", "b.k", Predicate.Op.NOT_EQUALS),
+				a, b) instanceof Join);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SortMergeJoinTest.class);
+	}
+}
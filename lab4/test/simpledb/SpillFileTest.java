@@ -0,0 +1,83 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SpillFileTest extends SimpleDbTestBase {
+
+    private static SpillFile fill(int count) throws IOException {
+        SpillFile f = new SpillFile(Utility.getTupleDesc(2));
+        for (int i = 0; i < count; i++)
+            f.add(Utility.getHeapTuple(new int[] { i, -i }));
+        return f;
+    }
+
+    private static void checkAll(Iterator<Tuple> it, int count) {
+        for (int i = 0; i < count; i++) {
+            Tuple t = it.next();
+            assertEquals(i, ((IntField) t.getField(0)).getValue());
+            assertEquals(-i, ((IntField) t.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /** Reading an iterator whose file has been closed under it is refused */
+    private static void checkClosed(Iterator<Tuple> it) {
+        try {
+            it.next();
+            fail("the iterator's file should be closed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A new iterator closes the file of one abandoned part way, and reads
+     * every tuple again
+     */
+    @Test public void abandonedIterator() throws IOException {
+        SpillFile f = fill(5000);
+        Iterator<Tuple> first = f.iterator();
+        for (int i = 0; i < 10; i++)
+            first.next();
+        Iterator<Tuple> second = f.iterator();
+        checkClosed(first);
+        checkAll(second, 5000);
+        f.delete();
+    }
+
+    /**
+     * delete() closes the file of an iterator abandoned part way, and the
+     * file can be filled again afterwards
+     */
+    @Test public void deleteClosesIterator() throws IOException {
+        SpillFile f = fill(5000);
+        Iterator<Tuple> it = f.iterator();
+        it.next();
+        f.delete();
+        checkClosed(it);
+        assertEquals(0, f.size());
+
+        for (int i = 0; i < 3; i++)
+            f.add(Utility.getHeapTuple(new int[] { i, -i }));
+        checkAll(f.iterator(), 3);
+        f.delete();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SpillFileTest.class);
+    }
+}
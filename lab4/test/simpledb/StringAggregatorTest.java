@@ -7,6 +7,7 @@ import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class StringAggregatorTest extends SimpleDbTestBase {
@@ -105,6 +106,57 @@ public class StringAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /** @return the tuples of an aggregate's results, as sorted strings */
+  private static ArrayList<String> results(Aggregator agg) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    DbIterator it = agg.iterator();
+    it.open();
+    while (it.hasNext())
+      rows.add(it.next().toString());
+    it.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * Test that counts grouped on INT and on STRING fields are the same when
+   * the groups are spilled to disk
+   */
+  @Test public void spill() throws Exception {
+    Random r = new Random(2);
+    Type[][] types = { { Type.INT_TYPE, Type.STRING_TYPE }, { Type.STRING_TYPE, Type.STRING_TYPE } };
+    for (Type[] t : types) {
+      TupleDesc td = new TupleDesc(t);
+      StringAggregator inMemory = new StringAggregator(0, t[0], 1, Aggregator.Op.COUNT);
+      StringAggregator spilled = new StringAggregator(0, t[0], 1, Aggregator.Op.COUNT, 50);
+      for (int i = 0; i < 5000; i++) {
+        int g = r.nextInt(2000);
+        Tuple tup = new Tuple(td);
+        tup.setField(0, t[0] == Type.INT_TYPE ? new IntField(g) : new StringField("g" + g, Type.STRING_LEN));
+        tup.setField(1, new StringField("x" + i, Type.STRING_LEN));
+        inMemory.mergeTupleIntoGroup(tup);
+        spilled.mergeTupleIntoGroup(tup);
+      }
+      ArrayList<String> expected = results(inMemory);
+      assertEquals(expected, results(spilled));
+      // rewinding reads the spilled groups again
+      DbIterator it = spilled.iterator();
+      it.open();
+      int n = 0;
+      while (it.hasNext()) {
+        it.next();
+        n++;
+      }
+      it.rewind();
+      while (it.hasNext()) {
+        it.next();
+        n--;
+      }
+      assertEquals(0, n);
+      assertTrue(expected.size() > 1500);
+    }
+  }
+
   /**
    * JUnit suite target
    */
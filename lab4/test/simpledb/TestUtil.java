@@ -190,6 +190,140 @@ public class TestUtil {
         return buf;
     }
 
+    /**
+     * A TupleIterator that counts the tuples read from it.
+     */
+    public static class CountingIterator extends TupleIterator {
+        private static final long serialVersionUID = 1L;
+        public int read = 0;
+
+        public CountingIterator(TupleDesc td, Iterable<Tuple> tuples) {
+            super(td, tuples);
+        }
+
+        public Tuple next() {
+            read++;
+            return super.next();
+        }
+    }
+
+    /**
+     * @return n tuples of two int fields, a random key below keys and a
+     *   sequence number
+     */
+    public static ArrayList<Tuple> tuples(int n, int keys, Random r) {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            result.add(Utility.getHeapTuple(new int[] { r.nextInt(keys), i }));
+        return result;
+    }
+
+    /**
+     * @return the int fields of the tuples, concatenated into one list
+     */
+    public static List<Integer> toList(Tuple... ts) {
+        ArrayList<Integer> l = new ArrayList<Integer>();
+        for (Tuple t : ts) {
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                l.add(((IntField) t.getField(i)).getValue());
+        }
+        return l;
+    }
+
+    /**
+     * Sorts rows of ints, as returned by toList, by their first field, then
+     * their second, and so on.
+     */
+    public static void sort(ArrayList<List<Integer>> rows) {
+        Collections.sort(rows, new Comparator<List<Integer>>() {
+            public int compare(List<Integer> a, List<Integer> b) {
+                for (int i = 0; i < a.size(); i++) {
+                    int c = a.get(i).compareTo(b.get(i));
+                    if (c != 0)
+                        return c;
+                }
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * @return the remaining tuples of an open iterator, as sorted lists of
+     *   ints
+     */
+    public static ArrayList<List<Integer>> rows(DbIterator it)
+        throws DbException, TransactionAbortedException {
+        ArrayList<List<Integer>> result = new ArrayList<List<Integer>>();
+        while (it.hasNext())
+            result.add(toList(it.next()));
+        sort(result);
+        return result;
+    }
+
+    /**
+     * @return the equality join of two lists of int tuples on their first
+     *   fields, as sorted lists of ints
+     */
+    public static ArrayList<List<Integer>> equiJoin(ArrayList<Tuple> outer, ArrayList<Tuple> inner) {
+        HashMap<Integer, ArrayList<Tuple>> byKey = new HashMap<Integer, ArrayList<Tuple>>();
+        for (Tuple t1 : outer) {
+            int k = ((IntField) t1.getField(0)).getValue();
+            if (!byKey.containsKey(k))
+                byKey.put(k, new ArrayList<Tuple>());
+            byKey.get(k).add(t1);
+        }
+        ArrayList<List<Integer>> result = new ArrayList<List<Integer>>();
+        for (Tuple t2 : inner) {
+            ArrayList<Tuple> l = byKey.get(((IntField) t2.getField(0)).getValue());
+            if (l != null) {
+                for (Tuple t1 : l)
+                    result.add(toList(t1, t2));
+            }
+        }
+        sort(result);
+        return result;
+    }
+
+    /**
+     * @return a B+ tree file of 30000 random tuples of two int fields, keyed
+     *   on the first, whose root is an internal page over about 60 leaves
+     * @param tuples the list to fill with the tuples of the file
+     */
+    public static BTreeFile createTwoLevelBTreeFile(ArrayList<ArrayList<Integer>> tuples)
+        throws IOException, DbException, TransactionAbortedException {
+        return BTreeUtility.createRandomBTreeFile(2, 30000, null, tuples, 0);
+    }
+
+    /**
+     * @return the number of times each value occurs in the first field of
+     *   the tuples
+     */
+    public static HashMap<Integer, Integer> countKeys(ArrayList<ArrayList<Integer>> tuples) {
+        HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            Integer c = counts.get(t.get(0));
+            counts.put(t.get(0), c == null ? 1 : c + 1);
+        }
+        return counts;
+    }
+
+    /**
+     * @return the number of tuples of a B+ tree file keyed on an int field
+     *   whose key is key, looked up through the index in transaction tid
+     */
+    public static int lookup(BTreeFile f, TransactionId tid, int key)
+        throws DbException, TransactionAbortedException {
+        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(key, ((IntField) it.next().getField(f.keyField())).getValue());
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
     /**
      * Stub DbFile class for unit testing.
      */
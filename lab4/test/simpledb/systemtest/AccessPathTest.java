@@ -0,0 +1,126 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Test the access path chosen by LogicalPlan.physicalPlan() for a table
+ * stored in a BTreeFile: selective filters on the key field read through
+ * the index, and others scan the whole tree.
+ */
+public class AccessPathTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 10000;
+
+    private BTreeFile bf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HashMap<String, TableStats> stats;
+
+    @Before public void setUp()
+            throws IOException, DbException, TransactionAbortedException {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+        File f = File.createTempFile("accesspath", ".dat");
+        f.deleteOnExit();
+        bf = BTreeUtility.openBTreeFile(2, "c", f, 0);
+        TransactionId tid = new TransactionId();
+        bf.bulkLoad(hf.iterator(tid));
+        Database.getBufferPool().transactionComplete(tid);
+
+        stats = new HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(bf.getId()), new TableStats(bf.getId(), 1000));
+    }
+
+    private DbIterator plan(TransactionId tid, String field, Predicate.Op op, int v)
+            throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "t");
+        lp.addFilter("t." + field, op, Integer.toString(v));
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    /** Returns the scan at the bottom of a single-table plan */
+    private static DbIterator scanOf(DbIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
+    /** Check that the plan returns the rows whose field satisfies op v */
+    private void check(DbIterator plan, int field, Predicate.Op op, int v)
+            throws DbException, TransactionAbortedException {
+        Predicate p = new Predicate(0, op, new IntField(v));
+        ArrayList<String> expected = new ArrayList<String>();
+        for (ArrayList<Integer> t : tuples) {
+            Tuple key = new Tuple(Utility.getTupleDesc(1));
+            key.setField(0, new IntField(t.get(field)));
+            if (p.filter(key))
+                expected.add(t.toString());
+        }
+        ArrayList<String> actual = new ArrayList<String>();
+        plan.open();
+        while (plan.hasNext())
+            actual.add(SystemTestUtil.tupleToList(plan.next()).toString());
+        plan.close();
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test public void testEqualityUsesIndex()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "c0", Predicate.Op.EQUALS, 1234);
+        DbIterator scan = scanOf(plan);
+        assertTrue(scan instanceof BTreeScan);
+        assertNotNull(((BTreeScan) scan).getIndexPredicate());
+        check(plan, 0, Predicate.Op.EQUALS, 1234);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSelectiveRangeUsesIndex()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "c0", Predicate.Op.LESS_THAN, 500);
+        assertNotNull(((BTreeScan) scanOf(plan)).getIndexPredicate());
+        check(plan, 0, Predicate.Op.LESS_THAN, 500);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testUnselectiveRangeScans()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        // a range covering the whole table costs the descent more than a scan
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "c0", Predicate.Op.GREATER_THAN_OR_EQ, 0);
+        assertNull(((BTreeScan) scanOf(plan)).getIndexPredicate());
+        check(plan, 0, Predicate.Op.GREATER_THAN_OR_EQ, 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testNonKeyFieldScans()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "c1", Predicate.Op.EQUALS, 1234);
+        assertNull(((BTreeScan) scanOf(plan)).getIndexPredicate());
+        check(plan, 1, Predicate.Op.EQUALS, 1234);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(AccessPathTest.class);
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Test BTreeFile.bulkLoad(): the loaded tree holds every tuple, satisfies
+ * the B+ tree invariants including minimum occupancy, and accepts ordinary
+ * inserts afterwards.
+ */
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+
+    private BTreeFile load(int rows, double fillFactor, int runTuples,
+            ArrayList<ArrayList<Integer>> tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+        File f = File.createTempFile("bulkload", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+
+        TransactionId tid = new TransactionId();
+        bf.bulkLoad(hf.iterator(tid), fillFactor, runTuples);
+        Database.getBufferPool().transactionComplete(tid);
+        return bf;
+    }
+
+    private void check(BTreeFile bf, ArrayList<ArrayList<Integer>> tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+        // the tables are too big for SystemTestUtil.matchTuples(), so
+        // compare sorted copies
+        ArrayList<ArrayList<Integer>> scanned = new ArrayList<ArrayList<Integer>>();
+        BTreeScan scan = new BTreeScan(tid, bf.getId(), "table", null);
+        scan.open();
+        Integer prev = null;
+        while (scan.hasNext()) {
+            ArrayList<Integer> t = SystemTestUtil.tupleToList(scan.next());
+            assertTrue(prev == null || prev <= t.get(0));
+            prev = t.get(0);
+            scanned.add(t);
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(expected, ROW_ORDER);
+        Collections.sort(scanned, ROW_ORDER);
+        assertEquals(expected, scanned);
+    }
+
+    private static final Comparator<ArrayList<Integer>> ROW_ORDER = new Comparator<ArrayList<Integer>>() {
+        public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+            for (int i = 0; i < a.size(); i++) {
+                int cmp = a.get(i).compareTo(b.get(i));
+                if (cmp != 0)
+                    return cmp;
+            }
+            return 0;
+        }
+    };
+
+    @Test public void testSingleLeaf()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = load(10, BTreeFile.DEFAULT_FILL_FACTOR, 1000, tuples);
+        assertEquals(1, bf.numPages());
+        check(bf, tuples);
+    }
+
+    @Test public void testEmpty()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = load(0, BTreeFile.DEFAULT_FILL_FACTOR, 1000, tuples);
+        assertEquals(0, bf.numPages());
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testThreeLevels()
+            throws IOException, DbException, TransactionAbortedException {
+        // half-full leaves of two int columns hold about 250 tuples, and a
+        // root holds at most about 500 children, so this needs a root, an
+        // internal level and leaves, and is sorted in several runs
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = load(130000, 0.5, 20000, tuples);
+        check(bf, tuples);
+
+        TransactionId tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+                tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testInsertAfterLoad()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = load(5000, 1.0, 1000, tuples);
+
+        // full leaves split on insert
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; i++) {
+            Tuple t = BTreeUtility.getBTreeTuple(new int[] { i * 7, i });
+            Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+            tuples.add(BTreeUtility.tupleToList(t));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        check(bf, tuples);
+    }
+
+    @Test(expected=DbException.class) public void testNotEmpty()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = load(10, BTreeFile.DEFAULT_FILL_FACTOR, 1000, tuples);
+        bf.bulkLoad(bf.iterator(new TransactionId()));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeBulkLoadTest.class);
+    }
+}
@@ -0,0 +1,287 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Test B+ trees keyed on a string field, whose internal pages store their
+ * keys front coded: the tree stays valid through inserts and deletes, its
+ * internal pages hold many more short keys than fixed width pages would,
+ * also when the tree is bulk loaded, and they survive a round trip through
+ * their on-disk format, while pages in the old fixed width format are
+ * rejected.
+ */
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+    private static final int BATCH = 100;
+
+    private BTreeFile bf;
+    private ArrayList<String> rows;
+    private Random rand;
+
+    @Before public void setUp() throws IOException {
+        // splitting a wide internal page updates the parent pointers of
+        // every child it moves, so we need more pages for this test
+        Database.resetBufferPool(1000);
+        File f = File.createTempFile("stringkey", ".dat");
+        f.deleteOnExit();
+        f.delete();
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE },
+                new String[] { "name", "value" });
+        bf = new BTreeFile(f, 0, td);
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+        rows = new ArrayList<String>();
+        rand = new Random(34);
+    }
+
+    private Tuple tuple(String key, int value) {
+        Tuple t = new Tuple(bf.getTupleDesc());
+        t.setField(0, new StringField(key, Type.STRING_LEN));
+        t.setField(1, new IntField(value));
+        return t;
+    }
+
+    private static String row(Tuple t) {
+        return ((StringField) t.getField(0)).getValue() + "," + t.getField(1);
+    }
+
+    /** Insert n rows with keys sharing a long common prefix */
+    private void insert(int n) throws IOException, DbException, TransactionAbortedException {
+        for (int done = 0; done < n; done += BATCH) {
+            TransactionId tid = new TransactionId();
+            for (int i = done; i < Math.min(n, done + BATCH); i++) {
+                Tuple t = tuple(String.format("customer/%06d", rand.nextInt(1000000)), i);
+                Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+                rows.add(row(t));
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** Check the tree's invariants and that a scan returns the rows in key order */
+    private void check() throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+        ArrayList<String> scanned = new ArrayList<String>();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        String prev = null;
+        while (it.hasNext()) {
+            String r = row(it.next());
+            String key = r.substring(0, r.indexOf(','));
+            assertTrue(prev == null || prev.compareTo(key) <= 0);
+            prev = key;
+            scanned.add(r);
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        ArrayList<String> expected = new ArrayList<String>(rows);
+        Collections.sort(expected);
+        Collections.sort(scanned);
+        assertEquals(expected, scanned);
+    }
+
+    private BTreeInternalPage root(TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+                tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        return (BTreeInternalPage) Database.getBufferPool().getPage(
+                tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+    }
+
+    @Test public void testInsertLookup()
+            throws IOException, DbException, TransactionAbortedException {
+        insert(ROWS);
+        check();
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows.size(); i += rows.size() / 17) {
+            String r = rows.get(i);
+            String key = r.substring(0, r.indexOf(','));
+            DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS,
+                    new StringField(key, Type.STRING_LEN)));
+            it.open();
+            boolean found = false;
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                assertEquals(key, ((StringField) t.getField(0)).getValue());
+                found |= row(t).equals(r);
+            }
+            it.close();
+            assertTrue(found);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testFanout()
+            throws IOException, DbException, TransactionAbortedException {
+        // a fixed width internal page holds fewer than 32 string keys, so
+        // this many leaves would need three internal levels, but short front
+        // coded keys fit a couple of hundred to a page and two levels do
+        insert(ROWS);
+        TransactionId tid = new TransactionId();
+        BTreeInternalPage root = root(tid);
+        BTreeInternalPage child = (BTreeInternalPage) Database.getBufferPool().getPage(
+                tid, root.iterator().next().getLeftChild(), Permissions.READ_ONLY);
+        assertTrue(child.getNumEntries() > 32);
+        assertEquals(BTreePageId.LEAF, child.iterator().next().getLeftChild().pgcateg());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPageRoundTrip()
+            throws IOException, DbException, TransactionAbortedException {
+        insert(ROWS / 4);
+        TransactionId tid = new TransactionId();
+        BTreeInternalPage root = root(tid);
+        BTreeInternalPage copy = new BTreeInternalPage(root.getId(), root.getPageData(), 0);
+        assertEquals(root.getNumEntries(), copy.getNumEntries());
+        assertEquals(root.getNumEmptySlots(), copy.getNumEmptySlots());
+        assertEquals(root.getParentId(), copy.getParentId());
+        Iterator<BTreeEntry> a = root.iterator();
+        Iterator<BTreeEntry> b = copy.iterator();
+        while (a.hasNext()) {
+            BTreeEntry e = a.next();
+            BTreeEntry c = b.next();
+            assertEquals(e.getKey(), c.getKey());
+            assertEquals(e.getLeftChild(), c.getLeftChild());
+            assertEquals(e.getRightChild(), c.getRightChild());
+        }
+        assertFalse(b.hasNext());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Bulk load the tree with n rows, as insert() would add them */
+    private void bulkLoad(int n, double fillFactor)
+            throws IOException, DbException, TransactionAbortedException {
+        final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = tuple(String.format("customer/%06d", rand.nextInt(1000000)), i);
+            tuples.add(t);
+            rows.add(row(t));
+        }
+        bf.bulkLoad(new AbstractDbFileIterator() {
+            private Iterator<Tuple> it = null;
+
+            public void open() {
+                it = tuples.iterator();
+            }
+
+            public void rewind() {
+                open();
+            }
+
+            protected Tuple readNext() {
+                return it != null && it.hasNext() ? it.next() : null;
+            }
+        }, fillFactor, ROWS / 4);
+    }
+
+    @Test public void testBulkLoadPacked()
+            throws IOException, DbException, TransactionAbortedException {
+        // as in testFanout, packed pages make do with two internal levels
+        bulkLoad(ROWS, BTreeFile.DEFAULT_FILL_FACTOR);
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        BTreeInternalPage root = root(tid);
+        BTreeInternalPage child = (BTreeInternalPage) Database.getBufferPool().getPage(
+                tid, root.iterator().next().getLeftChild(), Permissions.READ_ONLY);
+        assertTrue(child.getNumEntries() > 32);
+        assertEquals(BTreePageId.LEAF, child.iterator().next().getLeftChild().pgcateg());
+        Database.getBufferPool().transactionComplete(tid);
+        check();
+
+        // and the packed pages take more keys
+        insert(ROWS / 2);
+        check();
+    }
+
+    @Test public void testBulkLoadFillFactors()
+            throws IOException, DbException, TransactionAbortedException {
+        for (double fillFactor : new double[] { 0.5, 1.0 }) {
+            setUp();
+            bulkLoad(ROWS, fillFactor);
+            TransactionId tid = new TransactionId();
+            BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+            Database.getBufferPool().transactionComplete(tid);
+            check();
+        }
+    }
+
+    @Test public void testRejectsFixedWidthPage() throws IOException {
+        // the start of a page in the fixed width format: the parent
+        // pointer, the child category, and header bits for slots 0 and 1
+        byte[] data = BTreeInternalPage.createEmptyPageData();
+        data[4] = (byte) BTreePageId.LEAF;
+        data[5] = 3;
+        try {
+            new BTreeInternalPage(new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL), data, 0);
+            fail("read a fixed width page with string keys");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("fixed-width"));
+        }
+    }
+
+    /** Delete one row, found through the index since merges move tuples */
+    private void delete(TransactionId tid, String r)
+            throws IOException, DbException, TransactionAbortedException {
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS,
+                new StringField(r.substring(0, r.indexOf(',')), Type.STRING_LEN)));
+        it.open();
+        Tuple victim = null;
+        while (victim == null && it.hasNext()) {
+            Tuple t = it.next();
+            if (row(t).equals(r))
+                victim = t;
+        }
+        it.close();
+        assertNotNull(victim);
+        Database.getBufferPool().deleteTuple(tid, victim);
+    }
+
+    @Test public void testDelete()
+            throws IOException, DbException, TransactionAbortedException {
+        insert(ROWS);
+
+        // delete most rows, in batches, so internal pages steal and merge
+        for (int round = 0; round < 3; round++) {
+            ArrayList<String> victims = new ArrayList<String>();
+            for (String r : rows) {
+                if (rand.nextInt(4) != 0)
+                    victims.add(r);
+            }
+            for (int done = 0; done < victims.size(); done += BATCH) {
+                TransactionId tid = new TransactionId();
+                for (String r : victims.subList(done, Math.min(victims.size(), done + BATCH))) {
+                    delete(tid, r);
+                    rows.remove(r);
+                }
+                Database.getBufferPool().transactionComplete(tid);
+            }
+            check();
+        }
+
+        // and grow the tree again
+        insert(ROWS / 2);
+        check();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeStringKeyTest.class);
+    }
+}
@@ -0,0 +1,238 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Test secondary indexes with included fields: index-only lookups return
+ * the indexed and included fields of the matching tuples, inserts and
+ * deletes keep the copies in step with the table, and the planner answers
+ * queries that use only those fields from the index.
+ */
+public class CoveringIndexTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 10000;
+
+    private HeapFile hf;
+    private String tableName;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private SecondaryIndex index;
+
+    @Before public void setUp()
+            throws IOException, DbException, TransactionAbortedException {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(6, ROWS, MAX_VALUE, null, tuples, "c");
+        tableName = Database.getCatalog().getTableName(hf.getId());
+        index = SecondaryIndex.create(tableName, "c1", "c2");
+    }
+
+    /** Returns the covered fields of the rows whose second column equals v, read from the index */
+    private ArrayList<ArrayList<Integer>> lookup(int v)
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        DbFileIterator it = index.lookupCovered(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(v)));
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return result;
+    }
+
+    /** Returns the second and third columns of the rows whose second column equals v */
+    private ArrayList<ArrayList<Integer>> expected(int v) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) == v) {
+                ArrayList<Integer> covered = new ArrayList<Integer>();
+                covered.add(t.get(1));
+                covered.add(t.get(2));
+                result.add(covered);
+            }
+        }
+        return result;
+    }
+
+    private static void assertSameRows(ArrayList<ArrayList<Integer>> expected,
+            ArrayList<ArrayList<Integer>> actual) {
+        ArrayList<String> e = new ArrayList<String>();
+        for (ArrayList<Integer> t : expected)
+            e.add(t.toString());
+        ArrayList<String> a = new ArrayList<String>();
+        for (ArrayList<Integer> t : actual)
+            a.add(t.toString());
+        Collections.sort(e);
+        Collections.sort(a);
+        assertEquals(e, a);
+    }
+
+    @Test public void testLookupCovered() throws IOException, DbException, TransactionAbortedException {
+        assertArrayEquals(new int[] { 2 }, index.getIncluded());
+        assertArrayEquals(new int[] { 1, 2 }, index.getCoveredFields());
+        for (int v = 0; v < MAX_VALUE; v += MAX_VALUE / 13)
+            assertSameRows(expected(v), lookup(v));
+    }
+
+    @Test(expected=DbException.class) public void testIncludeKey()
+            throws IOException, DbException, TransactionAbortedException {
+        SecondaryIndex.create(tableName, "c3", "c4", "c3");
+    }
+
+    @Test public void testInsertDelete()
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 200; i++) {
+            Tuple t = Utility.getHeapTuple(new int[] { -i, 7, i, 0, 0, 0 });
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            tuples.add(SystemTestUtil.tupleToList(t));
+        }
+
+        // delete the rows with 5 in the indexed column
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(1)).getValue() == 5)
+                victims.add(t);
+        }
+        it.close();
+        for (Tuple t : victims) {
+            Database.getBufferPool().deleteTuple(tid, t);
+            tuples.remove(SystemTestUtil.tupleToList(t));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertTrue(lookup(5).isEmpty());
+        assertSameRows(expected(7), lookup(7));
+    }
+
+    private DbIterator plan(TransactionId tid, LogicalPlan lp) throws ParsingException {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName, new TableStats(hf.getId(), 1000));
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private ArrayList<ArrayList<Integer>> run(DbIterator plan)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        plan.open();
+        while (plan.hasNext())
+            result.add(SystemTestUtil.tupleToList(plan.next()));
+        plan.close();
+        return result;
+    }
+
+    @Test public void testPlanLookupIndexOnly()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, "42");
+        lp.addProjectField("t.c1", null);
+        lp.addProjectField("t.c2", null);
+        DbIterator plan = plan(tid, lp);
+        assertTrue(contains(plan, IndexOnlyScan.class));
+        assertFalse(contains(plan, SecondaryIndexScan.class));
+        assertFalse(contains(plan, SeqScan.class));
+        assertSameRows(expected(42), run(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPlanAggregateIndexOnly()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        // no filter uses the index, but its entries are narrower than the
+        // table's tuples, so reading all of them is cheaper than a scan
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addProjectField("t.c1", null);
+        lp.addProjectField("t.c2", "SUM");
+        lp.addAggregate("SUM", "t.c2", "t.c1");
+        DbIterator plan = plan(tid, lp);
+        assertTrue(contains(plan, IndexOnlyScan.class));
+        assertFalse(contains(plan, SeqScan.class));
+
+        HashMap<Integer, Integer> sums = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            Integer sum = sums.get(t.get(1));
+            sums.put(t.get(1), (sum == null ? 0 : sum) + t.get(2));
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (Integer key : sums.keySet()) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(key);
+            row.add(sums.get(key));
+            expected.add(row);
+        }
+        assertSameRows(expected, run(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPlanNotCovered()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        // the third column is not in the index, so the table must be read
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, "42");
+        lp.addProjectField("t.c2", null);
+        lp.addProjectField("t.c3", null);
+        DbIterator plan = plan(tid, lp);
+        assertTrue(contains(plan, SecondaryIndexScan.class));
+        assertFalse(contains(plan, IndexOnlyScan.class));
+        assertEquals(expected(42).size(), run(plan).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testExplainIndexOnly()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.LESS_THAN, "100");
+        lp.addProjectField("t.c1", null);
+        lp.addProjectField("t.c2", null);
+        DbIterator plan = plan(tid, lp);
+        assertTrue(contains(plan, IndexOnlyScan.class));
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName, new TableStats(hf.getId(), 1000));
+        OperatorCardinality.updateOperatorCardinality((Operator) plan, lp.getTableAliasToIdMapping(), stats);
+        String tree = new QueryPlanVisualizer().getQueryPlanTree(plan);
+        assertTrue(tree, tree.contains("index-only scan(" + tableName + " t)"));
+        // the filter is estimated from the stats of the table the index is on
+        Operator filter = (Operator) ((Operator) plan).getChildren()[0];
+        assertTrue(filter instanceof Filter);
+        assertTrue(filter.getEstimatedCardinality() > 1);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean contains(DbIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren()) {
+                if (child != null && contains(child, c))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(CoveringIndexTest.class);
+    }
+}
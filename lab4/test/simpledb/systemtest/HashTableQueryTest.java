@@ -0,0 +1,163 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Test querying a table that the catalog schema marks hash: the planner
+ * scans it through the HashFile's own iterator, and looks up equality
+ * filters on its key in the key's bucket with a HashScan.
+ */
+public class HashTableQueryTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 3000;
+    private static final int MAX_VALUE = 500;
+
+    private int tableId;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HashMap<String, TableStats> stats;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File dir = File.createTempFile("hashquery", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        new File(dir, "h.dat").deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("h (k int pk, v int) hash\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        tableId = Database.getCatalog().getTableId("h");
+        assertTrue(Database.getCatalog().getDatabaseFile(tableId) instanceof HashFile);
+
+        Random r = new Random(7);
+        tuples = new ArrayList<ArrayList<Integer>>();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < ROWS; i++) {
+            int k = r.nextInt(MAX_VALUE), v = r.nextInt(MAX_VALUE);
+            Tuple t = new Tuple(Database.getCatalog().getTupleDesc(tableId));
+            t.setField(0, new IntField(k));
+            t.setField(1, new IntField(v));
+            Database.getBufferPool().insertTuple(tid, tableId, t);
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(k);
+            row.add(v);
+            tuples.add(row);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        stats = new HashMap<String, TableStats>();
+        stats.put("h", new TableStats(tableId, 1000));
+    }
+
+    private DbIterator plan(TransactionId tid, String field, Predicate.Op op, int v)
+            throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(tableId, "h");
+        if (field != null)
+            lp.addFilter("h." + field, op, Integer.toString(v));
+        lp.addProjectField("h.k", null);
+        lp.addProjectField("h.v", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    /** Returns the scan at the bottom of a single-table plan */
+    private static DbIterator scanOf(DbIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
+    /** Check that the plan returns the rows whose field satisfies op v */
+    private void check(DbIterator plan, int field, Predicate.Op op, int v)
+            throws DbException, TransactionAbortedException {
+        Predicate p = new Predicate(0, op, new IntField(v));
+        ArrayList<String> expected = new ArrayList<String>();
+        for (ArrayList<Integer> t : tuples) {
+            Tuple key = new Tuple(Utility.getTupleDesc(1));
+            key.setField(0, new IntField(t.get(field)));
+            if (p.filter(key))
+                expected.add(t.toString());
+        }
+        ArrayList<String> actual = new ArrayList<String>();
+        plan.open();
+        while (plan.hasNext())
+            actual.add(SystemTestUtil.tupleToList(plan.next()).toString());
+        plan.close();
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test public void testScan()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, null, null, 0);
+        assertTrue(scanOf(plan) instanceof SeqScan);
+        check(plan, 0, Predicate.Op.GREATER_THAN_OR_EQ, 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testEqualityLooksUpBucket()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        int key = tuples.get(0).get(0);
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "k", Predicate.Op.EQUALS, key);
+        assertTrue(scanOf(plan) instanceof HashScan);
+        check(plan, 0, Predicate.Op.EQUALS, key);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testRangeAndNonKeyScan()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, "k", Predicate.Op.LESS_THAN, 100);
+        assertTrue(scanOf(plan) instanceof SeqScan);
+        check(plan, 0, Predicate.Op.LESS_THAN, 100);
+        plan = plan(tid, "v", Predicate.Op.EQUALS, 42);
+        assertTrue(scanOf(plan) instanceof SeqScan);
+        check(plan, 1, Predicate.Op.EQUALS, 42);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testAggregateReadsBatches()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(tableId, "h");
+        lp.addFilter("h.k", Predicate.Op.GREATER_THAN, "250");
+        lp.addProjectField("h.v", "sum");
+        lp.addAggregate("sum", "h.v", null);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) > 250)
+                expected += t.get(1);
+        }
+        plan.open();
+        assertEquals(expected, ((IntField) plan.next().getField(0)).getValue());
+        assertFalse(plan.hasNext());
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashTableQueryTest.class);
+    }
+}
@@ -0,0 +1,254 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Test SecondaryIndex: lookups through the index return the matching
+ * tuples of the table, inserts, deletes and aborts keep the index in step
+ * with the table, and the planner reads through the index.
+ */
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 10000;
+
+    private HeapFile hf;
+    private String tableName;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private SecondaryIndex index;
+
+    @Before public void setUp()
+            throws IOException, DbException, TransactionAbortedException {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+        tableName = Database.getCatalog().getTableName(hf.getId());
+        index = SecondaryIndex.create(tableName, "c1");
+    }
+
+    /** Returns the rows of the table whose second column satisfies op v, read through the index */
+    private ArrayList<ArrayList<Integer>> lookup(Predicate.Op op, int v)
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        DbFileIterator it = index.lookup(tid, new IndexPredicate(op, new IntField(v)));
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return result;
+    }
+
+    private ArrayList<ArrayList<Integer>> expected(Predicate.Op op, int v) {
+        Predicate p = new Predicate(0, op, new IntField(v));
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            Tuple key = new Tuple(Utility.getTupleDesc(1));
+            key.setField(0, new IntField(t.get(1)));
+            if (p.filter(key))
+                result.add(t);
+        }
+        return result;
+    }
+
+    private void checkLookups() throws IOException, DbException, TransactionAbortedException {
+        for (int v = 0; v < MAX_VALUE; v += MAX_VALUE / 13) {
+            assertSameRows(expected(Predicate.Op.EQUALS, v), lookup(Predicate.Op.EQUALS, v));
+        }
+        assertSameRows(expected(Predicate.Op.LESS_THAN, 300), lookup(Predicate.Op.LESS_THAN, 300));
+        assertSameRows(expected(Predicate.Op.GREATER_THAN_OR_EQ, 9700),
+                lookup(Predicate.Op.GREATER_THAN_OR_EQ, 9700));
+    }
+
+    private static void assertSameRows(ArrayList<ArrayList<Integer>> expected,
+            ArrayList<ArrayList<Integer>> actual) {
+        ArrayList<String> e = new ArrayList<String>();
+        for (ArrayList<Integer> t : expected)
+            e.add(t.toString());
+        ArrayList<String> a = new ArrayList<String>();
+        for (ArrayList<Integer> t : actual)
+            a.add(t.toString());
+        Collections.sort(e);
+        Collections.sort(a);
+        assertEquals(e, a);
+    }
+
+    @Test public void testLookup() throws IOException, DbException, TransactionAbortedException {
+        assertSame(index, Database.getCatalog().getIndex(hf.getId(), 1));
+        assertNull(Database.getCatalog().getIndex(hf.getId(), 0));
+        checkLookups();
+    }
+
+    @Test(expected=DbException.class) public void testDuplicate()
+            throws IOException, DbException, TransactionAbortedException {
+        SecondaryIndex.create(tableName, "c1");
+    }
+
+    /**
+     * A bulk load that fails leaves neither the index nor its file in the
+     * catalog
+     */
+    @Test public void testFailedLoad()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 1000, MAX_VALUE, null,
+                new ArrayList<ArrayList<Integer>>(), "c");
+        String name = Database.getCatalog().getTableName(other.getId());
+        HeapFile broken = new HeapFile(other.getFile(), other.getTupleDesc()) {
+            public DbFileIterator iterator(TransactionId tid) {
+                final DbFileIterator it = super.iterator(tid);
+                return new AbstractDbFileIterator() {
+                    int read = 0;
+
+                    public void open() throws DbException, TransactionAbortedException {
+                        it.open();
+                    }
+
+                    public void rewind() throws DbException, TransactionAbortedException {
+                        it.rewind();
+                    }
+
+                    public void close() {
+                        super.close();
+                        it.close();
+                    }
+
+                    protected Tuple readNext() throws DbException, TransactionAbortedException {
+                        if (++read > 100)
+                            throw new DbException("simulated read failure");
+                        return it.hasNext() ? it.next() : null;
+                    }
+                };
+            }
+        };
+        Database.getCatalog().addTable(broken, name);
+        try {
+            SecondaryIndex.create(name, "c1");
+            fail("the load should have failed");
+        } catch (DbException e) {
+            // expected
+        }
+        assertNull(Database.getCatalog().getIndex(broken.getId(), 1));
+        try {
+            Database.getCatalog().getTableId(name + "_c1_idx");
+            fail("the index's table should have been removed");
+        } catch (java.util.NoSuchElementException e) {
+            // expected
+        }
+        // the table itself can be indexed once it reads again
+        Database.getCatalog().addTable(other, name);
+        assertNotNull(SecondaryIndex.create(name, "c1"));
+    }
+
+    @Test public void testInsertDelete()
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 200; i++) {
+            Tuple t = Utility.getHeapTuple(new int[] { -i, i % MAX_VALUE });
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            tuples.add(SystemTestUtil.tupleToList(t));
+        }
+
+        // delete every row with 5 in the indexed column
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(1)).getValue() == 5)
+                victims.add(t);
+        }
+        it.close();
+        for (Tuple t : victims) {
+            Database.getBufferPool().deleteTuple(tid, t);
+            tuples.remove(SystemTestUtil.tupleToList(t));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertTrue(lookup(Predicate.Op.EQUALS, 5).isEmpty());
+        checkLookups();
+        TransactionId check = new TransactionId();
+        BTreeChecker.checkRep(index.getFile(), check, new HashMap<PageId, Page>(), false);
+        Database.getBufferPool().transactionComplete(check);
+    }
+
+    @Test public void testAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 50; i++) {
+            Tuple t = Utility.getHeapTuple(new int[] { -i, 3 });
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+        checkLookups();
+    }
+
+    private DbIterator plan(TransactionId tid, Predicate.Op op, int v) throws ParsingException {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName, new TableStats(hf.getId(), 1000));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", op, Integer.toString(v));
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private ArrayList<ArrayList<Integer>> run(DbIterator plan)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        plan.open();
+        while (plan.hasNext())
+            result.add(SystemTestUtil.tupleToList(plan.next()));
+        plan.close();
+        return result;
+    }
+
+    @Test public void testPlanUsesIndex()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, Predicate.Op.EQUALS, 42);
+        assertTrue(contains(plan, SecondaryIndexScan.class));
+        assertSameRows(expected(Predicate.Op.EQUALS, 42), run(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPlanSkipsUnselectiveIndex()
+            throws IOException, ParsingException, DbException, TransactionAbortedException {
+        // reading most of the table through an unclustered index costs
+        // more than scanning it
+        TransactionId tid = new TransactionId();
+        DbIterator plan = plan(tid, Predicate.Op.GREATER_THAN, 1000);
+        assertFalse(contains(plan, SecondaryIndexScan.class));
+        assertTrue(contains(plan, SeqScan.class));
+        assertSameRows(expected(Predicate.Op.GREATER_THAN, 1000), run(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean contains(DbIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren()) {
+                if (child != null && contains(child, c))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
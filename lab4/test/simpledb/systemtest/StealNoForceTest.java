@@ -0,0 +1,221 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test STEAL/NO-FORCE buffer management: transactions larger than the
+ * buffer pool, aborts of stolen pages, and recovery of committed pages
+ * that never reached disk.
+ */
+public class StealNoForceTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 4;
+    private static final int ROWS = 5000; // about ten pages of two int columns
+
+    File file;
+    HeapFile hf;
+
+    void setup() throws IOException {
+        Database.reset();
+        file = new File("stealnoforce.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.resetBufferPool(POOL_PAGES).setStealNoForce(true);
+    }
+
+    void crash() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    void insertRows(Transaction t, int first, int count)
+            throws DbException, TransactionAbortedException {
+        insertRows(t, hf, first, count);
+    }
+
+    void insertRows(Transaction t, HeapFile hf, int first, int count)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = first; i < first + count; i++) {
+            Tuple tup = new Tuple(Utility.getTupleDesc(2));
+            tup.setField(0, new IntField(i));
+            tup.setField(1, new IntField(0));
+            rows.add(tup);
+        }
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), rows), hf.getId());
+        insert.open();
+        assertEquals(count, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+    }
+
+    int countRows() throws DbException, TransactionAbortedException, IOException {
+        return countRows(hf);
+    }
+
+    int countRows(HeapFile hf) throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        t.commit();
+        return count;
+    }
+
+    @Test public void testInsertLargerThanPool()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRows(t, 0, ROWS);
+        t.commit();
+
+        assertTrue(hf.numPages() > POOL_PAGES);
+        assertEquals(ROWS, countRows());
+    }
+
+    @Test public void testAbortStolenPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRows(t, 0, 10);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        insertRows(t, 10, ROWS);
+        t.abort();
+
+        assertEquals(10, countRows());
+    }
+
+    @Test public void testCommitCrashRedo()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // the committed page is only in the log when we crash
+        Transaction t = new Transaction();
+        t.start();
+        insertRows(t, 0, 10);
+        t.commit();
+
+        crash();
+
+        assertEquals(10, countRows());
+    }
+
+    @Test public void testLargeCommitThenOpenCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRows(t1, 0, ROWS);
+        t1.commit();
+
+        // a loser whose pages get stolen
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRows(t2, ROWS, ROWS);
+
+        crash();
+
+        assertEquals(ROWS, countRows());
+    }
+
+    @Test public void testFuzzyCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        Database.reset();
+        File committedFile = new File("stealnoforce_committed.db");
+        committedFile.delete();
+        HeapFile committed = Utility.createEmptyHeapFile(committedFile.getAbsolutePath(), 2);
+        file = new File("stealnoforce.db");
+        file.delete();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setStealNoForce(true);
+
+        // three committed pages that are dirty but not yet written
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRows(t1, committed, 0, 1500);
+        t1.commit();
+        assertEquals(3, committed.numPages());
+
+        // a transaction still running at the checkpoint, and one holding a
+        // write lock on a committed page, which the writer must skip
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRows(t2, 10000, 600);
+        Transaction t3 = new Transaction();
+        t3.start();
+        HeapPageId locked = new HeapPageId(committed.getId(), 0);
+        bp.getPage(t3.getId(), locked, Permissions.READ_WRITE);
+
+        Map<PageId, Long> dirty = bp.getDirtyPageTable();
+        long checkpointOffset = Database.getLogFile().getCurrentOffset();
+        for (int i = 0; i < 3; i++)
+            assertTrue(dirty.containsKey(new HeapPageId(committed.getId(), i)));
+        assertTrue(dirty.containsKey(new HeapPageId(hf.getId(), 0)));
+        long redoStart = Long.MAX_VALUE;
+        for (long offset : dirty.values()) {
+            assertTrue(offset <= checkpointOffset);
+            redoStart = Math.min(redoStart, offset);
+        }
+        // the committed pages' updates are only found before the checkpoint
+        assertTrue(redoStart < checkpointOffset);
+
+        // the checkpoint neither waits for t2's locks nor stops it writing
+        Database.getLogFile().logCheckpoint();
+        insertRows(t2, 10600, 600);
+
+        // wait for the writer to get through the pages it may write
+        HeapPageId unlocked1 = new HeapPageId(committed.getId(), 1);
+        HeapPageId unlocked2 = new HeapPageId(committed.getId(), 2);
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((bp.getDirtyPageTable().containsKey(unlocked1)
+                || bp.getDirtyPageTable().containsKey(unlocked2))
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        dirty = bp.getDirtyPageTable();
+        assertFalse(dirty.containsKey(unlocked1));
+        assertFalse(dirty.containsKey(unlocked2));
+        assertTrue(dirty.containsKey(locked));
+        assertTrue(dirty.containsKey(new HeapPageId(hf.getId(), 0)));
+
+        Transaction t4 = new Transaction();
+        t4.start();
+        insertRows(t4, committed, 1500, 100);
+        t4.commit();
+
+        // crash with the locked committed page and t2's pages unwritten
+        Database.reset();
+        committed = Utility.openHeapFile(2, committedFile);
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+
+        assertEquals(1600, countRows(committed));
+        assertEquals(0, countRows(hf));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(StealNoForceTest.class);
+    }
+}